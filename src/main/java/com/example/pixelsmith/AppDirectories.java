@@ -0,0 +1,17 @@
+package com.example.pixelsmith;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Local working directories under ~/.pixelsmith
+final class AppDirectories {
+    private static final Path ROOT = Path.of(System.getProperty("user.home"), ".pixelsmith");
+
+    private AppDirectories() {
+    }
+
+    static Path resolve(String name) throws IOException {
+        return Files.createDirectories(ROOT.resolve(name));
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.pixelsmith;
+
+import javafx.scene.paint.Color;
+
+// Conversions between JavaFX colors and packed 0xAARRGGBB ints
+final class Argb {
+    private Argb() {
+    }
+
+    static int of(Color color) {
+        int a = (int) Math.round(color.getOpacity() * 255);
+        int r = (int) Math.round(color.getRed() * 255);
+        int g = (int) Math.round(color.getGreen() * 255);
+        int b = (int) Math.round(color.getBlue() * 255);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    static Color toColor(int argb) {
+        return Color.rgb((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF, ((argb >>> 24) & 0xFF) / 255.0);
+    }
+}
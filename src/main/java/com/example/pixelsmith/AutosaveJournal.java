@@ -0,0 +1,690 @@
+package com.example.pixelsmith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Crash-safe autosave for one editor session.
+ * <p>
+ * Every pixel write is appended to the journal's buffer, and the buffer is written to the
+ * journal file once the document command that filled it is done, so the records reach the page
+ * cache (and survive the JVM dying) a command at a time. When the journal gets long, or a
+ * command changed the whole document without journaling it, a new generation starts right away
+ * and the canvas is written as its checkpoint on a background thread, copied a band of rows at a
+ * time between document commands. Records are absolute writes, so a band copied after some of
+ * the new generation's edits still recovers to the same canvas once the journal is replayed over
+ * it. Older generations are deleted only once the newer checkpoint is on disk.
+ * <p>
+ * Recovery starts from the latest complete checkpoint and replays its journal. Later journals
+ * are replayed only while they continue a long journal. A generation started by a whole-document
+ * change has no record of that change, so if its checkpoint never finished, recovery stops there
+ * and the session comes back as it was just before the change. Nothing is memory-mapped, so
+ * files can be deleted as soon as they are closed (on Windows a mapped file cannot be).
+ * <p>
+ * A document edited as a tilemap is journaled as writes to tile pixels and placements of tiles
+ * in map cells, and checkpointed as its map and tileset, so a stroke costs records for the tile
+ * pixels it wrote whatever number of instances show them. Converting to or from a tilemap is a
+ * whole-document change, so one recovery replays either tile or cell records. It replays tile
+ * records on the tiles and hands the sprite back as plain cells.
+ */
+public class AutosaveJournal {
+    // What a session recovers to, as the latest checkpoint describes it
+    record Snapshot(int rows, int cols, Integer spriteId, String spritePath) {
+    }
+
+    // The document a checkpoint is copied from; called on the document thread only
+    interface Source {
+        int rows();
+
+        int cols();
+
+        Integer spriteId();
+
+        String spritePath();
+
+        // Copy count whole rows from row on into dst, row-major
+        void readRows(int row, int count, int[] dst);
+
+        // A copy of the map while the document is a tilemap (tile << 3 | flags for each map cell), else null
+        int[] tileMap();
+
+        int tileCount();
+
+        // Copy count tiles from tile on into dst, TILE_SIZE * TILE_SIZE pixels each, transparent as 0
+        void readTiles(int tile, int count, int[] dst);
+
+        // Run a task on the document thread after the commands already queued
+        void submit(Runnable task);
+    }
+
+    private static final int JOURNAL_MAGIC = 0x50584A32; // "PXJ2", followed by the generation and CONTINUES or 0
+    private static final int CHECKPOINT_MAGIC = 0x50584331; // "PXC1", followed by the cells row by row
+    private static final int TILE_CHECKPOINT_MAGIC = 0x50585431; // "PXT1", followed by the tile count, map and tiles
+    private static final int TILE_PIXELS = TileMap.TILE_SIZE * TileMap.TILE_SIZE;
+    private static final int HEADER_SIZE = 12;
+    private static final int CONTINUES = 1; // the generation's base is where the previous journal left off
+    private static final int RECORD_SIZE = 16;
+    private static final int OP_SET_PIXEL = 1;
+    private static final int OP_FILL_SPAN = 2; // col field packs colStart << 16 | (colEnd - colStart)
+    private static final int OP_TILE_PIXEL = 3; // tile, pixel, value (0 for transparent)
+    private static final int OP_PLACE_TILE = 4; // map cell, entry
+    private static final int BUFFERED_RECORDS = 4096; // written out early when a command appends more
+    private static final int COMPACT_RECORDS = 1 << 18;
+    private static final int BAND_CELLS = 1 << 20; // cells a checkpoint copies per document thread turn
+    private static final AtomicInteger SESSION_COUNTER = new AtomicInteger();
+
+    private final Path sessionDir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Source source;
+    private final ExecutorService checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "autosave-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    // Document thread
+    private final ByteBuffer pending = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+    private boolean flushQueued;
+    private FileChannel journalChannel; // null once the journal is disabled or closed
+    private int generation;
+    private int recordsSinceCheckpoint;
+    // Checkpoint writer thread
+    private Checkpoint writing;
+
+    private AutosaveJournal(Path sessionDir, FileChannel lockChannel, FileLock lock, Source source) {
+        this.sessionDir = sessionDir;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.source = source;
+    }
+
+    // Starts a new session; the source is read whenever a checkpoint is due
+    static AutosaveJournal open(Source source) throws IOException {
+        return open(source, AppDirectories.resolve("autosave"));
+    }
+
+    static AutosaveJournal open(Source source, Path autosaveDir) throws IOException {
+        String sessionId = System.currentTimeMillis() + "-" + ProcessHandle.current().pid() + "-" + SESSION_COUNTER.incrementAndGet();
+        Path sessionDir = Files.createDirectories(autosaveDir.resolve(sessionId));
+        FileChannel lockChannel = FileChannel.open(sessionDir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        AutosaveJournal journal = new AutosaveJournal(sessionDir, lockChannel, lockChannel.lock(), source);
+        journal.checkpoint();
+        return journal;
+    }
+
+    void append(int row, int col, int argb) {
+        write(OP_SET_PIXEL, row, col, argb);
+    }
+
+    // A run of cells in one row set to the same color, colStart..colEnd inclusive; 0 records an erase
+    void appendSpan(int row, int colStart, int colEnd, int argb) {
+        for (int start = colStart; start <= colEnd; start += 0x10000) {
+            int end = Math.min(colEnd, start + 0xFFFF);
+            write(OP_FILL_SPAN, row, (start << 16) | (end - start), argb);
+        }
+    }
+
+    // A tilemap's tile pixel written, through any of its instances
+    void appendTilePixel(int tile, int pixel, int value) {
+        write(OP_TILE_PIXEL, tile, pixel, value);
+    }
+
+    // A tilemap cell now showing the tile and orientation of a map entry
+    void appendPlaceTile(int cell, int entry) {
+        write(OP_PLACE_TILE, cell, entry, 0);
+    }
+
+    private void write(int op, int row, int col, int argb) {
+        if (journalChannel == null) {
+            return;
+        }
+        if (!pending.hasRemaining()) {
+            flush();
+        }
+        pending.putInt(op).putInt(row).putInt(col).putInt(argb);
+        if (!flushQueued) {
+            flushQueued = true;
+            source.submit(this::flush);
+        }
+        if (++recordsSinceCheckpoint >= COMPACT_RECORDS) {
+            rotate(true);
+        }
+    }
+
+    // Write the buffered records to the journal file
+    private void flush() {
+        flushQueued = false;
+        if (journalChannel != null && pending.position() > 0) {
+            pending.flip();
+            try {
+                writeFully(journalChannel, pending);
+            } catch (IOException e) {
+                disable(e);
+            }
+        }
+        pending.clear();
+    }
+
+    // Rotates to a new generation whose base is the current canvas, after a change the journal does not hold
+    void checkpoint() {
+        rotate(false);
+    }
+
+    private void rotate(boolean continues) {
+        flush();
+        int next = generation + 1;
+        try {
+            startGeneration(next, continues);
+        } catch (IOException e) {
+            disable(e);
+            return;
+        }
+        Checkpoint checkpoint = new Checkpoint(next, source.rows(), source.cols(), source.spriteId(), source.spritePath(),
+                source.tileMap(), source.tileCount());
+        checkpointWriter.execute(() -> begin(checkpoint));
+        source.submit(() -> copyBand(checkpoint));
+    }
+
+    // Ends the session; a discarded session leaves nothing to recover
+    void close(boolean discard) {
+        flush();
+        checkpointWriter.execute(() -> abandon(writing));
+        checkpointWriter.shutdown();
+        try {
+            checkpointWriter.awaitTermination(10, TimeUnit.SECONDS);
+            if (journalChannel != null) {
+                journalChannel.close();
+                journalChannel = null;
+            }
+            lock.release();
+            lockChannel.close();
+            if (discard) {
+                deleteSession(sessionDir);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error closing autosave journal: " + e.getMessage());
+        }
+    }
+
+    private void startGeneration(int next, boolean continues) throws IOException {
+        if (journalChannel != null) {
+            journalChannel.close();
+        }
+        journalChannel = FileChannel.open(journalFile(sessionDir, next), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        generation = next;
+        recordsSinceCheckpoint = 0;
+        writeFully(journalChannel, ByteBuffer.allocate(HEADER_SIZE).putInt(JOURNAL_MAGIC).putInt(next)
+                .putInt(continues ? CONTINUES : 0).flip());
+    }
+
+    private void disable(IOException e) {
+        System.err.println("Autosave journal disabled: " + e.getMessage());
+        try {
+            if (journalChannel != null) {
+                journalChannel.close();
+            }
+        } catch (IOException ignored) {
+            // Already failing
+        }
+        journalChannel = null;
+    }
+
+    // A checkpoint being written: its header (and a tilemap's map) is captured when the generation starts and the
+    // rows or tiles are copied a band at a time, alternating between the document thread (copying) and the writer
+    // thread (writing)
+    private final class Checkpoint {
+        final int gen;
+        final int rows;
+        final int cols;
+        final Integer spriteId;
+        final String spritePath;
+        final int[] map; // null unless the document is a tilemap
+        final int units; // rows, or tiles for a tilemap
+        final int unitSize; // ints in each
+        final int bandUnits;
+        final int[] band;
+        final Path temp;
+        ByteBuffer bytes;
+        FileChannel out;
+        int copied; // units copied into band so far
+        int bandCount; // units in band waiting to be written
+
+        Checkpoint(int gen, int rows, int cols, Integer spriteId, String spritePath, int[] map, int tileCount) {
+            this.gen = gen;
+            this.rows = rows;
+            this.cols = cols;
+            this.spriteId = spriteId;
+            this.spritePath = spritePath;
+            this.map = map;
+            this.units = map != null ? tileCount : rows;
+            this.unitSize = map != null ? TILE_PIXELS : Math.max(cols, 1);
+            this.bandUnits = Math.max(1, Math.min(units, BAND_CELLS / unitSize));
+            this.band = new int[bandUnits * unitSize];
+            this.temp = checkpointFile(sessionDir, gen).resolveSibling("checkpoint-" + gen + ".tmp");
+        }
+    }
+
+    // Document thread: copy the next band, unless a newer generation has started or the journal is closed
+    private void copyBand(Checkpoint checkpoint) {
+        if (checkpoint.gen != generation || journalChannel == null) {
+            return;
+        }
+        int count = Math.min(checkpoint.bandUnits, checkpoint.units - checkpoint.copied);
+        if (checkpoint.map != null) {
+            source.readTiles(checkpoint.copied, count, checkpoint.band);
+        } else {
+            source.readRows(checkpoint.copied, count, checkpoint.band);
+        }
+        checkpoint.copied += count;
+        checkpoint.bandCount = count;
+        checkpointWriter.execute(() -> writeBand(checkpoint));
+    }
+
+    // Writer thread: open the temp file and write the header (and a tilemap's map), dropping any checkpoint still
+    // in progress
+    private void begin(Checkpoint checkpoint) {
+        abandon(writing);
+        writing = checkpoint;
+        byte[] path = checkpoint.spritePath == null ? new byte[0] : checkpoint.spritePath.getBytes(StandardCharsets.UTF_8);
+        int mapInts = checkpoint.map != null ? 1 + checkpoint.map.length : 0;
+        ByteBuffer header = ByteBuffer.allocate(24 + path.length + mapInts * 4);
+        header.putInt(checkpoint.map != null ? TILE_CHECKPOINT_MAGIC : CHECKPOINT_MAGIC).putInt(checkpoint.rows).putInt(checkpoint.cols)
+                .putInt(checkpoint.spriteId == null ? 0 : 1).putInt(checkpoint.spriteId == null ? 0 : checkpoint.spriteId)
+                .putInt(checkpoint.spritePath == null ? -1 : path.length).put(path);
+        if (checkpoint.map != null) {
+            header.putInt(checkpoint.units);
+            header.asIntBuffer().put(checkpoint.map);
+            header.position(header.capacity());
+        }
+        header.flip();
+        try {
+            checkpoint.out = FileChannel.open(checkpoint.temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeFully(checkpoint.out, header);
+        } catch (IOException e) {
+            System.err.println("Error writing autosave checkpoint: " + e.getMessage());
+            abandon(checkpoint);
+        }
+    }
+
+    // Writer thread: write the band just copied, then ask for the next or finish
+    private void writeBand(Checkpoint checkpoint) {
+        if (checkpoint != writing) {
+            return;
+        }
+        int ints = checkpoint.bandCount * checkpoint.unitSize;
+        if (checkpoint.bytes == null) {
+            checkpoint.bytes = ByteBuffer.allocate(checkpoint.band.length * 4);
+        }
+        checkpoint.bytes.clear();
+        checkpoint.bytes.asIntBuffer().put(checkpoint.band, 0, ints);
+        checkpoint.bytes.limit(ints * 4);
+        try {
+            writeFully(checkpoint.out, checkpoint.bytes);
+        } catch (IOException e) {
+            System.err.println("Error writing autosave checkpoint: " + e.getMessage());
+            abandon(checkpoint);
+            return;
+        }
+        if (checkpoint.copied < checkpoint.units) {
+            source.submit(() -> copyBand(checkpoint));
+        } else {
+            finish(checkpoint);
+        }
+    }
+
+    // Writer thread: make the checkpoint the session's base and delete the generations it replaces
+    private void finish(Checkpoint checkpoint) {
+        writing = null;
+        try {
+            checkpoint.out.force(false);
+            checkpoint.out.close();
+        } catch (IOException e) {
+            System.err.println("Error writing autosave checkpoint: " + e.getMessage());
+            abandon(checkpoint);
+            return;
+        }
+        try {
+            Files.move(checkpoint.temp, checkpointFile(sessionDir, checkpoint.gen), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (int older : generations(sessionDir, "journal-")) {
+                if (older < checkpoint.gen) {
+                    Files.deleteIfExists(journalFile(sessionDir, older));
+                    Files.deleteIfExists(checkpointFile(sessionDir, older));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting autosave journal: " + e.getMessage());
+        }
+    }
+
+    // Writer thread: drop a checkpoint that will not be finished, and its temp file
+    private void abandon(Checkpoint checkpoint) {
+        if (checkpoint == null) {
+            return;
+        }
+        if (writing == checkpoint) {
+            writing = null;
+        }
+        try {
+            if (checkpoint.out != null) {
+                checkpoint.out.close();
+            }
+            Files.deleteIfExists(checkpoint.temp);
+        } catch (IOException e) {
+            System.err.println("Error discarding autosave checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    // Sessions whose owning editor is gone (crashed or killed), newest first
+    static List<Path> findOrphanedSessions() {
+        List<Path> orphans = new ArrayList<>();
+        try (Stream<Path> sessions = Files.list(AppDirectories.resolve("autosave"))) {
+            for (Path session : sessions.sorted(Comparator.reverseOrder()).toList()) {
+                if (!Files.exists(session.resolve("lock"))) {
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(session.resolve("lock"), StandardOpenOption.WRITE);
+                     FileLock probe = channel.tryLock()) {
+                    if (probe != null) {
+                        orphans.add(session);
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // Held by an editor in this JVM
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error scanning autosave sessions: " + e.getMessage());
+        }
+        return orphans;
+    }
+
+    // The document the session recovers to, read from the header of its latest checkpoint; null when the session
+    // never finished one
+    static Snapshot recover(Path session) throws IOException {
+        int base = latestCheckpoint(session);
+        if (base == 0) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(checkpointFile(session, base), StandardOpenOption.READ)) {
+            return readHeader(in, checkpointFile(session, base));
+        }
+    }
+
+    // Stream the latest checkpoint into a buffer of its size a band of rows at a time, then replay its journal and
+    // the later ones that continue it. A tilemap is rebuilt and replayed as tiles, then written out as cells,
+    // transparent as 0. Returns false if later journals were left out because a whole-document change was never
+    // checkpointed.
+    static boolean restore(Path session, PixelBuffer into) throws IOException {
+        int base = latestCheckpoint(session);
+        Path file = checkpointFile(session, base);
+        Recovery recovery = new Recovery(into);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            Snapshot snapshot = readHeader(in, file);
+            if (snapshot.rows() != into.height() || snapshot.cols() != into.width()) {
+                throw new IOException("Autosave checkpoint is " + snapshot.cols() + "x" + snapshot.rows() + ": " + file);
+            }
+            if (isTilemap(in, file)) {
+                recovery.tiles = readTilemap(in, snapshot, file);
+            } else {
+                readRows(in, into, file);
+            }
+        }
+        boolean complete = true;
+        for (int gen : generations(session, "journal-")) {
+            if (gen < base) {
+                continue;
+            }
+            IntBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalFile(session, gen))).asIntBuffer();
+            boolean valid = records.limit() >= HEADER_SIZE / 4 && records.get(0) == JOURNAL_MAGIC;
+            if (gen > base && (!valid || records.get(2) != CONTINUES)) {
+                complete = false;
+                break;
+            }
+            if (valid) {
+                recovery.replay(records);
+            }
+        }
+        recovery.finish();
+        return complete;
+    }
+
+    static void deleteSession(Path session) {
+        try (Stream<Path> files = Files.list(session)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(session);
+        } catch (IOException e) {
+            System.err.println("Error deleting autosave session: " + e.getMessage());
+        }
+    }
+
+    private static int latestCheckpoint(Path session) throws IOException {
+        int base = 0;
+        for (int gen : generations(session, "checkpoint-")) {
+            base = Math.max(base, gen);
+        }
+        return base;
+    }
+
+    // Read a checkpoint's header, leaving the channel where its rows or tiles start; the file must hold them all
+    private static Snapshot readHeader(FileChannel in, Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(24);
+        readFully(in, buffer, file);
+        int magic = buffer.getInt();
+        if (magic != CHECKPOINT_MAGIC && magic != TILE_CHECKPOINT_MAGIC) {
+            throw new IOException("Not an autosave checkpoint: " + file);
+        }
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        boolean hasSpriteId = buffer.getInt() != 0;
+        int spriteId = buffer.getInt();
+        int pathLength = buffer.getInt();
+        String path = null;
+        if (pathLength >= 0) {
+            ByteBuffer bytes = ByteBuffer.allocate(pathLength);
+            readFully(in, bytes, file);
+            path = new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+        long ints = (long) rows * cols;
+        if (magic == TILE_CHECKPOINT_MAGIC) {
+            ByteBuffer tileCount = ByteBuffer.allocate(4);
+            if (in.read(tileCount, in.position()) < 4) {
+                throw new IOException("Truncated autosave checkpoint: " + file);
+            }
+            ints = 1 + mapCells(rows, cols) + (long) tileCount.getInt(0) * TILE_PIXELS;
+        }
+        if (rows <= 0 || cols <= 0 || in.size() - in.position() < ints * 4) {
+            throw new IOException("Truncated autosave checkpoint: " + file);
+        }
+        return new Snapshot(rows, cols, hasSpriteId ? spriteId : null, path);
+    }
+
+    private static boolean isTilemap(FileChannel in, Path file) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        if (in.read(magic, 0) < 4) {
+            throw new IOException("Truncated autosave checkpoint: " + file);
+        }
+        return magic.getInt(0) == TILE_CHECKPOINT_MAGIC;
+    }
+
+    private static int mapCells(int rows, int cols) {
+        return ((rows + TileMap.TILE_SIZE - 1) / TileMap.TILE_SIZE) * ((cols + TileMap.TILE_SIZE - 1) / TileMap.TILE_SIZE);
+    }
+
+    private static void readRows(FileChannel in, PixelBuffer into, Path file) throws IOException {
+        int cols = into.width();
+        int bandRows = Math.max(1, Math.min(into.height(), BAND_CELLS / cols));
+        int[] band = new int[bandRows * cols];
+        ByteBuffer bytes = ByteBuffer.allocate(band.length * 4);
+        for (int row = 0; row < into.height(); row += bandRows) {
+            int count = Math.min(bandRows, into.height() - row);
+            bytes.clear().limit(count * cols * 4);
+            readFully(in, bytes, file);
+            bytes.asIntBuffer().get(band, 0, count * cols);
+            for (int i = 0; i < count; i++) {
+                into.writeRow(row + i, 0, band, i * cols, cols);
+            }
+        }
+    }
+
+    private static Tiles readTilemap(FileChannel in, Snapshot snapshot, Path file) throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(4);
+        readFully(in, count, file);
+        Tiles tiles = new Tiles(snapshot.rows(), snapshot.cols());
+        ByteBuffer map = ByteBuffer.allocate(tiles.map.length * 4);
+        readFully(in, map, file);
+        map.asIntBuffer().get(tiles.map);
+        ByteBuffer tile = ByteBuffer.allocate(TILE_PIXELS * 4);
+        for (int i = count.getInt(); i > 0; i--) {
+            tile.clear();
+            readFully(in, tile, file);
+            int[] pixels = new int[TILE_PIXELS];
+            tile.asIntBuffer().get(pixels);
+            tiles.tiles.add(pixels);
+        }
+        return tiles;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer bytes, Path file) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (in.read(bytes) < 0) {
+                throw new IOException("Truncated autosave checkpoint: " + file);
+            }
+        }
+        bytes.flip();
+    }
+
+    // A tilemap being recovered: its map and tiles as the journal leaves them
+    private static final class Tiles {
+        final int rows;
+        final int cols;
+        final int across;
+        final int[] map;
+        final List<int[]> tiles = new ArrayList<>();
+
+        Tiles(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            this.across = (cols + TileMap.TILE_SIZE - 1) / TileMap.TILE_SIZE;
+            this.map = new int[mapCells(rows, cols)];
+        }
+
+        void setPixel(int tile, int pixel, int value) {
+            if (tile < 0 || pixel < 0 || pixel >= TILE_PIXELS) {
+                return;
+            }
+            while (tiles.size() <= tile) {
+                tiles.add(new int[TILE_PIXELS]);
+            }
+            tiles.get(tile)[pixel] = value;
+        }
+
+        void place(int cell, int entry) {
+            if (cell >= 0 && cell < map.length) {
+                map[cell] = entry;
+            }
+        }
+
+        // Write every instance out as cells, a row at a time
+        void writeTo(PixelBuffer into) {
+            int size = TileMap.TILE_SIZE;
+            int[] line = new int[cols];
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    int entry = map[row / size * across + col / size];
+                    int[] tile = (entry >>> 3) < tiles.size() ? tiles.get(entry >>> 3) : null;
+                    line[col] = tile == null ? 0 : tile[TileMap.sourcePixel(entry & 7, row % size * size + col % size)];
+                }
+                into.writeRow(row, 0, line, 0, cols);
+            }
+        }
+    }
+
+    // Journal records replayed onto the recovered document, onto its tiles if it is a tilemap
+    private static final class Recovery {
+        final PixelBuffer into;
+        Tiles tiles; // null unless the checkpoint was a tilemap
+
+        Recovery(PixelBuffer into) {
+            this.into = into;
+        }
+
+        void replay(IntBuffer records) {
+            // A record cut short by a crash, or one the document's kind cannot hold, reads as the end of the journal
+            for (int i = HEADER_SIZE / 4; i + 4 <= records.limit(); i += RECORD_SIZE / 4) {
+                int op = records.get(i);
+                int a = records.get(i + 1);
+                int b = records.get(i + 2);
+                int c = records.get(i + 3);
+                if (tiles == null && op == OP_SET_PIXEL) {
+                    setCells(a, b, b, c);
+                } else if (tiles == null && op == OP_FILL_SPAN) {
+                    setCells(a, b >>> 16, (b >>> 16) + (b & 0xFFFF), c);
+                } else if (tiles != null && op == OP_TILE_PIXEL) {
+                    tiles.setPixel(a, b, c);
+                } else if (tiles != null && op == OP_PLACE_TILE) {
+                    tiles.place(a, b);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        // Write a recovered tilemap out as cells
+        void finish() {
+            if (tiles != null) {
+                tiles.writeTo(into);
+                tiles = null;
+            }
+        }
+
+        private void setCells(int row, int colStart, int colEnd, int argb) {
+            int left = Math.max(colStart, 0);
+            int right = Math.min(colEnd, into.width() - 1);
+            if (row >= 0 && row < into.height() && left <= right) {
+                into.fillSpan(row, left, right, argb);
+            }
+        }
+    }
+
+    private static List<Integer> generations(Path session, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(session)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(".bin"))
+                    .map(name -> Integer.parseInt(name.substring(prefix.length(), name.length() - 4)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Path journalFile(Path session, int gen) {
+        return session.resolve("journal-" + gen + ".bin");
+    }
+
+    private static Path checkpointFile(Path session, int gen) {
+        return session.resolve("checkpoint-" + gen + ".bin");
+    }
+}
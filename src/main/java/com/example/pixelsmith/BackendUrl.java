@@ -0,0 +1,9 @@
+package com.example.pixelsmith;
+
+// Base URL of the backend API. -Dpixelsmith.api points the client at another server, such as the test stub.
+final class BackendUrl {
+    static final String API = System.getProperty("pixelsmith.api", "http://localhost:8080/api");
+
+    private BackendUrl() {
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+
+/**
+ * Applies brush stamps along a stroke.
+ * <p>
+ * Dabs are placed at a fixed spacing along the straight segments between input points, so
+ * fast drags leave no gaps. A per-stroke coverage bitmap (one bit per canvas cell) records
+ * what the stroke has already painted, and each dab only reports cells it newly covers, as
+ * spans, so overlapping dabs never rewrite the same cell.
+ */
+final class BrushEngine {
+    private BrushStamp stamp = BrushStamp.square(1);
+    private double spacing = 0.25; // fraction of the stamp size between dabs
+
+    private long[] coverage = new long[0];
+    private int rows, cols, wordsPerRow;
+    private int touchedTop = Integer.MAX_VALUE, touchedBottom = -1;
+
+    private boolean inStroke;
+    private double lastRow, lastCol;
+    private double carried; // distance travelled since the last dab
+
+    void setStamp(BrushStamp stamp) {
+        this.stamp = stamp;
+    }
+
+    void setSpacing(double spacing) {
+        this.spacing = spacing;
+    }
+
+    // Continue the current stroke to (row, col), or start one there
+    void strokeTo(int row, int col, int canvasRows, int canvasCols, ShapeRasterizer.SpanSink sink) {
+        if (!inStroke) {
+            beginStroke(canvasRows, canvasCols);
+            dab(row, col, sink);
+            lastRow = row;
+            lastCol = col;
+            return;
+        }
+
+        double dRow = row - lastRow;
+        double dCol = col - lastCol;
+        double distance = Math.hypot(dRow, dCol);
+        if (distance == 0) {
+            return;
+        }
+        double step = Math.max(1.0, spacing * Math.max(stamp.width, stamp.height));
+        double at = step - carried;
+        while (at <= distance) {
+            double t = at / distance;
+            dab((int) Math.round(lastRow + dRow * t), (int) Math.round(lastCol + dCol * t), sink);
+            at += step;
+        }
+        carried = distance - (at - step);
+        lastRow = row;
+        lastCol = col;
+    }
+
+    void endStroke() {
+        inStroke = false;
+    }
+
+    private void beginStroke(int canvasRows, int canvasCols) {
+        if (canvasRows != rows || canvasCols != cols) {
+            rows = canvasRows;
+            cols = canvasCols;
+            wordsPerRow = (cols + 63) >>> 6;
+            coverage = new long[rows * wordsPerRow];
+        } else if (touchedBottom >= 0) {
+            // Only the rows the previous stroke reached need clearing
+            Arrays.fill(coverage, touchedTop * wordsPerRow, (touchedBottom + 1) * wordsPerRow, 0L);
+        }
+        touchedTop = Integer.MAX_VALUE;
+        touchedBottom = -1;
+        carried = 0;
+        inStroke = true;
+    }
+
+    private void dab(int row, int col, ShapeRasterizer.SpanSink sink) {
+        int top = row - (stamp.height - 1) / 2;
+        int left = col - (stamp.width - 1) / 2;
+        int word = Math.floorDiv(left, 64);
+        int shift = Math.floorMod(left, 64);
+
+        for (int y = 0; y < stamp.height; y++) {
+            int r = top + y;
+            if (r < 0 || r >= rows) {
+                continue;
+            }
+            long bits = stamp.rows[y] & stamp.ditherMask(r, left);
+            if (bits == 0) {
+                continue;
+            }
+            touchedTop = Math.min(touchedTop, r);
+            touchedBottom = Math.max(touchedBottom, r);
+            cover(r, word, bits << shift, sink);
+            if (shift != 0) {
+                cover(r, word + 1, bits >>> (64 - shift), sink);
+            }
+        }
+    }
+
+    private void cover(int row, int word, long bits, ShapeRasterizer.SpanSink sink) {
+        if (bits == 0 || word < 0 || word >= wordsPerRow) {
+            return;
+        }
+        if (word == wordsPerRow - 1 && (cols & 63) != 0) {
+            bits &= (1L << (cols & 63)) - 1;
+        }
+        int index = row * wordsPerRow + word;
+        long fresh = bits & ~coverage[index];
+        coverage[index] |= fresh;
+
+        int base = word << 6;
+        while (fresh != 0) {
+            int start = Long.numberOfTrailingZeros(fresh);
+            int length = Long.numberOfTrailingZeros(~(fresh >>> start)); // 64 only when every bit is set
+            sink.span(row, base + start, base + start + length - 1);
+            fresh = length == 64 ? 0 : fresh & ~(((1L << length) - 1) << start);
+        }
+    }
+}
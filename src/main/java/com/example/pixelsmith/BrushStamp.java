@@ -0,0 +1,132 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A brush tip as a bitmask: one long per stamp row, bit j set when column j is painted.
+ * Stamps are at most 64 cells wide so a whole row is one word, and applying a dab is a few
+ * shifts and masks per row. Dithered stamps also carry a level out of 16 that is matched
+ * against a 4x4 Bayer matrix in canvas coordinates, so the pattern stays aligned across dabs.
+ */
+final class BrushStamp {
+    static final int MAX_SIZE = 64;
+
+    enum Shape {
+        ROUND("Round"),
+        SQUARE("Square"),
+        DITHER_50("Dither 50%"),
+        DITHER_25("Dither 25%"),
+        CUSTOM("Custom");
+
+        private final String label;
+
+        Shape(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final int[][] BAYER = {
+            {0, 8, 2, 10},
+            {12, 4, 14, 6},
+            {3, 11, 1, 9},
+            {15, 7, 13, 5}
+    };
+    private static final BrushStamp[] ROUND_CACHE = new BrushStamp[MAX_SIZE + 1];
+    private static final BrushStamp[] SQUARE_CACHE = new BrushStamp[MAX_SIZE + 1];
+
+    final int width;
+    final int height;
+    final long[] rows;
+    final int ditherLevel; // 0 for solid, otherwise cells painted out of every 16
+    private final long[][] ditherMasks; // [canvas row & 3][canvas col of stamp column 0 & 3]
+
+    private BrushStamp(int width, int height, long[] rows, int ditherLevel) {
+        this.width = width;
+        this.height = height;
+        this.rows = rows;
+        this.ditherLevel = ditherLevel;
+        this.ditherMasks = ditherLevel == 0 ? null : buildDitherMasks(ditherLevel);
+    }
+
+    static BrushStamp of(Shape shape, int size, BrushStamp custom) {
+        int clamped = Math.max(1, Math.min(MAX_SIZE, size));
+        return switch (shape) {
+            case ROUND -> round(clamped);
+            case SQUARE -> square(clamped);
+            case DITHER_50 -> round(clamped).dithered(8);
+            case DITHER_25 -> round(clamped).dithered(4);
+            case CUSTOM -> custom != null ? custom : square(clamped);
+        };
+    }
+
+    static synchronized BrushStamp round(int diameter) {
+        if (ROUND_CACHE[diameter] == null) {
+            long[] rows = new long[diameter];
+            double radius = diameter / 2.0;
+            for (int y = 0; y < diameter; y++) {
+                for (int x = 0; x < diameter; x++) {
+                    double dx = x + 0.5 - radius;
+                    double dy = y + 0.5 - radius;
+                    if (dx * dx + dy * dy <= radius * radius + 0.25) {
+                        rows[y] |= 1L << x;
+                    }
+                }
+            }
+            ROUND_CACHE[diameter] = new BrushStamp(diameter, diameter, rows, 0);
+        }
+        return ROUND_CACHE[diameter];
+    }
+
+    static synchronized BrushStamp square(int size) {
+        if (SQUARE_CACHE[size] == null) {
+            long[] rows = new long[size];
+            Arrays.fill(rows, size == 64 ? -1L : (1L << size) - 1);
+            SQUARE_CACHE[size] = new BrushStamp(size, size, rows, 0);
+        }
+        return SQUARE_CACHE[size];
+    }
+
+    // Cells of a canvas region (at most 64x64) that pass the test become the stamp
+    static BrushStamp capture(int top, int left, int height, int width, IntPredicate painted, PixelBuffer pixels) {
+        int h = Math.min(height, MAX_SIZE);
+        int w = Math.min(width, MAX_SIZE);
+        long[] rows = new long[h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (painted.test(pixels.get(top + y, left + x))) {
+                    rows[y] |= 1L << x;
+                }
+            }
+        }
+        return new BrushStamp(w, h, rows, 0);
+    }
+
+    BrushStamp dithered(int level) {
+        return new BrushStamp(width, height, rows, level);
+    }
+
+    // Bits of stamp row that survive the dither pattern when stamp column 0 sits at canvas (row, col)
+    long ditherMask(int canvasRow, int canvasCol) {
+        return ditherMasks == null ? -1L : ditherMasks[canvasRow & 3][canvasCol & 3];
+    }
+
+    private static long[][] buildDitherMasks(int level) {
+        long[][] masks = new long[4][4];
+        for (int r = 0; r < 4; r++) {
+            for (int phase = 0; phase < 4; phase++) {
+                for (int j = 0; j < 64; j++) {
+                    if (BAYER[r][(j + phase) & 3] < level) {
+                        masks[r][phase] |= 1L << j;
+                    }
+                }
+            }
+        }
+        return masks;
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.pixelsmith;
+
+/**
+ * An immutable snapshot of part of the canvas, taken on the document thread and drawn on the
+ * JavaFX thread. {@code argb} holds the cells of the width x height block at (top, left) as they
+ * should appear on screen, already composited over the checkerboard. {@code rows} and
+ * {@code cols} are the document size at the time, so the view can follow a resize.
+ */
+record CanvasFrame(int rows, int cols, int top, int left, int width, int height, int[] argb) {
+}
@@ -0,0 +1,124 @@
+package com.example.pixelsmith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary messages exchanged between {@link CollabSession}s and the {@link CollabRelay}.
+ * <p>
+ * Every message is one WebSocket binary frame starting with its type byte; numbers are
+ * unsigned LEB128 varints unless noted. Edits travel as OPS batches, one per frame of drawing:
+ * the sender's peer id and Lamport clock, then spans of {row, colStart, length, colour}. A span
+ * repeating the previous span's colour leaves the colour out, so a brush stroke costs a few
+ * bytes per row. A cell takes the write with the highest stamp (Lamport clock, then peer id),
+ * wherever and in whatever order it arrives, so every copy of the sheet ends up the same.
+ */
+final class CollabProtocol {
+    static final byte HELLO = 1;   // client: width, height, last sequence number seen (0 on a first join)
+    static final byte WELCOME = 2; // relay: the client's peer id, highest Lamport clock in the room
+    static final byte TILE = 3;    // relay: tile index, then runs of (length, stamp, [argb if stamp != 0])
+    static final byte SYNCED = 4;  // relay: the sequence number a joining client is now caught up to
+    static final byte OPS = 5;     // client: peer id, Lamport clock, then spans
+    static final byte BATCH = 6;   // relay: sequence number, then an OPS body from another client
+    static final int TILE_SIZE = 64;
+    static final int MAX_PEERS = 0xFFFF;
+
+    private CollabProtocol() {
+    }
+
+    // A cell's last-writer-wins stamp: Lamport clock first, peer id as the tie-break
+    static long stamp(long lamport, int peer) {
+        return lamport << 16 | peer;
+    }
+
+    static long lamportOf(long stamp) {
+        return stamp >>> 16;
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    // Reads spans of an OPS body until the end of the buffer
+    interface SpanReader {
+        void span(int row, int colStart, int colEnd, int argb);
+    }
+
+    static void readSpans(ByteBuffer in, SpanReader reader) {
+        int argb = 0;
+        while (in.hasRemaining()) {
+            int row = (int) readVarint(in);
+            int colStart = (int) readVarint(in);
+            long lengthAndFlag = readVarint(in);
+            if ((lengthAndFlag & 1) == 0) {
+                argb = in.getInt();
+            }
+            reader.span(row, colStart, colStart + (int) (lengthAndFlag >>> 1), argb);
+        }
+    }
+
+    // Growable message buffer
+    static final class Writer {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        Writer put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+            return this;
+        }
+
+        Writer putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Writer putInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Writer put(ByteBuffer src) {
+            int length = src.remaining();
+            ensure(length);
+            src.get(bytes, size, length);
+            size += length;
+            return this;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(Arrays.copyOf(bytes, size));
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.example.pixelsmith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * WebSocket relay for collaborative editing, small enough to run next to the editors:
+ * {@code java ... com.example.pixelsmith.CollabRelay --port=8765} (add {@code --host=0.0.0.0} to
+ * accept other machines).
+ * <p>
+ * Clients connect to {@code ws://host:port/collab/<room>}, one room per sheet. The relay forwards
+ * every OPS batch to the other clients in the room and also applies it to its own copy of the
+ * cells the room has painted, with the same last-writer-wins rule the clients use. Each tile of
+ * that copy carries the sequence number of the last batch that changed it, so a client joining
+ * late (or coming back) is sent only the tiles changed after the last batch it saw. A client
+ * that falls too far behind is disconnected and can rejoin the same way. See {@link CollabProtocol}
+ * for the messages.
+ */
+public class CollabRelay {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE = 16 << 20;
+    private static final int MAX_QUEUED = 4096; // messages waiting for a slow client before it is dropped
+    private static final int TILE_SIZE = CollabProtocol.TILE_SIZE;
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final ServerSocket server;
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    CollabRelay(String host, int port) throws IOException {
+        server = new ServerSocket(port, 128, InetAddress.getByName(host));
+    }
+
+    void start() {
+        running = true;
+        // A platform thread, so a relay started from main keeps the JVM alive
+        Thread.ofPlatform().name("collab-relay-accept").start(() -> {
+            while (running) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread.ofVirtual().name("collab-relay-peer").start(() -> serve(socket));
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Collab relay accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the collab relay: " + e.getMessage());
+        }
+        peers.forEach(Peer::close);
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    // One client's connection: the handshake, then its messages until it leaves
+    private void serve(Socket socket) {
+        Peer peer = null;
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String roomName = handshake(in, out);
+            if (roomName == null) {
+                socket.close();
+                return;
+            }
+            peer = new Peer(socket, out);
+            peers.add(peer);
+            Room room = rooms.computeIfAbsent(roomName, Room::new);
+            ByteBuffer message;
+            while ((message = readMessage(in, peer)) != null) {
+                byte type = message.get();
+                if (type == CollabProtocol.HELLO && peer.room == null) {
+                    int width = (int) CollabProtocol.readVarint(message);
+                    int height = (int) CollabProtocol.readVarint(message);
+                    long since = CollabProtocol.readVarint(message);
+                    if (!room.join(peer, width, height, since)) {
+                        break;
+                    }
+                } else if (type == CollabProtocol.OPS && peer.room != null) {
+                    room.publish(peer, message);
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // the client went away
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Collab relay dropped a client: " + e);
+        } finally {
+            if (peer != null) {
+                if (peer.room != null) {
+                    peer.room.leave(peer);
+                }
+                peers.remove(peer);
+                peer.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Answer the HTTP upgrade request; returns the room name, or null if it was not a WebSocket request for one
+    private static String handshake(InputStream in, OutputStream out) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while (header.length() < 4 || header.lastIndexOf("\r\n\r\n") != header.length() - 4) {
+            int b = in.read();
+            if (b < 0 || header.length() > 8192) {
+                return null;
+            }
+            header.append((char) b);
+        }
+        String[] lines = header.toString().split("\r\n");
+        String[] request = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String key = headers.get("sec-websocket-key");
+        boolean valid = request.length == 3 && request[0].equals("GET") && request[1].startsWith("/collab/")
+                && request[1].length() > "/collab/".length() && key != null
+                && "websocket".equalsIgnoreCase(headers.get("upgrade"));
+        if (!valid) {
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return null;
+        }
+        String accept;
+        try {
+            accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                    .digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+                + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        return request[1].substring("/collab/".length());
+    }
+
+    // The next complete binary message, answering pings on the way; null once the client closes
+    private static ByteBuffer readMessage(InputStream in, Peer peer) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messageType = -1;
+        while (true) {
+            int first = readByte(in);
+            int second = readByte(in);
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = (long) readByte(in) << 8 | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = length << 8 | readByte(in);
+                }
+            }
+            if (length < 0 || message.size() + length > MAX_MESSAGE) {
+                throw new IOException("Message too large");
+            }
+            byte[] mask = (second & 0x80) != 0 ? in.readNBytes(4) : null;
+            byte[] payload = in.readNBytes((int) length);
+            if (payload.length < length) {
+                throw new EOFException();
+            }
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            switch (opcode) {
+                case 0x8 -> {
+                    peer.send(CLOSE);
+                    return null;
+                }
+                case 0x9 -> peer.writeFrame(0xA, ByteBuffer.wrap(payload));
+                case 0xA -> {
+                }
+                default -> {
+                    if (opcode != 0) {
+                        messageType = opcode;
+                        message.reset();
+                    }
+                    message.write(payload);
+                    if ((first & 0x80) != 0 && messageType == 0x2 && message.size() > 0) {
+                        return ByteBuffer.wrap(message.toByteArray());
+                    }
+                }
+            }
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    // A connected client; messages to it are queued and written by its own thread
+    private static final class Peer {
+        final Socket socket;
+        final OutputStream out;
+        final BlockingQueue<ByteBuffer> outbox = new LinkedBlockingQueue<>();
+        Room room;
+        int id;
+        private volatile boolean closed;
+
+        Peer(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+            Thread.ofVirtual().name("collab-relay-writer").start(this::drain);
+        }
+
+        void send(ByteBuffer message) {
+            if (closed) {
+                return;
+            }
+            if (outbox.size() >= MAX_QUEUED) {
+                System.err.println("Collab relay dropped a client that stopped reading");
+                close();
+                return;
+            }
+            outbox.add(message);
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    ByteBuffer message = outbox.take();
+                    if (message == CLOSE) {
+                        writeFrame(0x8, ByteBuffer.allocate(0));
+                        close();
+                        return;
+                    }
+                    writeFrame(0x2, message.duplicate());
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        // Server frames are never masked
+        synchronized void writeFrame(int opcode, ByteBuffer payload) throws IOException {
+            int length = payload.remaining();
+            byte[] header;
+            if (length < 126) {
+                header = new byte[]{(byte) (0x80 | opcode), (byte) length};
+            } else if (length < 65536) {
+                header = new byte[]{(byte) (0x80 | opcode), 126, (byte) (length >>> 8), (byte) length};
+            } else {
+                header = ByteBuffer.allocate(10).put((byte) (0x80 | opcode)).put((byte) 127).putLong(length).array();
+            }
+            byte[] body = new byte[length];
+            payload.get(body);
+            out.write(header);
+            out.write(body);
+            out.flush();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            outbox.clear();
+            outbox.offer(CLOSE);
+        }
+    }
+
+    // One shared sheet: its connected clients and every cell they have painted
+    private static final class Room {
+        final String name;
+        final Set<Peer> members = ConcurrentHashMap.newKeySet();
+        PixelStamps stamps;
+        int[][] pixels; // painted cells by tile, a tile allocated when first painted
+        long[] versions; // sequence number of the last batch that changed each tile
+        long sequence;
+        long lamport;
+        int nextPeer = 1;
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        synchronized boolean join(Peer peer, int width, int height, long since) {
+            if (stamps == null) {
+                if (width <= 0 || height <= 0 || (long) width * height > 1L << 28) {
+                    System.err.println("Collab room " + name + ": refused a " + width + "x" + height + " sheet");
+                    return false;
+                }
+                stamps = new PixelStamps(width, height);
+                pixels = new int[stamps.tileCount()][];
+                versions = new long[stamps.tileCount()];
+            } else if (stamps.width() != width || stamps.height() != height) {
+                System.err.println("Collab room " + name + " is " + stamps.width() + "x" + stamps.height()
+                        + ", refused a client with a " + width + "x" + height + " sheet");
+                return false;
+            }
+            if (nextPeer > CollabProtocol.MAX_PEERS) {
+                return false;
+            }
+            peer.id = nextPeer++;
+            peer.room = this;
+            peer.send(new CollabProtocol.Writer().put(CollabProtocol.WELCOME).putVarint(peer.id).putVarint(lamport).toBuffer());
+            for (int tile = 0; tile < versions.length; tile++) {
+                if (versions[tile] > since) {
+                    peer.send(tileMessage(tile));
+                }
+            }
+            peer.send(new CollabProtocol.Writer().put(CollabProtocol.SYNCED).putVarint(sequence).toBuffer());
+            members.add(peer);
+            return true;
+        }
+
+        synchronized void leave(Peer peer) {
+            members.remove(peer);
+        }
+
+        // Apply a client's OPS body and forward it to everyone else in the room as the next BATCH
+        synchronized void publish(Peer from, ByteBuffer body) {
+            ByteBuffer ops = body.duplicate();
+            int peer = (int) CollabProtocol.readVarint(ops);
+            long clock = CollabProtocol.readVarint(ops);
+            if (peer != from.id) {
+                throw new IllegalArgumentException("Batch signed as peer " + peer + " by peer " + from.id);
+            }
+            long seq = ++sequence;
+            long stamp = CollabProtocol.stamp(clock, peer);
+            lamport = Math.max(lamport, clock);
+            CollabProtocol.readSpans(ops, (row, colStart, colEnd, argb) -> stamps.claim(row, colStart, colEnd, stamp, (r, left, right) -> {
+                for (int col = left; col <= right; col++) {
+                    int tile = stamps.tileOf(r, col);
+                    if (pixels[tile] == null) {
+                        pixels[tile] = new int[TILE_SIZE * TILE_SIZE];
+                    }
+                    pixels[tile][r % TILE_SIZE * TILE_SIZE + col % TILE_SIZE] = argb;
+                    versions[tile] = seq;
+                }
+            }));
+            ByteBuffer batch = new CollabProtocol.Writer().put(CollabProtocol.BATCH).putVarint(seq).put(body).toBuffer();
+            for (Peer member : members) {
+                if (member != from) {
+                    member.send(batch);
+                }
+            }
+        }
+
+        // A tile's painted cells as runs of equal (stamp, colour) along each row; stamp 0 runs were never painted
+        private ByteBuffer tileMessage(int tile) {
+            int tilesAcross = (stamps.width() + TILE_SIZE - 1) / TILE_SIZE;
+            int top = tile / tilesAcross * TILE_SIZE;
+            int left = tile % tilesAcross * TILE_SIZE;
+            int right = Math.min(left + TILE_SIZE, stamps.width());
+            CollabProtocol.Writer message = new CollabProtocol.Writer().put(CollabProtocol.TILE).putVarint(tile);
+            for (int row = top; row < Math.min(top + TILE_SIZE, stamps.height()); row++) {
+                int col = left;
+                while (col < right) {
+                    long stamp = stamps.get(row, col);
+                    int argb = pixels[tile][(row - top) * TILE_SIZE + col - left];
+                    int end = col + 1;
+                    while (end < right && stamps.get(row, end) == stamp
+                            && pixels[tile][(row - top) * TILE_SIZE + end - left] == argb) {
+                        end++;
+                    }
+                    message.putVarint(end - col).putVarint(stamp);
+                    if (stamp != 0) {
+                        message.putInt(argb);
+                    }
+                    col = end;
+                }
+            }
+            return message.toBuffer();
+        }
+    }
+
+    // --name=value arguments
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> parsed = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                parsed.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        return parsed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseArgs(args);
+        CollabRelay relay = new CollabRelay(options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "8765")));
+        relay.start();
+        System.out.println("Collab relay listening on ws://" + options.getOrDefault("host", "localhost") + ":" + relay.port() + "/collab/<room>");
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.pixelsmith;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One editor's connection to a shared sheet on a {@link CollabRelay}.
+ * <p>
+ * The editor reports every span it writes with {@link #recordSpan}; spans written within one
+ * frame (FRAME_MILLIS) go out together as a single OPS batch, and adjoining spans of the same
+ * colour are merged before they are sent. Batches from other editors are applied through the
+ * {@link Canvas} on the document thread, cell by cell under last-writer-wins, so every copy of
+ * the sheet converges whatever order the batches crossed in. Apart from the timed send, all
+ * methods run on the document thread.
+ */
+final class CollabSession implements WebSocket.Listener {
+    private static final long FRAME_MILLIS = 16;
+    private static final int MAX_BATCH_BYTES = 64 << 10;
+    private static final HttpClient CLIENT = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private static final ShapeRasterizer.SpanSink IGNORE = (row, colStart, colEnd) -> {
+    };
+
+    // What the session needs from the editor; called on the document thread
+    interface Canvas {
+        // Another editor's write won these cells; transparent means back to the background
+        void remoteSpan(int row, int colStart, int colEnd, int argb);
+
+        // A batch or catch-up has been applied and can be drawn
+        void remoteChangesApplied();
+
+        void disconnected(String reason);
+    }
+
+    private final DocumentThread document;
+    private final Canvas canvas;
+    private final PixelStamps stamps;
+    private final CompletableFuture<CollabSession> ready = new CompletableFuture<>();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "collab-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ByteArrayOutputStream incoming = new ByteArrayOutputStream(); // listener thread
+
+    // Document thread
+    private int peer;
+    private long clock;
+    private long lastSequence;
+    private boolean closed;
+
+    // The batch being filled, shared with the sender thread; guarded by this
+    private final CollabProtocol.Writer pending = new CollabProtocol.Writer();
+    private long pendingStamp; // 0 when no batch is open
+    private boolean spanHeld; // a span not yet written, kept back in case the next one extends it
+    private int heldRow, heldStart, heldEnd, heldArgb;
+    private boolean colorWritten;
+    private int writtenArgb;
+    private CompletableFuture<WebSocket> sending;
+
+    private CollabSession(DocumentThread document, Canvas canvas, int width, int height) {
+        this.document = document;
+        this.canvas = canvas;
+        this.stamps = new PixelStamps(width, height);
+    }
+
+    // Connect to a room such as ws://localhost:8765/collab/42; completes once the sheet has caught up with the room
+    static CompletableFuture<CollabSession> join(String url, int width, int height, DocumentThread document, Canvas canvas) {
+        CollabSession session = new CollabSession(document, canvas, width, height);
+        CLIENT.newWebSocketBuilder().buildAsync(URI.create(url), session).exceptionally(ex -> {
+            session.ready.completeExceptionally(ex);
+            return null;
+        });
+        return session.ready;
+    }
+
+    int width() {
+        return stamps.width();
+    }
+
+    int height() {
+        return stamps.height();
+    }
+
+    // Share a span this editor has just written
+    void recordSpan(int row, int colStart, int colEnd, int argb) {
+        if (closed) {
+            return;
+        }
+        synchronized (this) {
+            if (pendingStamp == 0) {
+                pendingStamp = CollabProtocol.stamp(++clock, peer);
+                pending.put(CollabProtocol.OPS).putVarint(peer).putVarint(clock);
+                sender.schedule(this::flush, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            stamps.claim(row, colStart, colEnd, pendingStamp, IGNORE);
+            if (spanHeld && row == heldRow && colStart == heldEnd + 1 && argb == heldArgb) {
+                heldEnd = colEnd;
+            } else {
+                writeHeldSpan();
+                spanHeld = true;
+                heldRow = row;
+                heldStart = colStart;
+                heldEnd = colEnd;
+                heldArgb = argb;
+            }
+            if (pending.size() > MAX_BATCH_BYTES) {
+                flush();
+            }
+        }
+    }
+
+    // Share a run of cells of one row with arbitrary colours, such as a pasted block
+    void recordRow(int row, int col, int[] argb, int offset, int length) {
+        int start = 0;
+        for (int i = 1; i <= length; i++) {
+            if (i == length || argb[offset + i] != argb[offset + start]) {
+                recordSpan(row, col + start, col + i - 1, argb[offset + start]);
+                start = i;
+            }
+        }
+    }
+
+    void leave() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flush();
+        synchronized (this) {
+            if (sending != null) {
+                sending = sending.thenCompose(ws -> ws.sendClose(WebSocket.NORMAL_CLOSURE, "left"));
+            }
+        }
+        sender.shutdown();
+    }
+
+    // Send the open batch, if any
+    private synchronized void flush() {
+        if (pendingStamp == 0) {
+            return;
+        }
+        writeHeldSpan();
+        ByteBuffer batch = pending.toBuffer();
+        pending.reset();
+        pendingStamp = 0;
+        colorWritten = false;
+        send(batch);
+    }
+
+    private void writeHeldSpan() {
+        if (!spanHeld) {
+            return;
+        }
+        boolean sameColor = colorWritten && heldArgb == writtenArgb;
+        pending.putVarint(heldRow).putVarint(heldStart).putVarint((long) (heldEnd - heldStart) << 1 | (sameColor ? 1 : 0));
+        if (!sameColor) {
+            pending.putInt(heldArgb);
+            colorWritten = true;
+            writtenArgb = heldArgb;
+        }
+        spanHeld = false;
+    }
+
+    // Queue a message behind the ones already being sent; WebSocket allows only one send at a time
+    private synchronized void send(ByteBuffer message) {
+        if (sending == null) {
+            return;
+        }
+        sending = sending.thenCompose(ws -> ws.sendBinary(message, true));
+        sending.exceptionally(ex -> {
+            document.submit(() -> lost("send failed: " + ex.getMessage()));
+            return null;
+        });
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        synchronized (this) {
+            sending = CompletableFuture.completedFuture(webSocket);
+        }
+        send(new CollabProtocol.Writer().put(CollabProtocol.HELLO)
+                .putVarint(stamps.width()).putVarint(stamps.height()).putVarint(lastSequence).toBuffer());
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        incoming.writeBytes(bytes);
+        if (last) {
+            ByteBuffer message = ByteBuffer.wrap(incoming.toByteArray());
+            incoming.reset();
+            document.submit(() -> receive(message));
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        document.submit(() -> lost("closed by the relay (" + statusCode + (reason.isEmpty() ? "" : " " + reason) + ")"));
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        document.submit(() -> lost(error.getMessage()));
+    }
+
+    // Apply one message from the relay; document thread
+    private void receive(ByteBuffer message) {
+        if (closed) {
+            return;
+        }
+        switch (message.get()) {
+            case CollabProtocol.WELCOME -> {
+                peer = (int) CollabProtocol.readVarint(message);
+                clock = Math.max(clock, CollabProtocol.readVarint(message));
+            }
+            case CollabProtocol.TILE -> applyTile(message);
+            case CollabProtocol.SYNCED -> {
+                lastSequence = CollabProtocol.readVarint(message);
+                canvas.remoteChangesApplied();
+                ready.complete(this);
+            }
+            case CollabProtocol.BATCH -> {
+                // Local spans from here on must carry a clock past this batch, so close the open one first
+                flush();
+                lastSequence = CollabProtocol.readVarint(message);
+                int from = (int) CollabProtocol.readVarint(message);
+                long lamport = CollabProtocol.readVarint(message);
+                clock = Math.max(clock, lamport);
+                long stamp = CollabProtocol.stamp(lamport, from);
+                CollabProtocol.readSpans(message, (row, colStart, colEnd, argb) -> stamps.claim(row, colStart, colEnd, stamp,
+                        (r, left, right) -> canvas.remoteSpan(r, left, right, argb)));
+                canvas.remoteChangesApplied();
+            }
+            default -> {
+            }
+        }
+    }
+
+    // A catch-up tile: runs along each of its rows, the unpainted ones (stamp 0) skipped
+    private void applyTile(ByteBuffer message) {
+        int tilesAcross = (stamps.width() + CollabProtocol.TILE_SIZE - 1) / CollabProtocol.TILE_SIZE;
+        int tile = (int) CollabProtocol.readVarint(message);
+        int top = tile / tilesAcross * CollabProtocol.TILE_SIZE;
+        int left = tile % tilesAcross * CollabProtocol.TILE_SIZE;
+        int right = Math.min(left + CollabProtocol.TILE_SIZE, stamps.width());
+        int row = top;
+        int col = left;
+        while (message.hasRemaining()) {
+            int length = (int) CollabProtocol.readVarint(message);
+            long stamp = CollabProtocol.readVarint(message);
+            if (stamp != 0) {
+                int argb = message.getInt();
+                clock = Math.max(clock, CollabProtocol.lamportOf(stamp));
+                stamps.claim(row, col, col + length - 1, stamp, (r, colStart, colEnd) -> canvas.remoteSpan(r, colStart, colEnd, argb));
+            }
+            col += length;
+            if (col >= right) {
+                row++;
+                col = left;
+            }
+        }
+    }
+
+    private void lost(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        sender.shutdown();
+        ready.completeExceptionally(new IllegalStateException(reason));
+        canvas.disconnected(reason);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which colours a {@link PixelBuffer} holds, kept up to date by its writes.
+ * <p>
+ * For every colour there is a cell count and the set of TILE_SIZE x TILE_SIZE tiles it has been
+ * written to. Counts are exact. Tile bits are set on every write but only cleared when a caller
+ * scans the tile and finds the colour gone ({@link #forget}), so they may name a few tiles too
+ * many but never miss one. Tile sets start as a short sorted list and switch to a bitmap once a
+ * colour spreads over many tiles, so photos with thousands of colours stay small.
+ */
+final class ColorIndex {
+    static final int TILE_SIZE = 16;
+    private static final int MAX_LISTED_TILES = 64;
+
+    interface TileSink {
+        void tile(int tile);
+    }
+
+    private static final class Usage {
+        long count;
+        int[] listed = new int[4];
+        int listedCount;
+        long[] bitmap;
+
+        void addTile(int tile, int tileCount) {
+            if (bitmap != null) {
+                bitmap[tile >>> 6] |= 1L << tile;
+                return;
+            }
+            int at = Arrays.binarySearch(listed, 0, listedCount, tile);
+            if (at >= 0) {
+                return;
+            }
+            if (listedCount == MAX_LISTED_TILES) {
+                bitmap = new long[(tileCount + 63) >>> 6];
+                for (int i = 0; i < listedCount; i++) {
+                    bitmap[listed[i] >>> 6] |= 1L << listed[i];
+                }
+                bitmap[tile >>> 6] |= 1L << tile;
+                listed = null;
+                return;
+            }
+            if (listedCount == listed.length) {
+                listed = Arrays.copyOf(listed, listedCount * 2);
+            }
+            at = -at - 1;
+            System.arraycopy(listed, at, listed, at + 1, listedCount - at);
+            listed[at] = tile;
+            listedCount++;
+        }
+
+        void removeTile(int tile) {
+            if (bitmap != null) {
+                bitmap[tile >>> 6] &= ~(1L << tile);
+                return;
+            }
+            int at = Arrays.binarySearch(listed, 0, listedCount, tile);
+            if (at >= 0) {
+                System.arraycopy(listed, at + 1, listed, at, listedCount - at - 1);
+                listedCount--;
+            }
+        }
+
+        void forEachTile(TileSink sink) {
+            if (bitmap == null) {
+                // Copied so the sink may forget tiles as it goes
+                for (int tile : Arrays.copyOf(listed, listedCount)) {
+                    sink.tile(tile);
+                }
+                return;
+            }
+            for (int word = 0; word < bitmap.length; word++) {
+                for (long bits = bitmap[word]; bits != 0; bits &= bits - 1) {
+                    sink.tile((word << 6) + Long.numberOfTrailingZeros(bits));
+                }
+            }
+        }
+    }
+
+    private final int tilesAcross;
+    private final int tileCount;
+    private final Map<Integer, Usage> usage = new HashMap<>();
+    // Bumped whenever a colour appears or disappears, so views know when to rebuild
+    private int version;
+
+    ColorIndex(int width, int height) {
+        this.tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tileCount = tilesAcross * ((height + TILE_SIZE - 1) / TILE_SIZE);
+    }
+
+    int tilesAcross() {
+        return tilesAcross;
+    }
+
+    int version() {
+        return version;
+    }
+
+    long count(int argb) {
+        Usage entry = usage.get(argb);
+        return entry == null ? 0 : entry.count;
+    }
+
+    // Every colour present and its cell count
+    Map<Integer, Long> counts() {
+        Map<Integer, Long> counts = new HashMap<>();
+        usage.forEach((argb, entry) -> counts.put(argb, entry.count));
+        return counts;
+    }
+
+    // Record the cells argb[offset] .. argb[offset + length - 1] written at (row, col)
+    void add(int row, int col, int[] argb, int offset, int length) {
+        forEachRun(argb, offset, length, (color, start, count) -> addRun(color, row, col + start, count));
+    }
+
+    // Record length cells of one colour written at (row, col)
+    void add(int row, int col, int color, int length) {
+        addRun(color, row, col, length);
+    }
+
+    // Record that the same cells no longer hold these values; tile bits are left for forget to clear
+    void remove(int[] argb, int offset, int length) {
+        forEachRun(argb, offset, length, (color, start, count) -> remove(color, count));
+    }
+
+    // Record that length cells of one colour were overwritten
+    void remove(int color, int length) {
+        Usage entry = usage.get(color);
+        if (entry == null) {
+            return;
+        }
+        entry.count -= length;
+        if (entry.count <= 0) {
+            usage.remove(color);
+            version++;
+        }
+    }
+
+    private void addRun(int color, int row, int col, int count) {
+        Usage entry = usage.get(color);
+        if (entry == null) {
+            entry = new Usage();
+            usage.put(color, entry);
+            version++;
+        }
+        entry.count += count;
+        int tileRow = (row / TILE_SIZE) * tilesAcross;
+        for (int tile = col / TILE_SIZE; tile <= (col + count - 1) / TILE_SIZE; tile++) {
+            entry.addTile(tileRow + tile, tileCount);
+        }
+    }
+
+    // Tiles that may contain the colour, in no particular order
+    void forEachTile(int argb, TileSink sink) {
+        Usage entry = usage.get(argb);
+        if (entry != null) {
+            entry.forEachTile(sink);
+        }
+    }
+
+    // A scan found the colour is no longer in this tile
+    void forget(int argb, int tile) {
+        Usage entry = usage.get(argb);
+        if (entry != null) {
+            entry.removeTile(tile);
+        }
+    }
+
+    private interface RunSink {
+        void run(int color, int start, int count);
+    }
+
+    // Runs of equal values, so a flat area costs one map lookup per run rather than per cell
+    private static void forEachRun(int[] argb, int offset, int length, RunSink sink) {
+        int start = 0;
+        while (start < length) {
+            int color = argb[offset + start];
+            int end = start + 1;
+            while (end < length && argb[offset + end] == color) {
+                end++;
+            }
+            sink.run(color, start, end - start);
+            start = end;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.pixelsmith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Reduces imported images to a small palette, optionally pixelating them first.
+ * <p>
+ * Colours are counted in a 5-bit-per-channel histogram built in parallel (one partial histogram
+ * per band of rows, merged at the end). The palette comes from median cut or an octree over
+ * that histogram, and pixels are mapped through a lookup table from histogram bin to nearest
+ * palette entry, with optional ordered or Floyd-Steinberg dithering. Pixels less than half
+ * opaque become transparent and the rest fully opaque, so the result is ready for the editor.
+ */
+final class ColorQuantizer {
+    enum Method {
+        MEDIAN_CUT("Median Cut"),
+        OCTREE("Octree");
+
+        private final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    enum Dither {
+        NONE("No Dithering"),
+        ORDERED("Ordered"),
+        FLOYD_STEINBERG("Floyd-Steinberg");
+
+        private final String label;
+
+        Dither(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final int BINS = 1 << 15;
+    private static final int[][] BAYER = {
+            {0, 8, 2, 10},
+            {12, 4, 14, 6},
+            {3, 11, 1, 9},
+            {15, 7, 13, 5}
+    };
+
+    private ColorQuantizer() {
+    }
+
+    static Raster quantize(Raster src, int colors, Method method, Dither dither) {
+        return remap(src, palette(src, colors, method), dither);
+    }
+
+    // Average each block of cells so the image is targetWidth cells wide, keeping its aspect ratio
+    static Raster pixelate(Raster src, int targetWidth) {
+        int width = Math.max(1, Math.min(targetWidth, src.width()));
+        int height = Math.max(1, (int) Math.round((double) src.height() * width / src.width()));
+        int[] out = new int[width * height];
+        ParallelRows.forEach(height, src.width() * src.height() / height, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int y0 = y * src.height() / height, y1 = Math.max(y0 + 1, (y + 1) * src.height() / height);
+                for (int x = 0; x < width; x++) {
+                    int x0 = x * src.width() / width, x1 = Math.max(x0 + 1, (x + 1) * src.width() / width);
+                    long a = 0, r = 0, g = 0, b = 0;
+                    for (int sy = y0; sy < y1; sy++) {
+                        for (int sx = x0; sx < x1; sx++) {
+                            int argb = src.argb()[sy * src.width() + sx];
+                            int alpha = argb >>> 24;
+                            a += alpha;
+                            r += ((argb >> 16) & 0xFF) * alpha;
+                            g += ((argb >> 8) & 0xFF) * alpha;
+                            b += (argb & 0xFF) * alpha;
+                        }
+                    }
+                    int cells = (y1 - y0) * (x1 - x0);
+                    out[y * width + x] = a == 0 ? 0
+                            : (int) (a / cells) << 24 | (int) (r / a) << 16 | (int) (g / a) << 8 | (int) (b / a);
+                }
+            }
+        });
+        return new Raster(width, height, out);
+    }
+
+    // Up to the requested number of opaque colours representing the image
+    static int[] palette(Raster src, int colors, Method method) {
+        Histogram histogram = Histogram.of(src);
+        return method == Method.OCTREE ? octree(histogram, colors) : medianCut(histogram, colors);
+    }
+
+    static Raster remap(Raster src, int[] palette, Dither dither) {
+        int[] out = new int[src.argb().length];
+        if (palette.length == 0) {
+            return new Raster(src.width(), src.height(), out);
+        }
+        int[] nearest = nearestLookup(palette);
+        int w = src.width();
+
+        if (dither == Dither.FLOYD_STEINBERG) {
+            floydSteinberg(src, palette, nearest, out);
+        } else {
+            float spread = dither == Dither.ORDERED ? 256f / (float) Math.cbrt(palette.length) : 0;
+            ParallelRows.forEach(src.height(), w, (rowStart, rowEnd) -> {
+                for (int y = rowStart; y < rowEnd; y++) {
+                    for (int x = 0; x < w; x++) {
+                        int argb = src.argb()[y * w + x];
+                        if ((argb >>> 24) < 128) {
+                            continue;
+                        }
+                        float offset = spread * (BAYER[y & 3][x & 3] / 16f - 0.5f);
+                        int bin = bin((argb >> 16 & 0xFF) + offset, (argb >> 8 & 0xFF) + offset, (argb & 0xFF) + offset);
+                        out[y * w + x] = palette[nearest[bin]];
+                    }
+                }
+            });
+        }
+        return new Raster(w, src.height(), out);
+    }
+
+    // Error diffusion is inherently sequential; rows alternate direction to avoid drift
+    private static void floydSteinberg(Raster src, int[] palette, int[] nearest, int[] out) {
+        int w = src.width();
+        float[] current = new float[(w + 2) * 3];
+        float[] next = new float[(w + 2) * 3];
+        for (int y = 0; y < src.height(); y++) {
+            boolean leftToRight = (y & 1) == 0;
+            int step = leftToRight ? 1 : -1;
+            for (int i = 0; i < w; i++) {
+                int x = leftToRight ? i : w - 1 - i;
+                int argb = src.argb()[y * w + x];
+                if ((argb >>> 24) < 128) {
+                    continue;
+                }
+                int e = (x + 1) * 3;
+                float r = (argb >> 16 & 0xFF) + current[e];
+                float g = (argb >> 8 & 0xFF) + current[e + 1];
+                float b = (argb & 0xFF) + current[e + 2];
+                int chosen = palette[nearest[bin(r, g, b)]];
+                out[y * w + x] = chosen;
+
+                float[] error = {r - (chosen >> 16 & 0xFF), g - (chosen >> 8 & 0xFF), b - (chosen & 0xFF)};
+                for (int c = 0; c < 3; c++) {
+                    current[e + step * 3 + c] += error[c] * 7 / 16;
+                    next[e - step * 3 + c] += error[c] * 3 / 16;
+                    next[e + c] += error[c] * 5 / 16;
+                    next[e + step * 3 + c] += error[c] / 16;
+                }
+            }
+            float[] done = current;
+            current = next;
+            next = done;
+            Arrays.fill(next, 0);
+        }
+    }
+
+    private static int bin(float r, float g, float b) {
+        return clampChannel(r) >> 3 << 10 | clampChannel(g) >> 3 << 5 | clampChannel(b) >> 3;
+    }
+
+    private static int clampChannel(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    // For each histogram bin, the index of the palette colour closest to the bin's centre
+    private static int[] nearestLookup(int[] palette) {
+        int[] nearest = new int[BINS];
+        ParallelRows.forEach(32, 1024 * palette.length, (rowStart, rowEnd) -> {
+            for (int bin = rowStart * 1024; bin < rowEnd * 1024; bin++) {
+                int center = 0xFF000000 | (bin >> 10 << 3 | 4) << 16 | ((bin >> 5 & 31) << 3 | 4) << 8 | ((bin & 31) << 3 | 4);
+                int best = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int i = 0; i < palette.length; i++) {
+                    int distance = PixelOps.colorDistance(center, palette[i]);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+                nearest[bin] = best;
+            }
+        });
+        return nearest;
+    }
+
+    private static int[] medianCut(Histogram histogram, int colors) {
+        int[] bins = histogram.occupiedBins();
+        List<int[]> boxes = new ArrayList<>(); // ranges [start, end) of bins
+        boxes.add(new int[]{0, bins.length});
+
+        while (boxes.size() < colors) {
+            // Split the box with the most pixels spread over the widest channel
+            int[] widest = null;
+            int widestAxis = 0;
+            long widestScore = 0;
+            for (int[] box : boxes) {
+                if (box[1] - box[0] < 2) {
+                    continue;
+                }
+                long population = 0;
+                int[] min = {31, 31, 31}, max = {0, 0, 0};
+                for (int i = box[0]; i < box[1]; i++) {
+                    population += histogram.counts[bins[i]];
+                    for (int axis = 0; axis < 3; axis++) {
+                        int value = channelOfBin(bins[i], axis);
+                        min[axis] = Math.min(min[axis], value);
+                        max[axis] = Math.max(max[axis], value);
+                    }
+                }
+                for (int axis = 0; axis < 3; axis++) {
+                    long score = population * (max[axis] - min[axis] + 1);
+                    if (score > widestScore) {
+                        widestScore = score;
+                        widest = box;
+                        widestAxis = axis;
+                    }
+                }
+            }
+            if (widest == null) {
+                break;
+            }
+            sortByChannel(bins, widest[0], widest[1], widestAxis);
+
+            long half = 0;
+            for (int i = widest[0]; i < widest[1]; i++) {
+                half += histogram.counts[bins[i]];
+            }
+            half /= 2;
+            int split = widest[0] + 1;
+            for (long seen = histogram.counts[bins[widest[0]]]; split < widest[1] - 1 && seen < half; split++) {
+                seen += histogram.counts[bins[split]];
+            }
+            boxes.add(new int[]{split, widest[1]});
+            widest[1] = split;
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int p = 0; p < palette.length; p++) {
+            long count = 0, r = 0, g = 0, b = 0;
+            for (int i = boxes.get(p)[0]; i < boxes.get(p)[1]; i++) {
+                int bin = bins[i];
+                count += histogram.counts[bin];
+                r += histogram.red[bin];
+                g += histogram.green[bin];
+                b += histogram.blue[bin];
+            }
+            palette[p] = 0xFF000000 | (int) (r / count) << 16 | (int) (g / count) << 8 | (int) (b / count);
+        }
+        return palette;
+    }
+
+    private static int channelOfBin(int bin, int axis) {
+        return bin >> (10 - 5 * axis) & 31;
+    }
+
+    // Bin values are 5-bit, so a counting sort orders the range by one channel in linear time
+    private static void sortByChannel(int[] bins, int start, int end, int axis) {
+        int[] counts = new int[33];
+        for (int i = start; i < end; i++) {
+            counts[channelOfBin(bins[i], axis) + 1]++;
+        }
+        for (int v = 1; v < counts.length; v++) {
+            counts[v] += counts[v - 1];
+        }
+        int[] sorted = new int[end - start];
+        for (int i = start; i < end; i++) {
+            sorted[counts[channelOfBin(bins[i], axis)]++] = bins[i];
+        }
+        System.arraycopy(sorted, 0, bins, start, sorted.length);
+    }
+
+    private static int[] octree(Histogram histogram, int colors) {
+        OctreeNode root = new OctreeNode();
+        List<List<OctreeNode>> levels = new ArrayList<>();
+        for (int level = 0; level < 5; level++) {
+            levels.add(new ArrayList<>());
+        }
+        int[] leaves = {0};
+
+        for (int bin : histogram.occupiedBins()) {
+            OctreeNode node = root;
+            for (int level = 0; level < 5; level++) {
+                int shift = 4 - level;
+                int child = (bin >> (10 + shift) & 1) << 2 | (bin >> (5 + shift) & 1) << 1 | (bin >> shift & 1);
+                if (node.children == null) {
+                    node.children = new OctreeNode[8];
+                    levels.get(level).add(node);
+                }
+                if (node.children[child] == null) {
+                    node.children[child] = new OctreeNode();
+                    if (level == 4) {
+                        leaves[0]++;
+                    }
+                }
+                node = node.children[child];
+            }
+            node.count += histogram.counts[bin];
+            node.red += histogram.red[bin];
+            node.green += histogram.green[bin];
+            node.blue += histogram.blue[bin];
+        }
+
+        // Fold the deepest nodes into their parents until few enough leaves remain
+        for (int level = 4; level >= 0 && leaves[0] > colors; level--) {
+            List<OctreeNode> reducible = levels.get(level);
+            reducible.sort((a, b) -> Long.compare(a.subtreeCount(), b.subtreeCount()));
+            for (int i = 0; i < reducible.size() && leaves[0] > colors; i++) {
+                leaves[0] -= reducible.get(i).fold() - 1;
+            }
+        }
+
+        List<Integer> palette = new ArrayList<>();
+        root.collect(palette);
+        return palette.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static final class OctreeNode {
+        OctreeNode[] children;
+        long count, red, green, blue;
+
+        long subtreeCount() {
+            long total = count;
+            if (children != null) {
+                for (OctreeNode child : children) {
+                    if (child != null) {
+                        total += child.subtreeCount();
+                    }
+                }
+            }
+            return total;
+        }
+
+        // Merge every leaf below into this node; returns how many leaves were merged
+        int fold() {
+            int merged = 0;
+            for (OctreeNode child : children) {
+                if (child != null) {
+                    if (child.children != null) {
+                        merged += child.fold() - 1;
+                    }
+                    count += child.count;
+                    red += child.red;
+                    green += child.green;
+                    blue += child.blue;
+                    merged++;
+                }
+            }
+            children = null;
+            return merged;
+        }
+
+        void collect(List<Integer> palette) {
+            if (children == null) {
+                if (count > 0) {
+                    palette.add(0xFF000000 | (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count));
+                }
+                return;
+            }
+            for (OctreeNode child : children) {
+                if (child != null) {
+                    child.collect(palette);
+                }
+            }
+        }
+    }
+
+    // Pixel counts and channel sums per 5-bit-per-channel colour bin, for opaque pixels only
+    private static final class Histogram {
+        final int[] counts = new int[BINS];
+        final long[] red = new long[BINS];
+        final long[] green = new long[BINS];
+        final long[] blue = new long[BINS];
+
+        // One partial histogram per worker, each over its own band of rows, merged pairwise; a histogram is
+        // close to a megabyte, so there are no more of them than threads to fill them
+        static Histogram of(Raster src) {
+            int bands = Math.max(1, Math.min(src.height(), ForkJoinPool.getCommonPoolParallelism()));
+            return IntStream.range(0, bands).parallel()
+                    .mapToObj(band -> {
+                        Histogram histogram = new Histogram();
+                        int from = band * src.height() / bands * src.width();
+                        int to = (band + 1) * src.height() / bands * src.width();
+                        for (int i = from; i < to; i++) {
+                            histogram.add(src.argb()[i]);
+                        }
+                        return histogram;
+                    })
+                    .reduce(Histogram::merge)
+                    .orElseGet(Histogram::new);
+        }
+
+        void add(int argb) {
+            if ((argb >>> 24) < 128) {
+                return;
+            }
+            int r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+            int bin = r >> 3 << 10 | g >> 3 << 5 | b >> 3;
+            counts[bin]++;
+            red[bin] += r;
+            green[bin] += g;
+            blue[bin] += b;
+        }
+
+        Histogram merge(Histogram other) {
+            for (int bin = 0; bin < BINS; bin++) {
+                counts[bin] += other.counts[bin];
+                red[bin] += other.red[bin];
+                green[bin] += other.green[bin];
+                blue[bin] += other.blue[bin];
+            }
+            return this;
+        }
+
+        int[] occupiedBins() {
+            return IntStream.range(0, BINS).filter(bin -> counts[bin] > 0).toArray();
+        }
+    }
+}
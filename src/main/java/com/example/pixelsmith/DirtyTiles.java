@@ -0,0 +1,49 @@
+package com.example.pixelsmith;
+
+import java.util.BitSet;
+
+/**
+ * The tiles of a {@link PixelBuffer} whose content differs from its last save, taken on the
+ * document thread and safe to hand to a writer on another thread.
+ * <p>
+ * A tile counts as changed only if it was written since the save and its checksum no longer
+ * matches, so painting a cell and painting it back leaves the document clean. Pass the
+ * snapshot back to {@link PixelBuffer#markSaved} once it has been written.
+ */
+final class DirtyTiles {
+    final PixelBuffer buffer;
+    final long stamp; // the buffer's write stamp when the snapshot was taken
+    final BitSet tiles;
+    final long[] checksums; // of the changed tiles, in tile order
+    private final int tilesAcross;
+
+    DirtyTiles(PixelBuffer buffer, long stamp, BitSet tiles, long[] checksums, int tilesAcross) {
+        this.buffer = buffer;
+        this.stamp = stamp;
+        this.tiles = tiles;
+        this.checksums = checksums;
+        this.tilesAcross = tilesAcross;
+    }
+
+    boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    int count() {
+        return tiles.cardinality();
+    }
+
+    // Whether any changed tile overlaps the block of cells at (x, y)
+    boolean touches(int x, int y, int width, int height) {
+        int right = Math.min(x + width - 1, tilesAcross * ColorIndex.TILE_SIZE - 1) / ColorIndex.TILE_SIZE;
+        int bottom = (y + height - 1) / ColorIndex.TILE_SIZE;
+        for (int ty = y / ColorIndex.TILE_SIZE; ty <= bottom; ty++) {
+            int first = ty * tilesAcross + x / ColorIndex.TILE_SIZE;
+            int next = tiles.nextSetBit(first);
+            if (next >= 0 && next <= ty * tilesAcross + right) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
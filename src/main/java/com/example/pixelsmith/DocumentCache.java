@@ -0,0 +1,64 @@
+package com.example.pixelsmith;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently opened sprites, kept decoded so switching back to one skips the disk read and
+ * PNG decode. Entries are keyed by sprite id and the file's modification time, so a sprite
+ * changed on disk is never served stale. The cache is bounded by pixel bytes rather than
+ * entry count (one large sheet can outweigh dozens of small sprites); the size defaults to
+ * 256 MB and can be set with {@code -Dpixelsmith.documentCacheMb}.
+ */
+public class DocumentCache {
+    private record Key(int spriteId, long modified) {
+    }
+
+    private static DocumentCache instance;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Raster> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+
+    private DocumentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized DocumentCache getInstance() {
+        if (instance == null) {
+            instance = new DocumentCache(Long.getLong("pixelsmith.documentCacheMb", 256) << 20);
+        }
+        return instance;
+    }
+
+    synchronized Raster get(int spriteId, long modified) {
+        return entries.get(new Key(spriteId, modified));
+    }
+
+    synchronized void put(int spriteId, long modified, Raster raster) {
+        long size = sizeOf(raster);
+        if (size > maxBytes) {
+            return;
+        }
+        // Older versions of the same sprite can never be hit again
+        for (Iterator<Map.Entry<Key, Raster>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Raster> entry = it.next();
+            if (entry.getKey().spriteId() == spriteId) {
+                currentBytes -= sizeOf(entry.getValue());
+                it.remove();
+            }
+        }
+        entries.put(new Key(spriteId, modified), raster);
+        currentBytes += size;
+
+        for (Iterator<Raster> it = entries.values().iterator(); currentBytes > maxBytes && it.hasNext(); ) {
+            currentBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(Raster raster) {
+        return 64L + raster.argb().length * 4L;
+    }
+}
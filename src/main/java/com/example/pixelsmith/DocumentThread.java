@@ -0,0 +1,62 @@
+package com.example.pixelsmith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The one thread that owns an editor's document.
+ * <p>
+ * Every edit, and every read of the pixels, runs here as a command, in the order the UI queued
+ * them, so the document never needs locking. The JavaFX thread only queues commands and draws
+ * the {@link CanvasFrame}s the commands publish, which keeps input responsive while a long
+ * fill, import or transform is running.
+ */
+final class DocumentThread {
+    private final ExecutorService executor;
+    private volatile Thread thread;
+
+    DocumentThread(String name) {
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            thread = t;
+            return t;
+        });
+    }
+
+    // Queue a command behind everything queued before it
+    void submit(Runnable command) {
+        executor.execute(() -> {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                System.err.println("Document command failed: " + e);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Run a command on the document thread and wait for its result, for the few UI actions (saving, exporting)
+    // that cannot continue without the document as it is once the queued edits are done
+    <T> T call(Callable<T> command) {
+        try {
+            if (Thread.currentThread() == thread) {
+                return command.call();
+            }
+            return executor.submit(command).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the document", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Document command failed", e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException("Document command failed", e);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.pixelsmith;
+
+import javafx.scene.Scene;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TabPane;
+import javafx.scene.image.Image;
+import javafx.stage.Stage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The editor window, with a tab for every open sprite.
+ * <p>
+ * Each tab is a {@link PixelArtEditor} of its own, with its own document thread, size, pixels,
+ * zoom and pan, tools and palette, so opening another sprite never disturbs the ones already
+ * open. Only the tab in front keeps its canvas textures; a tab sent to the background gives
+ * them up and redraws from its document, in the background, when it is brought forward again.
+ * Used from the JavaFX thread only.
+ */
+public class EditorWindow {
+    private static EditorWindow instance;
+
+    private final Map<Tab, PixelArtEditor> editors = new LinkedHashMap<>();
+    private Stage stage;
+    private Scene scene;
+    private TabPane tabs;
+
+    private EditorWindow() {
+    }
+
+    public static EditorWindow getInstance() {
+        if (instance == null) {
+            instance = new EditorWindow();
+        }
+        return instance;
+    }
+
+    // Open a stored sprite in a new tab, or bring its tab forward if it is already open
+    void openSprite(int spriteId, String pathToSprite) {
+        showWindow(null);
+        for (Map.Entry<Tab, PixelArtEditor> entry : editors.entrySet()) {
+            if (Integer.valueOf(spriteId).equals(entry.getValue().spriteId())) {
+                tabs.getSelectionModel().select(entry.getKey());
+                stage.toFront();
+                return;
+            }
+        }
+        PixelArtEditor editor = new PixelArtEditor();
+        addTab(editor, editor.createTab(stage, "Sprite " + spriteId, false));
+        editor.openSprite(spriteId, pathToSprite);
+    }
+
+    void newSprite(String name) {
+        showWindow(null);
+        PixelArtEditor editor = new PixelArtEditor();
+        addTab(editor, editor.createTab(stage, name, true));
+    }
+
+    // Show the window on the stage the application was launched with, editing a new sprite
+    void show(Stage primaryStage, PixelArtEditor editor) {
+        showWindow(primaryStage);
+        addTab(editor, editor.createTab(stage, "New Sprite", true));
+    }
+
+    private void addTab(PixelArtEditor editor, Tab tab) {
+        editors.put(tab, editor);
+        tab.setOnCloseRequest(e -> {
+            if (!editor.confirmClose()) {
+                e.consume();
+            }
+        });
+        tab.setOnClosed(e -> {
+            editors.remove(tab);
+            editor.close();
+        });
+        tabs.getTabs().add(tab);
+        tabs.getSelectionModel().select(tab);
+        stage.toFront();
+    }
+
+    // Bring the window up if it is not showing, on the given stage or a new one
+    private void showWindow(Stage primaryStage) {
+        if (stage != null && stage.isShowing()) {
+            return;
+        }
+        stage = primaryStage != null ? primaryStage : new Stage();
+        tabs = new TabPane();
+        tabs.setTabClosingPolicy(TabPane.TabClosingPolicy.ALL_TABS);
+        // Only the tab in front draws, and only its shortcuts apply
+        tabs.getSelectionModel().selectedItemProperty().addListener((observable, oldTab, newTab) -> {
+            PixelArtEditor previous = oldTab != null ? editors.get(oldTab) : null;
+            if (previous != null) {
+                previous.deactivate();
+            }
+            scene.getAccelerators().clear();
+            PixelArtEditor next = newTab != null ? editors.get(newTab) : null;
+            if (next != null) {
+                scene.getAccelerators().putAll(next.shortcuts());
+                next.activate();
+            }
+        });
+
+        scene = new Scene(tabs, 800, 600);
+        scene.getStylesheets().add("dark-theme.css");
+        stage.setTitle("Pixel Art Editor");
+        stage.setScene(scene);
+        stage.getIcons().add(new Image("icon.png"));
+        stage.setOnCloseRequest(e -> {
+            for (PixelArtEditor editor : editors.values()) {
+                if (!editor.confirmClose()) {
+                    e.consume();
+                    return;
+                }
+            }
+        });
+        Stage shown = stage;
+        stage.setOnHidden(e -> {
+            for (PixelArtEditor editor : new ArrayList<>(editors.values())) {
+                editor.close();
+            }
+            editors.clear();
+            if (stage == shown) {
+                stage = null;
+            }
+        });
+        stage.setWidth(800);
+        stage.setHeight(600);
+        stage.centerOnScreen();
+        stage.show();
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.pixelsmith;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.HPos;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -18,7 +19,7 @@ import java.net.http.HttpResponse;
 import java.util.Optional;
 
 public class Login extends Application {
-    private static final String BASE_URL = "http://localhost:8080/api";
+    private static final String BASE_URL = BackendUrl.API;
 
     @Override
     public void start(Stage primaryStage) {
@@ -32,18 +33,33 @@ public class Login extends Application {
         loginButton.setOnAction(e -> {
             String email = emailField.getText();
             String enteredPassword = passwordField.getText();
-            try {
-                Optional<Integer> userId = authenticate(email, enteredPassword);
-                if (userId.isPresent()) {
-                    UserSession.setCurrentUserId(userId.get());
-                    new SpriteSelector(userId.get()).start(new Stage());
-                    primaryStage.close();
-                } else {
-                    showAlert("Login Failed", "Invalid email or password.");
+            loginButton.setDisable(true);
+            // The credential check runs off the JavaFX thread. Once it succeeds, the sprite list, the thumbnails and
+            // the editor's classes and resources are all fetched in parallel while the gallery window is built.
+            Thread.ofVirtual().name("login").start(() -> {
+                try {
+                    Optional<Integer> userId = authenticate(email, enteredPassword);
+                    if (userId.isPresent()) {
+                        UserSession.setCurrentUserId(userId.get());
+                        var listings = SpriteSelector.fetchListings(userId.get());
+                        PixelArtEditor.warmUp();
+                        Platform.runLater(() -> {
+                            new SpriteSelector(userId.get(), listings).start(new Stage());
+                            primaryStage.close();
+                        });
+                    } else {
+                        Platform.runLater(() -> {
+                            loginButton.setDisable(false);
+                            showAlert("Login Failed", "Invalid email or password.");
+                        });
+                    }
+                } catch (Exception ex) {
+                    Platform.runLater(() -> {
+                        loginButton.setDisable(false);
+                        showAlert("Error", ex.getMessage());
+                    });
                 }
-            } catch (Exception ex) {
-                showAlert("Error", ex.getMessage());
-            }
+            });
         });
 
         Label titleLabel = new Label("SMITH IN");
@@ -0,0 +1,245 @@
+package com.example.pixelsmith;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Canvas cells kept outside the Java heap, so huge documents neither need a large -Xmx nor
+ * give the garbage collector gigabytes of pixels to trace.
+ * <p>
+ * The document is cut into bands of whole rows, about BAND_BYTES each. Up to the RAM budget
+ * ({@code -Dpixelsmith.canvas.budgetMb}, 512 by default) bands live in direct buffers; past that
+ * the least recently used band is written to a scratch file under ~/.pixelsmith/swap and its
+ * buffer reused. The budget is shared by every open document and never goes past three
+ * quarters of the JVM's direct memory limit ({@code -XX:MaxDirectMemorySize}, which defaults to
+ * -Xmx), so a small heap spills sooner instead of failing to allocate; raise both for 16k x 16k
+ * sheets to stay in RAM. Each store keeps at least two bands in memory whatever the budget. The
+ * scratch file is only created once something has to be spilled and is deleted when the store is
+ * garbage collected. Like the rest of the canvas, a store must only be used from one thread.
+ */
+final class OffHeapPixelStore implements PixelStore {
+    private static final int BAND_BYTES = 4 << 20;
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final long BUDGET = Math.min(Long.getLong("pixelsmith.canvas.budgetMb", 512) << 20, directMemoryLimit() / 4 * 3);
+    private static final AtomicLong RESERVED = new AtomicLong(); // direct bytes held by all stores
+
+    private final int width;
+    private final int height;
+    private final int bandRows;
+    private final int bandBytes;
+    private final int[] bandSlot; // slot holding each band, -1 when it is only in the scratch file
+    private final boolean[] spilled; // band has been written to the scratch file
+    private final ByteBuffer[] slotBytes;
+    private final IntBuffer[] slotInts;
+    private final int[] slotBand;
+    private final long[] slotUse;
+    private final boolean[] slotDirty;
+    private final Swap swap = new Swap();
+    private int allocatedSlots;
+    private long clock;
+    // The band used last, checked before anything else since nearly every access hits it
+    private int lastBand = -1;
+    private IntBuffer lastInts;
+
+    // Holds the scratch file and the store's share of the budget apart from the store, so the cleaner can close
+    // and release them after the store is gone
+    private static final class Swap implements Runnable {
+        FileChannel channel;
+        long reserved;
+
+        @Override
+        public void run() {
+            RESERVED.addAndGet(-reserved);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error closing the canvas swap file: " + e.getMessage());
+            }
+        }
+    }
+
+    OffHeapPixelStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.bandRows = Math.max(1, Math.min(height, BAND_BYTES / Math.max(1, width * 4)));
+        this.bandBytes = bandRows * width * 4;
+        int bands = (height + bandRows - 1) / bandRows;
+        int slots = (int) Math.max(2, Math.min(bands, BUDGET / bandBytes));
+
+        bandSlot = new int[bands];
+        Arrays.fill(bandSlot, -1);
+        spilled = new boolean[bands];
+        slotBytes = new ByteBuffer[slots];
+        slotInts = new IntBuffer[slots];
+        slotBand = new int[slots];
+        Arrays.fill(slotBand, -1);
+        slotUse = new long[slots];
+        slotDirty = new boolean[slots];
+        CLEANER.register(this, swap);
+    }
+
+    public int get(int row, int col) {
+        return band(row, false).get((row % bandRows) * width + col);
+    }
+
+    public void set(int row, int col, int argb) {
+        band(row, true).put((row % bandRows) * width + col, argb);
+    }
+
+    public void fill(int row, int colStart, int colEnd, int argb) {
+        IntBuffer ints = band(row, true);
+        int base = (row % bandRows) * width;
+        for (int i = base + colStart; i <= base + colEnd; i++) {
+            ints.put(i, argb);
+        }
+    }
+
+    public void read(int row, int col, int[] dst, int dstOffset, int length) {
+        band(row, false).get((row % bandRows) * width + col, dst, dstOffset, length);
+    }
+
+    public void write(int row, int col, int[] src, int srcOffset, int length) {
+        band(row, true).put((row % bandRows) * width + col, src, srcOffset, length);
+    }
+
+    // The cells of the band holding this row, brought into a slot if it was spilled
+    private IntBuffer band(int row, boolean writing) {
+        int band = row / bandRows;
+        if (band != lastBand) {
+            int slot = bandSlot[band];
+            if (slot < 0) {
+                slot = load(band);
+            }
+            slotUse[slot] = ++clock;
+            lastBand = band;
+            lastInts = slotInts[slot];
+        }
+        if (writing) {
+            slotDirty[bandSlot[band]] = true;
+        }
+        return lastInts;
+    }
+
+    private int load(int band) {
+        int slot = leastRecentlyUsedSlot(true);
+        if (slotBytes[slot] == null && !reserveSlot()) {
+            slot = leastRecentlyUsedSlot(false); // other documents hold the rest of the budget
+        }
+        if (slotBytes[slot] == null) {
+            slotBytes[slot] = ByteBuffer.allocateDirect(bandBytes).order(ByteOrder.nativeOrder());
+            slotInts[slot] = slotBytes[slot].asIntBuffer();
+            allocatedSlots++;
+        } else {
+            evict(slot);
+        }
+        if (spilled[band]) {
+            transfer(band, slotBytes[slot], false);
+        } else if (slotBand[slot] >= 0) {
+            // Never written out, so the band is still all zero
+            IntBuffer ints = slotInts[slot];
+            for (int i = 0; i < ints.capacity(); i++) {
+                ints.put(i, 0);
+            }
+        }
+        slotBand[slot] = band;
+        bandSlot[band] = slot;
+        return slot;
+    }
+
+    private void evict(int slot) {
+        int band = slotBand[slot];
+        if (band < 0) {
+            return;
+        }
+        if (slotDirty[slot]) {
+            transfer(band, slotBytes[slot], true);
+            spilled[band] = true;
+            slotDirty[slot] = false;
+        }
+        bandSlot[band] = -1;
+        if (band == lastBand) {
+            lastBand = -1;
+        }
+    }
+
+    // The slot to load a band into: an empty one when there is one, else the one used longest ago. Without
+    // unallocated, only slots that already have a buffer are considered.
+    private int leastRecentlyUsedSlot(boolean unallocated) {
+        int best = -1;
+        for (int slot = 0; slot < slotBand.length; slot++) {
+            if (!unallocated && slotBytes[slot] == null) {
+                continue;
+            }
+            if (slotBand[slot] < 0) {
+                return slot;
+            }
+            if (best < 0 || slotUse[slot] < slotUse[best]) {
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    // Take another band's worth of the shared budget; the first two are always granted
+    private boolean reserveSlot() {
+        long reserved = RESERVED.addAndGet(bandBytes);
+        if (allocatedSlots >= 2 && reserved > BUDGET) {
+            RESERVED.addAndGet(-bandBytes);
+            return false;
+        }
+        swap.reserved += bandBytes;
+        return true;
+    }
+
+    // What direct buffers may take in total, -XX:MaxDirectMemorySize or the heap limit it defaults to
+    private static long directMemoryLimit() {
+        try {
+            HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long limit = Long.parseLong(diagnostics.getVMOption("MaxDirectMemorySize").getValue());
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (RuntimeException e) {
+            // Not a HotSpot JVM; assume the default
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    // Write a slot's cells to the band's place in the scratch file, or read them back from it
+    private void transfer(int band, ByteBuffer bytes, boolean writing) {
+        ByteBuffer cells = bytes.duplicate().clear();
+        long position = (long) band * bandBytes;
+        try {
+            if (swap.channel == null) {
+                Path file = Files.createTempFile(AppDirectories.resolve("swap"), "canvas", ".swap");
+                swap.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            while (cells.hasRemaining()) {
+                int done = writing ? swap.channel.write(cells, position + cells.position())
+                        : swap.channel.read(cells, position + cells.position());
+                if (done < 0) {
+                    throw new IOException("Scratch file ends before band " + band);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not " + (writing ? "spill" : "reload") + " canvas band " + band
+                    + " of " + width + "x" + height, e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.pixelsmith;
+
+import java.io.Serial;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work over the rows of an image on the common fork-join pool. The row range is halved
+ * until each band holds about MIN_CELLS cells, so small images run inline on the caller and
+ * large ones are spread across every core. Bands must only write their own rows.
+ */
+final class ParallelRows {
+    interface Band {
+        // Process rows rowStart (inclusive) to rowEnd (exclusive)
+        void rows(int rowStart, int rowEnd);
+    }
+
+    private static final int MIN_CELLS = 1 << 15;
+
+    private ParallelRows() {
+    }
+
+    static void forEach(int rows, int cellsPerRow, Band band) {
+        int grain = Math.max(1, MIN_CELLS / Math.max(1, cellsPerRow));
+        if (rows <= grain) {
+            band.rows(0, rows);
+        } else {
+            ForkJoinPool.commonPool().invoke(new Split(0, rows, grain, band));
+        }
+    }
+
+    private static final class Split extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int rowStart, rowEnd, grain;
+        private final Band band;
+
+        Split(int rowStart, int rowEnd, int grain, Band band) {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.grain = grain;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart <= grain) {
+                band.rows(rowStart, rowEnd);
+                return;
+            }
+            int middle = (rowStart + rowEnd) >>> 1;
+            invokeAll(new Split(rowStart, middle, grain, band), new Split(middle, rowEnd, grain, band));
+        }
+    }
+}
@@ -1,74 +1,215 @@
 package com.example.pixelsmith;
 // PixelArtEditor.java
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
+import javafx.scene.Group;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.*;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.FlowPane;
+import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import org.json.JSONObject;
+import javafx.util.StringConverter;
 
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Queue;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.UnaryOperator;
+
+// The document (pixels, selection, tools) is owned by a DocumentThread: mouse handlers, menus and dialogs
+// on the JavaFX thread queue commands with document.submit, and the commands publish CanvasFrames and
+// overlays that the JavaFX thread draws each pulse. Fields below are marked with the thread that owns them.
+// Each open sprite is a PixelArtEditor of its own, shown as a tab of the EditorWindow.
 public class PixelArtEditor extends Application {
-    private static final String BASE_URL = "http://localhost:8080/api";
-    private static int CANVAS_WIDTH = 2000;
-    private static int CANVAS_HEIGHT = 2000;
+    // Written by the document thread, read by both
+    private volatile int canvasWidth = 2000;
+    private volatile int canvasHeight = 2000;
     private static final int GRID_SIZE = 16;
-    private static int ROWS = CANVAS_HEIGHT / GRID_SIZE;
-    private static int COLS = CANVAS_WIDTH / GRID_SIZE;
-    private Color[][] pixels = new Color[ROWS][COLS];
+    private volatile int rows = canvasHeight / GRID_SIZE;
+    private volatile int cols = canvasWidth / GRID_SIZE;
+    private static final int CHECKER_LIGHT = 0xFFA0A0A0;
+    private static final int CHECKER_DARK = 0xFF606060;
+    private final DocumentThread document = new DocumentThread("pixelsmith-document");
+
+    // Document thread
+    private PixelBuffer pixels = PixelBuffer.create(cols, rows);
+    private TileMap tileMap; // non-null while the document is edited as a tilemap; pixels then reads through it
+    private int publishedMapVersion = -1; // the tilemap version last sent to the view, -1 to send it again
+    private int dirtyTop = Integer.MAX_VALUE, dirtyLeft = Integer.MAX_VALUE, dirtyBottom = -1, dirtyRight = -1;
+    private final BitSet drawnBlocks = new BitSet(); // VIEW_BLOCK blocks the canvas shows as they are, row by row
+    private Tool currentTool;
+    private int paintColor = 0xFF000000; // the color picker's value, as tools see it
+    private final int[] toolSizes = new int[]{1, 2, 3, 4, 6, 8, 12, 16, 24, 32, 48, 64};
+    private int toolSize = 1;
+    private BrushStamp.Shape brushShape = BrushStamp.Shape.SQUARE;
+    private BrushStamp customStamp; // captured from the canvas with the stamp tool
+    private final BrushEngine brushEngine = new BrushEngine();
+    private final RegionCache fillRegions = new RegionCache(); // regions recently filled or hovered with the fill tool
+    private Selection selection; // null when nothing is selected
+    private FloatingSelection floating; // pixels lifted off the canvas while they are moved or pasted
+    private int[][] checkerRows; // the checkerboard for even and odd rows, for erasing whole runs at once
+    private PixelBuffer palettePixels; // the buffer and colour version the palette panel was built from
+    private int paletteVersion;
+    private AutosaveJournal journal;
+    private CollabSession collab; // null unless the sheet is shared through a relay
+    private int[] collabRow; // scratch for sharing whole rows
+    private SessionRecorder recorder; // null unless the session is being recorded
+    private final Map<SessionRecorder.ToolKind, Tool> replayTools = new EnumMap<>(SessionRecorder.ToolKind.class);
+
+    // Handed from the document thread to the JavaFX thread
+    private final ConcurrentLinkedQueue<CanvasFrame> frames = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<TileMapView.Frame> tileFrames = new ConcurrentLinkedQueue<>(); // tilemap mode
+    private final AtomicReference<Overlay> overlay = new AtomicReference<>();
+    private final AtomicReference<List<Integer>> paletteColors = new AtomicReference<>();
+    private volatile Integer currentSpriteId = null; // Null indicates a new sprite
+    private volatile String currentSpritePath = null; // Path to the saved sprite image
+    private volatile String currentSpriteName = null; // Name last sent to the backend, null if not known
+    private volatile int hoverRequests; // only the latest queued mouse move is worth handling
+    private volatile boolean shown = true; // false while the document's tab is in the background; nothing is rendered then
+    private volatile int[] shownCells; // {top, left, bottom, right} in view when the JavaFX thread last looked, null before
+    private volatile Tab tab;
+
+    // JavaFX thread
     private GraphicsContext gc;
+    private Canvas editorCanvas;
+    private Canvas previewCanvas; // rubber-band shapes, drawn over the canvas until committed
     private ColorPicker colorPicker;
-    private Tool currentTool;
-    private Integer currentSpriteId = null; // Null indicates a new sprite
-    private String currentSpritePath = null; // Path to the saved sprite image
-    private final int[] toolSizes = new int[]{1, 2, 3, 4};
+    private FlowPane palettePanel; // the document's colours, most used first
+    private Raster floatingImageSource; // the floating content floatingImage was made from
+    private WritableImage floatingImage;
+    private AnimationTimer presenter; // draws published frames once per pulse
+    private TileMapView tileMapView;
+    private final Map<KeyCombination, Runnable> shortcuts = new HashMap<>(); // installed by the window while the tab is in front
+
+    private static final Color SELECTION_TINT = Color.rgb(80, 160, 255, 0.3);
+    private static final Color SELECTION_OUTLINE = Color.rgb(80, 160, 255);
+    // Transforms refuse to grow a sprite beyond this: they work on heap copies of the image, so a 16k x 16k sheet
+    // needs a few GB of -Xmx to be flipped or rotated
+    private static final long MAX_DOCUMENT_CELLS = 1L << 28;
+    private static final int MAX_PALETTE_SWATCHES = 256;
+    private static final int VIEW_BLOCK = 64; // cells on a side of the blocks drawn as they scroll into view
+    private static boolean autosaveRecoveryOffered = false;
 
     //external methods
-    public void openSprite(int spriteId, String pathToSprite,Stage primaryStage) {
+    // Load a stored sprite into this document; its tab must already exist
+    void openSprite(int spriteId, String pathToSprite) {
         this.currentSpriteId = spriteId;
         this.currentSpritePath = pathToSprite;
-        start(primaryStage);
-        openSpriteForEditing(spriteId, pathToSprite);
+        this.currentSpriteName = null;
+        fetchSpriteName(spriteId);
+        int[] view = visibleCells();
+        document.submit(() -> openSpriteForEditing(spriteId, pathToSprite, view));
     }
 
+    Integer spriteId() {
+        return currentSpriteId;
+    }
 
+    private final boolean headless; // driven by a SessionReplayer, with no window and no backend
+    private final BiConsumer<Integer, Integer> idListener = (localId, spriteId) -> document.submit(() -> {
+        if (localId.equals(currentSpriteId)) {
+            if (spriteId == null) {
+                // The backend refused the sprite; the next save creates it afresh
+                System.out.println("The backend did not accept " + (currentSpriteName != null ? currentSpriteName : "this sprite")
+                        + "; save it again to retry.");
+            }
+            currentSpriteId = spriteId;
+            checkpointAutosave();
+        }
+    });
 
-    // singleton
-    private static PixelArtEditor instance;
-
-    private PixelArtEditor() {
+    public PixelArtEditor() {
+        this(false);
     }
 
-    public static PixelArtEditor getInstance() {
-        if (instance == null) {
-            instance = new PixelArtEditor();
+    private PixelArtEditor(boolean headless) {
+        this.headless = headless;
+        if (!headless) {
+            SpriteOutbox.getInstance().addIdListener(idListener);
         }
-        return instance;
+    }
+
+    // An editor without a window for replaying recordings; the caller's thread acts as its document thread
+    static PixelArtEditor headless(Raster document) {
+        PixelArtEditor editor = new PixelArtEditor(true);
+        editor.shownCells = new int[]{0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE}; // render as if it all were in view
+        editor.replaceDocument(document);
+        editor.selectTool(editor.new PenTool());
+        return editor;
+    }
+
+    // Classes and resources the editor needs as soon as it opens
+    private static final String[] WARM_UP_CLASSES = {"PixelBuffer", "ColorIndex", "PixelOps", "ShapeRasterizer",
+            "BrushEngine", "BrushStamp", "Selection", "RegionCache", "AutosaveJournal", "DocumentCache", "TileStore"};
+    private static final String[] WARM_UP_RESOURCES = {"dark-theme.css", "icon.png", "pen_tool_icon.png", "ear-tool-icon.png",
+            "fill.png", "squareT.png", "eye.png", "linet.png", "clear.png", "createnew.png", "save.png", "import.png", "export.png"};
+
+    // Load and initialize the editor's classes and read its stylesheet and icons on a virtual thread, so opening the
+    // first sprite does not pay for them. Called after login, alongside the gallery fetch.
+    static void warmUp() {
+        Thread.ofVirtual().name("editor-warm-up").start(() -> {
+            ClassLoader loader = PixelArtEditor.class.getClassLoader();
+            for (String name : WARM_UP_CLASSES) {
+                try {
+                    Class.forName(PixelArtEditor.class.getPackageName() + "." + name, true, loader);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    System.out.println("Could not preload " + name + ": " + e);
+                }
+            }
+            for (String resource : WARM_UP_RESOURCES) {
+                try (InputStream in = loader.getResourceAsStream(resource)) {
+                    if (in != null) {
+                        in.readAllBytes();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not preload " + resource + ": " + e.getMessage());
+                }
+            }
+        });
     }
 
     private void saveCurrentSprite(Stage primaryStage) {
-        Image spriteSheet = renderSpriteSheet();
         if (currentSpriteId == null) {  // First-time save
             TextInputDialog dialog = new TextInputDialog("New Sprite");
             dialog.setTitle("Save Sprite");
@@ -77,73 +218,44 @@ public class PixelArtEditor extends Application {
 
             Optional<String> result = dialog.showAndWait();
             result.ifPresent(spriteName -> {
-                String path = saveSpriteSheet(spriteSheet, primaryStage);
-                if (path != null) {
+                File file = chooseProjectFile(primaryStage);
+                PendingSave save = file != null ? pendingSave(true) : null;
+                if (save != null && saveUpdatedSpriteSheet(file.getAbsolutePath(), spriteName, save.image(), null)) {
+                    document.submit(() -> save.changes().buffer.markSaved(save.changes()));
+                    String path = file.getAbsolutePath();
                     currentSpritePath = path;
                     int userId = UserSession.getCurrentUserId();
                     createNewSprite(spriteName, userId, path);
+                    recordHistory(currentSpriteId, null, save.image());
                 }
             });
         } else {  // Update existing sprite
-            updateExistingSprite(currentSpriteId, currentSpritePath, spriteSheet);
+            updateExistingSprite(currentSpriteId, currentSpritePath);
         }
     }
 
-    private String fetchSpriteNameById(Integer spriteId) {
-        String url = BASE_URL + "/sprites/" + spriteId + "/name";
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .GET()
-                .build();
-
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                return response.body(); // Returns the sprite name
-            } else {
-                System.err.println("Failed to fetch sprite name. Status: " + response.statusCode());
-                return null; // Handle error appropriately
+    // Look the sprite's name up in the metadata cache, so the rename dialog can start from it
+    private void fetchSpriteName(int spriteId) {
+        SpriteMetadataCache.getInstance().get(spriteId).thenAccept(metadata -> {
+            if (metadata != null && Integer.valueOf(spriteId).equals(currentSpriteId) && currentSpriteName == null) {
+                currentSpriteName = metadata.name();
+                showTitle(metadata.name());
             }
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error fetching sprite name: " + e.getMessage());
-            return null; // Handle exception appropriately
-        }
+        });
     }
 
+    // Queue the create; the sprite keeps a local id until the backend has assigned the real one
     void createNewSprite(String spriteName, int userId, String pathToSprite) {
-        String url = "http://localhost:8080/api/sprites/create";
-        HttpClient client = HttpClient.newHttpClient();
-        JSONObject requestBody = new JSONObject();
-        requestBody.put("name", spriteName);
-        JSONObject userObject = new JSONObject().put("userId", userId);
-        requestBody.put("user", userObject);
-        JSONObject spriteDataObject = new JSONObject().put("pathDirect", pathToSprite);
-        requestBody.put("spriteData", spriteDataObject);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                .build();
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Response JSON: " + response.body());
-            if (response.statusCode() == 201) {
-                JSONObject jsonResponse = new JSONObject(response.body());
-                currentSpriteId = jsonResponse.getInt("spriteId");
-            } else {
-                System.err.println("Failed to create sprite. Server responded with status: " + response.statusCode());
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        }
+        currentSpriteId = SpriteOutbox.getInstance().enqueueCreate(spriteName, userId, pathToSprite);
+        currentSpriteName = spriteName;
+        showTitle(spriteName);
+        document.submit(this::checkpointAutosave);
     }
 
 
-    private void updateExistingSprite(Integer spriteId, String pathDirect, Image spriteSheet) {
+    private void updateExistingSprite(Integer spriteId, String pathDirect) {
         // Prompt user for the new sprite name
-        TextInputDialog dialog = new TextInputDialog(); // Default text is empty
+        TextInputDialog dialog = new TextInputDialog(currentSpriteName != null ? currentSpriteName : "");
         dialog.setTitle("Update Sprite Name");
         dialog.setHeaderText("Updated sprite name:");
         dialog.setContentText("Name:");
@@ -155,403 +267,2347 @@ public class PixelArtEditor extends Application {
         }
         String newSpriteName = result.get();
 
-        // Proceed with update
-        String url = BASE_URL + "/sprites/" + spriteId;
-        HttpClient client = HttpClient.newHttpClient();
-        JSONObject requestBody = new JSONObject();
-        requestBody.put("spriteId", spriteId);
-        requestBody.put("name", newSpriteName);  // Use the new name provided by the user
-        requestBody.put("pathDirect", pathDirect);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .PUT(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                .build();
-        saveUpdatedSpriteSheet(spriteSheet, pathDirect);
-
-        client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                .thenApply(HttpResponse::statusCode)
-                .thenAccept(statusCode -> {
-                    if (statusCode == 200) {
-                        System.out.println("Sprite updated successfully.");
-                    } else {
-                        System.err.println("Failed to update sprite. Server responded with status: " + statusCode);
-                    }
-                })
-                .join(); // Note: Using join() is generally not recommended on the UI thread
+        // Write the image now, unless not a tile has changed since the last save
+        PendingSave save = pendingSave(false);
+        if (save.changes().isEmpty()) {
+            System.out.println("No changes to the sprite since it was last saved.");
+        } else {
+            Raster replaced = historyBaseline(spriteId, pathDirect);
+            if (!saveUpdatedSpriteSheet(pathDirect, newSpriteName, save.image(), save.changes())) {
+                return;
+            }
+            document.submit(() -> save.changes().buffer.markSaved(save.changes()));
+            recordHistory(spriteId, replaced, save.image());
+            if (!ProjectFile.isProject(pathDirect)) { // projects open straight from the file
+                try {
+                    DocumentCache.getInstance().put(spriteId, spriteModifiedTime(pathDirect), save.image());
+                } catch (IOException e) {
+                    System.out.println("Error caching the saved sprite: " + e.getMessage());
+                }
+            }
+        }
+        // The backend only stores the name and path, so it only needs to hear about a rename; that goes through the outbox
+        if (!newSpriteName.equals(currentSpriteName)) {
+            SpriteOutbox.getInstance().enqueueUpdate(spriteId, newSpriteName, pathDirect);
+            currentSpriteName = newSpriteName;
+            showTitle(newSpriteName);
+        }
+    }
+
+    // The sprite as stored before its first save with history, so the version it replaces is kept too; null once
+    // the history has it
+    private Raster historyBaseline(int spriteId, String pathDirect) {
+        try {
+            if (SpriteHistory.getInstance().hasVersions(spriteId)) {
+                return null;
+            }
+            return ProjectFile.isProject(pathDirect) ? ProjectFile.read(Path.of(pathDirect)) : loadSpriteRaster(pathDirect);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading the sprite's previous version: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Add a saved image to the sprite's history, after the version it replaced when there is one
+    private void recordHistory(int spriteId, Raster replaced, Raster saved) {
+        try {
+            SpriteHistory history = SpriteHistory.getInstance();
+            if (replaced != null) {
+                history.record(spriteId, replaced);
+            }
+            history.record(spriteId, saved);
+        } catch (IOException e) {
+            System.out.println("Error recording the sprite's history: " + e.getMessage());
+        }
+    }
+
+    // List the saved versions of the sprite, show the selected one beside the document, and restore it on request
+    private void historyCommand() {
+        Integer spriteId = currentSpriteId;
+        if (spriteId == null) {
+            System.out.println("The sprite has no history until it is saved.");
+            return;
+        }
+        SpriteHistory history;
+        List<SpriteHistory.Version> versions;
+        try {
+            history = SpriteHistory.getInstance();
+            versions = new ArrayList<>(history.versions(spriteId));
+        } catch (IOException e) {
+            System.out.println("Error reading the sprite's history: " + e.getMessage());
+            return;
+        }
+        if (versions.isEmpty()) {
+            System.out.println("No saved versions of this sprite yet.");
+            return;
+        }
+        Collections.reverse(versions); // newest first
+        Raster current = documentImage();
+
+        ListView<SpriteHistory.Version> versionList = new ListView<>(FXCollections.observableArrayList(versions));
+        DateTimeFormatter savedAt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+        versionList.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(SpriteHistory.Version version, boolean empty) {
+                super.updateItem(version, empty);
+                setText(empty || version == null ? null : String.format("v%d  %s  %dx%d  %s", version.number(),
+                        savedAt.format(Instant.ofEpochMilli(version.savedAt())), version.width(), version.height(),
+                        version.keyframe() ? "full" : version.changedTiles() + " tiles changed"));
+            }
+        });
+        versionList.setPrefWidth(340);
+        ImageView versionView = historyPreview();
+        ImageView currentView = historyPreview();
+        currentView.setImage(current.toImage());
+        Label versionLabel = new Label();
+        Label differenceLabel = new Label();
+        AtomicReference<Raster> selected = new AtomicReference<>();
+        versionList.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, version) -> {
+            try {
+                Raster raster = history.checkout(spriteId, version.number());
+                selected.set(raster);
+                versionView.setImage(raster.toImage());
+                versionLabel.setText("Version " + version.number());
+                differenceLabel.setText(raster.width() != current.width() || raster.height() != current.height()
+                        ? "Different size from the current sprite"
+                        : countDifferentCells(raster, current) + " cells differ from the current sprite");
+            } catch (IOException e) {
+                System.out.println("Error reading version " + version.number() + ": " + e.getMessage());
+            }
+        });
+        versionList.getSelectionModel().selectFirst();
+
+        GridPane content = new GridPane();
+        content.setHgap(8);
+        content.setVgap(8);
+        content.add(versionList, 0, 0, 1, 3);
+        content.addRow(0, versionLabel, new Label("Current"));
+        content.add(versionView, 1, 1);
+        content.add(currentView, 2, 1);
+        content.add(differenceLabel, 1, 2, 2, 1);
+
+        ButtonType restore = new ButtonType("Restore", ButtonBar.ButtonData.OK_DONE);
+        Alert dialog = new Alert(Alert.AlertType.NONE, null, restore, ButtonType.CLOSE);
+        dialog.setTitle("Version History");
+        dialog.getDialogPane().setContent(content);
+        Optional<ButtonType> answer = dialog.showAndWait();
+        Raster chosen = selected.get();
+        if (answer.isPresent() && answer.get() == restore && chosen != null) {
+            // The restored version becomes a change to save like any other, so it starts a new version
+            document.submit(() -> {
+                if (refusedWhileRecording("Restore")) {
+                    return;
+                }
+                dropFloatingSelection();
+                replaceDocument(chosen);
+            });
+        }
+    }
+
+    private static ImageView historyPreview() {
+        ImageView view = new ImageView();
+        view.setFitWidth(256);
+        view.setFitHeight(256);
+        view.setPreserveRatio(true);
+        view.setSmooth(false);
+        return view;
+    }
+
+    private static int countDifferentCells(Raster a, Raster b) {
+        int count = 0;
+        for (int i = 0; i < a.argb().length; i++) {
+            if (a.argb()[i] != b.argb()[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // What a save has to write: the tiles changed since the last save and the image, which is null when nothing
+    // changed unless a full write was asked for
+    private record PendingSave(DirtyTiles changes, Raster image) {
+    }
+
+    private PendingSave pendingSave(boolean full) {
+        return document.call(() -> {
+            dropFloatingSelection();
+            DirtyTiles changes = pixels.changesSinceSave();
+            return new PendingSave(changes, full || !changes.isEmpty() ? exportRaster() : null);
+        });
     }
 
 
 
 
-    private void saveUpdatedSpriteSheet(Image spriteSheet, String filePath) {
+    // Write the sprite at pathDirect: as a project file when it is named .pxs, otherwise as a full PNG or as new
+    // tiles in the tile store. With changes, the project and the tile store only encode the tiles they touch.
+    private boolean saveUpdatedSpriteSheet(String filePath, String name, Raster image, DirtyTiles changes) {
         try {
-            ImageIO.write(SwingFXUtils.fromFXImage(spriteSheet, null), "png", new File(filePath));
+            if (ProjectFile.isProject(filePath)) {
+                Integer spriteId = currentSpriteId;
+                ProjectFile.write(Path.of(filePath), image, name, spriteId != null && spriteId >= 0 ? spriteId : null, changes);
+            } else if (TileStore.isEnabled()) {
+                TileStore.getInstance().save(filePath, image, changes);
+            } else {
+                ImageIO.write(image.toBufferedImage(), "png", new File(filePath));
+            }
+            return true;
         } catch (IOException e) {
             System.out.println("Error saving the updated sprite sheet: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Decode a stored sprite, preferring the tile store's latest version when tile storage is on
+    private Raster loadSpriteRaster(String pathToSprite) throws IOException {
+        if (TileStore.isEnabled()) {
+            Raster stored = TileStore.getInstance().load(pathToSprite);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        File spriteFile = new File(pathToSprite);
+        if (!spriteFile.exists()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(spriteFile)) {
+            return Raster.fromImage(new Image(in));
+        }
+    }
+
+    // Modification time of the stored sprite, used to tell cached decodes apart
+    private long spriteModifiedTime(String pathToSprite) throws IOException {
+        if (TileStore.isEnabled()) {
+            long stored = TileStore.getInstance().lastModified(pathToSprite);
+            if (stored > 0) {
+                return stored;
+            }
+        }
+        return new File(pathToSprite).lastModified();
+    }
+
+    private void openSpriteForEditing(int spriteId, String pathToSprite, int[] view) {
+        leaveCollab(); // a session shares one sheet
+        if (ProjectFile.isProject(pathToSprite)) {
+            openProjectForEditing(spriteId, pathToSprite, view);
+            return;
+        }
+        try {
+            long modified = spriteModifiedTime(pathToSprite);
+            Raster sprite = DocumentCache.getInstance().get(spriteId, modified);
+            if (sprite == null) {
+                sprite = loadSpriteRaster(pathToSprite);
+                if (sprite == null) {
+                    System.out.println("Sprite file not found: " + pathToSprite);
+                    return;
+                }
+                DocumentCache.getInstance().put(spriteId, modified, sprite);
+            }
+
+            // Determine the size of the sprite image
+            int spriteSheetRows = sprite.height();
+            int spriteSheetCols = sprite.width();
+
+            // Resize the canvas and pixel array to match the sprite image size
+            canvasWidth = spriteSheetCols * GRID_SIZE;
+            canvasHeight = spriteSheetRows * GRID_SIZE;
+            rows = spriteSheetRows;
+            cols = spriteSheetCols;
+            pixels = PixelBuffer.copyOf(sprite);
+            tileMap = null;
+            pixels.markSaved(pixels.changesSinceSave()); // the buffer now matches what is stored
+            resizeCanvas();
+            renderGrid();
+            checkpointAutosave();
+        } catch (IOException e) {
+            System.out.println("Error loading the sprite file: " + e.getMessage());
+        }
+    }
+
+    // Open the project and decode the tiles in view first, so they are drawn while the rest are decoded
+    private void openProjectForEditing(int spriteId, String pathToSprite, int[] view) {
+        try (ProjectFile project = ProjectFile.open(Path.of(pathToSprite))) {
+            if (project.name() != null && Integer.valueOf(spriteId).equals(currentSpriteId) && currentSpriteName == null) {
+                currentSpriteName = project.name();
+                showTitle(project.name());
+            }
+            canvasWidth = project.width() * GRID_SIZE;
+            canvasHeight = project.height() * GRID_SIZE;
+            rows = project.height();
+            cols = project.width();
+            pixels = PixelBuffer.create(cols, rows);
+            tileMap = null;
+            resizeCanvas();
+
+            BitSet decoded = new BitSet();
+            if (view != null) {
+                project.readTiles(pixels, view[0], view[1], view[2], view[3], decoded);
+                renderGrid();
+            }
+            project.readTiles(pixels, 0, 0, rows - 1, cols - 1, decoded);
+        } catch (IOException e) {
+            System.out.println("Error loading the sprite file: " + e.getMessage());
+            return;
+        }
+        pixels.markSaved(pixels.changesSinceSave()); // the buffer now matches what is stored
+        renderGrid();
+        checkpointAutosave();
+    }
+
+    // The cells the editor window shows at the current zoom and pan as {top, left, bottom, right}, null before
+    // the editor is shown; JavaFX thread
+    private int[] visibleCells() {
+        if (editorCanvas == null || editorCanvas.getScene() == null) {
+            return null;
+        }
+        Scene scene = editorCanvas.getScene();
+        Bounds view = editorCanvas.sceneToLocal(new BoundingBox(0, 0, scene.getWidth(), scene.getHeight()));
+        return new int[]{(int) view.getMinY() / GRID_SIZE, (int) view.getMinX() / GRID_SIZE,
+                (int) view.getMaxY() / GRID_SIZE, (int) view.getMaxX() / GRID_SIZE};
+    }
+
+
+
+    // Tool interface
+    interface Tool {
+        void apply(int row, int col);
+
+        default void setToolSize(int size) {
+        }
+
+        default void onMouseMoved(int row, int col) {
+        }
+
+        // The mouse button was released
+        default void endStroke() {
+        }
+    }
+
+    // Tools that track a press-drag-release gesture themselves instead of applying per cell
+    interface DragTool {
+        void onMousePressed(int row, int col, int clickCount);
+
+        void onMouseDragged(int row, int col);
+
+        void onMouseReleased(int row, int col);
+    }
+
+    // Pen tool
+    class PenTool implements Tool {
+        public void apply(int row, int col) {
+            int color = paintColor;
+            brushEngine.setStamp(currentBrushStamp());
+            brushEngine.strokeTo(row, col, rows, cols, (r, colStart, colEnd) -> fillSpan(r, colStart, colEnd, color));
+        }
+
+        @Override
+        public void endStroke() {
+            brushEngine.endStroke();
+        }
+    }
+
+    class EyeDropperTool implements Tool {
+        public void apply(int row, int col) {
+            paintColor = pixels.get(row, col);
+            Color picked = Argb.toColor(paintColor);
+            if (!headless) {
+                Platform.runLater(() -> colorPicker.setValue(picked));
+            }
+        }
+    }
+
+    enum ShapeKind {
+        RECTANGLE("Rectangle"),
+        RECTANGLE_OUTLINE("Rectangle Outline"),
+        ELLIPSE("Ellipse"),
+        ELLIPSE_OUTLINE("Ellipse Outline"),
+        POLYGON("Polygon"),
+        POLYGON_OUTLINE("Polygon Outline");
+
+        private final String label;
+
+        ShapeKind(String label) {
+            this.label = label;
+        }
+
+        boolean isPolygon() {
+            return this == POLYGON || this == POLYGON_OUTLINE;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // Shape tool: drag out rectangles and ellipses, click polygon corners and double-click to close
+    class ShapeTool implements Tool, DragTool {
+        private ShapeKind kind = ShapeKind.RECTANGLE;
+        private int size = 1;
+        private int startRow, startCol; // Starting coordinates
+        private final List<int[]> vertices = new ArrayList<>();
+
+        @Override
+        public void apply(int row, int col) {
+        }
+
+        public void setToolSize(int size) {
+            this.size = size;
+        }
+
+        void setKind(ShapeKind kind) {
+            this.kind = kind;
+            vertices.clear();
+            clearPreview();
+        }
+
+        public void onMousePressed(int row, int col, int clickCount) {
+            if (!kind.isPolygon()) {
+                startRow = row;
+                startCol = col;
+                previewShape(sink -> rasterize(row, col, sink));
+            } else if (clickCount >= 2 && !vertices.isEmpty()) {
+                clearPreview();
+                drawShape(sink -> rasterizePolygon(vertices.size(), sink));
+                vertices.clear();
+            } else {
+                vertices.add(new int[]{row, col});
+                onMouseMoved(row, col);
+            }
+        }
+
+        public void onMouseDragged(int row, int col) {
+            if (!kind.isPolygon()) {
+                previewShape(sink -> rasterize(row, col, sink));
+            }
+        }
+
+        @Override
+        public void onMouseMoved(int row, int col) {
+            if (kind.isPolygon() && !vertices.isEmpty()) {
+                vertices.add(new int[]{row, col});
+                previewShape(sink -> rasterizePolygon(vertices.size(), sink));
+                vertices.remove(vertices.size() - 1);
+            }
+        }
+
+        public void onMouseReleased(int row, int col) {
+            if (!kind.isPolygon()) {
+                clearPreview();
+                drawShape(sink -> rasterize(row, col, sink));
+            }
+        }
+
+        private void rasterize(int row, int col, ShapeRasterizer.SpanSink sink) {
+            switch (kind) {
+                case RECTANGLE -> ShapeRasterizer.fillRect(startRow, startCol, row, col, sink);
+                case RECTANGLE_OUTLINE -> ShapeRasterizer.strokeRect(startRow, startCol, row, col, size, sink);
+                case ELLIPSE -> ShapeRasterizer.fillEllipse(startRow, startCol, row, col, sink);
+                case ELLIPSE_OUTLINE -> ShapeRasterizer.strokeEllipse(startRow, startCol, row, col, size, sink);
+                default -> {
+                }
+            }
+        }
+
+        private void rasterizePolygon(int count, ShapeRasterizer.SpanSink sink) {
+            int[] vertexRows = new int[count];
+            int[] vertexCols = new int[count];
+            for (int i = 0; i < count; i++) {
+                vertexRows[i] = vertices.get(i)[0];
+                vertexCols[i] = vertices.get(i)[1];
+            }
+            if (kind == ShapeKind.POLYGON) {
+                ShapeRasterizer.fillPolygon(vertexRows, vertexCols, count, sink);
+            } else {
+                ShapeRasterizer.strokePolygon(vertexRows, vertexCols, count, size, sink);
+            }
+        }
+    }
+
+    // Eraser tool
+    class EraserTool implements Tool {
+        public void apply(int row, int col) {
+            brushEngine.setStamp(currentBrushStamp());
+            brushEngine.strokeTo(row, col, rows, cols, PixelArtEditor.this::eraseSpan);
+        }
+
+        @Override
+        public void endStroke() {
+            brushEngine.endStroke();
+        }
+    }
+
+    // Drag a rectangle over painted cells to use them as a custom brush tip
+    class StampCaptureTool implements Tool, DragTool {
+        private final Runnable onCaptured;
+        private int startRow, startCol;
+
+        StampCaptureTool(Runnable onCaptured) {
+            this.onCaptured = onCaptured;
+        }
+
+        @Override
+        public void apply(int row, int col) {
+        }
+
+        public void onMousePressed(int row, int col, int clickCount) {
+            startRow = row;
+            startCol = col;
+            onMouseDragged(row, col);
+        }
+
+        public void onMouseDragged(int row, int col) {
+            previewShape(sink -> ShapeRasterizer.strokeRect(startRow, startCol, row, col, 1, sink));
+        }
+
+        public void onMouseReleased(int row, int col) {
+            clearPreview();
+            int top = Math.max(0, Math.min(startRow, row));
+            int left = Math.max(0, Math.min(startCol, col));
+            int bottom = Math.min(rows - 1, Math.max(startRow, row));
+            int right = Math.min(cols - 1, Math.max(startCol, col));
+            if (top > bottom || left > right) {
+                return;
+            }
+            BrushStamp stamp = BrushStamp.capture(top, left, bottom - top + 1, right - left + 1,
+                    argb -> argb != CHECKER_LIGHT && argb != CHECKER_DARK && (argb >>> 24) != 0, pixels);
+            for (long bits : stamp.rows) {
+                if (bits != 0) {
+                    customStamp = stamp;
+                    onCaptured.run();
+                    return;
+                }
+            }
+            System.out.println("Nothing painted in the selected area to capture as a brush.");
+        }
+    }
+
+    // Fill tool; hovering shows the region a click would fill in the current color
+    class FillTool implements Tool {
+        @Override
+        public void apply(int row, int col) {
+            int targetColor = pixels.get(row, col);
+            int replacementColor = paintColor;
+
+            // Don't fill if the selected color is the same as the target color
+            if (targetColor == replacementColor) {
+                return;
+            }
+
+            Selection region = fillRegionAt(row, col);
+            region.forEachSpan((r, colStart, colEnd) -> fillSpan(r, colStart, colEnd, replacementColor));
+            // Trying another color on the same region is then a direct write
+            fillRegions.recolored(pixels, region, fillKey(replacementColor), color -> isFillableColor(color, replacementColor));
+            clearPreview();
+        }
+
+        @Override
+        public void onMouseMoved(int row, int col) {
+            if (row < 0 || row >= rows || col < 0 || col >= cols) {
+                clearPreview();
+                return;
+            }
+            Selection region = fillRegionAt(row, col);
+            previewShape(region::forEachSpan, Argb.toColor(paintColor).deriveColor(0, 1, 1, 0.5));
+        }
+
+        private Selection fillRegionAt(int row, int col) {
+            int targetColor = pixels.get(row, col);
+            return fillRegions.regionAt(pixels, row, col, fillKey(targetColor),
+                    () -> floodRegion(row, col, color -> isFillableColor(color, targetColor)));
+        }
+
+        // Fills that flood through the same colors share cached regions
+        private int fillKey(int color) {
+            return color == CHECKER_DARK ? CHECKER_LIGHT : color;
+        }
+
+        private boolean isFillableColor(int currentColor, int targetColor) {
+            // Check if the current color is either the target color or part of the checkerboard pattern
+            return currentColor == targetColor || currentColor == CHECKER_LIGHT || currentColor == CHECKER_DARK;
+        }
+    }
+
+    enum SelectionMode {
+        RECTANGLE("Rectangle Select"),
+        LASSO("Lasso"),
+        MAGIC_WAND("Magic Wand"),
+        SAME_COLOR("Select Color");
+
+        private final String label;
+
+        SelectionMode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // Selection tool: drag a rectangle or lasso, click a region with the magic wand or every cell of a color;
+    // drag inside the selection to move it
+    class SelectTool implements Tool, DragTool {
+        private SelectionMode mode = SelectionMode.RECTANGLE;
+        private int startRow, startCol;
+        private boolean moving, dragged;
+        private final List<int[]> lasso = new ArrayList<>();
+
+        @Override
+        public void apply(int row, int col) {
+        }
+
+        void setMode(SelectionMode mode) {
+            this.mode = mode;
+        }
+
+        public void onMousePressed(int row, int col, int clickCount) {
+            startRow = row;
+            startCol = col;
+            dragged = false;
+            moving = floating != null ? floating.covers(row, col) : selection != null && selection.contains(row, col);
+            if (moving) {
+                if (floating == null) {
+                    liftSelection();
+                }
+                return;
+            }
+
+            dropFloatingSelection();
+            if (mode == SelectionMode.MAGIC_WAND) {
+                if (row >= 0 && row < rows && col >= 0 && col < cols) {
+                    setSelection(floodRegion(row, col, sameColor(pixels.get(row, col))));
+                }
+            } else if (mode == SelectionMode.SAME_COLOR) {
+                if (row >= 0 && row < rows && col >= 0 && col < cols) {
+                    setSelection(selectColor(pixels.get(row, col)));
+                }
+            } else {
+                lasso.clear();
+                lasso.add(new int[]{row, col});
+            }
+        }
+
+        public void onMouseDragged(int row, int col) {
+            if (moving) {
+                floating.row += row - startRow;
+                floating.col += col - startCol;
+                startRow = row;
+                startCol = col;
+                clearPreview();
+                return;
+            }
+            dragged |= row != startRow || col != startCol;
+            if (mode == SelectionMode.RECTANGLE) {
+                previewShape(sink -> ShapeRasterizer.strokeRect(startRow, startCol, row, col, 1, sink), SELECTION_OUTLINE);
+            } else if (mode == SelectionMode.LASSO) {
+                int[] last = lasso.get(lasso.size() - 1);
+                if (last[0] != row || last[1] != col) {
+                    lasso.add(new int[]{row, col});
+                }
+                previewShape(sink -> {
+                    for (int i = 1; i < lasso.size(); i++) {
+                        ShapeRasterizer.line(lasso.get(i - 1)[0], lasso.get(i - 1)[1], lasso.get(i)[0], lasso.get(i)[1], 1, sink);
+                    }
+                }, SELECTION_OUTLINE);
+            }
+        }
+
+        public void onMouseReleased(int row, int col) {
+            if (moving || mode == SelectionMode.MAGIC_WAND || mode == SelectionMode.SAME_COLOR) {
+                return;
+            }
+            if (!dragged) {
+                // A click outside the selection clears it
+                setSelection(null);
+            } else if (mode == SelectionMode.RECTANGLE) {
+                setSelection(Selection.rectangle(rows, cols, startRow, startCol, row, col));
+            } else {
+                int[] lassoRows = new int[lasso.size()];
+                int[] lassoCols = new int[lasso.size()];
+                for (int i = 0; i < lasso.size(); i++) {
+                    lassoRows[i] = lasso.get(i)[0];
+                    lassoCols[i] = lasso.get(i)[1];
+                }
+                setSelection(Selection.polygon(rows, cols, lassoRows, lassoCols, lassoRows.length));
+            }
+        }
+
+        // Magic wand match: the same color, with both checkerboard colors counting as one background
+        private IntPredicate sameColor(int target) {
+            if (target == CHECKER_LIGHT || target == CHECKER_DARK) {
+                return color -> color == CHECKER_LIGHT || color == CHECKER_DARK;
+            }
+            return color -> color == target;
+        }
+    }
+
+    // Selected pixels lifted out of the document; they are only written back when dropped
+    private static final class FloatingSelection {
+        final Raster content; // transparent where nothing is carried
+        final Selection mask; // cells of content that are written back, in content coordinates
+        int row, col; // canvas position of the content's top-left cell
+
+        FloatingSelection(Raster content, int row, int col) {
+            this.content = content;
+            this.row = row;
+            this.col = col;
+            this.mask = new Selection(content.height(), content.width());
+            int[] argb = content.argb();
+            for (int y = 0; y < content.height(); y++) {
+                for (int x = 0; x < content.width(); x++) {
+                    if ((argb[y * content.width() + x] >>> 24) != 0) {
+                        mask.add(y, x);
+                    }
+                }
+            }
+        }
+
+        boolean covers(int canvasRow, int canvasCol) {
+            return canvasRow >= row && canvasRow < row + content.height() && canvasCol >= col && canvasCol < col + content.width();
+        }
+    }
+
+    //line tool
+    class LineTool implements Tool {
+        private int startRow, startCol; // Starting coordinates
+        private boolean drawing = false;
+        private int size = 1;
+
+        @Override
+        public void apply(int row, int col) {
+            if (!drawing) {
+                startRow = row;
+                startCol = col;
+                drawing = true;
+            } else {
+                clearPreview();
+                drawShape(sink -> ShapeRasterizer.line(startRow, startCol, row, col, size, sink));
+                drawing = false;
+            }
+        }
+
+        @Override
+        public void onMouseMoved(int row, int col) {
+            if (drawing) {
+                previewShape(sink -> ShapeRasterizer.line(startRow, startCol, row, col, size, sink));
+            }
+        }
+
+        public void setToolSize(int size) {
+            this.size = size;
+        }
+    }
+
+    enum TileAction {
+        PICK("Pick Tile"),
+        PLACE("Place Tile"),
+        MIRROR("Flip Tile Horizontal"),
+        FLIP("Flip Tile Vertical"),
+        ROTATE("Rotate Tile 90\u00B0"),
+        MAKE_UNIQUE("Make Tile Unique");
+
+        private final String label;
+
+        TileAction(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // Tilemap tool: pick a tile and stamp instances of it, or flip, turn or detach the instance under the cursor.
+    // A drag acts on each map cell it crosses once.
+    class TileTool implements Tool {
+        private TileAction action = TileAction.PICK;
+        private TileMap pickedFrom; // the map the picked tile belongs to
+        private int picked; // the picked tile and orientation, as a map entry
+        private int lastCell = -1; // map cell last acted on in this stroke
+
+        void setAction(TileAction action) {
+            this.action = action;
+        }
+
+        @Override
+        public void apply(int row, int col) {
+            if (tileMap == null) {
+                if (lastCell != -2) {
+                    System.out.println("Convert the sprite to a tilemap to edit its tiles.");
+                }
+                lastCell = -2;
+                return;
+            }
+            int cell = tileMap.cellAt(row, col);
+            if (cell == lastCell) {
+                return;
+            }
+            lastCell = cell;
+            int entry = tileMap.entry(cell);
+            switch (action) {
+                case PICK -> {
+                    pickedFrom = tileMap;
+                    picked = entry;
+                    return;
+                }
+                case PLACE -> {
+                    if (pickedFrom != tileMap) {
+                        System.out.println("Pick a tile to place first.");
+                        return;
+                    }
+                    pixels.placeTile(cell, picked);
+                }
+                case MIRROR -> pixels.placeTile(cell, TileMap.mirrored(entry));
+                case FLIP -> pixels.placeTile(cell, TileMap.flipped(entry));
+                case ROTATE -> pixels.placeTile(cell, TileMap.rotated(entry));
+                case MAKE_UNIQUE -> pixels.makeUnique(cell);
+            }
+            int top = tileMap.cellTop(cell), left = tileMap.cellLeft(cell);
+            markDirty(top, left, Math.min(left + TileMap.TILE_SIZE, cols) - 1);
+            markDirty(Math.min(top + TileMap.TILE_SIZE, rows) - 1, left, left);
+        }
+
+        @Override
+        public void endStroke() {
+            lastCell = -1;
+        }
+    }
+
+    // Keep the document as a tileset and a map: every TILE_SIZE block that repeats, even flipped or turned,
+    // becomes an instance of one shared tile, so painting it once paints it everywhere
+    private void convertToTilemap() {
+        if (tileMap != null) {
+            return;
+        }
+        if (recorder != null) {
+            System.out.println("Stop recording before converting to a tilemap.");
+            return;
+        }
+        leaveCollab(); // a session shares cells, not tiles
+        dropFloatingSelection();
+        PixelBuffer previous = pixels;
+        tileMap = TileMap.fromRaster(exportRaster(), this::getCheckerboardColor);
+        pixels = PixelBuffer.instanced(tileMap);
+        pixels.inheritSave(previous);
+        tileMap.setListener(tileJournal);
+        publishedMapVersion = -1;
+        frames.clear(); // superseded by the tiles, which are drawn first
+        renderGrid();
+        checkpointAutosave();
+        System.out.println("Tilemap of " + tileMap.cellCount() + " cells using " + tileMap.usedTileCount() + " unique tiles");
+    }
+
+    // Write every instance out as plain cells again; converting back finds the same tiles
+    private void flattenTilemap() {
+        if (tileMap == null) {
+            return;
+        }
+        dropFloatingSelection();
+        PixelBuffer previous = pixels;
+        pixels = PixelBuffer.copyOf(previous.toRaster());
+        pixels.inheritSave(previous);
+        tileMap = null;
+        renderGrid();
+        checkpointAutosave();
+    }
+
+    private BrushStamp currentBrushStamp() {
+        return BrushStamp.of(brushShape, toolSize, customStamp);
+    }
+
+    private void selectTool(Tool tool) {
+        if (!(tool instanceof SelectTool)) {
+            dropFloatingSelection();
+        }
+        currentTool = tool;
+        tool.setToolSize(toolSize);
+        if (recorder != null) {
+            recordTool();
+        }
+    }
+
+    // Input from the toolbar and the canvas, already mapped to cells; document thread. Each is recorded while a
+    // recording runs, and a SessionReplayer calls them to play one back.
+    void pressAt(int row, int col, int clickCount) {
+        if (recorder != null) {
+            recorder.press(row, col, clickCount);
+        }
+        if (currentTool instanceof DragTool dragTool) {
+            dragTool.onMousePressed(row, col, clickCount);
+        } else {
+            applyTool(row, col);
+        }
+    }
+
+    void dragAt(int row, int col) {
+        if (recorder != null) {
+            recorder.drag(row, col);
+        }
+        if (currentTool instanceof DragTool dragTool) {
+            dragTool.onMouseDragged(row, col);
+        } else {
+            applyTool(row, col);
+        }
+    }
+
+    void releaseAt(int row, int col) {
+        if (recorder != null) {
+            recorder.release(row, col);
+        }
+        if (currentTool instanceof DragTool dragTool) {
+            dragTool.onMouseReleased(row, col);
+        }
+        currentTool.endStroke();
+    }
+
+    void hoverAt(int row, int col) {
+        if (recorder != null) {
+            recorder.hover(row, col);
+        }
+        currentTool.onMouseMoved(row, col);
+    }
+
+    void setPaintColor(int argb) {
+        paintColor = argb;
+        if (recorder != null) {
+            recorder.color(argb);
+        }
+    }
+
+    void setToolSize(int size) {
+        toolSize = size;
+        currentTool.setToolSize(size);
+        if (recorder != null) {
+            recorder.size(size);
+        }
+    }
+
+    void setBrushShape(BrushStamp.Shape shape) {
+        brushShape = shape;
+        if (recorder != null) {
+            recorder.brush(shape);
+        }
+    }
+
+    void deleteSelectionCommand() {
+        if (recorder != null) {
+            recorder.delete();
+        }
+        deleteSelection();
+    }
+
+    void dropSelectionCommand() {
+        if (recorder != null) {
+            recorder.drop();
+        }
+        dropFloatingSelection();
+    }
+
+    void deselectCommand() {
+        if (recorder != null) {
+            recorder.deselect();
+        }
+        dropFloatingSelection();
+        setSelection(null);
+    }
+
+    void paste(Raster pasted) {
+        if (recorder != null) {
+            recorder.paste(pasted);
+        }
+        pasteFloating(pasted);
+    }
+
+    // Menu commands are not recorded, so a replay could not reproduce them; they wait until recording stops
+    private boolean refusedWhileRecording(String command) {
+        if (recorder == null) {
+            return false;
+        }
+        System.out.println("Stop recording before using " + command + ".");
+        return true;
+    }
+
+    // Select the tool a recording selected. Like the toolbar, the shape, selection and stamp tools are kept and
+    // reused, the others are new each time.
+    void selectRecordedTool(SessionRecorder.ToolKind kind, int option) {
+        Tool tool = switch (kind) {
+            case PEN -> new PenTool();
+            case ERASER -> new EraserTool();
+            case FILL -> new FillTool();
+            case LINE -> new LineTool();
+            case EYE_DROPPER -> new EyeDropperTool();
+            case SHAPE -> replayTools.computeIfAbsent(kind, k -> new ShapeTool());
+            case SELECT -> replayTools.computeIfAbsent(kind, k -> new SelectTool());
+            case STAMP_CAPTURE -> replayTools.computeIfAbsent(kind, k -> new StampCaptureTool(() -> {
+                brushShape = BrushStamp.Shape.CUSTOM;
+                selectTool(new PenTool());
+            }));
+            case TILE -> replayTools.computeIfAbsent(kind, k -> new TileTool());
+        };
+        if (tool instanceof ShapeTool shapeTool) {
+            shapeTool.setKind(ShapeKind.values()[option]);
+        } else if (tool instanceof SelectTool selectTool) {
+            selectTool.setMode(SelectionMode.values()[option]);
+        } else if (tool instanceof TileTool tileTool) {
+            tileTool.setAction(TileAction.values()[option]);
+        }
+        selectTool(tool);
+    }
+
+    private void recordTool() {
+        Tool tool = currentTool;
+        int option = 0;
+        SessionRecorder.ToolKind kind;
+        if (tool instanceof ShapeTool shapeTool) {
+            kind = SessionRecorder.ToolKind.SHAPE;
+            option = shapeTool.kind.ordinal();
+        } else if (tool instanceof SelectTool selectTool) {
+            kind = SessionRecorder.ToolKind.SELECT;
+            option = selectTool.mode.ordinal();
+        } else if (tool instanceof EraserTool) {
+            kind = SessionRecorder.ToolKind.ERASER;
+        } else if (tool instanceof FillTool) {
+            kind = SessionRecorder.ToolKind.FILL;
+        } else if (tool instanceof LineTool) {
+            kind = SessionRecorder.ToolKind.LINE;
+        } else if (tool instanceof EyeDropperTool) {
+            kind = SessionRecorder.ToolKind.EYE_DROPPER;
+        } else if (tool instanceof StampCaptureTool) {
+            kind = SessionRecorder.ToolKind.STAMP_CAPTURE;
+        } else if (tool instanceof TileTool tileTool) {
+            kind = SessionRecorder.ToolKind.TILE;
+            option = tileTool.action.ordinal();
+        } else {
+            kind = SessionRecorder.ToolKind.PEN;
+        }
+        recorder.tool(kind, option);
+    }
+
+    // Start recording from the document as it is now, with no selection, along with the current tool settings
+    private void startRecording() {
+        if (recorder != null) {
+            return;
+        }
+        if (tileMap != null) {
+            System.out.println("Tilemap editing cannot be recorded; go back to pixels first.");
+            return;
+        }
+        dropFloatingSelection();
+        setSelection(null);
+        try {
+            recorder = SessionRecorder.start(exportRaster());
+        } catch (IOException e) {
+            System.out.println("Could not start recording: " + e.getMessage());
+            return;
+        }
+        recordTool();
+        recorder.color(paintColor);
+        recorder.size(toolSize);
+        recorder.brush(brushShape);
+        System.out.println("Recording to " + recorder.path());
+    }
+
+    private void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        if (recorder.finish(documentChecksum())) {
+            System.out.println("Recorded " + recorder.eventCount() + " events to " + recorder.path());
+        }
+        recorder = null;
+    }
+
+    // Identifies the document's content, for telling whether a replay ended where its recording did
+    int documentChecksum() {
+        // Arrays.hashCode of the exported image, a row at a time
+        int hash = 1;
+        int[] line = new int[cols];
+        for (int row = 0; row < rows; row++) {
+            pixels.readRow(row, 0, line, 0, cols);
+            PixelOps.clearBackground(line, 0, checkerRow(row), 0, cols);
+            for (int argb : line) {
+                hash = 31 * hash + argb;
+            }
+        }
+        return hash;
+    }
+
+    // Throw away the frames, overlay and palette published for a window that is not there
+    void discardPublished() {
+        frames.clear();
+        tileFrames.clear();
+        overlay.set(null);
+        paletteColors.set(null);
+    }
+
+    // Rasterize a shape into the document in the current color, one span at a time
+    private void drawShape(Consumer<ShapeRasterizer.SpanSink> shape) {
+        int color = paintColor;
+        shape.accept((row, colStart, colEnd) -> fillSpan(row, colStart, colEnd, color));
+        flushRender();
+    }
+
+    // Show a shape on the preview overlay without touching the document
+    private void previewShape(Consumer<ShapeRasterizer.SpanSink> shape) {
+        previewShape(shape, Argb.toColor(paintColor));
+    }
+
+    private void previewShape(Consumer<ShapeRasterizer.SpanSink> shape, Color color) {
+        // Spans as (row, colStart, colEnd) triples, clipped to the canvas
+        int[][] spans = {new int[48]};
+        int[] length = {0};
+        shape.accept((row, colStart, colEnd) -> {
+            int left = Math.max(colStart, 0);
+            int right = Math.min(colEnd, cols - 1);
+            if (row >= 0 && row < rows && left <= right) {
+                if (length[0] + 3 > spans[0].length) {
+                    spans[0] = Arrays.copyOf(spans[0], spans[0].length * 2);
+                }
+                spans[0][length[0]++] = row;
+                spans[0][length[0]++] = left;
+                spans[0][length[0]++] = right;
+            }
+        });
+        publishOverlay(Arrays.copyOf(spans[0], length[0]), color);
+    }
+
+    // Reset the overlay to just the selection and any floating pixels
+    private void clearPreview() {
+        publishOverlay(null, null);
+    }
+
+    // What the preview layer shows: the floating pixels or else the selection, then any shape preview on top
+    private record Overlay(Raster floating, int floatingRow, int floatingCol, Selection selection,
+                           int[] previewSpans, Color previewColor) {
+    }
+
+    private void publishOverlay(int[] previewSpans, Color previewColor) {
+        overlay.set(floating != null
+                ? new Overlay(floating.content, floating.row, floating.col, null, previewSpans, previewColor)
+                : new Overlay(null, 0, 0, selection, previewSpans, previewColor));
+    }
+
+    // Draw the latest overlay; JavaFX thread
+    private void drawOverlay(Overlay next) {
+        GraphicsContext preview = previewCanvas.getGraphicsContext2D();
+        preview.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+        if (next.floating() != null) {
+            if (floatingImageSource != next.floating()) {
+                floatingImageSource = next.floating();
+                floatingImage = next.floating().toImage();
+            }
+            // One scaled image, so dragging even a large selection is a single draw per mouse move
+            double width = next.floating().width() * GRID_SIZE;
+            double height = next.floating().height() * GRID_SIZE;
+            preview.setImageSmoothing(false);
+            preview.drawImage(floatingImage, next.floatingCol() * GRID_SIZE, next.floatingRow() * GRID_SIZE, width, height);
+            preview.setStroke(SELECTION_OUTLINE);
+            preview.setLineWidth(2);
+            preview.strokeRect(next.floatingCol() * GRID_SIZE, next.floatingRow() * GRID_SIZE, width, height);
+        } else if (next.selection() != null) {
+            preview.setFill(SELECTION_TINT);
+            next.selection().forEachSpan((row, colStart, colEnd) ->
+                    preview.fillRect(colStart * GRID_SIZE, row * GRID_SIZE, (colEnd - colStart + 1) * GRID_SIZE, GRID_SIZE));
+        }
+        if (next.previewSpans() != null) {
+            int[] spans = next.previewSpans();
+            preview.setFill(next.previewColor());
+            for (int i = 0; i < spans.length; i += 3) {
+                preview.fillRect(spans[i + 1] * GRID_SIZE, spans[i] * GRID_SIZE, (spans[i + 2] - spans[i + 1] + 1) * GRID_SIZE, GRID_SIZE);
+            }
+        }
+    }
+
+    private void setSelection(Selection newSelection) {
+        selection = newSelection == null || newSelection.isEmpty() ? null : newSelection;
+        clearPreview();
+    }
+
+    // Forget the selection and anything floating without writing it back, for when the document is replaced
+    private void discardSelection() {
+        selection = null;
+        floating = null;
+        clearPreview();
+    }
+
+    // Cells connected to (row, col) that pass the test, found a row run at a time
+    private Selection floodRegion(int startRow, int startCol, IntPredicate matches) {
+        Selection region = new Selection(rows, cols);
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = startRow * cols + startCol;
+
+        while (size > 0) {
+            int cell = stack[--size];
+            int row = cell / cols, col = cell % cols;
+            if (region.contains(row, col) || !matches.test(pixels.get(row, col))) {
+                continue;
+            }
+
+            // Extend the run left and right, then seed each matching run directly above and below it
+            int from = col, to = col;
+            while (from > 0 && !region.contains(row, from - 1) && matches.test(pixels.get(row, from - 1))) {
+                from--;
+            }
+            while (to < cols - 1 && !region.contains(row, to + 1) && matches.test(pixels.get(row, to + 1))) {
+                to++;
+            }
+            region.addSpan(row, from, to);
+
+            for (int next = row - 1; next <= row + 1; next += 2) {
+                if (next < 0 || next >= rows) {
+                    continue;
+                }
+                boolean inRun = false;
+                for (int c = from; c <= to; c++) {
+                    boolean open = !region.contains(next, c) && matches.test(pixels.get(next, c));
+                    if (open && !inRun) {
+                        if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = next * cols + c;
+                    }
+                    inRun = open;
+                }
+            }
+        }
+        return region;
+    }
+
+    // Every cell of one color, anywhere on the canvas; the color index limits the search to tiles that hold it
+    private Selection selectColor(int color) {
+        Selection region = new Selection(rows, cols);
+        if (color == CHECKER_LIGHT || color == CHECKER_DARK) {
+            pixels.findColor(CHECKER_LIGHT, region::addSpan);
+            pixels.findColor(CHECKER_DARK, region::addSpan);
+        } else {
+            pixels.findColor(color, region::addSpan);
+        }
+        return region;
+    }
+
+    // The selected cells over their bounding box, transparent where unselected or background
+    private Raster copySelection() {
+        int top = selection.top(), left = selection.left();
+        int width = selection.right() - left + 1;
+        int height = selection.bottom() - top + 1;
+        int[] argb = new int[width * height];
+        selection.forEachSpan((row, colStart, colEnd) -> {
+            int offset = (row - top) * width - left;
+            pixels.readRow(row, colStart, argb, offset + colStart, colEnd - colStart + 1);
+            for (int col = colStart; col <= colEnd; col++) {
+                if (argb[offset + col] == getCheckerboardColor(row, col)) {
+                    argb[offset + col] = 0;
+                }
+            }
+        });
+        return new Raster(width, height, argb);
+    }
+
+    // Cut the selected cells out of the document so they can be moved without touching it
+    private void liftSelection() {
+        floating = new FloatingSelection(copySelection(), selection.top(), selection.left());
+        selection.forEachSpan(this::eraseSpan);
+        selection = null;
+        flushRender();
+        checkpointAutosave();
+        clearPreview();
+    }
+
+    // Write the floating pixels back where they now sit, a row run at a time; they stay selected
+    private void dropFloatingSelection() {
+        if (floating == null) {
+            return;
+        }
+        FloatingSelection dropped = floating;
+        floating = null;
+        Selection placed = new Selection(rows, cols);
+        int width = dropped.content.width();
+        dropped.mask.forEachSpan((row, colStart, colEnd) -> {
+            blitRow(dropped.row + row, dropped.col + colStart, dropped.content.argb(), row * width + colStart, colEnd - colStart + 1);
+            placed.addSpan(dropped.row + row, dropped.col + colStart, dropped.col + colEnd);
+        });
+        flushRender();
+        checkpointAutosave();
+        setSelection(placed);
+    }
+
+    // Run a bulk pixel operation over every row of the canvas, then redraw and checkpoint the autosave once
+    private void transformCanvas(PixelBuffer.RowTransform transform) {
+        if (refusedWhileRecording("Adjust")) {
+            return;
+        }
+        dropFloatingSelection();
+        pixels.transformRows(transform);
+        shareDocument();
+        renderGrid();
+        checkpointAutosave();
+    }
+
+    private boolean confirmAdjustment(String title, Node content) {
+        Alert dialog = new Alert(Alert.AlertType.CONFIRMATION);
+        dialog.setTitle(title);
+        dialog.setHeaderText(title);
+        dialog.getDialogPane().setContent(content);
+        Optional<ButtonType> answer = dialog.showAndWait();
+        return answer.isPresent() && answer.get() == ButtonType.OK;
+    }
+
+    private Integer askForNumber(String title, String prompt, int initial, int min, int max) {
+        TextInputDialog dialog = new TextInputDialog(String.valueOf(initial));
+        dialog.setTitle(title);
+        dialog.setHeaderText(prompt);
+        Optional<String> answer = dialog.showAndWait();
+        if (answer.isEmpty()) {
+            return null;
+        }
+        try {
+            return Math.max(min, Math.min(max, Integer.parseInt(answer.get().trim())));
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number: " + answer.get());
+            return null;
+        }
+    }
+
+    private void replaceColorCommand() {
+        ColorPicker fromPicker = new ColorPicker(colorPicker.getValue());
+        ColorPicker toPicker = new ColorPicker(Color.WHITE);
+        GridPane content = new GridPane();
+        content.setHgap(8);
+        content.setVgap(8);
+        content.addRow(0, new Label("Replace:"), fromPicker);
+        content.addRow(1, new Label("With:"), toPicker);
+        if (confirmAdjustment("Replace Color", content)) {
+            int from = Argb.of(fromPicker.getValue());
+            int to = Argb.of(toPicker.getValue());
+            // Only the tiles holding the color are touched, so this costs the area of the color rather than the canvas
+            document.submit(() -> {
+                if (refusedWhileRecording("Replace Color")) {
+                    return;
+                }
+                dropFloatingSelection();
+                pixels.transformTilesWith(from, (row, col, argb, offset, length) -> {
+                    PixelOps.replaceColor(argb, offset, checkerRow(row), col, length, from, to);
+                    markDirty(row, col, col + length - 1);
+                    shareCells(row, col, argb, offset, length); // the span is stored after this returns
+                });
+                flushRender();
+                checkpointAutosave();
+            });
+        }
+    }
+
+    private void adjustHsbCommand() {
+        Slider hue = new Slider(-180, 180, 0);
+        Slider saturation = new Slider(-100, 100, 0);
+        Slider brightness = new Slider(-100, 100, 0);
+        GridPane content = new GridPane();
+        content.setHgap(8);
+        content.setVgap(8);
+        content.addRow(0, new Label("Hue:"), hue);
+        content.addRow(1, new Label("Saturation:"), saturation);
+        content.addRow(2, new Label("Brightness:"), brightness);
+        if (confirmAdjustment("Hue / Saturation / Brightness", content)) {
+            float h = (float) hue.getValue();
+            float s = (float) saturation.getValue() / 100f;
+            float b = (float) brightness.getValue() / 100f;
+            document.submit(() -> transformCanvas((row, argb, offset) -> PixelOps.shiftHsb(argb, offset, checkerRow(row), 0, cols, h, s, b)));
+        }
+    }
+
+    private void invertCommand() {
+        document.submit(() -> transformCanvas((row, argb, offset) -> PixelOps.invert(argb, offset, checkerRow(row), 0, cols)));
+    }
+
+    private void joinCollabCommand() {
+        Integer spriteId = currentSpriteId;
+        TextInputDialog dialog = new TextInputDialog("ws://localhost:8765/collab/" + (spriteId != null ? spriteId : "sketch"));
+        dialog.setTitle("Join Session");
+        dialog.setHeaderText("Relay address (everyone in a room edits the same sheet):");
+        Optional<String> url = dialog.showAndWait();
+        if (url.isPresent() && !url.get().isBlank()) {
+            document.submit(() -> joinCollab(url.get().trim()));
+        }
+    }
+
+    private void alphaThresholdCommand() {
+        Integer threshold = askForNumber("Alpha Threshold", "Erase cells with alpha below (0-255):", 128, 0, 255);
+        if (threshold != null) {
+            document.submit(() -> transformCanvas((row, argb, offset) -> PixelOps.alphaThreshold(argb, offset, checkerRow(row), 0, cols, threshold)));
+        }
+    }
+
+    // Remap every cell to the nearest of the distinct colors in a palette image
+    private void remapToPaletteCommand(Stage stage) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Choose Palette Image");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Image Files", "*.png", "*.gif"));
+        File file = fileChooser.showOpenDialog(stage);
+        if (file == null) {
+            return;
+        }
+        Set<Integer> colors = new LinkedHashSet<>();
+        try (FileInputStream in = new FileInputStream(file)) {
+            for (int argb : Raster.fromImage(new Image(in)).argb()) {
+                if ((argb >>> 24) == 0xFF && colors.size() < 256) {
+                    colors.add(argb);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading the palette image: " + e.getMessage());
+            return;
+        }
+        int[] palette = colors.stream().mapToInt(Integer::intValue).toArray();
+        document.submit(() -> transformCanvas((row, argb, offset) -> PixelOps.remapToPalette(argb, offset, checkerRow(row), 0, cols, palette)));
+    }
+
+    // Paint the current color over the selection (or the whole canvas) at a chosen opacity
+    private void blendColorCommand() {
+        Integer percent = askForNumber("Blend Color", "Opacity of " + colorPicker.getValue() + " (1-100%):", 50, 1, 100);
+        if (percent == null) {
+            return;
+        }
+        int color = Argb.of(colorPicker.getValue());
+        document.submit(() -> {
+            dropFloatingSelection();
+            Selection mask = selection;
+            transformCanvas((row, argb, offset) -> PixelOps.blend(argb, offset, checkerRow(row), 0, cols, color, percent / 100f, mask, row, 0));
+        });
+    }
+
+    // Swap in a new document image of any size; fully transparent cells show the checkerboard
+    private void replaceDocument(Raster raster) {
+        rows = raster.height();
+        cols = raster.width();
+        canvasWidth = cols * GRID_SIZE;
+        canvasHeight = rows * GRID_SIZE;
+        pixels = PixelBuffer.copyOf(raster);
+        tileMap = null;
+        pixels.transformRows((row, argb, offset) -> PixelOps.restoreBackground(argb, offset, checkerRow(row), 0, cols));
+        resizeCanvas();
+        shareDocument();
+        renderGrid();
+        checkpointAutosave();
+    }
+
+    // Apply a whole-sprite transform to the exported image and load the result as the document
+    private void transformDocument(long resultWidth, long resultHeight, UnaryOperator<Raster> transform) {
+        if (resultWidth * resultHeight > MAX_DOCUMENT_CELLS || resultWidth < 1 || resultHeight < 1) {
+            System.out.println("The transformed sprite would be " + resultWidth + "x" + resultHeight + ", which is too large.");
+            return;
+        }
+        if (refusedWhileRecording("Transform")) {
+            return;
+        }
+        dropFloatingSelection();
+        replaceDocument(transform.apply(exportRaster()));
+    }
+
+    private void scaleNearestCommand() {
+        Integer factor = askForNumber("Scale", "Scale factor (2-16):", 2, 2, 16);
+        if (factor != null) {
+            document.submit(() -> transformDocument((long) cols * factor, (long) rows * factor, raster -> SpriteTransforms.scaleNearest(raster, factor)));
+        }
+    }
+
+    private void rotateCommand() {
+        Integer degrees = askForNumber("Rotate", "Degrees clockwise (-360 to 360):", 45, -360, 360);
+        if (degrees != null) {
+            document.submit(() -> {
+                long diagonal = (long) Math.ceil(Math.hypot(cols, rows));
+                transformDocument(diagonal, diagonal, raster -> SpriteTransforms.rotate(raster, degrees));
+            });
+        }
+    }
+
+    // Crop or extend the canvas, keeping the image at the top-left or centred
+    private void canvasSizeCommand() {
+        TextField widthField = new TextField(String.valueOf(cols));
+        TextField heightField = new TextField(String.valueOf(rows));
+        CheckBox centered = new CheckBox("Keep image centred");
+        GridPane content = new GridPane();
+        content.setHgap(8);
+        content.setVgap(8);
+        content.addRow(0, new Label("Width:"), widthField);
+        content.addRow(1, new Label("Height:"), heightField);
+        content.addRow(2, centered);
+        if (!confirmAdjustment("Canvas Size", content)) {
+            return;
+        }
+        try {
+            int width = Integer.parseInt(widthField.getText().trim());
+            int height = Integer.parseInt(heightField.getText().trim());
+            boolean keepCentred = centered.isSelected();
+            document.submit(() -> {
+                int offsetX = keepCentred ? (width - cols) / 2 : 0;
+                int offsetY = keepCentred ? (height - rows) / 2 : 0;
+                transformDocument(width, height, raster -> SpriteTransforms.resize(raster, width, height, offsetX, offsetY));
+            });
+        } catch (NumberFormatException e) {
+            System.out.println("Canvas size must be whole numbers");
+        }
+    }
+
+    private void cropToSelectionCommand() {
+        dropFloatingSelection();
+        if (selection == null) {
+            System.out.println("Select an area to crop to first");
+            return;
+        }
+        int width = selection.right() - selection.left() + 1;
+        int height = selection.bottom() - selection.top() + 1;
+        int offsetX = -selection.left();
+        int offsetY = -selection.top();
+        transformDocument(width, height, raster -> SpriteTransforms.resize(raster, width, height, offsetX, offsetY));
+    }
+
+    private void copyToClipboard() {
+        Raster content = floating != null ? floating.content : selection != null ? copySelection() : null;
+        if (content == null) {
+            return;
+        }
+        Platform.runLater(() -> {
+            ClipboardContent clipboardContent = new ClipboardContent();
+            clipboardContent.putImage(content.toImage());
+            Clipboard.getSystemClipboard().setContent(clipboardContent);
+        });
+    }
+
+    private void deleteSelection() {
+        if (floating != null) {
+            floating = null;
+            clearPreview();
+        } else if (selection != null) {
+            selection.forEachSpan(this::eraseSpan);
+            flushRender();
+            checkpointAutosave();
+        }
+    }
+
+    // Float an image pasted from the system clipboard, at the current selection if there is one
+    private void pasteFloating(Raster pasted) {
+        dropFloatingSelection();
+        int row = selection != null ? selection.top() : 0;
+        int col = selection != null ? selection.left() : 0;
+        selection = null;
+        floating = new FloatingSelection(pasted, row, col);
+        clearPreview();
+    }
+
+    // Erase a run of cells back to the checkerboard with one row copy; the journal keeps it as one transparent
+    // span, which recovery turns back into checkerboard
+    private void eraseSpan(int row, int colStart, int colEnd) {
+        blitRow(row, colStart, checkerRow(row), colStart, colEnd - colStart + 1);
+        int left = Math.max(colStart, 0);
+        int right = Math.min(colEnd, cols - 1);
+        if (journal != null && tileMap == null && row >= 0 && row < rows && left <= right) {
+            journal.appendSpan(row, left, right, 0);
+        }
+    }
+
+    // The checkerboard colors of a whole row
+    private int[] checkerRow(int row) {
+        if (checkerRows == null || checkerRows[0].length != cols) {
+            checkerRows = new int[2][cols];
+            for (int col = 0; col < cols; col++) {
+                checkerRows[0][col] = getCheckerboardColor(0, col);
+                checkerRows[1][col] = getCheckerboardColor(1, col);
+            }
+        }
+        return checkerRows[row & 1];
+    }
+
+    // Copy a run of cells into one row, clipped to the canvas. Blits are not journaled one cell at a time,
+    // so callers checkpoint the autosave once the whole operation is done.
+    private void blitRow(int row, int col, int[] src, int srcOffset, int length) {
+        int left = Math.max(col, 0);
+        int right = Math.min(col + length - 1, cols - 1);
+        if (row < 0 || row >= rows || left > right) {
+            return;
+        }
+        pixels.writeRow(row, left, src, srcOffset + left - col, right - left + 1);
+        markDirty(row, left, right);
+        shareRow(row, left, right);
+    }
+
+    // Initialize the grid with a checkerboard pattern
+    private void initializeGrid() {
+        discardSelection();
+        if (pixels.width() != cols || pixels.height() != rows || tileMap != null) {
+            pixels = PixelBuffer.create(cols, rows);
+            tileMap = null;
+        }
+        for (int row = 0; row < rows; row++) {
+            pixels.writeRow(row, 0, checkerRow(row), 0, cols);
+        }
+    }
+
+    // Redraw the whole document: the cells in view now, the rest as they are scrolled into view
+    private void renderGrid() {
+        drawnBlocks.clear();
+        renderView();
+        dirtyTop = dirtyLeft = Integer.MAX_VALUE;
+        dirtyBottom = dirtyRight = -1;
+        refreshPalettePanel();
+    }
+
+    // Publish the document palette when a color has appeared or gone; counts are read when a tooltip shows
+    private void refreshPalettePanel() {
+        if (palettePixels == pixels && paletteVersion == pixels.colorsVersion()) {
+            return;
+        }
+        palettePixels = pixels;
+        paletteVersion = pixels.colorsVersion();
+        List<Map.Entry<Integer, Long>> colors = new ArrayList<>(pixels.colorCounts().entrySet());
+        colors.removeIf(entry -> entry.getKey() == CHECKER_LIGHT || entry.getKey() == CHECKER_DARK);
+        colors.sort(Map.Entry.<Integer, Long>comparingByValue().reversed());
+        List<Integer> swatches = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : colors.subList(0, Math.min(colors.size(), MAX_PALETTE_SWATCHES))) {
+            swatches.add(entry.getKey());
+        }
+        paletteColors.set(swatches);
+    }
+
+    // Rebuild the swatches from a published palette; JavaFX thread
+    private void showPalette(List<Integer> colors) {
+        palettePanel.getChildren().clear();
+        for (int argb : colors) {
+            Rectangle swatch = new Rectangle(16, 16, Argb.toColor(argb));
+            swatch.setStroke(Color.BLACK);
+            Tooltip tooltip = new Tooltip(String.format("#%08X", argb));
+            tooltip.setOnShowing(e -> document.submit(() -> {
+                long count = pixels.colorCount(argb);
+                Platform.runLater(() -> tooltip.setText(String.format("#%08X: %d pixels", argb, count)));
+            }));
+            Tooltip.install(swatch, tooltip);
+            swatch.setOnMouseClicked(e -> colorPicker.setValue(Argb.toColor(argb)));
+            palettePanel.getChildren().add(swatch);
+        }
+    }
+
+    // Match the canvas to the current document size, dropping whatever it showed before; the view follows
+    // the size of the next frame
+    private void resizeCanvas() {
+        discardSelection();
+    }
+
+    // Write a single pixel and record it in the autosave journal; it is drawn on the next flushRender
+    private void setPixel(int row, int col, int argb) {
+        pixels.set(row, col, argb);
+        markDirty(row, col, col);
+        if (journal != null && tileMap == null) {
+            journal.append(row, col, argb);
+        }
+        if (collab != null) {
+            collab.recordSpan(row, col, col, argb == getCheckerboardColor(row, col) ? 0 : argb);
+        }
+    }
+
+    // Write a run of cells in one row, clipped to the canvas
+    private void fillSpan(int row, int colStart, int colEnd, int argb) {
+        int left = Math.max(colStart, 0);
+        int right = Math.min(colEnd, cols - 1);
+        if (row < 0 || row >= rows || left > right) {
+            return;
+        }
+        pixels.fillSpan(row, left, right, argb);
+        markDirty(row, left, right);
+        if (journal != null && tileMap == null) {
+            journal.appendSpan(row, left, right, argb);
+        }
+        if (collab != null) {
+            collab.recordSpan(row, left, right, left == right && argb == getCheckerboardColor(row, left) ? 0 : argb);
+        }
+    }
+
+    private void markDirty(int row, int colStart, int colEnd) {
+        dirtyTop = Math.min(dirtyTop, row);
+        dirtyBottom = Math.max(dirtyBottom, row);
+        dirtyLeft = Math.min(dirtyLeft, colStart);
+        dirtyRight = Math.max(dirtyRight, colEnd);
+    }
+
+    // Draw everything written since the last flush as a single rectangle
+    private void flushRender() {
+        if (dirtyBottom < 0) {
+            return;
+        }
+        renderRegion(dirtyTop, dirtyLeft, dirtyBottom, dirtyRight);
+        dirtyTop = dirtyLeft = Integer.MAX_VALUE;
+        dirtyBottom = dirtyRight = -1;
+        refreshPalettePanel();
+    }
+
+    // Draw a block of cells that changed. Only the part in view is snapshot; the blocks it leaves out of date are
+    // drawn once they scroll into view.
+    private void renderRegion(int top, int left, int bottom, int right) {
+        if (!shown) {
+            return; // drawn in full when the tab comes back to the front
+        }
+        top = Math.max(top, 0);
+        left = Math.max(left, 0);
+        bottom = Math.min(bottom, rows - 1);
+        right = Math.min(right, cols - 1);
+        int[] view = shownCells;
+        int viewTop = view != null ? Math.max(top, view[0]) : 0, viewLeft = view != null ? Math.max(left, view[1]) : 0;
+        int viewBottom = view != null ? Math.min(bottom, view[2]) : -1, viewRight = view != null ? Math.min(right, view[3]) : -1;
+        int across = (cols + VIEW_BLOCK - 1) / VIEW_BLOCK;
+        for (int blockRow = top / VIEW_BLOCK; blockRow <= bottom / VIEW_BLOCK; blockRow++) {
+            for (int blockCol = left / VIEW_BLOCK; blockCol <= right / VIEW_BLOCK; blockCol++) {
+                boolean redrawn = blockRow * VIEW_BLOCK >= viewTop && blockCol * VIEW_BLOCK >= viewLeft
+                        && Math.min((blockRow + 1) * VIEW_BLOCK, rows) - 1 <= viewBottom
+                        && Math.min((blockCol + 1) * VIEW_BLOCK, cols) - 1 <= viewRight;
+                if (!redrawn) {
+                    drawnBlocks.clear(blockRow * across + blockCol);
+                }
+            }
+        }
+        publishRegion(viewTop, viewLeft, viewBottom, viewRight);
+    }
+
+    // Draw the blocks in view that the canvas does not show as they are, as one region
+    private void renderView() {
+        int[] view = shownCells;
+        if (!shown || view == null || view[2] < 0 || view[3] < 0 || view[0] >= rows || view[1] >= cols) {
+            return;
+        }
+        int across = (cols + VIEW_BLOCK - 1) / VIEW_BLOCK;
+        int top = Integer.MAX_VALUE, left = Integer.MAX_VALUE, bottom = -1, right = -1;
+        for (int blockRow = Math.max(view[0], 0) / VIEW_BLOCK; blockRow <= Math.min(view[2], rows - 1) / VIEW_BLOCK; blockRow++) {
+            for (int blockCol = Math.max(view[1], 0) / VIEW_BLOCK; blockCol <= Math.min(view[3], cols - 1) / VIEW_BLOCK; blockCol++) {
+                if (!drawnBlocks.get(blockRow * across + blockCol)) {
+                    top = Math.min(top, blockRow);
+                    left = Math.min(left, blockCol);
+                    bottom = Math.max(bottom, blockRow);
+                    right = Math.max(right, blockCol);
+                }
+            }
+        }
+        if (bottom < 0) {
+            return;
         }
+        for (int blockRow = top; blockRow <= bottom; blockRow++) {
+            drawnBlocks.set(blockRow * across + left, blockRow * across + right + 1);
+        }
+        publishRegion(top * VIEW_BLOCK, left * VIEW_BLOCK, Math.min((bottom + 1) * VIEW_BLOCK, rows) - 1,
+                Math.min((right + 1) * VIEW_BLOCK, cols) - 1);
     }
 
-    private void openSpriteForEditing(int spriteId, String pathToSprite) {
-        try {
-            File spriteFile = new File(pathToSprite);
-            if (!spriteFile.exists()) {
-                System.out.println("Sprite file not found: " + pathToSprite);
-                return;
-            }
-
-            // Load the sprite image
-            Image spriteImage = new Image(new FileInputStream(spriteFile));
-            PixelReader pixelReader = spriteImage.getPixelReader();
-
-            // Determine the size of the sprite image
-            int spriteSheetRows = (int) spriteImage.getHeight();
-            int spriteSheetCols = (int) spriteImage.getWidth();
-
-            // Resize the canvas and pixel array to match the sprite image size
-            CANVAS_WIDTH = spriteSheetCols * GRID_SIZE;
-            CANVAS_HEIGHT = spriteSheetRows * GRID_SIZE;
-            ROWS = spriteSheetRows;
-            COLS = spriteSheetCols;
-            pixels = new Color[ROWS][COLS];
-
-            // Update the pixel array based on the loaded image
-            for (int row = 0; row < ROWS; row++) {
-                for (int col = 0; col < COLS; col++) {
-                    Color color = pixelReader.getColor(col, row);
-                    pixels[row][col] = color;
-                    renderPixel(row, col);
+    // Snapshot a block of cells as they appear on screen and queue it for the next pulse
+    private void publishRegion(int top, int left, int bottom, int right) {
+        int width = right - left + 1;
+        int height = bottom - top + 1;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (tileMap != null) {
+            publishTiles(top, left, bottom, right);
+            return;
+        }
+        int[] argb = new int[width * height];
+        for (int row = top; row <= bottom; row++) {
+            int offset = (row - top) * width;
+            pixels.readRow(row, left, argb, offset, width);
+            for (int i = offset; i < offset + width; i++) {
+                if ((argb[i] >>> 24) != 0xFF) {
+                    argb[i] = overCheckerboard(argb[i], row, left + i - offset);
                 }
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("Error loading the sprite file: " + e.getMessage());
         }
+        frames.add(new CanvasFrame(rows, cols, top, left, width, height, argb));
     }
 
-
-
-    // Tool interface
-    interface Tool {
-        void apply(int row, int col);
-
-        default void setToolSize(int size) {
+    // The tiles under a block of cells, and the map if it changed, for the tilemap view to draw wherever they
+    // are placed
+    private void publishTiles(int top, int left, int bottom, int right) {
+        BitSet shown = new BitSet();
+        for (int row = top - top % TileMap.TILE_SIZE; row <= bottom; row += TileMap.TILE_SIZE) {
+            for (int col = left - left % TileMap.TILE_SIZE; col <= right; col += TileMap.TILE_SIZE) {
+                shown.set(tileMap.tileAt(row, col));
+            }
         }
+        int[] tiles = shown.stream().toArray();
+        int[][] tilePixels = new int[tiles.length][];
+        for (int i = 0; i < tiles.length; i++) {
+            tilePixels[i] = tileMap.copyTile(tiles[i]);
+        }
+        int[] map = null;
+        if (publishedMapVersion != tileMap.version()) {
+            map = tileMap.copyMap();
+            publishedMapVersion = tileMap.version();
+        }
+        tileFrames.add(new TileMapView.Frame(rows, cols, map, tiles, tilePixels));
     }
 
-    // Pen tool
-    class PenTool implements Tool {
-        private int size = 1;
+    // Tell the document thread when the cells in view change, so it draws those it has not yet; JavaFX thread
+    private void followView() {
+        int[] view = visibleCells();
+        if (view != null && !Arrays.equals(view, shownCells)) {
+            shownCells = view;
+            document.submit(this::renderView);
+        }
+    }
 
-        public void apply(int row, int col) {
-            for (int r = row - size + 1; r < row + size; r++) {
-                for (int c = col - size + 1; c < col + size; c++) {
-                    if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                        pixels[r][c] = colorPicker.getValue();
-                        renderPixel(r, c);
-                    }
-                }
+    // Draw everything the document thread published since the last pulse; JavaFX thread. Tile frames go first:
+    // a switch to tilemap mode drops the cell frames still queued, and a switch back only queues cell frames.
+    private void presentFrames() {
+        TileMapView.Frame tiles;
+        while ((tiles = tileFrames.poll()) != null) {
+            if (fitCanvas(tiles.rows(), tiles.cols())) {
+                tileMapView.clear();
             }
+            tileMapView.present(tiles);
         }
-
-        public void setToolSize(int size) {
-            this.size = size;
+        CanvasFrame frame;
+        while ((frame = frames.poll()) != null) {
+            fitCanvas(frame.rows(), frame.cols());
+            WritableImage region = new WritableImage(frame.width(), frame.height());
+            region.getPixelWriter().setPixels(0, 0, frame.width(), frame.height(), PixelFormat.getIntArgbInstance(),
+                    frame.argb(), 0, frame.width());
+            gc.setImageSmoothing(false);
+            gc.drawImage(region, frame.left() * GRID_SIZE, frame.top() * GRID_SIZE,
+                    frame.width() * GRID_SIZE, frame.height() * GRID_SIZE);
+        }
+        Overlay next = overlay.getAndSet(null);
+        if (next != null) {
+            drawOverlay(next);
+        }
+        List<Integer> colors = paletteColors.getAndSet(null);
+        if (colors != null) {
+            showPalette(colors);
         }
     }
 
-    class EyeDropperTool implements Tool {
-        public void apply(int row, int col) {
-            colorPicker.setValue(pixels[row][col]);
+    // Size the canvas layers for a document of rows x cols, clearing them if that changed their size
+    private boolean fitCanvas(int rows, int cols) {
+        double width = cols * GRID_SIZE, height = rows * GRID_SIZE;
+        if (editorCanvas.getWidth() == width && editorCanvas.getHeight() == height) {
+            return false;
         }
+        editorCanvas.setWidth(width);
+        editorCanvas.setHeight(height);
+        previewCanvas.setWidth(width);
+        previewCanvas.setHeight(height);
+        gc.clearRect(0, 0, width, height);
+        return true;
     }
 
-    //square tool
-    class SquareTool implements Tool {
-        private int startX, startY; // Starting coordinates
+    // Translucent cells are shown composited over the checkerboard
+    private int overCheckerboard(int argb, int row, int col) {
+        int alpha = argb >>> 24;
+        int check = getCheckerboardColor(row, col);
+        int r = (((argb >> 16) & 0xFF) * alpha + ((check >> 16) & 0xFF) * (255 - alpha)) / 255;
+        int g = (((argb >> 8) & 0xFF) * alpha + ((check >> 8) & 0xFF) * (255 - alpha)) / 255;
+        int b = ((argb & 0xFF) * alpha + (check & 0xFF) * (255 - alpha)) / 255;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
 
-        @Override
-        public void apply(int row, int col) {
+    // The document as it will be saved once every queued edit is done, floating pixels dropped in place.
+    // Blocks the calling (JavaFX) thread until then.
+    private Raster documentImage() {
+        return document.call(() -> {
+            dropFloatingSelection();
+            return exportRaster();
+        });
+    }
+
+    // The sprite as it is saved, with the checkerboard background made transparent. This is a heap copy of the
+    // whole image, made only where the whole image is needed at once: saves, transforms and tilemap conversion.
+    private Raster exportRaster() {
+        int[] argb = new int[rows * cols];
+        for (int row = 0; row < rows; row++) {
+            pixels.readRow(row, 0, argb, row * cols, cols);
+            PixelOps.clearBackground(argb, row * cols, checkerRow(row), 0, cols);
         }
+        return new Raster(cols, rows, argb);
+    }
 
-        // Start drawing the square
-        public void onMousePressed(int row, int col) {
-            startX = col;
-            startY = row;
+    // Determine the checkerboard pattern color based on the position
+    private int getCheckerboardColor(int row, int col) {
+        if ((row + col) % 2 == 0) {
+            return CHECKER_LIGHT; // Light check
+        } else {
+            return CHECKER_DARK; // Dark check
         }
+    }
 
-        // Finish drawing the square
-        public void onMouseReleased(int row, int col) {
-            // Calculate the square's boundaries
-            int minX = Math.min(startX, col);
-            int maxX = Math.max(startX, col);
-
-            int minY = Math.min(startY, row);
-            int maxY = Math.max(startY, row);
-
-            // Draw the square
-            for (int r = minY; r <= maxY; r++) {
-                for (int c = minX; c <= maxX; c++) {
-                    if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                        pixels[r][c] = colorPicker.getValue();
-                        renderPixel(r, c);
-                    }
-                }
-            }
+    private void showTitle(String title) {
+        Tab shownIn = tab;
+        if (shownIn != null) {
+            Platform.runLater(() -> shownIn.setText(title));
         }
     }
 
-    // Eraser tool
-    class EraserTool implements Tool {
-        private int size = 1;
+    Map<KeyCombination, Runnable> shortcuts() {
+        return shortcuts;
+    }
 
-        public void apply(int row, int col) {
-            for (int r = row - size + 1; r < row + size; r++) {
-                for (int c = col - size + 1; c < col + size; c++) {
-                    if (r >= 0 && r < ROWS && c >= 0 && c < COLS) {
-                        pixels[r][c] = getCheckerboardColor(r, c);
-                        renderPixel(r, c);
-                    }
-                }
-            }
+    // The document's tab came to the front: redraw the cells in view from the document in the background; JavaFX
+    // thread
+    void activate() {
+        shown = true;
+        presenter.start();
+        shownCells = visibleCells();
+        document.submit(() -> {
+            publishedMapVersion = -1; // the view dropped the map along with the textures
+            renderGrid();
+            clearPreview();
+            palettePixels = null; // the panel may show another document's palette
+            refreshPalettePanel();
+        });
+    }
+
+    // The tab went to the background: give up the canvas textures, which at GRID_SIZE screen pixels a cell are
+    // by far the largest part of an open document. The pixels, tools and view stay; JavaFX thread
+    void deactivate() {
+        shown = false;
+        presenter.stop();
+        frames.clear();
+        tileFrames.clear();
+        tileMapView.clear();
+        for (Canvas layer : new Canvas[]{editorCanvas, previewCanvas}) {
+            layer.setWidth(0);
+            layer.setHeight(0);
         }
+    }
 
-        public void setToolSize(int size) {
-            this.size = size;
+    // Ask before closing a document with unsaved changes; JavaFX thread
+    boolean confirmClose() {
+        boolean unsaved = document.call(() -> floating != null || !pixels.changesSinceSave().isEmpty());
+        if (!unsaved) {
+            return true;
         }
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("Close Sprite");
+        alert.setHeaderText(tab.getText() + " has unsaved changes.");
+        alert.setContentText("Close it anyway?");
+        Optional<ButtonType> answer = alert.showAndWait();
+        return answer.isPresent() && answer.get() == ButtonType.OK;
     }
 
-    class FillTool implements Tool {
-        @Override
-        public void apply(int row, int col) {
-            Color targetColor = pixels[row][col];
-            Color replacementColor = colorPicker.getValue();
+    // The tab was closed: finish with the document and let its thread go; JavaFX thread
+    void close() {
+        presenter.stop();
+        frames.clear();
+        tileFrames.clear();
+        SpriteOutbox.getInstance().removeIdListener(idListener);
+        document.submit(this::stopRecording);
+        document.submit(this::leaveCollab);
+        document.submit(this::closeAutosaveJournal);
+        document.shutdown();
+    }
 
-            // Don't fill if the selected color is the same as the target color
-            if (targetColor.equals(replacementColor)) {
+    // Load and display a sprite sheet from a file
+    private void loadAndDisplaySpriteSheet(File file) {
+        UnaryOperator<Raster> importOptions = askImportOptions(file);
+        if (importOptions == null) {
+            return;
+        }
+        // Decoding and quantizing a large image can take a while, so it runs as a document command too
+        document.submit(() -> {
+            if (refusedWhileRecording("Import")) {
                 return;
             }
+            try (FileInputStream in = new FileInputStream(file)) {
+                // Load the sprite sheet with no scaling or smoothing so the sprite aesthetic doesnt get ruined
+                Image spriteSheet = new Image(in);
+                dropFloatingSelection();
+                // The canvas and pixel array are resized to match the sprite sheet
+                replaceDocument(importOptions.apply(Raster.fromImage(spriteSheet)));
+            } catch (IOException e) {
+                System.out.println("error loading the sprite file :(");
+            }
+        });
+    }
 
-            floodFill(row, col, targetColor, replacementColor);
+    // Ask how an image should be brought in: pixelated down and/or reduced to a palette. Null if cancelled.
+    private UnaryOperator<Raster> askImportOptions(File file) {
+        String name = file.getName().toLowerCase();
+        CheckBox quantize = new CheckBox("Reduce colors to");
+        quantize.setSelected(name.endsWith(".jpg") || name.endsWith(".jpeg")); // photos rarely have a usable palette
+        TextField colorsField = new TextField("32");
+        ChoiceBox<ColorQuantizer.Method> methodChoice = new ChoiceBox<>(FXCollections.observableArrayList(ColorQuantizer.Method.values()));
+        methodChoice.setValue(ColorQuantizer.Method.MEDIAN_CUT);
+        ChoiceBox<ColorQuantizer.Dither> ditherChoice = new ChoiceBox<>(FXCollections.observableArrayList(ColorQuantizer.Dither.values()));
+        ditherChoice.setValue(ColorQuantizer.Dither.NONE);
+        TextField pixelateField = new TextField("0");
+
+        GridPane content = new GridPane();
+        content.setHgap(8);
+        content.setVgap(8);
+        content.addRow(0, quantize, colorsField);
+        content.addRow(1, new Label("Method:"), methodChoice);
+        content.addRow(2, new Label("Dithering:"), ditherChoice);
+        content.addRow(3, new Label("Pixelate to width (0 keeps size):"), pixelateField);
+        if (!confirmAdjustment("Import Options", content)) {
+            return null;
         }
 
-        private void floodFill(int startRow, int startCol, Color targetColor, Color replacementColor) {
-            Queue<int[]> queue = new LinkedList<>();
-            queue.add(new int[]{startRow, startCol});
-
-            while (!queue.isEmpty()) {
-                int[] position = queue.remove();
-                int row = position[0], col = position[1];
+        int colors, pixelateWidth;
+        try {
+            colors = Math.max(2, Math.min(256, Integer.parseInt(colorsField.getText().trim())));
+            pixelateWidth = Math.max(0, Integer.parseInt(pixelateField.getText().trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Import options must be whole numbers");
+            return null;
+        }
+        ColorQuantizer.Method method = methodChoice.getValue();
+        ColorQuantizer.Dither dither = ditherChoice.getValue();
+        return raster -> {
+            Raster result = raster;
+            if (pixelateWidth > 0 && pixelateWidth < raster.width()) {
+                result = ColorQuantizer.pixelate(result, pixelateWidth);
+            }
+            if (quantize.isSelected()) {
+                result = ColorQuantizer.quantize(result, colors, method, dither);
+            }
+            return result;
+        };
+    }
 
-                // Check boundaries and whether to continue filling
-                if (row < 0 || row >= ROWS || col < 0 || col >= COLS) {
-                    continue;
-                }
+    // Where to save a new sprite: a PixelSmith project by default, or a PNG
+    private File chooseProjectFile(Stage primaryStage) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Sprite");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("PixelSmith Projects", "*" + ProjectFile.EXTENSION),
+                new FileChooser.ExtensionFilter("PNG Files", "*.png")
+        );
+        return fileChooser.showSaveDialog(primaryStage);
+    }
 
-                Color currentColor = pixels[row][col];
-                if (!isFillableColor(currentColor, targetColor)) {
-                    continue;
-                }
+    private File chooseSpriteFile(Stage primaryStage) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Sprite Sheet");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("PNG Files", "*.png")
+        );
+        return fileChooser.showSaveDialog(primaryStage);
+    }
 
-                pixels[row][col] = replacementColor;
-                renderPixel(row, col);
+    private String saveSpriteSheet(Image spriteSheet, Stage primaryStage) {
+        File file = chooseSpriteFile(primaryStage);
 
-                // Add neighboring pixels to the queue
-                queue.add(new int[]{row, col - 1}); // Left
-                queue.add(new int[]{row, col + 1}); // Right
-                queue.add(new int[]{row - 1, col}); // Above
-                queue.add(new int[]{row + 1, col}); // Below
+        if (file != null) {
+            try {
+                ImageIO.write(SwingFXUtils.fromFXImage(spriteSheet, null), "png", file);
+                return file.getAbsolutePath(); // Return the saved file path
+            } catch (IOException e) {
+                System.out.println("Error saving the sprite sheet :(");
             }
         }
 
-        private boolean isFillableColor(Color currentColor, Color targetColor) {
-            // Check if the current color is either the target color or part of the checkerboard pattern
-            return currentColor.equals(targetColor) || currentColor.equals(getCheckerboardColor(0, 0)) || currentColor.equals(getCheckerboardColor(0, 1));
-        }
+        return null;
     }
 
-    //line tool
-    class LineTool implements Tool {
-        private int startX, startY; // Starting coordinates
-        private boolean drawing = false;
+    void clearCanvas() {
+        if (recorder != null) {
+            recorder.clear();
+        }
+        initializeGrid();
+        shareDocument();
+        renderGrid();
+        checkpointAutosave();
+    }
 
+    // The document as autosave checkpoints read it, a band of rows at a time between commands
+    private final AutosaveJournal.Source autosaveSource = new AutosaveJournal.Source() {
         @Override
-        public void apply(int row, int col) {
-            if (!drawing) {
-                startX = col;
-                startY = row;
-                drawing = true;
-            } else {
-                drawBresenhamLine(startX, startY, col, row);
-                drawing = false;
-            }
+        public int rows() {
+            return rows;
         }
-    }
 
-    private void drawBresenhamLine(int x1, int y1, int x2, int y2) {
-        int dx = Math.abs(x2 - x1);
-        int dy = Math.abs(y2 - y1);
+        @Override
+        public int cols() {
+            return cols;
+        }
 
-        int sx = x1 < x2 ? 1 : -1;
-        int sy = y1 < y2 ? 1 : -1;
+        @Override
+        public Integer spriteId() {
+            return currentSpriteId;
+        }
 
-        int err = dx - dy;
-        int e2;
+        @Override
+        public String spritePath() {
+            return currentSpritePath;
+        }
 
-        while (true) {
-            if (x1 >= 0 && x1 < COLS && y1 >= 0 && y1 < ROWS) {
-                pixels[y1][x1] = colorPicker.getValue();
-                renderPixel(y1, x1);
+        @Override
+        public void readRows(int row, int count, int[] dst) {
+            for (int i = 0; i < count; i++) {
+                pixels.readRow(row + i, 0, dst, i * cols, cols);
             }
+        }
 
-            if (x1 == x2 && y1 == y2) {
-                break;
-            }
+        @Override
+        public int[] tileMap() {
+            return tileMap != null ? tileMap.copyMap() : null;
+        }
+
+        @Override
+        public int tileCount() {
+            return tileMap != null ? tileMap.tileCount() : 0;
+        }
 
-            e2 = 2 * err;
-            if (e2 > -dy) {
-                err -= dy;
-                x1 += sx;
+        @Override
+        public void readTiles(int tile, int count, int[] dst) {
+            for (int i = 0; i < count; i++) {
+                tileMap.readTile(tile + i, dst, i * TileMap.TILE_SIZE * TileMap.TILE_SIZE);
             }
-            if (e2 < dx) {
-                err += dx;
-                y1 += sy;
+        }
+
+        @Override
+        public void submit(Runnable task) {
+            document.submit(task);
+        }
+    };
+
+    // A tile edit reaches every instance, which cell records cannot express, so tilemap edits are journaled as tiles
+    private final TileMap.Listener tileJournal = new TileMap.Listener() {
+        @Override
+        public void tilePixel(int tile, int pixel, int value) {
+            if (journal != null) {
+                journal.appendTilePixel(tile, pixel, value);
             }
         }
-    }
 
-    // Initialize the grid with a checkerboard pattern
-    private void initializeGrid() {
-        for (int row = 0; row < ROWS; row++) {
-            for (int col = COLS - 1; col >= 0; col--) {
-                pixels[row][col] = getCheckerboardColor(row, col);
+        @Override
+        public void placed(int cell, int entry) {
+            if (journal != null) {
+                journal.appendPlaceTile(cell, entry);
             }
         }
+    };
+
+    // Start the base of a fresh journal generation after the whole document changed
+    private void checkpointAutosave() {
+        if (journal != null) {
+            journal.checkpoint();
+        }
     }
 
-    // Render the grid based on the pixel data structure
-    private void renderGrid() {
-        for (int row = 0; row < ROWS; row++) {
-            for (int col = COLS - 1; col >= 0; col--) {
-                renderPixel(row, col);
-            }
+    private void openAutosaveJournal() {
+        if (journal != null) {
+            checkpointAutosave();
+            return;
+        }
+        try {
+            journal = AutosaveJournal.open(autosaveSource);
+        } catch (IOException e) {
+            System.out.println("Autosave unavailable: " + e.getMessage());
         }
     }
 
-    // Render a single pixel
-    private void renderPixel(int row, int col) {
-        gc.setFill(pixels[row][col]);
-        gc.fillRect(col * GRID_SIZE, row * GRID_SIZE, GRID_SIZE, GRID_SIZE);
+    private void closeAutosaveJournal() {
+        if (journal != null) {
+            journal.close(true);
+            journal = null;
+        }
     }
 
-    private Image renderSpriteSheet() {
-        WritableImage spriteSheet = new WritableImage(COLS, ROWS);
-        PixelWriter pixelWriter = spriteSheet.getPixelWriter();
+    // Share a run of cells that were just written with arbitrary colours, background cells as transparent
+    private void shareRow(int row, int left, int right) {
+        if (collab == null) {
+            return;
+        }
+        if (collabRow == null || collabRow.length < cols) {
+            collabRow = new int[cols];
+        }
+        int length = right - left + 1;
+        pixels.readRow(row, left, collabRow, 0, length);
+        shareCells(row, left, collabRow, 0, length);
+    }
 
-        for (int row = 0; row < ROWS; row++) {
-            for (int col = COLS - 1; col >= 0; col--) {
-                Color pixelColor = pixels[row][col];
-                // If the pixel color matches the checkerboard color, write black color
-                if (pixelColor.equals(getCheckerboardColor(row, col))) {
-                    pixelWriter.setColor(col, row, Color.TRANSPARENT);
-                } else {
-                    pixelWriter.setColor(col, row, pixelColor);
-                }
-            }
+    // Share a run of cells as argb holds them, e.g. before they are stored
+    private void shareCells(int row, int left, int[] argb, int offset, int length) {
+        if (collab == null) {
+            return;
+        }
+        if (collabRow == null || collabRow.length < cols) {
+            collabRow = new int[cols];
         }
+        System.arraycopy(argb, offset, collabRow, 0, length);
+        PixelOps.clearBackground(collabRow, 0, checkerRow(row), left, length);
+        collab.recordRow(row, left, collabRow, 0, length);
+    }
 
-        return spriteSheet;
+    // After a command rewrote the whole document: share every row, or leave the session if the size changed
+    private void shareDocument() {
+        if (collab == null) {
+            return;
+        }
+        if (collab.width() != cols || collab.height() != rows) {
+            System.out.println("Left the shared session: the sprite is now " + cols + "x" + rows);
+            leaveCollab();
+            return;
+        }
+        for (int row = 0; row < rows; row++) {
+            shareRow(row, 0, cols - 1);
+        }
     }
 
-    // Determine the checkerboard pattern color based on the position
-    private Color getCheckerboardColor(int row, int col) {
-        if ((row + col) % 2 == 0) {
-            return Color.rgb(160, 160, 160); // Light check
-        } else {
-            return Color.rgb(96, 96, 96); // Dark check
+    // Share this sheet through the relay at url; everyone in the room should start from the same saved sprite
+    private void joinCollab(String url) {
+        if (tileMap != null) {
+            System.out.println("A tilemap cannot be shared; go back to pixels first.");
+            return;
         }
+        leaveCollab();
+        dropFloatingSelection();
+        CollabSession.join(url, cols, rows, document, collabCanvas).whenComplete((session, error) -> {
+            if (error != null) {
+                System.out.println("Could not join " + url + ": " + error.getMessage());
+            } else {
+                // Completes on the document thread, so no local write can slip between catch-up and sharing
+                collab = session;
+                System.out.println("Sharing this sprite through " + url);
+            }
+        });
     }
 
-    // Create a new sprite editor
-    void createNewSpriteEditor(String spriteName) {
-        Stage newSpriteStage = new Stage();
-        newSpriteStage.setTitle(spriteName);
-        PixelArtEditor editor = new PixelArtEditor();
-        CANVAS_HEIGHT = 2000;
-        CANVAS_WIDTH = 2000;
-        editor.start(newSpriteStage); // Start the new editor on a new stage
+    private void leaveCollab() {
+        if (collab != null) {
+            collab.leave();
+            collab = null;
+        }
     }
 
-    // Load and display a sprite sheet from a file
-    private void loadAndDisplaySpriteSheet(File file) {
-        try {
-            clearCanvas();
-            // Load the sprite sheet with no scaling or smoothing so the sprite aesthetic doesnt get ruined
-            Image spriteSheet = new Image(new FileInputStream(file));
-            PixelReader pixelReader = spriteSheet.getPixelReader();
-
-            // Determine the size of the sprite sheet in terms of the grid
-            int spriteSheetRows = (int) spriteSheet.getHeight();
-            int spriteSheetCols = (int) spriteSheet.getWidth();
-
-            // Resize the canvas and pixel array to match the sprite sheet size
-            CANVAS_WIDTH = spriteSheetCols;
-            CANVAS_HEIGHT = spriteSheetRows;
-            ROWS = CANVAS_HEIGHT;
-            COLS = CANVAS_WIDTH;
-            pixels = new Color[ROWS][COLS];
-
-            // Update the pixel array based on the loaded image
-            for (int row = 0; row < spriteSheetRows; row++) {
-                for (int col = spriteSheetCols - 1; col >= 0; col--) {
-                    // Read the color of the pixel
-                    Color color = pixelReader.getColor(col, row);
-
-                    // Update the pixels array with the color from the sprite sheet
-                    pixels[row][col] = color;
-                    renderPixel(row, col);
+    // Writes from other editors in the session
+    private final CollabSession.Canvas collabCanvas = new CollabSession.Canvas() {
+        @Override
+        public void remoteSpan(int row, int colStart, int colEnd, int argb) {
+            if (row >= rows || colEnd >= cols) {
+                return;
+            }
+            if ((argb >>> 24) == 0) {
+                pixels.writeRow(row, colStart, checkerRow(row), colStart, colEnd - colStart + 1);
+                if (journal != null) {
+                    journal.appendSpan(row, colStart, colEnd, 0);
+                }
+            } else {
+                pixels.fillSpan(row, colStart, colEnd, argb);
+                if (journal != null) {
+                    journal.appendSpan(row, colStart, colEnd, argb);
                 }
             }
+            markDirty(row, colStart, colEnd);
+        }
 
-        } catch (FileNotFoundException e) {
-            System.out.println("error loading the sprite file :(");
+        @Override
+        public void remoteChangesApplied() {
+            flushRender();
         }
-    }
 
-    private String saveSpriteSheet(Image spriteSheet, Stage primaryStage) {
-        FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Save Sprite Sheet");
-        fileChooser.getExtensionFilters().addAll(
-                new FileChooser.ExtensionFilter("PNG Files", "*.png")
-        );
-        File file = fileChooser.showSaveDialog(primaryStage);
+        @Override
+        public void disconnected(String reason) {
+            if (collab != null) {
+                System.out.println("Left the shared session: " + reason);
+                collab = null;
+            }
+        }
+    };
 
-        if (file != null) {
+    // Offer to restore sessions left behind by a crashed editor
+    private void offerAutosaveRecovery() {
+        autosaveRecoveryOffered = true;
+        for (Path session : AutosaveJournal.findOrphanedSessions()) {
+            AutosaveJournal.Snapshot snapshot;
             try {
-                ImageIO.write(SwingFXUtils.fromFXImage(spriteSheet, null), "png", file);
-                return file.getAbsolutePath(); // Return the saved file path
+                snapshot = AutosaveJournal.recover(session);
             } catch (IOException e) {
-                System.out.println("Error saving the sprite sheet :(");
+                System.out.println("Could not read autosaved session: " + e.getMessage());
+                continue;
+            }
+            if (snapshot == null) {
+                AutosaveJournal.deleteSession(session);
+                continue;
             }
-        }
 
-        return null;
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+            alert.setTitle("Recover Sprite");
+            alert.setHeaderText("PixelSmith did not shut down properly.");
+            alert.setContentText("Recover the unsaved " + snapshot.cols() + "x" + snapshot.rows() + " sprite"
+                    + (snapshot.spritePath() != null ? " (" + snapshot.spritePath() + ")" : "") + "?");
+            Optional<ButtonType> answer = alert.showAndWait();
+            if (answer.isPresent() && answer.get() == ButtonType.OK) {
+                document.submit(() -> restoreSnapshot(session, snapshot));
+                return;
+            }
+            AutosaveJournal.deleteSession(session);
+        }
     }
 
-    private void clearCanvas() {
-        initializeGrid();
-        renderGrid();
+    // Stream the recovered session into a fresh buffer, then drop the session
+    private void restoreSnapshot(Path session, AutosaveJournal.Snapshot snapshot) {
+        PixelBuffer restored = PixelBuffer.create(snapshot.cols(), snapshot.rows());
+        try {
+            if (!AutosaveJournal.restore(session, restored)) {
+                System.out.println("The last edits before the crash could not be recovered; the sprite is back as it was"
+                        + " before its last whole-sprite change.");
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read autosaved session: " + e.getMessage());
+            return;
+        } finally {
+            AutosaveJournal.deleteSession(session);
+        }
+        rows = snapshot.rows();
+        cols = snapshot.cols();
+        canvasWidth = cols * GRID_SIZE;
+        canvasHeight = rows * GRID_SIZE;
+        pixels = restored;
+        // Erased cells are journaled as transparent
+        pixels.transformRows((row, argb, offset) -> PixelOps.restoreBackground(argb, offset, checkerRow(row), 0, cols));
+        tileMap = null;
+        currentSpriteId = snapshot.spriteId();
+        currentSpritePath = snapshot.spritePath();
     }
 
     @Override
     public void start(Stage primaryStage) {
-        initializeGrid();
+        EditorWindow.getInstance().show(primaryStage, this);
+    }
+
+    // Build the document's view (toolbar, canvas, palette) as a tab of the editor window. A new, blank document
+    // is where an unsaved sprite from a crashed session is offered back.
+    Tab createTab(Stage primaryStage, String title, boolean blank) {
+        document.submit(() -> {
+            initializeGrid();
+            pixels.markSaved(pixels.changesSinceSave()); // a blank sprite has nothing to lose
+        });
+        if (blank && !autosaveRecoveryOffered) {
+            offerAutosaveRecovery();
+        }
         BorderPane root = new BorderPane();
-        Canvas canvas = new Canvas(CANVAS_WIDTH, CANVAS_HEIGHT);
+        Canvas canvas = new Canvas(canvasWidth, canvasHeight);
+        editorCanvas = canvas;
+        previewCanvas = new Canvas(canvasWidth, canvasHeight);
+        previewCanvas.setMouseTransparent(true);
+        Group canvasLayers = new Group(canvas, previewCanvas);
         gc = canvas.getGraphicsContext2D();
-        renderGrid();
+        tileMapView = new TileMapView(gc, GRID_SIZE, this::overCheckerboard);
+        document.submit(this::renderGrid);
+        if (presenter == null) {
+            presenter = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    followView();
+                    presentFrames();
+                }
+            };
+        }
+        document.submit(this::openAutosaveJournal);
 
-        // Initialize color picker
+        // Initialize color picker; tools read the color from paintColor on the document thread
         colorPicker = new ColorPicker(Color.BLACK);
+        colorPicker.valueProperty().addListener((observable, oldValue, newValue) -> {
+            int argb = Argb.of(newValue);
+            document.submit(() -> setPaintColor(argb));
+        });
+        document.submit(() -> setPaintColor(0xFF000000));
 
         // Initialize toolbar and tools
         ToolBar toolBar = new ToolBar();
@@ -562,62 +2618,110 @@ public class PixelArtEditor extends Application {
         ToggleButton fillToolButton = new ToggleButton();
         ToggleButton squareToolButton = new ToggleButton();
         ToggleButton lineToolButton = new ToggleButton();
+        ToggleButton stampCaptureButton = new ToggleButton("Capture Brush");
+        ToggleButton selectToolButton = new ToggleButton("Select");
+        ToggleButton tileToolButton = new ToggleButton("Tiles");
         Button saveProgressButton = new Button();
 
-        SquareTool squareTool = new SquareTool();
+        ShapeTool squareTool = new ShapeTool();
+        ChoiceBox<ShapeKind> shapeChoice = new ChoiceBox<>(FXCollections.observableArrayList(ShapeKind.values()));
+        shapeChoice.setValue(ShapeKind.RECTANGLE);
+        shapeChoice.valueProperty().addListener((observable, oldValue, newValue) -> {
+            squareToolButton.setSelected(true);
+            document.submit(() -> {
+                squareTool.setKind(newValue);
+                selectTool(squareTool);
+            });
+        });
+
+        ChoiceBox<BrushStamp.Shape> brushChoice = new ChoiceBox<>(FXCollections.observableArrayList(BrushStamp.Shape.values()));
+        brushChoice.setValue(BrushStamp.Shape.SQUARE);
+        document.submit(() -> setBrushShape(BrushStamp.Shape.SQUARE));
+        brushChoice.valueProperty().addListener((observable, oldValue, newValue) -> document.submit(() -> setBrushShape(newValue)));
+        SelectTool selectTool = new SelectTool();
+        ChoiceBox<SelectionMode> selectionChoice = new ChoiceBox<>(FXCollections.observableArrayList(SelectionMode.values()));
+        selectionChoice.setValue(SelectionMode.RECTANGLE);
+        selectionChoice.valueProperty().addListener((observable, oldValue, newValue) -> {
+            selectToolButton.setSelected(true);
+            document.submit(() -> {
+                selectTool.setMode(newValue);
+                selectTool(selectTool);
+            });
+        });
+
+        TileTool tileTool = new TileTool();
+        ChoiceBox<TileAction> tileActionChoice = new ChoiceBox<>(FXCollections.observableArrayList(TileAction.values()));
+        tileActionChoice.setValue(TileAction.PICK);
+        tileActionChoice.valueProperty().addListener((observable, oldValue, newValue) -> {
+            tileToolButton.setSelected(true);
+            document.submit(() -> {
+                tileTool.setAction(newValue);
+                selectTool(tileTool);
+            });
+        });
+
+        // Called on the document thread once a tip has been captured
+        StampCaptureTool stampCaptureTool = new StampCaptureTool(() -> {
+            // Paint with the captured tip straight away
+            brushShape = BrushStamp.Shape.CUSTOM;
+            selectTool(new PenTool());
+            Platform.runLater(() -> {
+                brushChoice.setValue(BrushStamp.Shape.CUSTOM);
+                penToolButton.setSelected(true);
+            });
+        });
 
         penToolButton.setToggleGroup(toolsGroup);
         eraserToolButton.setToggleGroup(toolsGroup);
         fillToolButton.setToggleGroup(toolsGroup);
         squareToolButton.setToggleGroup(toolsGroup);
         saveProgressButton.setOnAction(e -> saveCurrentSprite(primaryStage));
+        Button historyButton = new Button("History");
+        historyButton.setOnAction(e -> historyCommand());
 
         penToolButton.setSelected(true); // Pen tool is selected by default
-        currentTool = new PenTool(); // Default tool
+        document.submit(() -> selectTool(new PenTool())); // Default tool
 
-        penToolButton.setOnAction(e -> currentTool = new PenTool());
-        eraserToolButton.setOnAction(e -> currentTool = new EraserTool());
-        fillToolButton.setOnAction(e -> currentTool = new FillTool());
-        squareToolButton.setOnAction(e -> currentTool = squareTool);
+        toolsGroup.selectedToggleProperty().addListener((observable, oldValue, newValue) -> document.submit(this::clearPreview));
+        penToolButton.setOnAction(e -> document.submit(() -> selectTool(new PenTool())));
+        eraserToolButton.setOnAction(e -> document.submit(() -> selectTool(new EraserTool())));
+        fillToolButton.setOnAction(e -> document.submit(() -> selectTool(new FillTool())));
+        squareToolButton.setOnAction(e -> document.submit(() -> selectTool(squareTool)));
 
         lineToolButton.setToggleGroup(toolsGroup);
-        lineToolButton.setOnAction(e -> currentTool = new LineTool());
+        lineToolButton.setOnAction(e -> document.submit(() -> selectTool(new LineTool())));
+        stampCaptureButton.setToggleGroup(toolsGroup);
+        stampCaptureButton.setOnAction(e -> document.submit(() -> selectTool(stampCaptureTool)));
+        selectToolButton.setToggleGroup(toolsGroup);
+        selectToolButton.setOnAction(e -> document.submit(() -> selectTool(selectTool)));
+        tileToolButton.setToggleGroup(toolsGroup);
+        tileToolButton.setOnAction(e -> document.submit(() -> selectTool(tileTool)));
 
-        root.setCenter(canvas);
+        root.setCenter(canvasLayers);
 
         //clear button
         Button clearCanvasButton = new Button();
-        clearCanvasButton.setOnAction(e -> clearCanvas());
-
-        canvas.setOnMouseClicked(e -> {
-            if (e.isPrimaryButtonDown()) {
-                applyTool(e.getX(), e.getY());
-            }
-        });
+        clearCanvasButton.setOnAction(e -> document.submit(this::clearCanvas));
 
-        canvas.setOnMouseDragged(e -> {
-            if (e.isPrimaryButtonDown()) {
-                applyTool(e.getX(), e.getY());
-            }
-        });
-
-        canvas.setOnMousePressed(e -> {
-            if (currentTool instanceof SquareTool) {
-                squareTool.onMousePressed((int) e.getY() / GRID_SIZE, (int) e.getX() / GRID_SIZE);
-            } else {
-                applyTool(e.getX(), e.getY());
-            }
+        canvas.setOnMouseReleased(e -> {
+            int row = (int) e.getY() / GRID_SIZE, col = (int) e.getX() / GRID_SIZE;
+            document.submit(() -> releaseAt(row, col));
         });
 
-        canvas.setOnMouseReleased(e -> {
-            if (currentTool instanceof SquareTool) {
-                squareTool.onMouseReleased((int) e.getY() / GRID_SIZE, (int) e.getX() / GRID_SIZE);
-            }
+        canvas.setOnMouseMoved(e -> {
+            int row = (int) e.getY() / GRID_SIZE, col = (int) e.getX() / GRID_SIZE;
+            // Hover previews can be slow (a fill floods its region), so moves that are already stale are skipped
+            int request = ++hoverRequests;
+            document.submit(() -> {
+                if (request == hoverRequests) {
+                    hoverAt(row, col);
+                }
+            });
         });
 
         Button createSpriteButton = new Button();
         createSpriteButton.setOnAction(e -> {
-            createNewSpriteEditor("new sprite");
+            EditorWindow.getInstance().newSprite("New Sprite");
         });
 
         Slider sizeSlider = new Slider(0, toolSizes.length - 1, 0);
@@ -627,14 +2731,23 @@ public class PixelArtEditor extends Application {
         sizeSlider.setShowTickMarks(true);
         sizeSlider.setMinorTickCount(0);
         sizeSlider.setBlockIncrement(1);
+        // The slider steps through toolSizes; label the ticks with the sizes themselves
+        sizeSlider.setLabelFormatter(new StringConverter<>() {
+            @Override
+            public String toString(Double index) {
+                return String.valueOf(toolSizes[index.intValue()]);
+            }
 
-        sizeSlider.valueProperty().addListener((observable, oldValue, newValue) -> {
-            int sizeIndex = newValue.intValue();
-            int selectedSize = toolSizes[sizeIndex];
-            if (currentTool instanceof PenTool || currentTool instanceof EraserTool) {
-                currentTool.setToolSize(selectedSize);
+            @Override
+            public Double fromString(String size) {
+                return 0.0;
             }
         });
+
+        sizeSlider.valueProperty().addListener((observable, oldValue, newValue) -> {
+            int size = toolSizes[newValue.intValue()];
+            document.submit(() -> setToolSize(size));
+        });
         // Add size controls to the toolbar
         Label sizeLabel = new Label("Tool Size:");
 
@@ -643,7 +2756,7 @@ public class PixelArtEditor extends Application {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Open Sprite Sheet");
             fileChooser.getExtensionFilters().addAll(
-                    new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.gif")
+                    new FileChooser.ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg", "*.gif")
             );
             File selectedFile = fileChooser.showOpenDialog(primaryStage);
             if (selectedFile != null) {
@@ -659,43 +2772,132 @@ public class PixelArtEditor extends Application {
                 zoomFactor = 1 / zoomFactor;
             }
 
-            canvas.setScaleX(canvas.getScaleX() * zoomFactor);
-            canvas.setScaleY(canvas.getScaleY() * zoomFactor);
+            canvasLayers.setScaleX(canvasLayers.getScaleX() * zoomFactor);
+            canvasLayers.setScaleY(canvasLayers.getScaleY() * zoomFactor);
 
             // Adjust the position of the canvas to center the zoom on the cursor
             double mouseX = event.getX();
             double mouseY = event.getY();
 
-            double adjustX = (zoomFactor - 1) * (canvas.getTranslateX() - mouseX);
-            double adjustY = (zoomFactor - 1) * (canvas.getTranslateY() - mouseY);
+            double adjustX = (zoomFactor - 1) * (canvasLayers.getTranslateX() - mouseX);
+            double adjustY = (zoomFactor - 1) * (canvasLayers.getTranslateY() - mouseY);
 
-            canvas.setTranslateX(canvas.getTranslateX() - adjustX);
-            canvas.setTranslateY(canvas.getTranslateY() - adjustY);
+            canvasLayers.setTranslateX(canvasLayers.getTranslateX() - adjustX);
+            canvasLayers.setTranslateY(canvasLayers.getTranslateY() - adjustY);
 
             event.consume();
         });
 
         Button exportButton = new Button();
         exportButton.setOnAction(e -> {
-            Image spriteSheet = renderSpriteSheet();
+            Image spriteSheet = documentImage().toImage();
             String savedPath = saveSpriteSheet(spriteSheet, primaryStage);
             if (savedPath != null) {
                 System.out.println("Saved Sprite Sheet at: " + savedPath);
             }
         });
 
+        MenuButton adjustMenu = new MenuButton("Adjust");
+        MenuItem replaceColorItem = new MenuItem("Replace Color...");
+        replaceColorItem.setOnAction(e -> replaceColorCommand());
+        MenuItem hsbItem = new MenuItem("Hue / Saturation / Brightness...");
+        hsbItem.setOnAction(e -> adjustHsbCommand());
+        MenuItem invertItem = new MenuItem("Invert Colors");
+        invertItem.setOnAction(e -> invertCommand());
+        MenuItem thresholdItem = new MenuItem("Alpha Threshold...");
+        thresholdItem.setOnAction(e -> alphaThresholdCommand());
+        MenuItem paletteItem = new MenuItem("Remap to Palette...");
+        paletteItem.setOnAction(e -> remapToPaletteCommand(primaryStage));
+        MenuItem blendItem = new MenuItem("Blend Color...");
+        blendItem.setOnAction(e -> blendColorCommand());
+        adjustMenu.getItems().addAll(replaceColorItem, hsbItem, invertItem, thresholdItem, paletteItem, blendItem);
+
+        MenuButton transformMenu = new MenuButton("Transform");
+        MenuItem scaleItem = new MenuItem("Scale (Nearest)...");
+        scaleItem.setOnAction(e -> scaleNearestCommand());
+        MenuItem scale2xItem = new MenuItem("Scale2x (EPX)");
+        scale2xItem.setOnAction(e -> document.submit(() -> transformDocument(cols * 2L, rows * 2L, SpriteTransforms::scale2x)));
+        MenuItem scale3xItem = new MenuItem("Scale3x");
+        scale3xItem.setOnAction(e -> document.submit(() -> transformDocument(cols * 3L, rows * 3L, SpriteTransforms::scale3x)));
+        MenuItem rotateItem = new MenuItem("Rotate...");
+        rotateItem.setOnAction(e -> rotateCommand());
+        MenuItem rotateClockwiseItem = new MenuItem("Rotate 90\u00B0 Clockwise");
+        rotateClockwiseItem.setOnAction(e -> document.submit(() -> transformDocument(rows, cols, SpriteTransforms::rotate90)));
+        MenuItem rotateCounterItem = new MenuItem("Rotate 90\u00B0 Counter-clockwise");
+        rotateCounterItem.setOnAction(e -> document.submit(() -> transformDocument(rows, cols, raster -> SpriteTransforms.rotate(raster, 270))));
+        MenuItem flipHorizontalItem = new MenuItem("Flip Horizontal");
+        flipHorizontalItem.setOnAction(e -> document.submit(() -> transformDocument(cols, rows, SpriteTransforms::flipHorizontal)));
+        MenuItem flipVerticalItem = new MenuItem("Flip Vertical");
+        flipVerticalItem.setOnAction(e -> document.submit(() -> transformDocument(cols, rows, SpriteTransforms::flipVertical)));
+        MenuItem canvasSizeItem = new MenuItem("Canvas Size...");
+        canvasSizeItem.setOnAction(e -> canvasSizeCommand());
+        MenuItem cropItem = new MenuItem("Crop to Selection");
+        cropItem.setOnAction(e -> document.submit(this::cropToSelectionCommand));
+        transformMenu.getItems().addAll(scaleItem, scale2xItem, scale3xItem, new SeparatorMenuItem(), rotateItem, rotateClockwiseItem,
+                rotateCounterItem, flipHorizontalItem, flipVerticalItem, new SeparatorMenuItem(), canvasSizeItem, cropItem);
+
+        MenuButton collabMenu = new MenuButton("Collaborate");
+        MenuItem joinItem = new MenuItem("Join Session...");
+        joinItem.setOnAction(e -> joinCollabCommand());
+        MenuItem leaveItem = new MenuItem("Leave Session");
+        leaveItem.setOnAction(e -> document.submit(this::leaveCollab));
+        collabMenu.getItems().addAll(joinItem, leaveItem);
+
+        MenuButton recordMenu = new MenuButton("Record");
+        MenuItem startRecordingItem = new MenuItem("Start Recording");
+        startRecordingItem.setOnAction(e -> document.submit(this::startRecording));
+        MenuItem stopRecordingItem = new MenuItem("Stop Recording");
+        stopRecordingItem.setOnAction(e -> document.submit(this::stopRecording));
+        recordMenu.getItems().addAll(startRecordingItem, stopRecordingItem);
+
+        MenuButton tilemapMenu = new MenuButton("Tilemap");
+        MenuItem convertTilemapItem = new MenuItem("Convert to Tilemap");
+        convertTilemapItem.setOnAction(e -> document.submit(this::convertToTilemap));
+        MenuItem flattenTilemapItem = new MenuItem("Back to Pixels");
+        flattenTilemapItem.setOnAction(e -> document.submit(this::flattenTilemap));
+        tilemapMenu.getItems().addAll(convertTilemapItem, flattenTilemapItem);
+
         //eyedropper tool
         ToggleButton eyeDropperToolButton = new ToggleButton();
         eyeDropperToolButton.setToggleGroup(toolsGroup);
-        eyeDropperToolButton.setOnAction(e -> currentTool = new EyeDropperTool());
+        eyeDropperToolButton.setOnAction(e -> document.submit(() -> selectTool(new EyeDropperTool())));
 
         // Add the tools to the toolbar
-        toolBar.getItems().addAll(penToolButton, eraserToolButton, fillToolButton, eyeDropperToolButton, colorPicker, sizeLabel, sizeSlider, squareToolButton,
-                lineToolButton, createSpriteButton, importSpriteButton, exportButton, saveProgressButton, clearCanvasButton);
+        toolBar.getItems().addAll(penToolButton, eraserToolButton, fillToolButton, eyeDropperToolButton, colorPicker, sizeLabel, sizeSlider, brushChoice, stampCaptureButton,
+                squareToolButton, shapeChoice, lineToolButton, selectToolButton, selectionChoice, tileToolButton, tileActionChoice, createSpriteButton, importSpriteButton, exportButton, saveProgressButton, historyButton, clearCanvasButton, adjustMenu, transformMenu, tilemapMenu, collabMenu, recordMenu);
 
         root.setTop(toolBar);
 
-        Scene scene = new Scene(root, CANVAS_WIDTH + 100, CANVAS_HEIGHT);
+        palettePanel = new FlowPane(2, 2);
+        palettePanel.setPrefWrapLength(4 * 18);
+        ScrollPane paletteScroll = new ScrollPane(palettePanel);
+        paletteScroll.setFitToWidth(true);
+        root.setRight(paletteScroll);
+        document.submit(() -> {
+            palettePixels = null; // a fresh panel needs the palette published again
+            refreshPalettePanel();
+        });
+
+        shortcuts.put(new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN), () -> document.submit(this::copyToClipboard));
+        shortcuts.put(new KeyCodeCombination(KeyCode.X, KeyCombination.SHORTCUT_DOWN), () -> document.submit(() -> {
+            copyToClipboard();
+            deleteSelectionCommand();
+        }));
+        shortcuts.put(new KeyCodeCombination(KeyCode.V, KeyCombination.SHORTCUT_DOWN), () -> {
+            Clipboard clipboard = Clipboard.getSystemClipboard();
+            if (clipboard.hasImage()) {
+                Raster pasted = Raster.fromImage(clipboard.getImage());
+                // Switch to the select tool so the pasted pixels can be dragged into place
+                selectToolButton.setSelected(true);
+                document.submit(() -> {
+                    paste(pasted);
+                    selectTool(selectTool);
+                });
+            }
+        });
+        shortcuts.put(new KeyCodeCombination(KeyCode.DELETE), () -> document.submit(this::deleteSelectionCommand));
+        shortcuts.put(new KeyCodeCombination(KeyCode.ENTER), () -> document.submit(this::dropSelectionCommand));
+        shortcuts.put(new KeyCodeCombination(KeyCode.ESCAPE), () -> document.submit(this::deselectCommand));
         final double[] lastKnownPosition = new double[2];
 
         canvas.setOnMousePressed(e -> {
@@ -703,10 +2905,9 @@ public class PixelArtEditor extends Application {
                 // Record the last position when the right mouse button is pressed
                 lastKnownPosition[0] = e.getSceneX();
                 lastKnownPosition[1] = e.getSceneY();
-            } else if (currentTool instanceof SquareTool) {
-                squareTool.onMousePressed((int) e.getY() / GRID_SIZE, (int) e.getX() / GRID_SIZE);
             } else {
-                applyTool(e.getX(), e.getY());
+                int row = (int) e.getY() / GRID_SIZE, col = (int) e.getX() / GRID_SIZE, clickCount = e.getClickCount();
+                document.submit(() -> pressAt(row, col, clickCount));
             }
         });
 
@@ -721,15 +2922,15 @@ public class PixelArtEditor extends Application {
                 lastKnownPosition[1] = e.getSceneY();
 
                 // Apply the translation to the canvas
-                canvas.setTranslateX(canvas.getTranslateX() + deltaX);
-                canvas.setTranslateY(canvas.getTranslateY() + deltaY);
+                canvasLayers.setTranslateX(canvasLayers.getTranslateX() + deltaX);
+                canvasLayers.setTranslateY(canvasLayers.getTranslateY() + deltaY);
             } else {
-                applyTool(e.getX(), e.getY());
+                int row = (int) e.getY() / GRID_SIZE, col = (int) e.getX() / GRID_SIZE;
+                document.submit(() -> dragAt(row, col));
             }
         });
 
-        //styling for all buttons
-        scene.getStylesheets().add("dark-theme.css");
+        //styling for all buttons; the window loads the theme
         penToolButton.getStyleClass().add("pen-tool-button");
         eraserToolButton.getStyleClass().add("ear-tool-button");
         fillToolButton.getStyleClass().add("fill-tool-button");
@@ -742,36 +2943,18 @@ public class PixelArtEditor extends Application {
         saveProgressButton.getStyleClass().add("save");
         clearCanvasButton.getStyleClass().add("clear");
 
-        primaryStage.setTitle("Pixel Art Editor");
-        primaryStage.setScene(scene);
-        primaryStage.show();
-        primaryStage.setWidth(800); // Set the width to 800 pixels
-        primaryStage.setHeight(600);
-        primaryStage.centerOnScreen(); // Center the stage on the screen
-        Image applicationIcon = new Image("icon.png");
-        primaryStage.getIcons().add(applicationIcon);
-//      primaryStage.setFullScreen(true);
-//        primaryStage.fullScreenProperty().addListener((observable, wasFullScreen, isNowFullScreen) -> {
-//            if (wasFullScreen) {
-//                primaryStage.setWidth(800); // Set the width to 800 pixels
-//                primaryStage.setHeight(600); // Set the height to 600 pixels
-//                primaryStage.centerOnScreen(); // Center the stage on the screen
-//            }
-//        });
-        primaryStage.show();
-    }
-
-    private void applyTool(double x, double y) {
-        int col = (int) x / GRID_SIZE;
-        int row = (int) y / GRID_SIZE;
-
-        if (col >= 0 && col < COLS && row >= 0 && row < ROWS) {
+        tab = new Tab(title, root);
+        return tab;
+    }
+
+    private void applyTool(int row, int col) {
+        if (col >= 0 && col < cols && row >= 0 && row < rows) {
             currentTool.apply(row, col);
+            flushRender();
         }
     }
 
     public static void main(String[] args) {
-        instance = new PixelArtEditor();
         launch(args);
     }
 }
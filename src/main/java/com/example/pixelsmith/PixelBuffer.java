@@ -0,0 +1,476 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Canvas pixel storage: packed ARGB ints addressed by (row, col), kept in a PixelStore on or off the heap.
+// Every write also updates a ColorIndex, so colour counts and "where is this colour" never need a full scan.
+// A buffer over a TileMap (see instanced) counts the tileset instead, so writes cost the same however many
+// times the written tile is placed.
+final class PixelBuffer {
+    private final int width;
+    private final int height;
+    private final PixelStore store;
+    private final TileMap tileMap; // null unless the cells are instances of shared tiles
+    private final int[] line; // scratch row for reading back what a write replaces
+    private final ColorIndex index;
+    private final int tilesAcross;
+    private final long[] tileStamps; // the write count when each tile was last written
+    private long[] sharedStamps; // tilemap only: the write count when each shared tile was last written
+    private long writes;
+    private long[] savedChecksums; // each tile's checksum at the last save, null if never saved
+    private long savedStamp;
+
+    interface RowTransform {
+        // Rewrite one row in place: argb[offset] .. argb[offset + width - 1]
+        void apply(int row, int[] argb, int offset);
+    }
+
+    interface SpanTransform {
+        // Rewrite part of one row in place: argb[offset] .. argb[offset + length - 1] hold the cells from col on
+        void apply(int row, int col, int[] argb, int offset, int length);
+    }
+
+    private PixelBuffer(int width, int height) {
+        this(width, height, PixelStore.allocate(width, height), null, new ColorIndex(width, height));
+    }
+
+    private PixelBuffer(int width, int height, PixelStore store, TileMap tileMap, ColorIndex index) {
+        this.width = width;
+        this.height = height;
+        this.store = store;
+        this.tileMap = tileMap;
+        this.line = new int[width];
+        this.index = index;
+        this.tilesAcross = (width + ColorIndex.TILE_SIZE - 1) / ColorIndex.TILE_SIZE;
+        this.tileStamps = new long[tilesAcross * ((height + ColorIndex.TILE_SIZE - 1) / ColorIndex.TILE_SIZE)];
+    }
+
+    static PixelBuffer create(int width, int height) {
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        for (int row = 0; row < height; row++) {
+            buffer.index.add(row, 0, 0, width);
+        }
+        return buffer;
+    }
+
+    static PixelBuffer copyOf(Raster raster) {
+        PixelBuffer buffer = new PixelBuffer(raster.width(), raster.height());
+        for (int row = 0; row < raster.height(); row++) {
+            buffer.store.write(row, 0, raster.argb(), row * raster.width(), raster.width());
+            buffer.index.add(row, 0, raster.argb(), row * raster.width(), raster.width());
+        }
+        return buffer;
+    }
+
+    // A buffer whose cells are read and written through a tilemap. Its tiles are the map cells, so dirty
+    // tracking and saving work as before, but the colour index covers the tileset: an index tile is a tile
+    // of the set, and each placed tile is counted once however often it appears.
+    static PixelBuffer instanced(TileMap tileMap) {
+        // A tile is only ever split off a tile placed twice, so the set never outgrows the map
+        ColorIndex index = new ColorIndex(Math.max(tileMap.cellCount(), tileMap.tileCount()) * ColorIndex.TILE_SIZE, ColorIndex.TILE_SIZE);
+        PixelBuffer buffer = new PixelBuffer(tileMap.width(), tileMap.height(), tileMap, tileMap, index);
+        buffer.sharedStamps = new long[buffer.tileStamps.length];
+        for (int tile = 0; tile < tileMap.tileCount(); tile++) {
+            if (tileMap.instanceCount(tile) > 0) {
+                buffer.indexTile(tile, true);
+            }
+        }
+        return buffer;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int get(int row, int col) {
+        return store.get(row, col);
+    }
+
+    void set(int row, int col, int argb) {
+        if (tileMap != null) {
+            setShared(row, col, argb);
+            return;
+        }
+        index.remove(store.get(row, col), 1);
+        store.set(row, col, argb);
+        index.add(row, col, argb, 1);
+        touch(row, col, col);
+    }
+
+    // Fill columns colStart..colEnd (inclusive) of one row
+    void fillSpan(int row, int colStart, int colEnd, int argb) {
+        if (tileMap != null) {
+            for (int col = colStart; col <= colEnd; col++) {
+                setShared(row, col, argb);
+            }
+            return;
+        }
+        int length = colEnd - colStart + 1;
+        store.read(row, colStart, line, 0, length);
+        index.remove(line, 0, length);
+        store.fill(row, colStart, colEnd, argb);
+        index.add(row, colStart, argb, length);
+        touch(row, colStart, colEnd);
+    }
+
+    void readRow(int row, int col, int[] dst, int dstOffset, int length) {
+        store.read(row, col, dst, dstOffset, length);
+    }
+
+    void writeRow(int row, int col, int[] src, int srcOffset, int length) {
+        if (tileMap != null) {
+            for (int i = 0; i < length; i++) {
+                setShared(row, col + i, src[srcOffset + i]);
+            }
+            return;
+        }
+        store.read(row, col, line, 0, length);
+        index.remove(line, 0, length);
+        store.write(row, col, src, srcOffset, length);
+        index.add(row, col, src, srcOffset, length);
+        touch(row, col, col + length - 1);
+    }
+
+    // Run a bulk operation over every row, in place
+    void transformRows(RowTransform transform) {
+        if (tileMap != null) {
+            transformSharedRows(transform);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            store.read(row, 0, line, 0, width);
+            index.remove(line, 0, width);
+            transform.apply(row, line, 0);
+            index.add(row, 0, line, 0, width);
+            store.write(row, 0, line, 0, width);
+        }
+        writes++;
+        Arrays.fill(tileStamps, writes);
+    }
+
+    // Run an operation over only the tiles holding the colour, a tile row at a time; the rest is never read
+    void transformTilesWith(int argb, SpanTransform transform) {
+        if (tileMap != null) {
+            // Through one instance of each tile that may hold the colour; the others follow
+            forEachSharedTile(argb, tile -> {
+                int cell = wholeInstance(tile);
+                int top = tileMap.cellTop(cell), left = tileMap.cellLeft(cell);
+                int length = Math.min(left + ColorIndex.TILE_SIZE, width) - left;
+                int[] before = new int[length];
+                for (int row = top; row < Math.min(top + ColorIndex.TILE_SIZE, height); row++) {
+                    store.read(row, left, line, 0, length);
+                    System.arraycopy(line, 0, before, 0, length);
+                    transform.apply(row, left, line, 0, length);
+                    for (int i = 0; i < length; i++) {
+                        if (line[i] != before[i]) {
+                            setShared(row, left + i, line[i]);
+                        }
+                    }
+                }
+            });
+            return;
+        }
+        index.forEachTile(argb, tile -> {
+            if (!tileHolds(tile, argb)) {
+                index.forget(argb, tile);
+                return;
+            }
+            int top = tileTop(tile), left = tileLeft(tile);
+            int length = Math.min(left + ColorIndex.TILE_SIZE, width) - left;
+            for (int row = top; row < Math.min(top + ColorIndex.TILE_SIZE, height); row++) {
+                store.read(row, left, line, 0, length);
+                index.remove(line, 0, length);
+                transform.apply(row, left, line, 0, length);
+                index.add(row, left, line, 0, length);
+                store.write(row, left, line, 0, length);
+            }
+            tileStamps[tile] = ++writes;
+        });
+    }
+
+    // Every run of cells holding the colour, found by scanning only the tiles that may have it
+    void findColor(int argb, ShapeRasterizer.SpanSink sink) {
+        if (tileMap != null) {
+            // Every instance of each tile that may hold it: a flip can move the colour onto other cells
+            forEachSharedTile(argb, tile -> {
+                for (int cell : tileMap.instances(tile)) {
+                    findInTile(tileMap.cellTop(cell), tileMap.cellLeft(cell), argb, sink);
+                }
+            });
+            return;
+        }
+        index.forEachTile(argb, tile -> {
+            if (!findInTile(tileTop(tile), tileLeft(tile), argb, sink)) {
+                index.forget(argb, tile);
+            }
+        });
+    }
+
+    private boolean findInTile(int top, int left, int argb, ShapeRasterizer.SpanSink sink) {
+        int right = Math.min(left + ColorIndex.TILE_SIZE, width);
+        boolean found = false;
+        for (int row = top; row < Math.min(top + ColorIndex.TILE_SIZE, height); row++) {
+            store.read(row, left, line, 0, right - left);
+            for (int i = 0; i < right - left; i++) {
+                if (line[i] != argb) {
+                    continue;
+                }
+                int start = i;
+                while (i + 1 < right - left && line[i + 1] == argb) {
+                    i++;
+                }
+                sink.span(row, left + start, left + i);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    // Show a tile (tile << 3 | flags, as TileMap entries) in a map cell
+    void placeTile(int cell, int entry) {
+        int previous = tileMap.place(cell, entry >>> 3, entry & 7);
+        if (previous >>> 3 != entry >>> 3) {
+            if (tileMap.instanceCount(previous >>> 3) == 0) {
+                indexTile(previous >>> 3, false); // no longer part of the document
+            }
+            if (tileMap.instanceCount(entry >>> 3) == 1) {
+                indexTile(entry >>> 3, true);
+            }
+        }
+        tileStamps[cell] = ++writes;
+    }
+
+    // Give a map cell a tile of its own, so edits there stop reaching the other instances
+    void makeUnique(int cell) {
+        int entry = tileMap.entry(cell);
+        if (tileMap.instanceCount(entry >>> 3) > 1) {
+            placeTile(cell, tileMap.duplicate(entry >>> 3) << 3 | entry & 7);
+        }
+    }
+
+    long colorCount(int argb) {
+        return index.count(argb);
+    }
+
+    // Every colour in the buffer with its cell count
+    Map<Integer, Long> colorCounts() {
+        return index.counts();
+    }
+
+    // Changes whenever a colour appears in or disappears from the buffer
+    int colorsVersion() {
+        return index.version();
+    }
+
+    // Increases with every write; compare with tileStamp to see whether a tile changed since
+    long writeStamp() {
+        return writes;
+    }
+
+    long tileStamp(int tile) {
+        if (tileMap != null) {
+            // A cell also changes whenever its shared tile is written through another instance
+            return Math.max(tileStamps[tile], sharedStamps[tileMap.entry(tile) >>> 3]);
+        }
+        return tileStamps[tile];
+    }
+
+    int tileOf(int row, int col) {
+        return row / ColorIndex.TILE_SIZE * tilesAcross + col / ColorIndex.TILE_SIZE;
+    }
+
+    int tileCount() {
+        return tileStamps.length;
+    }
+
+    // The tiles that differ from the last save; every tile if the buffer was never saved. Only tiles written
+    // since the save are checksummed, so checking a document that was barely touched is cheap.
+    DirtyTiles changesSinceSave() {
+        BitSet changed = new BitSet(tileStamps.length);
+        long[] checksums = new long[16];
+        int count = 0;
+        for (int tile = 0; tile < tileStamps.length; tile++) {
+            if (savedChecksums != null && tileStamp(tile) <= savedStamp) {
+                continue;
+            }
+            long checksum = tileChecksum(tile);
+            if (savedChecksums == null || checksum != savedChecksums[tile]) {
+                changed.set(tile);
+                if (count == checksums.length) {
+                    checksums = Arrays.copyOf(checksums, count * 2);
+                }
+                checksums[count++] = checksum;
+            }
+        }
+        return new DirtyTiles(this, writes, changed, Arrays.copyOf(checksums, count), tilesAcross);
+    }
+
+    // Record a snapshot from changesSinceSave as written; tiles written after it was taken stay dirty
+    void markSaved(DirtyTiles saved) {
+        if (saved.buffer != this) {
+            return;
+        }
+        if (savedChecksums == null) {
+            if (saved.count() != tileStamps.length) {
+                return; // only a full snapshot can be the first save
+            }
+            savedChecksums = new long[tileStamps.length];
+        }
+        for (int tile = saved.tiles.nextSetBit(0), i = 0; tile >= 0; tile = saved.tiles.nextSetBit(tile + 1), i++) {
+            savedChecksums[tile] = saved.checksums[i];
+        }
+        savedStamp = Math.max(savedStamp, saved.stamp);
+    }
+
+    // Take over the last save of a buffer holding the same cells in another form, such as the tilemap a
+    // document was converted to, so the conversion alone does not leave it unsaved
+    void inheritSave(PixelBuffer from) {
+        if (from.width == width && from.height == height && from.savedChecksums != null) {
+            savedChecksums = from.savedChecksums.clone();
+            savedStamp = -1; // every tile is compared with its saved checksum
+        }
+    }
+
+    private long tileChecksum(int tile) {
+        int top = tileTop(tile), left = tileLeft(tile);
+        int length = Math.min(left + ColorIndex.TILE_SIZE, width) - left;
+        long hash = 0x9E3779B97F4A7C15L;
+        for (int row = top; row < Math.min(top + ColorIndex.TILE_SIZE, height); row++) {
+            store.read(row, left, line, 0, length);
+            for (int i = 0; i < length; i++) {
+                hash = (hash ^ line[i]) * 0x100000001B3L;
+                hash ^= hash >>> 29;
+            }
+        }
+        return hash;
+    }
+
+    // Write one cell of a tilemap; the index counts the tile pixel it lands on
+    private void setShared(int row, int col, int argb) {
+        index.remove(tileMap.canonicalAt(row, col), 1);
+        store.set(row, col, argb);
+        int tile = tileMap.tileAt(row, col);
+        index.add(0, tile * ColorIndex.TILE_SIZE, tileMap.canonicalAt(row, col), 1);
+        touch(row, col, col);
+        sharedStamps[tile] = writes;
+    }
+
+    // Add a tile's pixels to the index, or take them out
+    private void indexTile(int tile, boolean add) {
+        for (int pixel = 0; pixel < ColorIndex.TILE_SIZE * ColorIndex.TILE_SIZE; pixel++) {
+            if (add) {
+                index.add(0, tile * ColorIndex.TILE_SIZE, tileMap.canonicalPixel(tile, pixel), 1);
+            } else {
+                index.remove(tileMap.canonicalPixel(tile, pixel), 1);
+            }
+        }
+    }
+
+    // Shared tiles placed somewhere that may hold the colour; either background colour may show wherever the
+    // other is indexed, since flipping an instance changes which checks its transparent pixels fall on
+    private void forEachSharedTile(int argb, ColorIndex.TileSink sink) {
+        BitSet tiles = new BitSet();
+        int[] checks = tileMap.backgroundColors();
+        if (argb == checks[0] || argb == checks[1]) {
+            index.forEachTile(checks[0], tiles::set);
+            index.forEachTile(checks[1], tiles::set);
+        } else {
+            index.forEachTile(argb, tiles::set);
+        }
+        for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+            if (tile < tileMap.tileCount() && tileMap.instanceCount(tile) > 0) {
+                sink.tile(tile);
+            }
+        }
+    }
+
+    // Run a whole-document operation over a tilemap. Every row is transformed first, then each tile pixel is
+    // written back from the first instance the operation changed it in, so a tile is changed once however often
+    // it is placed, and an operation limited to a selection still reaches the tiles inside it.
+    private void transformSharedRows(RowTransform transform) {
+        int pixels = ColorIndex.TILE_SIZE * ColorIndex.TILE_SIZE;
+        Map<Integer, int[]> values = new HashMap<>(); // new values of changed tiles, by tile and pixel
+        Map<Integer, int[]> from = new HashMap<>(); // the cell each came from, as row * width + col, plus one
+        int[] before = new int[width];
+        for (int row = 0; row < height; row++) {
+            store.read(row, 0, line, 0, width);
+            System.arraycopy(line, 0, before, 0, width);
+            transform.apply(row, line, 0);
+            for (int col = 0; col < width; col++) {
+                if (line[col] == before[col]) {
+                    continue;
+                }
+                int entry = tileMap.entry(tileMap.cellAt(row, col));
+                int pixel = TileMap.sourcePixel(entry & 7, (row % ColorIndex.TILE_SIZE) * ColorIndex.TILE_SIZE + col % ColorIndex.TILE_SIZE);
+                int[] source = from.computeIfAbsent(entry >>> 3, tile -> new int[pixels]);
+                if (source[pixel] == 0) {
+                    source[pixel] = row * width + col + 1;
+                    values.computeIfAbsent(entry >>> 3, tile -> new int[pixels])[pixel] = line[col];
+                }
+            }
+        }
+        from.forEach((tile, source) -> {
+            int[] tileValues = values.get(tile);
+            for (int pixel = 0; pixel < pixels; pixel++) {
+                if (source[pixel] != 0) {
+                    setShared((source[pixel] - 1) / width, (source[pixel] - 1) % width, tileValues[pixel]);
+                }
+            }
+        });
+    }
+
+    // An instance of a tile lying wholly inside the buffer if there is one, so all of the tile can be reached
+    private int wholeInstance(int tile) {
+        int[] cells = tileMap.instances(tile);
+        for (int cell : cells) {
+            if (tileMap.cellTop(cell) + ColorIndex.TILE_SIZE <= height && tileMap.cellLeft(cell) + ColorIndex.TILE_SIZE <= width) {
+                return cell;
+            }
+        }
+        return cells[0];
+    }
+
+    private void touch(int row, int colStart, int colEnd) {
+        writes++;
+        for (int tile = tileOf(row, colStart), last = tileOf(row, colEnd); tile <= last; tile++) {
+            tileStamps[tile] = writes;
+        }
+    }
+
+    private boolean tileHolds(int tile, int argb) {
+        int top = tileTop(tile), left = tileLeft(tile);
+        int right = Math.min(left + ColorIndex.TILE_SIZE, width);
+        for (int row = top; row < Math.min(top + ColorIndex.TILE_SIZE, height); row++) {
+            store.read(row, left, line, 0, right - left);
+            for (int i = 0; i < right - left; i++) {
+                if (line[i] == argb) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int tileTop(int tile) {
+        return tile / tilesAcross * ColorIndex.TILE_SIZE;
+    }
+
+    private int tileLeft(int tile) {
+        return tile % tilesAcross * ColorIndex.TILE_SIZE;
+    }
+
+    Raster toRaster() {
+        int[] argb = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            store.read(row, 0, argb, row * width, width);
+        }
+        return new Raster(width, height, argb);
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.pixelsmith;
+
+import java.util.Optional;
+
+/**
+ * Bulk colour operations over runs of packed ARGB pixels.
+ * <p>
+ * Each operation works on {@code length} pixels of {@code argb} starting at {@code offset}, in
+ * place. {@code background} holds the checkerboard colour of the same cells (starting at
+ * {@code backgroundOffset}); cells still showing it are erased, and recolouring leaves them
+ * alone. When the JVM is started with {@code --add-modules jdk.incubator.vector} the work is
+ * done by {@link VectorPixelOps} with SIMD lanes; otherwise by the scalar loops here, which
+ * use the same arithmetic so both give the same pixels.
+ */
+final class PixelOps {
+    static final boolean VECTORIZED = vectorModuleReadable() && !Boolean.getBoolean("pixelsmith.noVector");
+
+    private PixelOps() {
+    }
+
+    private static boolean vectorModuleReadable() {
+        Optional<Module> vector = ModuleLayer.boot().findModule("jdk.incubator.vector");
+        return vector.isPresent() && PixelOps.class.getModule().canRead(vector.get());
+    }
+
+    // Background cells become fully transparent, for export
+    static void clearBackground(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        if (VECTORIZED) {
+            VectorPixelOps.clearBackground(argb, offset, background, backgroundOffset, length);
+        } else {
+            clearBackgroundScalar(argb, offset, background, backgroundOffset, length);
+        }
+    }
+
+    static void clearBackgroundScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (argb[offset + i] == background[backgroundOffset + i]) {
+                argb[offset + i] = 0;
+            }
+        }
+    }
+
+    // Fully transparent cells become background again, for loading images into the canvas
+    static void restoreBackground(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        if (VECTORIZED) {
+            VectorPixelOps.restoreBackground(argb, offset, background, backgroundOffset, length);
+        } else {
+            restoreBackgroundScalar(argb, offset, background, backgroundOffset, length);
+        }
+    }
+
+    static void restoreBackgroundScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if ((argb[offset + i] >>> 24) == 0) {
+                argb[offset + i] = background[backgroundOffset + i];
+            }
+        }
+    }
+
+    static void replaceColor(int[] argb, int offset, int[] background, int backgroundOffset, int length, int from, int to) {
+        if (VECTORIZED) {
+            VectorPixelOps.replaceColor(argb, offset, background, backgroundOffset, length, from, to);
+        } else {
+            replaceColorScalar(argb, offset, background, backgroundOffset, length, from, to);
+        }
+    }
+
+    static void replaceColorScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length, int from, int to) {
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[offset + i];
+            if (pixel == from && pixel != background[backgroundOffset + i]) {
+                argb[offset + i] = to;
+            }
+        }
+    }
+
+    static void invert(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        if (VECTORIZED) {
+            VectorPixelOps.invert(argb, offset, background, backgroundOffset, length);
+        } else {
+            invertScalar(argb, offset, background, backgroundOffset, length);
+        }
+    }
+
+    static void invertScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[offset + i];
+            if (pixel != background[backgroundOffset + i]) {
+                argb[offset + i] = pixel ^ 0x00FFFFFF;
+            }
+        }
+    }
+
+    // Cells less opaque than the threshold are erased, the rest become fully opaque
+    static void alphaThreshold(int[] argb, int offset, int[] background, int backgroundOffset, int length, int threshold) {
+        if (VECTORIZED) {
+            VectorPixelOps.alphaThreshold(argb, offset, background, backgroundOffset, length, threshold);
+        } else {
+            alphaThresholdScalar(argb, offset, background, backgroundOffset, length, threshold);
+        }
+    }
+
+    static void alphaThresholdScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length, int threshold) {
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[offset + i];
+            argb[offset + i] = (pixel >>> 24) < threshold ? background[backgroundOffset + i] : pixel | 0xFF000000;
+        }
+    }
+
+    // Hue shift in degrees (-360..360), saturation and brightness shifts in -1..1
+    static void shiftHsb(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                         float hueDegrees, float saturation, float brightness) {
+        hueDegrees = Math.max(-360, Math.min(360, hueDegrees));
+        if (VECTORIZED) {
+            VectorPixelOps.shiftHsb(argb, offset, background, backgroundOffset, length, hueDegrees, saturation, brightness);
+        } else {
+            shiftHsbScalar(argb, offset, background, backgroundOffset, length, hueDegrees, saturation, brightness);
+        }
+    }
+
+    static void shiftHsbScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                               float hueDegrees, float saturation, float brightness) {
+        float hueShift = hueDegrees / 60f;
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[offset + i];
+            if (pixel == background[backgroundOffset + i]) {
+                continue;
+            }
+            float r = ((pixel >> 16) & 0xFF) / 255f;
+            float g = ((pixel >> 8) & 0xFF) / 255f;
+            float b = (pixel & 0xFF) / 255f;
+            float max = Math.max(r, Math.max(g, b));
+            float delta = max - Math.min(r, Math.min(g, b));
+
+            // Hue in sixths of a turn, 0..6
+            float h;
+            if (delta == 0) {
+                h = 0;
+            } else if (max == r) {
+                h = (g - b) / delta;
+                h = h < 0 ? h + 6 : h;
+            } else if (max == g) {
+                h = (b - r) / delta + 2;
+            } else {
+                h = (r - g) / delta + 4;
+            }
+            float s = max == 0 ? 0 : delta / max;
+
+            h += hueShift;
+            h = h < 0 ? h + 6 : h;
+            h = h >= 6 ? h - 6 : h;
+            s = Math.min(1, Math.max(0, s + saturation));
+            float v = Math.min(1, Math.max(0, max + brightness));
+
+            argb[offset + i] = (pixel & 0xFF000000) | (hsbChannel(5, h, s, v) << 16) | (hsbChannel(3, h, s, v) << 8) | hsbChannel(1, h, s, v);
+        }
+    }
+
+    // One channel of an HSB colour: n is 5 for red, 3 for green, 1 for blue
+    private static int hsbChannel(int n, float h, float s, float v) {
+        float k = n + h;
+        k = k >= 6 ? k - 6 : k;
+        float f = v - v * s * Math.max(0, Math.min(1, Math.min(k, 4 - k)));
+        return (int) (f * 255 + 0.5f);
+    }
+
+    // Each cell takes the RGB of the nearest palette colour and keeps its own alpha
+    static void remapToPalette(int[] argb, int offset, int[] background, int backgroundOffset, int length, int[] palette) {
+        if (palette.length == 0) {
+            return;
+        }
+        if (VECTORIZED) {
+            VectorPixelOps.remapToPalette(argb, offset, background, backgroundOffset, length, palette);
+        } else {
+            remapToPaletteScalar(argb, offset, background, backgroundOffset, length, palette);
+        }
+    }
+
+    static void remapToPaletteScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length, int[] palette) {
+        for (int i = 0; i < length; i++) {
+            int pixel = argb[offset + i];
+            if (pixel == background[backgroundOffset + i]) {
+                continue;
+            }
+            int best = palette[0];
+            int bestDistance = Integer.MAX_VALUE;
+            for (int color : palette) {
+                int distance = colorDistance(pixel, color);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = color;
+                }
+            }
+            argb[offset + i] = (pixel & 0xFF000000) | (best & 0x00FFFFFF);
+        }
+    }
+
+    static int colorDistance(int a, int b) {
+        int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    // Paints color over the cells at the given opacity (0..1), only where mask selects them if there is one.
+    // The mask is in canvas coordinates and the run starts at canvas (row, col). Background cells count as
+    // transparent, so they take the colour at the blended alpha.
+    static void blend(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                      int color, float opacity, Selection mask, int row, int col) {
+        if ((color >>> 24) == 0 || opacity <= 0) {
+            return;
+        }
+        if (VECTORIZED) {
+            VectorPixelOps.blend(argb, offset, background, backgroundOffset, length, color, opacity, mask, row, col);
+        } else {
+            blendScalar(argb, offset, background, backgroundOffset, length, color, opacity, mask, row, col);
+        }
+    }
+
+    static void blendScalar(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                            int color, float opacity, Selection mask, int row, int col) {
+        float sa = ((color >>> 24) / 255f) * opacity;
+        float sr = ((color >> 16) & 0xFF) / 255f;
+        float sg = ((color >> 8) & 0xFF) / 255f;
+        float sb = (color & 0xFF) / 255f;
+        for (int i = 0; i < length; i++) {
+            if (mask != null && !mask.contains(row, col + i)) {
+                continue;
+            }
+            int pixel = argb[offset + i];
+            float da = pixel == background[backgroundOffset + i] ? 0 : (pixel >>> 24) / 255f;
+            float keep = da * (1 - sa);
+            float a = sa + keep;
+            int r = (int) ((sr * sa + ((pixel >> 16) & 0xFF) / 255f * keep) / a * 255 + 0.5f);
+            int g = (int) ((sg * sa + ((pixel >> 8) & 0xFF) / 255f * keep) / a * 255 + 0.5f);
+            int b = (int) ((sb * sa + (pixel & 0xFF) / 255f * keep) / a * 255 + 0.5f);
+            argb[offset + i] = ((int) (a * 255 + 0.5f) << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
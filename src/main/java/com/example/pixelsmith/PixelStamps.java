@@ -0,0 +1,76 @@
+package com.example.pixelsmith;
+
+/**
+ * The last-writer-wins stamp of every cell of a collaborative sheet (see {@link CollabProtocol}).
+ * Stamps are kept a tile at a time and a tile is only allocated once one of its cells is first
+ * written, so a sheet that is mostly untouched costs next to nothing. Not thread-safe.
+ */
+final class PixelStamps {
+    private static final int TILE_SIZE = CollabProtocol.TILE_SIZE;
+
+    private final int width;
+    private final int height;
+    private final int tilesAcross;
+    private final long[][] tiles;
+
+    PixelStamps(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new long[tilesAcross * ((height + TILE_SIZE - 1) / TILE_SIZE)][];
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int tileCount() {
+        return tiles.length;
+    }
+
+    int tileOf(int row, int col) {
+        return row / TILE_SIZE * tilesAcross + col / TILE_SIZE;
+    }
+
+    // Stamp of a cell, 0 if no collaborative write ever reached it
+    long get(int row, int col) {
+        long[] tile = tiles[tileOf(row, col)];
+        return tile == null ? 0 : tile[row % TILE_SIZE * TILE_SIZE + col % TILE_SIZE];
+    }
+
+    // Stamp the cells colStart..colEnd of one row (clipped to the sheet) wherever this write is at least as new as
+    // what they hold, and pass each run it won to winners. A write never loses to its own stamp, so later spans
+    // of the same batch win over earlier ones.
+    void claim(int row, int colStart, int colEnd, long stamp, ShapeRasterizer.SpanSink winners) {
+        if (row < 0 || row >= height) {
+            return;
+        }
+        int left = Math.max(colStart, 0);
+        int right = Math.min(colEnd, width - 1);
+        int runStart = -1;
+        for (int col = left; col <= right; col++) {
+            int tileIndex = tileOf(row, col);
+            long[] tile = tiles[tileIndex];
+            if (tile == null) {
+                tile = tiles[tileIndex] = new long[TILE_SIZE * TILE_SIZE];
+            }
+            int cell = row % TILE_SIZE * TILE_SIZE + col % TILE_SIZE;
+            if (stamp >= tile[cell]) {
+                tile[cell] = stamp;
+                if (runStart < 0) {
+                    runStart = col;
+                }
+            } else if (runStart >= 0) {
+                winners.span(row, runStart, col - 1);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            winners.span(row, runStart, right);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+
+/**
+ * Where a {@link PixelBuffer} keeps its cells. Small documents use a plain int array; documents
+ * over OFF_HEAP_CELLS (or any document with {@code -Dpixelsmith.canvas=offheap}) use an
+ * {@link OffHeapPixelStore} so the pixels stay out of the Java heap. {@code -Dpixelsmith.canvas=heap}
+ * keeps every document on the heap.
+ */
+interface PixelStore {
+    long OFF_HEAP_CELLS = 1L << 24;
+
+    int get(int row, int col);
+
+    void set(int row, int col, int argb);
+
+    // Fill columns colStart..colEnd (inclusive) of one row
+    void fill(int row, int colStart, int colEnd, int argb);
+
+    void read(int row, int col, int[] dst, int dstOffset, int length);
+
+    void write(int row, int col, int[] src, int srcOffset, int length);
+
+    static PixelStore allocate(int width, int height) {
+        String mode = System.getProperty("pixelsmith.canvas", "auto");
+        boolean offHeap = mode.equalsIgnoreCase("offheap")
+                || (!mode.equalsIgnoreCase("heap") && (long) width * height > OFF_HEAP_CELLS);
+        return offHeap ? new OffHeapPixelStore(width, height) : new Heap(width, height);
+    }
+
+    final class Heap implements PixelStore {
+        private final int width;
+        private final int[] data;
+
+        Heap(int width, int height) {
+            this.width = width;
+            this.data = new int[width * height];
+        }
+
+        public int get(int row, int col) {
+            return data[row * width + col];
+        }
+
+        public void set(int row, int col, int argb) {
+            data[row * width + col] = argb;
+        }
+
+        public void fill(int row, int colStart, int colEnd, int argb) {
+            int base = row * width;
+            Arrays.fill(data, base + colStart, base + colEnd + 1, argb);
+        }
+
+        public void read(int row, int col, int[] dst, int dstOffset, int length) {
+            System.arraycopy(data, row * width + col, dst, dstOffset, length);
+        }
+
+        public void write(int row, int col, int[] src, int srcOffset, int length) {
+            System.arraycopy(src, srcOffset, data, row * width + col, length);
+        }
+    }
+}
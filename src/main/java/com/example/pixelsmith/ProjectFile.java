@@ -0,0 +1,387 @@
+package com.example.pixelsmith;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PixelSmith's native project format ({@code .pxs}), used when a sprite is saved under that
+ * extension; PNG stays the export format.
+ * <p>
+ * The file holds the document metadata (name, sprite id and colour palette), an index of where
+ * each TILE_SIZE tile starts, then every tile run-length encoded on its own. When the document
+ * has at most 256 colours each run stores a palette index instead of the ARGB value. Opening a
+ * project reads only the header, so the editor can decode the tiles it shows first and the rest
+ * after; each tile's bytes are read from the open file as it is decoded. Saving with the tiles
+ * changed since the last save copies every other tile's bytes from the previous file instead of
+ * encoding it again. Nothing maps the file, so it can be replaced while a project is open on it
+ * (on Windows a mapped file cannot be).
+ */
+final class ProjectFile implements Closeable {
+    static final String EXTENSION = ".pxs";
+    static final int TILE_SIZE = 64;
+    private static final int MAGIC = 0x50585331; // "PXS1"
+    private static final int INDEXED = 1; // runs hold palette indexes
+    private static final int HAS_SPRITE_ID = 2;
+    private static final int MAX_PALETTE = 256;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesAcross;
+    private final boolean indexed;
+    private final Integer spriteId;
+    private final String name;
+    private final int[] palette;
+    private final long[] offsets; // tile i is stored at offsets[i] .. offsets[i + 1]
+    private final int[] scratch;
+    private ByteBuffer runs = ByteBuffer.allocate(0); // the encoded tile being decoded
+
+    private ProjectFile(FileChannel channel, Path path) throws IOException {
+        this.channel = channel;
+        try {
+            ByteBuffer fixed = readAt(0, 28);
+            if (fixed.getInt() != MAGIC) {
+                throw new IOException("Not a PixelSmith project: " + path);
+            }
+            width = fixed.getInt();
+            height = fixed.getInt();
+            tileSize = fixed.getInt();
+            int flags = fixed.getInt();
+            int id = fixed.getInt();
+            indexed = (flags & INDEXED) != 0;
+            spriteId = (flags & HAS_SPRITE_ID) != 0 ? id : null;
+            long position = 28;
+            ByteBuffer named = readAt(position, fixed.getInt() + 4);
+            byte[] nameBytes = new byte[named.capacity() - 4];
+            named.get(nameBytes);
+            name = nameBytes.length > 0 ? new String(nameBytes, StandardCharsets.UTF_8) : null;
+            position += named.capacity();
+            palette = new int[named.getInt()];
+            readAt(position, palette.length * 4).asIntBuffer().get(palette);
+            position += palette.length * 4L;
+            if (width <= 0 || height <= 0 || tileSize <= 0 || (indexed && palette.length == 0)) {
+                throw new IOException("Corrupt project header: " + path);
+            }
+            tilesAcross = (width + tileSize - 1) / tileSize;
+            offsets = new long[tilesAcross * ((height + tileSize - 1) / tileSize) + 1];
+            readAt(position, offsets.length * 8).asLongBuffer().get(offsets);
+            if (offsets[offsets.length - 1] > channel.size()) {
+                throw new IOException("Truncated project: " + path);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated project: " + path, e);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt project: " + path, e);
+        }
+        scratch = new int[tileSize * tileSize];
+    }
+
+    static boolean isProject(String path) {
+        return path != null && path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    // Open the project and read its header; tiles are decoded on demand until the project is closed
+    static ProjectFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ProjectFile(channel, path);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Decode a whole project
+    static Raster read(Path path) throws IOException {
+        try (ProjectFile project = open(path)) {
+            return project.toRaster();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    String name() {
+        return name;
+    }
+
+    Integer spriteId() {
+        return spriteId;
+    }
+
+    int[] palette() {
+        return palette.clone();
+    }
+
+    // Decode the tiles overlapping the block of cells into the buffer, skipping those already in decoded
+    void readTiles(PixelBuffer target, int top, int left, int bottom, int right, BitSet decoded) throws IOException {
+        for (int ty = Math.max(top, 0) / tileSize; ty <= Math.min(bottom, height - 1) / tileSize; ty++) {
+            for (int tx = Math.max(left, 0) / tileSize; tx <= Math.min(right, width - 1) / tileSize; tx++) {
+                int tile = ty * tilesAcross + tx;
+                if (decoded.get(tile)) {
+                    continue;
+                }
+                int w = decodeTile(tile);
+                int h = Math.min(tileSize, height - ty * tileSize);
+                for (int y = 0; y < h; y++) {
+                    target.writeRow(ty * tileSize + y, tx * tileSize, scratch, y * w, w);
+                }
+                decoded.set(tile);
+            }
+        }
+    }
+
+    Raster toRaster() throws IOException {
+        int[] argb = new int[width * height];
+        for (int tile = 0; tile < offsets.length - 1; tile++) {
+            int x0 = tile % tilesAcross * tileSize;
+            int y0 = tile / tilesAcross * tileSize;
+            int w = decodeTile(tile);
+            for (int y = 0; y < Math.min(tileSize, height - y0); y++) {
+                System.arraycopy(scratch, y * w, argb, (y0 + y) * width + x0, w);
+            }
+        }
+        return new Raster(width, height, argb);
+    }
+
+    // Decode one tile into scratch, row-major; returns the tile's width
+    private int decodeTile(int tile) throws IOException {
+        int x0 = tile % tilesAcross * tileSize;
+        int y0 = tile / tilesAcross * tileSize;
+        int w = Math.min(tileSize, width - x0);
+        int cells = w * Math.min(tileSize, height - y0);
+        int encoded = (int) (offsets[tile + 1] - offsets[tile]);
+        if (runs.capacity() < encoded) {
+            runs = ByteBuffer.allocate(Math.max(encoded, runs.capacity() * 2));
+        }
+        runs.clear().limit(encoded);
+        readFully(offsets[tile], runs);
+        runs.flip();
+        int filled = 0;
+        while (filled < cells) {
+            int length = readVarint(runs);
+            int argb = indexed ? palette[runs.get() & 0xFF] : runs.getInt();
+            if (length <= 0 || length > cells - filled) {
+                throw new IllegalStateException("Corrupt run in tile " + tile);
+            }
+            Arrays.fill(scratch, filled, filled + length, argb);
+            filled += length;
+        }
+        return w;
+    }
+
+    // Write the sprite at path. With changes from the buffer's last save, tiles they do not touch are copied
+    // from the project already there when it has the same size; null encodes every tile.
+    static void write(Path path, Raster raster, String name, Integer spriteId, DirtyTiles changes) throws IOException {
+        int tilesAcross = (raster.width() + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesAcross * ((raster.height() + TILE_SIZE - 1) / TILE_SIZE);
+        BitSet encode = new BitSet(tileCount);
+        ByteBuffer[] tiles = new ByteBuffer[tileCount];
+        Map<Integer, Integer> palette;
+        // The previous project is read and closed before the new one replaces it
+        try (ProjectFile previous = changes != null && Files.exists(path) ? openCompatible(path, raster) : null) {
+            for (int tile = 0; tile < tileCount; tile++) {
+                if (previous == null || changes.touches(tile % tilesAcross * TILE_SIZE, tile / tilesAcross * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                    encode.set(tile);
+                }
+            }
+
+            // New colours are appended to the previous palette, so the copied tiles' indexes stay valid
+            palette = paletteFor(raster, tilesAcross, encode, previous);
+            if (palette == null && previous != null && previous.indexed) {
+                encode.set(0, tileCount); // too many colours for the old indexed tiles; encode everything as ARGB
+            }
+            for (int tile = encode.nextClearBit(0); tile < tileCount; tile = encode.nextClearBit(tile + 1)) {
+                tiles[tile] = ByteBuffer.allocate((int) (previous.offsets[tile + 1] - previous.offsets[tile]));
+                previous.readFully(previous.offsets[tile], tiles[tile]);
+                tiles[tile].flip();
+            }
+        }
+        TileEncoder encoder = new TileEncoder();
+        for (int tile = encode.nextSetBit(0); tile >= 0; tile = encode.nextSetBit(tile + 1)) {
+            tiles[tile] = encoder.encode(raster, tile % tilesAcross * TILE_SIZE, tile / tilesAcross * TILE_SIZE, palette);
+        }
+
+        byte[] nameBytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int paletteSize = palette != null ? palette.size() : 0;
+        ByteBuffer header = ByteBuffer.allocate(32 + nameBytes.length + paletteSize * 4 + (tileCount + 1) * 8);
+        header.putInt(MAGIC).putInt(raster.width()).putInt(raster.height()).putInt(TILE_SIZE)
+                .putInt((palette != null ? INDEXED : 0) | (spriteId != null ? HAS_SPRITE_ID : 0))
+                .putInt(spriteId != null ? spriteId : 0)
+                .putInt(nameBytes.length).put(nameBytes)
+                .putInt(paletteSize);
+        if (palette != null) {
+            int[] colors = new int[paletteSize];
+            palette.forEach((argb, index) -> colors[index] = argb);
+            header.asIntBuffer().put(colors);
+            header.position(header.position() + paletteSize * 4);
+        }
+        long offset = header.capacity();
+        for (ByteBuffer tile : tiles) {
+            header.putLong(offset);
+            offset += tile.remaining();
+        }
+        header.putLong(offset).flip();
+
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            writeFully(out, header);
+            for (ByteBuffer tile : tiles) {
+                writeFully(out, tile);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // The project already at path if its tiles can be reused for a raster of this size, else null
+    private static ProjectFile openCompatible(Path path, Raster raster) {
+        try {
+            ProjectFile previous = open(path);
+            boolean sameShape = previous.width == raster.width() && previous.height == raster.height() && previous.tileSize == TILE_SIZE;
+            if (!sameShape) {
+                previous.close();
+                return null;
+            }
+            return previous;
+        } catch (IOException e) {
+            System.out.println("Rewriting unreadable project " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Colour to palette index for the tiles being encoded, starting from the previous palette; null if the
+    // document needs more than MAX_PALETTE colours or the previous file is not indexed
+    private static Map<Integer, Integer> paletteFor(Raster raster, int tilesAcross, BitSet encode, ProjectFile previous) {
+        Map<Integer, Integer> palette = new HashMap<>();
+        if (previous != null) {
+            if (!previous.indexed) {
+                return null;
+            }
+            for (int argb : previous.palette) {
+                palette.putIfAbsent(argb, palette.size());
+            }
+        }
+        int[] argb = raster.argb();
+        for (int tile = encode.nextSetBit(0); tile >= 0; tile = encode.nextSetBit(tile + 1)) {
+            int x0 = tile % tilesAcross * TILE_SIZE;
+            int y0 = tile / tilesAcross * TILE_SIZE;
+            int right = Math.min(x0 + TILE_SIZE, raster.width());
+            for (int y = y0; y < Math.min(y0 + TILE_SIZE, raster.height()); y++) {
+                for (int i = y * raster.width() + x0, end = y * raster.width() + right; i < end; i++) {
+                    if (palette.putIfAbsent(argb[i], palette.size()) == null && palette.size() > MAX_PALETTE) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return palette;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        readFully(position, bytes);
+        return bytes.flip();
+    }
+
+    // Fill the rest of bytes from the file, starting at position
+    private void readFully(long position, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            int read = channel.read(bytes, position);
+            if (read < 0) {
+                throw new EOFException("Project ends early");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // Run-length encodes tiles into a growing scratch array
+    private static final class TileEncoder {
+        private byte[] out = new byte[TILE_SIZE * TILE_SIZE];
+        private int size;
+
+        ByteBuffer encode(Raster raster, int x0, int y0, Map<Integer, Integer> palette) {
+            size = 0;
+            int right = Math.min(x0 + TILE_SIZE, raster.width());
+            int[] argb = raster.argb();
+            int run = 0;
+            int current = 0;
+            for (int y = y0; y < Math.min(y0 + TILE_SIZE, raster.height()); y++) {
+                for (int i = y * raster.width() + x0, end = y * raster.width() + right; i < end; i++) {
+                    if (run > 0 && argb[i] == current) {
+                        run++;
+                        continue;
+                    }
+                    if (run > 0) {
+                        putRun(run, current, palette);
+                    }
+                    current = argb[i];
+                    run = 1;
+                }
+            }
+            putRun(run, current, palette);
+            return ByteBuffer.wrap(Arrays.copyOf(out, size));
+        }
+
+        private void putRun(int length, int argb, Map<Integer, Integer> palette) {
+            if (size + 9 > out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            while (length >= 0x80) {
+                out[size++] = (byte) (length | 0x80);
+                length >>>= 7;
+            }
+            out[size++] = (byte) length;
+            if (palette != null) {
+                out[size++] = (byte) (int) palette.get(argb);
+            } else {
+                out[size++] = (byte) (argb >>> 24);
+                out[size++] = (byte) (argb >>> 16);
+                out[size++] = (byte) (argb >>> 8);
+                out[size++] = (byte) argb;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.pixelsmith;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Recently flooded connected regions, so filling or hovering the same area again needs no
+ * traversal.
+ * <p>
+ * A region is labelled by a key colour (the colours it was flooded through) and remembers the
+ * tiles covering it and its one-cell border, along with the buffer's write stamp at that time.
+ * It stays valid until one of those tiles is written, so edits elsewhere on the canvas keep it.
+ * After a fill the region can be relabelled with the new colour instead of being thrown away.
+ */
+final class RegionCache {
+    private static final int CAPACITY = 16;
+
+    private static final class Region {
+        final Selection cells;
+        final PixelBuffer buffer;
+        final int[] tiles;
+        int key;
+        long stamp;
+
+        Region(Selection cells, PixelBuffer buffer, int[] tiles, int key) {
+            this.cells = cells;
+            this.buffer = buffer;
+            this.tiles = tiles;
+            this.key = key;
+            this.stamp = buffer.writeStamp();
+        }
+
+        boolean isCurrent(PixelBuffer pixels) {
+            if (buffer != pixels) {
+                return false;
+            }
+            for (int tile : tiles) {
+                if (pixels.tileStamp(tile) > stamp) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Most recently used first
+    private final Deque<Region> regions = new ArrayDeque<>();
+
+    // The region with this key holding (row, col), flooded by the supplier if no current one is cached
+    Selection regionAt(PixelBuffer pixels, int row, int col, int key, Supplier<Selection> flood) {
+        Iterator<Region> it = regions.iterator();
+        while (it.hasNext()) {
+            Region region = it.next();
+            if (!region.isCurrent(pixels)) {
+                it.remove();
+            } else if (region.key == key && region.cells.contains(row, col)) {
+                it.remove();
+                regions.addFirst(region);
+                return region.cells;
+            }
+        }
+
+        Selection cells = flood.get();
+        regions.addFirst(new Region(cells, pixels, borderTiles(pixels, cells), key));
+        if (regions.size() > CAPACITY) {
+            regions.removeLast();
+        }
+        return cells;
+    }
+
+    // The cells of a cached region were all just painted one colour. If none of its border cells match the new
+    // key's colours, the region floods to exactly the same cells under that key and is kept.
+    void recolored(PixelBuffer pixels, Selection cells, int key, IntPredicate matches) {
+        Region region = null;
+        for (Region candidate : regions) {
+            if (candidate.cells == cells) {
+                region = candidate;
+                break;
+            }
+        }
+        if (region == null) {
+            return;
+        }
+        boolean[] grows = new boolean[1];
+        cells.forEachSpan((row, colStart, colEnd) -> {
+            if (grows[0]) {
+                return;
+            }
+            grows[0] = matchesOutside(pixels, cells, row, colStart - 1, matches)
+                    || matchesOutside(pixels, cells, row, colEnd + 1, matches);
+            for (int col = colStart; col <= colEnd && !grows[0]; col++) {
+                grows[0] = matchesOutside(pixels, cells, row - 1, col, matches)
+                        || matchesOutside(pixels, cells, row + 1, col, matches);
+            }
+        });
+        if (grows[0]) {
+            regions.remove(region);
+        } else {
+            region.key = key;
+            region.stamp = pixels.writeStamp();
+        }
+    }
+
+    private static boolean matchesOutside(PixelBuffer pixels, Selection cells, int row, int col, IntPredicate matches) {
+        return row >= 0 && row < pixels.height() && col >= 0 && col < pixels.width()
+                && !cells.contains(row, col) && matches.test(pixels.get(row, col));
+    }
+
+    // Tiles under the region grown by one cell, since a write next to it can join more cells on
+    private static int[] borderTiles(PixelBuffer pixels, Selection cells) {
+        boolean[] covered = new boolean[pixels.tileCount()];
+        int[] count = new int[1];
+        cells.forEachSpan((row, colStart, colEnd) -> {
+            int left = Math.max(colStart - 1, 0), right = Math.min(colEnd + 1, pixels.width() - 1);
+            for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, pixels.height() - 1); r++) {
+                for (int tile = pixels.tileOf(r, left), last = pixels.tileOf(r, right); tile <= last; tile++) {
+                    if (!covered[tile]) {
+                        covered[tile] = true;
+                        count[0]++;
+                    }
+                }
+            }
+        });
+        int[] tiles = new int[count[0]];
+        for (int tile = 0, i = 0; tile < covered.length; tile++) {
+            if (covered[tile]) {
+                tiles[i++] = tile;
+            }
+        }
+        return tiles;
+    }
+}
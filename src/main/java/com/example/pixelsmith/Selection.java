@@ -0,0 +1,151 @@
+package com.example.pixelsmith;
+
+/**
+ * A set of selected cells stored as a bitmask, one bit per cell and whole longs per row.
+ * <p>
+ * The selection keeps its bounding box up to date as cells are added, and hands its contents
+ * back as horizontal spans so callers can copy or erase whole runs of a row at once.
+ */
+final class Selection {
+    final int rows;
+    final int cols;
+    private final int wordsPerRow;
+    private final long[] bits;
+    private int top = Integer.MAX_VALUE, left = Integer.MAX_VALUE, bottom = -1, right = -1;
+
+    Selection(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.wordsPerRow = (cols + 63) >>> 6;
+        this.bits = new long[rows * wordsPerRow];
+    }
+
+    static Selection rectangle(int rows, int cols, int row0, int col0, int row1, int col1) {
+        Selection selection = new Selection(rows, cols);
+        ShapeRasterizer.fillRect(row0, col0, row1, col1, selection::addSpan);
+        return selection;
+    }
+
+    // Lasso selection: the polygon through the points, edges included
+    static Selection polygon(int rows, int cols, int[] pointRows, int[] pointCols, int count) {
+        Selection selection = new Selection(rows, cols);
+        ShapeRasterizer.fillPolygon(pointRows, pointCols, count, selection::addSpan);
+        return selection;
+    }
+
+    boolean contains(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols) {
+            return false;
+        }
+        return (bits[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    // Selection state of the 64 cells starting at (row, col): bit j is set when col + j is selected
+    long bitsFrom(int row, int col) {
+        if (row < 0 || row >= rows || col >= cols || col <= -64) {
+            return 0;
+        }
+        int base = row * wordsPerRow;
+        int word = Math.floorDiv(col, 64);
+        int shift = Math.floorMod(col, 64);
+        long low = word >= 0 ? bits[base + word] >>> shift : 0;
+        long high = shift != 0 && word + 1 < wordsPerRow ? bits[base + word + 1] << (64 - shift) : 0;
+        return low | high;
+    }
+
+    void add(int row, int col) {
+        addSpan(row, col, col);
+    }
+
+    // Select columns colStart..colEnd (inclusive) of one row, clipped to the selection's size
+    void addSpan(int row, int colStart, int colEnd) {
+        int from = Math.max(colStart, 0);
+        int to = Math.min(colEnd, cols - 1);
+        if (row < 0 || row >= rows || from > to) {
+            return;
+        }
+        int base = row * wordsPerRow;
+        int firstWord = from >>> 6, lastWord = to >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (firstWord == lastWord) {
+            bits[base + firstWord] |= firstMask & lastMask;
+        } else {
+            bits[base + firstWord] |= firstMask;
+            for (int w = firstWord + 1; w < lastWord; w++) {
+                bits[base + w] = -1L;
+            }
+            bits[base + lastWord] |= lastMask;
+        }
+        top = Math.min(top, row);
+        bottom = Math.max(bottom, row);
+        left = Math.min(left, from);
+        right = Math.max(right, to);
+    }
+
+    boolean isEmpty() {
+        return bottom < 0;
+    }
+
+    int top() {
+        return top;
+    }
+
+    int left() {
+        return left;
+    }
+
+    int bottom() {
+        return bottom;
+    }
+
+    int right() {
+        return right;
+    }
+
+    // Report every run of selected cells, row by row
+    void forEachSpan(ShapeRasterizer.SpanSink sink) {
+        for (int row = top; row <= bottom; row++) {
+            int col = nextSet(row, left);
+            while (col <= right) {
+                int end = nextClear(row, col);
+                sink.span(row, col, end - 1);
+                col = nextSet(row, end);
+            }
+        }
+    }
+
+    // First selected column at or after col in the row, or cols if there is none
+    private int nextSet(int row, int col) {
+        if (col >= cols) {
+            return cols;
+        }
+        int base = row * wordsPerRow;
+        int w = col >>> 6;
+        long word = bits[base + w] & (-1L << col);
+        while (word == 0) {
+            if (++w == wordsPerRow) {
+                return cols;
+            }
+            word = bits[base + w];
+        }
+        return Math.min(cols, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // First unselected column at or after col in the row, or cols if there is none
+    private int nextClear(int row, int col) {
+        if (col >= cols) {
+            return cols;
+        }
+        int base = row * wordsPerRow;
+        int w = col >>> 6;
+        long word = ~bits[base + w] & (-1L << col);
+        while (word == 0) {
+            if (++w == wordsPerRow) {
+                return cols;
+            }
+            word = ~bits[base + w];
+        }
+        return Math.min(cols, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+}
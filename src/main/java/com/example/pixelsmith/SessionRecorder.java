@@ -0,0 +1,203 @@
+package com.example.pixelsmith;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Records an editing session so the SessionReplayer under src/test can run it again headless.
+ * <p>
+ * A recording (.pxr) is one deflated stream: the document as it was when recording started,
+ * then one event per input the document thread handled, each a type byte, the milliseconds
+ * since the previous event and a few varints. Mouse input is recorded in cells after the
+ * canvas mapped it, together with every tool, colour, size and brush change, so a replay
+ * drives the tools exactly as the artist did. It ends with a checksum of the finished
+ * document, which the replayer compares against to catch changes in behaviour. The selection
+ * keys are recorded too, a paste with the pasted image. Menu commands (adjustments, transforms,
+ * imports, history) are not, and the editor refuses them while recording. Used from the document
+ * thread only.
+ */
+final class SessionRecorder {
+    static final int MAGIC = 0x50585231; // "PXR1"
+    static final byte PRESS = 1;      // row, col, click count
+    static final byte DRAG = 2;       // row, col
+    static final byte RELEASE = 3;    // row, col
+    static final byte HOVER = 4;      // row, col
+    static final byte TOOL = 5;       // ToolKind ordinal, option (shape kind, selection mode or tile action ordinal)
+    static final byte COLOR = 6;      // argb as an int
+    static final byte SIZE = 7;       // tool size
+    static final byte BRUSH = 8;      // BrushStamp.Shape ordinal
+    static final byte CLEAR = 9;
+    static final byte END = 10;       // document checksum as an int
+    static final byte DELETE = 11;    // the selection's cells erased, or the floating pixels discarded
+    static final byte DROP = 12;      // the floating pixels written back
+    static final byte DESELECT = 13;
+    static final byte PASTE = 14;     // width, height, then the image's argb as ints
+
+    enum ToolKind {
+        PEN, ERASER, FILL, SHAPE, LINE, SELECT, EYE_DROPPER, STAMP_CAPTURE, TILE
+    }
+
+    private final Path path;
+    private final DataOutputStream out;
+    private long lastEventMillis;
+    private int events;
+    private boolean failed; // stop writing after the first error
+
+    private SessionRecorder(Path path, DataOutputStream out) {
+        this.path = path;
+        this.out = out;
+        this.lastEventMillis = System.currentTimeMillis();
+    }
+
+    // Start a recording in ~/.pixelsmith/recordings from the document as it is now
+    static SessionRecorder start(Raster document) throws IOException {
+        Path path = AppDirectories.resolve("recordings").resolve("session-" + System.currentTimeMillis() + ".pxr");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(path), new Deflater(Deflater.BEST_SPEED)), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(document.width());
+        out.writeInt(document.height());
+        for (int argb : document.argb()) {
+            out.writeInt(argb);
+        }
+        return new SessionRecorder(path, out);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int eventCount() {
+        return events;
+    }
+
+    void press(int row, int col, int clickCount) {
+        event(PRESS, row, col, clickCount);
+    }
+
+    void drag(int row, int col) {
+        event(DRAG, row, col);
+    }
+
+    void release(int row, int col) {
+        event(RELEASE, row, col);
+    }
+
+    void hover(int row, int col) {
+        event(HOVER, row, col);
+    }
+
+    void tool(ToolKind kind, int option) {
+        event(TOOL, kind.ordinal(), option);
+    }
+
+    void color(int argb) {
+        if (begin(COLOR)) {
+            try {
+                out.writeInt(argb);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    void size(int size) {
+        event(SIZE, size);
+    }
+
+    void brush(BrushStamp.Shape shape) {
+        event(BRUSH, shape.ordinal());
+    }
+
+    void clear() {
+        event(CLEAR);
+    }
+
+    void delete() {
+        event(DELETE);
+    }
+
+    void drop() {
+        event(DROP);
+    }
+
+    void deselect() {
+        event(DESELECT);
+    }
+
+    void paste(Raster image) {
+        event(PASTE, image.width(), image.height());
+        if (failed) {
+            return;
+        }
+        try {
+            for (int argb : image.argb()) {
+                out.writeInt(argb);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Finish with the checksum of the final document; returns false if the recording could not be written
+    boolean finish(int checksum) {
+        try {
+            if (begin(END)) {
+                out.writeInt(checksum);
+            }
+            out.close();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error finishing the recording: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void event(byte type, int... values) {
+        if (!begin(type)) {
+            return;
+        }
+        try {
+            for (int value : values) {
+                writeVarint(out, (value << 1) ^ (value >> 31)); // zigzag, since drags can leave the canvas
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private boolean begin(byte type) {
+        if (failed) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            out.writeByte(type);
+            writeVarint(out, (int) Math.min(Integer.MAX_VALUE, now - lastEventMillis));
+            lastEventMillis = now;
+            events++;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        System.out.println("Error writing the recording " + path + ": " + e.getMessage());
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.pixelsmith;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Rasterizes shapes into horizontal spans of grid cells.
+ * <p>
+ * Every shape is reported to a {@link SpanSink} as (row, colStart, colEnd) runs, inclusive at
+ * both ends, so a caller can fill whole runs at once or draw them as a preview. Spans are not
+ * clipped to the canvas and may overlap within one shape.
+ */
+final class ShapeRasterizer {
+    interface SpanSink {
+        void span(int row, int colStart, int colEnd);
+    }
+
+    private ShapeRasterizer() {
+    }
+
+    static void fillRect(int row0, int col0, int row1, int col1, SpanSink sink) {
+        int top = Math.min(row0, row1), bottom = Math.max(row0, row1);
+        int left = Math.min(col0, col1), right = Math.max(col0, col1);
+        for (int row = top; row <= bottom; row++) {
+            sink.span(row, left, right);
+        }
+    }
+
+    static void strokeRect(int row0, int col0, int row1, int col1, int thickness, SpanSink sink) {
+        int top = Math.min(row0, row1), bottom = Math.max(row0, row1);
+        int left = Math.min(col0, col1), right = Math.max(col0, col1);
+        int t = Math.max(1, thickness);
+        if (bottom - top + 1 <= 2 * t || right - left + 1 <= 2 * t) {
+            fillRect(top, left, bottom, right, sink);
+            return;
+        }
+        for (int row = top; row <= bottom; row++) {
+            if (row < top + t || row > bottom - t) {
+                sink.span(row, left, right);
+            } else {
+                sink.span(row, left, left + t - 1);
+                sink.span(row, right - t + 1, right);
+            }
+        }
+    }
+
+    // Ellipse inscribed in the given cell bounds
+    static void fillEllipse(int row0, int col0, int row1, int col1, SpanSink sink) {
+        Ellipse e = new Ellipse(row0, col0, row1, col1);
+        for (int dy = 0; dy < e.extents.length; dy++) {
+            int half = e.extents[dy];
+            e.mirrorRows(dy, (row) -> sink.span(row, e.centerCol - half, e.centerCol + half + e.oddCol));
+        }
+    }
+
+    static void strokeEllipse(int row0, int col0, int row1, int col1, int thickness, SpanSink sink) {
+        Ellipse outer = new Ellipse(row0, col0, row1, col1);
+        int t = Math.max(1, thickness);
+        int top = Math.min(row0, row1), bottom = Math.max(row0, row1);
+        int left = Math.min(col0, col1), right = Math.max(col0, col1);
+
+        if (t > 1 && (bottom - top + 1 <= 2 * t || right - left + 1 <= 2 * t)) {
+            fillEllipse(top, left, bottom, right, sink);
+            return;
+        }
+        if (t == 1) {
+            // Each row covers the cells between its own extent and the next row's, so the outline stays connected
+            for (int dy = 0; dy < outer.extents.length; dy++) {
+                int out = outer.extents[dy];
+                int in = dy + 1 < outer.extents.length ? Math.min(out, outer.extents[dy + 1] + 1) : 0;
+                outer.mirrorRows(dy, (row) -> {
+                    sink.span(row, outer.centerCol - out, outer.centerCol - in);
+                    sink.span(row, outer.centerCol + in + outer.oddCol, outer.centerCol + out + outer.oddCol);
+                });
+            }
+            return;
+        }
+
+        // Thick outlines are the outer ellipse minus an inner one shrunk by the thickness
+        Ellipse inner = new Ellipse(top + t, left + t, bottom - t, right - t);
+        int[] innerLeft = new int[bottom - top + 1];
+        int[] innerRight = new int[bottom - top + 1];
+        Arrays.fill(innerLeft, Integer.MAX_VALUE);
+        Arrays.fill(innerRight, Integer.MIN_VALUE);
+        for (int dy = 0; dy < inner.extents.length; dy++) {
+            int half = inner.extents[dy];
+            inner.mirrorRows(dy, (row) -> {
+                innerLeft[row - top] = inner.centerCol - half;
+                innerRight[row - top] = inner.centerCol + half + inner.oddCol;
+            });
+        }
+        for (int dy = 0; dy < outer.extents.length; dy++) {
+            int half = outer.extents[dy];
+            outer.mirrorRows(dy, (row) -> {
+                int l = outer.centerCol - half;
+                int r = outer.centerCol + half + outer.oddCol;
+                if (innerLeft[row - top] > innerRight[row - top]) {
+                    sink.span(row, l, r);
+                } else {
+                    sink.span(row, l, innerLeft[row - top] - 1);
+                    sink.span(row, innerRight[row - top] + 1, r);
+                }
+            });
+        }
+    }
+
+    // Line between two cells; thick lines are swept with a square pen, which is convex, so each row is one span
+    static void line(int row0, int col0, int row1, int col1, int thickness, SpanSink sink) {
+        int t = Math.max(1, thickness);
+        int top = Math.min(row0, row1) - (t - 1) / 2;
+        int[] minCol = new int[Math.abs(row1 - row0) + t];
+        int[] maxCol = new int[minCol.length];
+        Arrays.fill(minCol, Integer.MAX_VALUE);
+        Arrays.fill(maxCol, Integer.MIN_VALUE);
+
+        int dx = Math.abs(col1 - col0), dy = Math.abs(row1 - row0);
+        int sx = col0 < col1 ? 1 : -1, sy = row0 < row1 ? 1 : -1;
+        int err = dx - dy;
+        int col = col0, row = row0;
+        while (true) {
+            int penTop = row - (t - 1) / 2;
+            int penLeft = col - (t - 1) / 2;
+            for (int r = penTop - top; r < penTop - top + t; r++) {
+                minCol[r] = Math.min(minCol[r], penLeft);
+                maxCol[r] = Math.max(maxCol[r], penLeft + t - 1);
+            }
+            if (col == col1 && row == row1) {
+                break;
+            }
+            int e2 = 2 * err;
+            if (e2 > -dy) {
+                err -= dy;
+                col += sx;
+            }
+            if (e2 < dx) {
+                err += dx;
+                row += sy;
+            }
+        }
+
+        for (int i = 0; i < minCol.length; i++) {
+            sink.span(top + i, minCol[i], maxCol[i]);
+        }
+    }
+
+    // Polygon through cell centers, filled with the even-odd rule; edges are always included
+    static void fillPolygon(int[] rows, int[] cols, int count, SpanSink sink) {
+        if (count < 3) {
+            strokePolygon(rows, cols, count, 1, sink);
+            return;
+        }
+        int top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            top = Math.min(top, rows[i]);
+            bottom = Math.max(bottom, rows[i]);
+        }
+
+        double[] crossings = new double[count];
+        for (int row = top; row <= bottom; row++) {
+            int n = 0;
+            for (int i = 0, j = count - 1; i < count; j = i++) {
+                int ra = rows[j], rb = rows[i];
+                // Half-open so a vertex shared by two edges is only counted once
+                if ((ra <= row && row < rb) || (rb <= row && row < ra)) {
+                    crossings[n++] = cols[j] + (double) (row - ra) * (cols[i] - cols[j]) / (rb - ra);
+                }
+            }
+            Arrays.sort(crossings, 0, n);
+            for (int k = 0; k + 1 < n; k += 2) {
+                int from = (int) Math.ceil(crossings[k]);
+                int to = (int) Math.floor(crossings[k + 1]);
+                if (from <= to) {
+                    sink.span(row, from, to);
+                }
+            }
+        }
+        strokePolygon(rows, cols, count, 1, sink);
+    }
+
+    static void strokePolygon(int[] rows, int[] cols, int count, int thickness, SpanSink sink) {
+        if (count == 1) {
+            line(rows[0], cols[0], rows[0], cols[0], thickness, sink);
+        }
+        for (int i = 0; i + 1 < count; i++) {
+            line(rows[i], cols[i], rows[i + 1], cols[i + 1], thickness, sink);
+        }
+        if (count > 2) {
+            line(rows[count - 1], cols[count - 1], rows[0], cols[0], thickness, sink);
+        }
+    }
+
+    // Quadrant of a midpoint ellipse: extents[dy] is the half-width of the row dy away from the center
+    private static final class Ellipse {
+        final int centerRow, centerCol;
+        final int oddRow, oddCol; // even-sized bounds have two center rows/cols
+        final int[] extents;
+
+        Ellipse(int row0, int col0, int row1, int col1) {
+            int top = Math.min(row0, row1), bottom = Math.max(row0, row1);
+            int left = Math.min(col0, col1), right = Math.max(col0, col1);
+            int a = (right - left) / 2;
+            int b = (bottom - top) / 2;
+            centerCol = left + a;
+            centerRow = top + b;
+            oddCol = (right - left) % 2;
+            oddRow = (bottom - top) % 2;
+            extents = quadrant(a, b);
+        }
+
+        void mirrorRows(int dy, IntConsumer action) {
+            action.accept(centerRow - dy);
+            if (dy != 0 || oddRow != 0) {
+                action.accept(centerRow + dy + oddRow);
+            }
+        }
+
+        private static int[] quadrant(int a, int b) {
+            int[] ext = new int[b + 1];
+            if (a == 0 || b == 0) {
+                Arrays.fill(ext, a);
+                return ext;
+            }
+            long a2 = (long) a * a, b2 = (long) b * b;
+            int x = 0, y = b;
+            long dx = 0, dy = 2 * a2 * y;
+            long d1 = b2 - a2 * b + a2 / 4;
+            while (dx < dy) {
+                ext[y] = Math.max(ext[y], x);
+                x++;
+                dx += 2 * b2;
+                if (d1 < 0) {
+                    d1 += dx + b2;
+                } else {
+                    y--;
+                    dy -= 2 * a2;
+                    d1 += dx - dy + b2;
+                }
+            }
+            double d2 = b2 * (x + 0.5) * (x + 0.5) + a2 * (double) (y - 1) * (y - 1) - (double) a2 * b2;
+            while (y >= 0) {
+                ext[y] = Math.max(ext[y], x);
+                y--;
+                dy -= 2 * a2;
+                if (d2 > 0) {
+                    d2 += a2 - dy;
+                } else {
+                    x++;
+                    dx += 2 * b2;
+                    d2 += dx - dy + a2;
+                }
+            }
+            return ext;
+        }
+    }
+}
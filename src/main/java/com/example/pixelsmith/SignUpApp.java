@@ -18,7 +18,7 @@ import java.net.http.HttpResponse;
 import java.util.Optional;
 
 public class SignUpApp extends Application {
-    private static final String BASE_URL = "http://localhost:8080/api/users";
+    private static final String BASE_URL = BackendUrl.API + "/users";
 
     @Override
     public void start(Stage primaryStage) {
@@ -101,7 +101,7 @@ public class SignUpApp extends Application {
 
     private boolean signup(String username, String email, String password) throws Exception {
         HttpClient client = HttpClient.newHttpClient();
-        String url = "http://localhost:8080/api/users/signup";
+        String url = BASE_URL + "/signup";
         JSONObject requestBody = new JSONObject();
         requestBody.put("username", username);
         requestBody.put("email", email);
@@ -0,0 +1,343 @@
+package com.example.pixelsmith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Every saved version of each sprite, kept in ~/.pixelsmith/history as one append-only file
+ * per sprite id.
+ * <p>
+ * A version is stored as a delta: the TILE_SIZE tiles that changed since the version before,
+ * each XORed with its previous content and deflated, so unchanged cells compress to almost
+ * nothing and storage grows with what was actually painted. Every KEYFRAME_INTERVAL versions,
+ * after a resize, or when most of the sprite changed, the whole image is stored instead, which
+ * bounds the deltas any checkout has to apply. XOR deltas also run backwards, so a version
+ * close to the latest one (kept decoded) is reached by undoing the few deltas after it.
+ */
+public class SpriteHistory {
+    static final int TILE_SIZE = 32;
+    static final int KEYFRAME_INTERVAL = 16;
+    private static final int MAGIC = 0x50584831; // "PXH1"
+    private static final byte KEYFRAME = 1;
+    private static final byte DELTA = 2;
+    private static final int RECORD_HEADER_BYTES = 29; // number, saved at, kind, width, height, changed tiles, payload length
+    private static final int CACHED_CHAINS = 8;
+
+    // One stored version; offset and length locate its deflated payload in the history file
+    record Version(int number, long savedAt, boolean keyframe, int width, int height, int changedTiles, long offset, int length) {
+    }
+
+    // The versions of one sprite as read from its file, and the latest version decoded
+    private static final class Chain {
+        final Path file;
+        final List<Version> versions = new ArrayList<>();
+        long length; // end of the last complete record; anything after it is a torn write
+        Raster head;
+
+        Chain(Path file) {
+            this.file = file;
+        }
+
+        Version last() {
+            return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        }
+    }
+
+    private static SpriteHistory instance;
+
+    private final Path root;
+    private final Map<Integer, Integer> aliases = new HashMap<>(); // local sprite ids the backend has since replaced
+    private final LinkedHashMap<Integer, Chain> chains = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Chain> eldest) {
+            return size() > CACHED_CHAINS;
+        }
+    };
+
+    SpriteHistory(Path root) {
+        this.root = root;
+    }
+
+    static synchronized SpriteHistory getInstance() throws IOException {
+        if (instance == null) {
+            instance = new SpriteHistory(AppDirectories.resolve("history"));
+            SpriteOutbox.getInstance().addIdListener((localId, spriteId) -> {
+                try {
+                    if (spriteId != null) {
+                        instance.rename(localId, spriteId);
+                    } else {
+                        instance.discard(localId);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error moving the sprite's history: " + e.getMessage());
+                }
+            });
+        }
+        return instance;
+    }
+
+    synchronized List<Version> versions(int spriteId) throws IOException {
+        return List.copyOf(chain(spriteId).versions);
+    }
+
+    synchronized boolean hasVersions(int spriteId) throws IOException {
+        return !chain(spriteId).versions.isEmpty();
+    }
+
+    // Store the sprite as its next version; returns the version number, which is the latest one's when nothing changed
+    synchronized int record(int spriteId, Raster raster) throws IOException {
+        Chain chain = chain(spriteId);
+        Version last = chain.last();
+        if (last != null && chain.head == null) {
+            chain.head = checkout(chain, last.number());
+        }
+        Raster head = chain.head;
+        int number = last == null ? 1 : last.number() + 1;
+
+        boolean keyframe = head == null || head.width() != raster.width() || head.height() != raster.height()
+                || number - keyframeAtOrBefore(chain, last.number()) >= KEYFRAME_INTERVAL;
+        List<Integer> changed = keyframe ? List.of() : changedTiles(head, raster);
+        if (!keyframe && changed.isEmpty()) {
+            return last.number();
+        }
+        int tilesAcross = (raster.width() + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesAcross * ((raster.height() + TILE_SIZE - 1) / TILE_SIZE);
+        if (changed.size() * 2 > tileCount) {
+            keyframe = true; // about as large as a keyframe, and restores faster
+        }
+
+        byte[] payload = keyframe ? encodeKeyframe(raster) : encodeDelta(head, raster, changed);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        long savedAt = System.currentTimeMillis();
+        int changedTiles = keyframe ? tileCount : changed.size();
+        header.putInt(number).putLong(savedAt).put(keyframe ? KEYFRAME : DELTA).putInt(raster.width())
+                .putInt(raster.height()).putInt(changedTiles).putInt(payload.length).flip();
+
+        try (FileChannel channel = FileChannel.open(chain.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (chain.length == 0) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(4).putInt(MAGIC).flip(), 0);
+                chain.length = 4;
+            }
+            channel.truncate(chain.length); // drop a record torn by a crash
+            channel.position(chain.length);
+            ByteBuffer body = ByteBuffer.wrap(payload);
+            while (body.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, body});
+            }
+        }
+        long offset = chain.length + RECORD_HEADER_BYTES;
+        chain.versions.add(new Version(number, savedAt, keyframe, raster.width(), raster.height(), changedTiles, offset, payload.length));
+        chain.length = offset + payload.length;
+        chain.head = raster;
+        return number;
+    }
+
+    // Decode one version of the sprite
+    synchronized Raster checkout(int spriteId, int number) throws IOException {
+        return checkout(chain(spriteId), number);
+    }
+
+    // The backend has assigned spriteId to a sprite saved under localId; keep its history under the real id
+    synchronized void rename(int localId, int spriteId) throws IOException {
+        aliases.put(localId, spriteId);
+        chains.remove(localId);
+        Path from = fileFor(localId);
+        if (Files.exists(from)) {
+            Files.move(from, fileFor(spriteId), StandardCopyOption.REPLACE_EXISTING);
+        }
+        chains.remove(spriteId);
+    }
+
+    // The sprite will never exist under this id; its versions go with it
+    synchronized void discard(int spriteId) throws IOException {
+        chains.remove(spriteId);
+        Files.deleteIfExists(fileFor(spriteId));
+    }
+
+    private Raster checkout(Chain chain, int number) throws IOException {
+        if (number < 1 || number > chain.versions.size()) {
+            throw new IOException("No version " + number + " in " + chain.file);
+        }
+        int latest = chain.versions.size();
+        int keyframe = keyframeAtOrBefore(chain, number);
+        // Walking back from the decoded latest version works as long as no keyframe breaks the chain of deltas
+        boolean backward = chain.head != null && keyframeAtOrBefore(chain, latest) <= number && latest - number < number - keyframe;
+
+        try (RandomAccessFile file = new RandomAccessFile(chain.file.toFile(), "r")) {
+            int[] argb;
+            Version base;
+            if (backward) {
+                base = chain.versions.get(latest - 1);
+                argb = chain.head.argb().clone();
+                for (int n = latest; n > number; n--) {
+                    applyDelta(argb, base.width(), base.height(), readPayload(file, chain.versions.get(n - 1)));
+                }
+            } else {
+                base = chain.versions.get(keyframe - 1);
+                argb = new int[base.width() * base.height()];
+                ByteBuffer.wrap(readPayload(file, base)).asIntBuffer().get(argb);
+                for (int n = keyframe + 1; n <= number; n++) {
+                    applyDelta(argb, base.width(), base.height(), readPayload(file, chain.versions.get(n - 1)));
+                }
+            }
+            return new Raster(base.width(), base.height(), argb);
+        }
+    }
+
+    private static int keyframeAtOrBefore(Chain chain, int number) {
+        for (int n = number; n > 1; n--) {
+            if (chain.versions.get(n - 1).keyframe()) {
+                return n;
+            }
+        }
+        return 1;
+    }
+
+    private Chain chain(int spriteId) throws IOException {
+        int id = aliases.getOrDefault(spriteId, spriteId);
+        Chain chain = chains.get(id);
+        if (chain == null) {
+            chain = load(fileFor(id));
+            chains.put(id, chain);
+        }
+        return chain;
+    }
+
+    // Index a history file from its record headers; the payloads are only read on checkout
+    private static Chain load(Path path) throws IOException {
+        Chain chain = new Chain(path);
+        if (!Files.exists(path)) {
+            return chain;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            long size = file.length();
+            if (size < 4 || file.readInt() != MAGIC) {
+                System.out.println("Ignoring unreadable sprite history " + path);
+                return chain;
+            }
+            long position = 4;
+            while (position + RECORD_HEADER_BYTES <= size) {
+                file.seek(position);
+                int number = file.readInt();
+                long savedAt = file.readLong();
+                boolean keyframe = file.readByte() == KEYFRAME;
+                int width = file.readInt();
+                int height = file.readInt();
+                int changedTiles = file.readInt();
+                int length = file.readInt();
+                long offset = position + RECORD_HEADER_BYTES;
+                if (number != chain.versions.size() + 1 || offset + length > size) {
+                    break;
+                }
+                chain.versions.add(new Version(number, savedAt, keyframe, width, height, changedTiles, offset, length));
+                position = offset + length;
+            }
+            chain.length = position;
+        }
+        return chain;
+    }
+
+    private Path fileFor(int spriteId) {
+        return root.resolve("sprite-" + spriteId + ".pxh");
+    }
+
+    // Tiles, in tile order, holding any cell that differs between two images of the same size
+    private static List<Integer> changedTiles(Raster before, Raster after) {
+        int width = after.width();
+        int height = after.height();
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        List<Integer> changed = new ArrayList<>();
+        for (int top = 0; top < height; top += TILE_SIZE) {
+            for (int left = 0; left < width; left += TILE_SIZE) {
+                int right = Math.min(left + TILE_SIZE, width);
+                for (int row = top; row < Math.min(top + TILE_SIZE, height); row++) {
+                    int start = row * width;
+                    if (!Arrays.equals(before.argb(), start + left, start + right, after.argb(), start + left, start + right)) {
+                        changed.add(top / TILE_SIZE * tilesAcross + left / TILE_SIZE);
+                        break;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static byte[] encodeKeyframe(Raster raster) throws IOException {
+        ByteBuffer pixels = ByteBuffer.allocate(raster.argb().length * 4);
+        pixels.asIntBuffer().put(raster.argb());
+        return deflate(pixels.array());
+    }
+
+    // Each changed tile: its index, then its cells XOR their previous values
+    private static byte[] encodeDelta(Raster before, Raster after, List<Integer> tiles) throws IOException {
+        int width = after.width();
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        ByteBuffer delta = ByteBuffer.allocate(tiles.size() * (4 + TILE_SIZE * TILE_SIZE * 4));
+        for (int tile : tiles) {
+            delta.putInt(tile);
+            int top = tile / tilesAcross * TILE_SIZE;
+            int left = tile % tilesAcross * TILE_SIZE;
+            int right = Math.min(left + TILE_SIZE, width);
+            for (int row = top; row < Math.min(top + TILE_SIZE, after.height()); row++) {
+                for (int i = row * width + left; i < row * width + right; i++) {
+                    delta.putInt(before.argb()[i] ^ after.argb()[i]);
+                }
+            }
+        }
+        return deflate(Arrays.copyOf(delta.array(), delta.position()));
+    }
+
+    // XOR a delta into an image; the same step moves a version forward or back
+    private static void applyDelta(int[] argb, int width, int height, byte[] delta) {
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        IntBuffer in = ByteBuffer.wrap(delta).asIntBuffer();
+        while (in.hasRemaining()) {
+            int tile = in.get();
+            int top = tile / tilesAcross * TILE_SIZE;
+            int left = tile % tilesAcross * TILE_SIZE;
+            int right = Math.min(left + TILE_SIZE, width);
+            for (int row = top; row < Math.min(top + TILE_SIZE, height); row++) {
+                for (int i = row * width + left; i < row * width + right; i++) {
+                    argb[i] ^= in.get();
+                }
+            }
+        }
+    }
+
+    private static byte[] readPayload(RandomAccessFile file, Version version) throws IOException {
+        byte[] compressed = new byte[version.length()];
+        file.seek(version.offset());
+        file.readFully(compressed);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] deflate(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 8));
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED))) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+}
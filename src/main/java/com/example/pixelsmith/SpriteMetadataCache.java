@@ -0,0 +1,251 @@
+package com.example.pixelsmith;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side cache of sprite metadata (name, path, owner, version) by sprite id.
+ * <p>
+ * Entries expire after {@code -Dpixelsmith.metadataTtlSeconds} (60 by default) and the least
+ * recently used are evicted past {@code -Dpixelsmith.metadataCacheSize} entries (1024). Lookups
+ * for the same id share one in-flight request, and ids looked up within a few milliseconds of each
+ * other are fetched together in one call to {@code POST /sprites/batch}. If the backend has no
+ * batch endpoint the ids fall back to {@code GET /sprites/{id}/name} each, still coalesced; the
+ * metadata found that way holds only the name. Ids the backend answered for without knowing them
+ * are cached as misses for the same lifetime.
+ * Sprite lists the UI already fetched can be fed in with {@link #putAll} so opening one of those
+ * sprites needs no request at all.
+ */
+public class SpriteMetadataCache {
+    private static final String BASE_URL = BackendUrl.API;
+    private static final long BATCH_DELAY_MILLIS = 5;
+    private static final int MAX_BATCH = 100;
+
+    record SpriteMetadata(int spriteId, String name, String pathDirect, Integer ownerId, long version) {
+        // A sprite as the backend lists it: {spriteId, name, spriteData: {pathDirect}, user: {userId}, version}
+        static SpriteMetadata fromJson(JSONObject sprite) {
+            JSONObject data = sprite.optJSONObject("spriteData");
+            JSONObject user = sprite.optJSONObject("user");
+            return new SpriteMetadata(sprite.getInt("spriteId"), sprite.optString("name", null),
+                    data != null ? data.optString("pathDirect", null) : sprite.optString("pathDirect", null),
+                    user != null && user.has("userId") ? user.getInt("userId") : null,
+                    sprite.optLong("version", 0));
+        }
+    }
+
+    private record Entry(SpriteMetadata metadata, long expiresAt) { // metadata is null for an unknown sprite
+    }
+
+    private static SpriteMetadataCache instance;
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<Integer, Entry> entries;
+    private final Map<Integer, CompletableFuture<SpriteMetadata>> inFlight = new HashMap<>();
+    private final List<Integer> queued = new ArrayList<>();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sprite-metadata");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean batchSupported = true;
+
+    private SpriteMetadataCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > SpriteMetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    public static synchronized SpriteMetadataCache getInstance() {
+        if (instance == null) {
+            instance = new SpriteMetadataCache(Long.getLong("pixelsmith.metadataTtlSeconds", 60) * 1000,
+                    Integer.getInteger("pixelsmith.metadataCacheSize", 1024));
+        }
+        return instance;
+    }
+
+    // Metadata for one sprite; completes with null if the backend does not know it or cannot be reached
+    synchronized CompletableFuture<SpriteMetadata> get(int spriteId) {
+        if (spriteId < 0) {
+            return CompletableFuture.completedFuture(null); // only exists locally until the outbox creates it
+        }
+        Entry cached = fresh(spriteId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.metadata());
+        }
+        CompletableFuture<SpriteMetadata> pending = inFlight.get(spriteId);
+        if (pending == null) {
+            pending = new CompletableFuture<>();
+            inFlight.put(spriteId, pending);
+            queued.add(spriteId);
+            if (queued.size() == 1) {
+                scheduler.schedule(this::flush, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return pending;
+    }
+
+    // Metadata for many sprites, fetched in as few requests as possible; unknown ids are left out
+    CompletableFuture<Map<Integer, SpriteMetadata>> getAll(Collection<Integer> spriteIds) {
+        Map<Integer, CompletableFuture<SpriteMetadata>> lookups = new LinkedHashMap<>();
+        for (int spriteId : spriteIds) {
+            lookups.put(spriteId, get(spriteId));
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<Integer, SpriteMetadata> found = new LinkedHashMap<>();
+            lookups.forEach((spriteId, lookup) -> {
+                SpriteMetadata metadata = lookup.join();
+                if (metadata != null) {
+                    found.put(spriteId, metadata);
+                }
+            });
+            return found;
+        });
+    }
+
+    // The cached metadata if it is still fresh, without asking the backend
+    synchronized SpriteMetadata cached(int spriteId) {
+        Entry entry = fresh(spriteId);
+        return entry != null ? entry.metadata() : null;
+    }
+
+    private Entry fresh(int spriteId) {
+        Entry entry = entries.get(spriteId);
+        if (entry != null && entry.expiresAt() < System.currentTimeMillis()) {
+            entries.remove(spriteId);
+            return null;
+        }
+        return entry;
+    }
+
+    // Store sprites the caller has already fetched, e.g. a user's sprite list
+    synchronized void putAll(Collection<SpriteMetadata> sprites) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        for (SpriteMetadata metadata : sprites) {
+            entries.put(metadata.spriteId(), new Entry(metadata, expiresAt));
+        }
+    }
+
+    // Drop a sprite whose metadata has just changed on the backend
+    synchronized void invalidate(int spriteId) {
+        entries.remove(spriteId);
+    }
+
+    private void flush() {
+        List<Integer> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(queued);
+            queued.clear();
+        }
+        for (int from = 0; from < batch.size(); from += MAX_BATCH) {
+            List<Integer> ids = batch.subList(from, Math.min(batch.size(), from + MAX_BATCH));
+            if (batchSupported) {
+                fetchBatch(ids);
+            } else {
+                ids.forEach(this::fetchOne);
+            }
+        }
+    }
+
+    private void fetchBatch(List<Integer> ids) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL + "/sprites/batch"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(15))
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("ids", new JSONArray(ids)).toString()))
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            int status = response == null ? -1 : response.statusCode();
+            if (status == 404 || status == 405 || status == 501) {
+                // An older backend; remember that and ask for each sprite on its own
+                batchSupported = false;
+                ids.forEach(this::fetchOne);
+                return;
+            }
+            List<SpriteMetadata> found = new ArrayList<>();
+            boolean answered = false;
+            if (status == 200) {
+                try {
+                    JSONArray sprites = new JSONArray(response.body());
+                    for (int i = 0; i < sprites.length(); i++) {
+                        found.add(SpriteMetadata.fromJson(sprites.getJSONObject(i)));
+                    }
+                    answered = true;
+                } catch (Exception e) {
+                    System.err.println("Unreadable sprite metadata batch: " + e.getMessage());
+                }
+            } else {
+                System.err.println("Fetching sprite metadata failed ("
+                        + (error != null ? error.getMessage() : "status " + status) + ")");
+            }
+            resolve(ids, found, answered);
+        });
+    }
+
+    // The name endpoint every backend has; the sprite's path and owner are not known this way
+    private void fetchOne(int spriteId) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL + "/sprites/" + spriteId + "/name"))
+                .timeout(Duration.ofSeconds(15))
+                .GET()
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            int status = response == null ? -1 : response.statusCode();
+            List<SpriteMetadata> found = new ArrayList<>();
+            if (status == 200) {
+                found.add(new SpriteMetadata(spriteId, response.body(), null, null, 0));
+            } else if (status != 404) {
+                System.err.println("Fetching metadata for sprite " + spriteId + " failed ("
+                        + (error != null ? error.getMessage() : "status " + status) + ")");
+            }
+            resolve(List.of(spriteId), found, status == 200 || status == 404);
+        });
+    }
+
+    // Cache what came back, and as misses the ids an answering backend did not know, then complete every
+    // lookup that was waiting on these ids
+    private void resolve(List<Integer> ids, List<SpriteMetadata> found, boolean answered) {
+        Map<Integer, SpriteMetadata> byId = new HashMap<>();
+        List<CompletableFuture<SpriteMetadata>> waiting = new ArrayList<>();
+        synchronized (this) {
+            putAll(found);
+            for (SpriteMetadata metadata : found) {
+                byId.put(metadata.spriteId(), metadata);
+            }
+            long expiresAt = System.currentTimeMillis() + ttlMillis;
+            for (int spriteId : ids) {
+                if (answered && !byId.containsKey(spriteId)) {
+                    entries.put(spriteId, new Entry(null, expiresAt));
+                }
+                waiting.add(inFlight.remove(spriteId));
+            }
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            if (waiting.get(i) != null) {
+                waiting.get(i).complete(byId.get(ids.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.pixelsmith;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent write-behind queue for sprite create and update calls.
+ * <p>
+ * Requests are written to ~/.pixelsmith/outbox.json before {@code enqueue*} returns, so a save
+ * never waits on the backend and nothing is lost if it is down. Requests for one sprite are sent
+ * one at a time, oldest first, so a retried request can never land after a newer one; a new
+ * update merges into the newest request for the sprite that has not been sent yet, and an update
+ * to a sprite that has not been created yet is folded into its create. Sprites created offline
+ * get a negative local id until the backend assigns the real one; listeners are told when that
+ * happens, or when the backend refuses the create and everything queued for the sprite is dropped.
+ */
+public class SpriteOutbox {
+    private static final String BASE_URL = BackendUrl.API;
+    private static final int BATCH_SIZE = 16;
+    private static final long POLL_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    enum Kind {CREATE, UPDATE}
+
+    static class Entry {
+        Kind kind;
+        int spriteId; // negative while the sprite only exists locally
+        String name;
+        String pathDirect;
+        Integer userId;
+        int attempts;
+        long nextAttemptAt;
+        boolean inFlight;
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("kind", kind.name())
+                    .put("spriteId", spriteId)
+                    .put("name", name)
+                    .put("pathDirect", pathDirect)
+                    .put("userId", userId == null ? JSONObject.NULL : userId)
+                    .put("attempts", attempts);
+        }
+
+        static Entry fromJson(JSONObject json) {
+            Entry entry = new Entry();
+            entry.kind = Kind.valueOf(json.getString("kind"));
+            entry.spriteId = json.getInt("spriteId");
+            entry.name = json.getString("name");
+            entry.pathDirect = json.getString("pathDirect");
+            entry.userId = json.isNull("userId") ? null : json.getInt("userId");
+            entry.attempts = json.getInt("attempts");
+            return entry;
+        }
+    }
+
+    private static SpriteOutbox instance;
+
+    private final Path file;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<BiConsumer<Integer, Integer>> idListeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<Integer, Boolean>> sentListeners = new CopyOnWriteArrayList<>();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sprite-outbox");
+        t.setDaemon(true);
+        return t;
+    });
+    private int nextLocalId = -1;
+
+    private SpriteOutbox(Path file) {
+        this.file = file;
+        load();
+        worker.scheduleWithFixedDelay(this::drain, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized SpriteOutbox getInstance() {
+        if (instance == null) {
+            Path file;
+            try {
+                file = AppDirectories.resolve("outbox").resolve("outbox.json");
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create outbox directory", e);
+            }
+            instance = new SpriteOutbox(file);
+        }
+        return instance;
+    }
+
+    // Called with (localId, spriteId) once a sprite created offline exists on the backend, or with (localId, null)
+    // if the backend refused to create it
+    void addIdListener(BiConsumer<Integer, Integer> listener) {
+        idListeners.add(listener);
+    }
+
+    void removeIdListener(BiConsumer<Integer, Integer> listener) {
+        idListeners.remove(listener);
+    }
+
+    // Called with (spriteId, accepted) when a request leaves the queue, accepted or refused by the backend; the id
+    // is the one it was sent under, so the local id for a create
+    void addSentListener(BiConsumer<Integer, Boolean> listener) {
+        sentListeners.add(listener);
+    }
+
+    void removeSentListener(BiConsumer<Integer, Boolean> listener) {
+        sentListeners.remove(listener);
+    }
+
+    // Queues a new sprite and returns the local id to use for it until the backend assigns one
+    synchronized int enqueueCreate(String name, int userId, String pathDirect) {
+        Entry entry = new Entry();
+        entry.kind = Kind.CREATE;
+        entry.spriteId = nextLocalId--;
+        entry.name = name;
+        entry.pathDirect = pathDirect;
+        entry.userId = userId;
+        entries.add(entry);
+        persist();
+        worker.execute(this::drain);
+        return entry.spriteId;
+    }
+
+    // Queues a rename/update; the newest request for the same sprite absorbs it unless it is already being sent
+    synchronized void enqueueUpdate(int spriteId, String name, String pathDirect) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry pending = entries.get(i);
+            if (pending.spriteId != spriteId) {
+                continue;
+            }
+            if (!pending.inFlight) {
+                pending.name = name;
+                pending.pathDirect = pathDirect;
+                persist();
+                worker.execute(this::drain);
+                return;
+            }
+            break;
+        }
+        Entry entry = new Entry();
+        entry.kind = Kind.UPDATE;
+        entry.spriteId = spriteId;
+        entry.name = name;
+        entry.pathDirect = pathDirect;
+        entries.add(entry);
+        persist();
+        worker.execute(this::drain);
+    }
+
+    synchronized int pendingCount() {
+        return entries.size();
+    }
+
+    private void drain() {
+        List<Entry> batch = takeBatch();
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (Entry entry : batch) {
+            calls.add(client.sendAsync(buildRequest(entry), HttpResponse.BodyHandlers.ofString())
+                    .handle((response, error) -> {
+                        complete(entry, response, error);
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private synchronized List<Entry> takeBatch() {
+        long now = System.currentTimeMillis();
+        List<Entry> batch = new ArrayList<>();
+        Set<Integer> waiting = new HashSet<>(); // sprites with an older request still queued or being sent
+        for (Entry entry : entries) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            if (!waiting.add(entry.spriteId)) {
+                continue; // only the oldest request for a sprite may go
+            }
+            // Updates to a sprite whose create is still pending have to wait for its real id
+            boolean ready = entry.kind == Kind.CREATE || entry.spriteId >= 0;
+            if (ready && !entry.inFlight && entry.nextAttemptAt <= now) {
+                entry.inFlight = true;
+                batch.add(entry);
+            }
+        }
+        return batch;
+    }
+
+    private HttpRequest buildRequest(Entry entry) {
+        JSONObject requestBody = new JSONObject();
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(15));
+        if (entry.kind == Kind.CREATE) {
+            requestBody.put("name", entry.name);
+            requestBody.put("user", new JSONObject().put("userId", entry.userId));
+            requestBody.put("spriteData", new JSONObject().put("pathDirect", entry.pathDirect));
+            builder.uri(URI.create(BASE_URL + "/sprites/create"))
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()));
+        } else {
+            requestBody.put("spriteId", entry.spriteId);
+            requestBody.put("name", entry.name);
+            requestBody.put("pathDirect", entry.pathDirect);
+            builder.uri(URI.create(BASE_URL + "/sprites/" + entry.spriteId))
+                    .PUT(HttpRequest.BodyPublishers.ofString(requestBody.toString()));
+        }
+        return builder.build();
+    }
+
+    private void complete(Entry entry, HttpResponse<String> response, Throwable error) {
+        int status = response == null ? -1 : response.statusCode();
+        Integer resolvedId = null;
+        boolean refused = false;
+        Boolean sent = null;
+        Integer createdId = entry.kind == Kind.CREATE && status >= 200 && status < 300 ? parseSpriteId(response.body()) : null;
+
+        synchronized (this) {
+            entry.inFlight = false;
+            if (status >= 200 && status < 300 && (entry.kind != Kind.CREATE || createdId != null)) {
+                entries.remove(entry);
+                sent = true;
+                // A local id was never cached; the backend's id for a new sprite is
+                SpriteMetadataCache.getInstance().invalidate(entry.kind == Kind.CREATE ? createdId : entry.spriteId);
+                if (entry.kind == Kind.CREATE) {
+                    resolvedId = createdId;
+                    for (Entry pending : entries) {
+                        if (pending.spriteId == entry.spriteId) {
+                            pending.spriteId = resolvedId;
+                        }
+                    }
+                }
+            } else if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                // The backend rejected it; retrying won't change the answer
+                entries.remove(entry);
+                sent = false;
+                System.err.println("Dropping sprite " + entry.kind + " for " + entry.spriteId + ". Server responded with status: " + status);
+                if (entry.kind == Kind.CREATE) {
+                    // Nothing queued under the local id can ever be sent
+                    refused = true;
+                    entries.removeIf(pending -> pending.spriteId == entry.spriteId);
+                }
+            } else {
+                entry.attempts++;
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(entry.attempts, 16));
+                entry.nextAttemptAt = System.currentTimeMillis() + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                System.err.println("Sprite " + entry.kind + " for " + entry.spriteId + " failed ("
+                        + (error != null ? error.getMessage() : "status " + status) + "), retrying in " + backoff + " ms");
+            }
+            persist();
+        }
+
+        if (resolvedId != null || refused) {
+            for (BiConsumer<Integer, Integer> listener : idListeners) {
+                listener.accept(entry.spriteId, resolvedId);
+            }
+        }
+        if (sent != null) {
+            for (BiConsumer<Integer, Boolean> listener : sentListeners) {
+                listener.accept(entry.spriteId, sent);
+            }
+        }
+    }
+
+    private Integer parseSpriteId(String body) {
+        try {
+            return new JSONObject(body).getInt("spriteId");
+        } catch (Exception e) {
+            System.err.println("Sprite create answered without a spriteId, will retry: " + body);
+            return null;
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+            nextLocalId = json.getInt("nextLocalId");
+            JSONArray pending = json.getJSONArray("entries");
+            Set<Integer> creating = new HashSet<>();
+            for (int i = 0; i < pending.length(); i++) {
+                Entry entry = Entry.fromJson(pending.getJSONObject(i));
+                if (entry.kind == Kind.CREATE) {
+                    creating.add(entry.spriteId);
+                } else if (entry.spriteId < 0 && !creating.contains(entry.spriteId)) {
+                    // Left behind by a create that was dropped; it could never be sent
+                    System.err.println("Dropping sprite UPDATE for " + entry.spriteId + ": its create was refused");
+                    continue;
+                }
+                entries.add(entry);
+            }
+        } catch (Exception e) {
+            System.err.println("Error reading sprite outbox, starting empty: " + e.getMessage());
+        }
+    }
+
+    // Rewrites the whole queue atomically; it is small and only changes on enqueue and completion
+    private void persist() {
+        JSONArray pending = new JSONArray();
+        for (Entry entry : entries) {
+            pending.put(entry.toJson());
+        }
+        JSONObject json = new JSONObject().put("nextLocalId", nextLocalId).put("entries", pending);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, json.toString(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error writing sprite outbox: " + e.getMessage());
+        }
+    }
+}
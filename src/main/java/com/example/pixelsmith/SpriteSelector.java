@@ -14,28 +14,43 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import org.json.JSONArray;
-import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SpriteSelector extends Application {
-    private static final String BASE_URL = "http://localhost:8080/api";
+    private static final String BASE_URL = BackendUrl.API;
+    private static final HttpClient CLIENT = HttpClient.newHttpClient();
+    private static final ExecutorService THUMBNAIL_DECODERS = Executors.newVirtualThreadPerTaskExecutor();
     private Integer userId;
     private TilePane tilePane = new TilePane();
-    private Map<Integer, String> spritePaths = new HashMap<>();
+    private CompletableFuture<List<Listing>> prefetched; // started at login, shown on the first populate
+
+    // A listed sprite with its decoded thumbnail
+    record Listing(SpriteMetadataCache.SpriteMetadata sprite, Image thumbnail) {
+    }
 
     public SpriteSelector(Integer userId) {
         this.userId = userId;
     }
 
+    SpriteSelector(Integer userId, CompletableFuture<List<Listing>> prefetched) {
+        this.userId = userId;
+        this.prefetched = prefetched;
+    }
+
     @Override
     public void start(Stage primaryStage) {
         tilePane.setPadding(new Insets(15, 15, 15, 15));
@@ -80,9 +95,7 @@ public class SpriteSelector extends Application {
 
     private void createAndOpenNewSprite() {
         try {
-            PixelArtEditor editor = PixelArtEditor.getInstance();
-            Stage editorStage = new Stage();
-            editor.createNewSpriteEditor("New Sprite");
+            EditorWindow.getInstance().newSprite("New Sprite");
             tilePane.getChildren().clear();
             populateSpriteList();
         } catch (Exception ex) {
@@ -90,57 +103,113 @@ public class SpriteSelector extends Application {
         }
     }
 
+    // Show the user's sprites once they and their thumbnails have arrived; the window stays responsive meanwhile
     private void populateSpriteList() {
+        CompletableFuture<List<Listing>> listings = prefetched != null ? prefetched : fetchListings(userId);
+        prefetched = null;
+        listings.thenAccept(listed -> Platform.runLater(() -> {
+            tilePane.getChildren().clear();
+            listed.forEach(this::addSpriteTile);
+        }));
+    }
+
+    // Fetch a user's sprite list and decode every thumbnail at once on virtual threads, all off the JavaFX thread
+    static CompletableFuture<List<Listing>> fetchListings(int userId) {
+        return fetchSprites(userId).thenCompose(listed -> {
+            List<CompletableFuture<Listing>> decoded = new ArrayList<>();
+            for (SpriteMetadataCache.SpriteMetadata sprite : listed) {
+                decoded.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new Listing(sprite, loadThumbnail(sprite.pathDirect()));
+                    } catch (RuntimeException e) {
+                        // One unreadable thumbnail should not hide the rest of the gallery
+                        System.out.println("Error loading thumbnail " + sprite.pathDirect() + ": " + e.getMessage());
+                        return new Listing(sprite, null);
+                    }
+                }, THUMBNAIL_DECODERS));
+            }
+            return CompletableFuture.allOf(decoded.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(done -> decoded.stream().map(CompletableFuture::join).toList());
+        });
+    }
+
+    // A user's sprite list, also fed to the metadata cache; empty if it could not be fetched
+    static CompletableFuture<List<SpriteMetadataCache.SpriteMetadata>> fetchSprites(int userId) {
         String url = BASE_URL + "/sprites/user/" + userId;
-        HttpClient client = HttpClient.newHttpClient();
         HttpRequest request = HttpRequest.newBuilder().uri(URI.create(url)).GET().build();
 
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                JSONArray sprites = new JSONArray(response.body());
-                for (int i = 0; i < sprites.length(); i++) {
-                    JSONObject sprite = sprites.getJSONObject(i);
-                    int spriteId = sprite.getInt("spriteId");  // Assume there is an "id" field in the JSON
-                    String spriteName = sprite.getString("name");
-                    String pathDirect = sprite.getJSONObject("spriteData").getString("pathDirect");
-
-                    spritePaths.put(spriteId, pathDirect);  // Store by ID
-
-                    Image spriteImage = new Image(new File(pathDirect).toURI().toString(), true);
-                    ImageView imageView = new ImageView(spriteImage);
-                    imageView.setFitHeight(100);
-                    imageView.setFitWidth(100);
-
-                    Text spriteText = new Text(spriteName);
-                    VBox spriteBox = new VBox(5, imageView, spriteText);
-                    spriteBox.setStyle("-fx-padding: 10; " +
-                            "-fx-border-style: solid inside; " +
-                            "-fx-border-width: 2; " +
-                            "-fx-border-insets: 5; " +
-                            "-fx-border-radius: 5; " +
-                            "-fx-border-color: #555; " +
-                            "-fx-background-color: #333333; " +
-                            "-fx-effect: dropshadow(three-pass-box, rgba(0,0,0,0.8), 10, 0, 0, 0);");
-                    spriteBox.setAlignment(Pos.CENTER);
-                    spriteBox.setOnMouseClicked(e -> openSpriteInEditor(spriteId));  // Pass ID
-                    tilePane.getChildren().add(spriteBox);
-                }
+        return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                System.out.println("Listing sprites failed. Status: " + response.statusCode());
+                return List.<SpriteMetadataCache.SpriteMetadata>of();
             }
-        } catch (Exception ex) {
+            JSONArray sprites = new JSONArray(response.body());
+            List<SpriteMetadataCache.SpriteMetadata> listed = new ArrayList<>();
+            for (int i = 0; i < sprites.length(); i++) {
+                listed.add(SpriteMetadataCache.SpriteMetadata.fromJson(sprites.getJSONObject(i)));
+            }
+            // Opening any listed sprite then needs no further request
+            SpriteMetadataCache.getInstance().putAll(listed);
+            return listed;
+        }).exceptionally(ex -> {
             System.out.println("HTTP Request failed: " + ex.getMessage());
             ex.printStackTrace();
+            return List.of();
+        });
+    }
+
+    private void addSpriteTile(Listing listing) {
+        int spriteId = listing.sprite().spriteId();
+        ImageView imageView = new ImageView(listing.thumbnail());
+        imageView.setFitHeight(100);
+        imageView.setFitWidth(100);
+
+        Text spriteText = new Text(listing.sprite().name());
+        VBox spriteBox = new VBox(5, imageView, spriteText);
+        spriteBox.setStyle("-fx-padding: 10; " +
+                "-fx-border-style: solid inside; " +
+                "-fx-border-width: 2; " +
+                "-fx-border-insets: 5; " +
+                "-fx-border-radius: 5; " +
+                "-fx-border-color: #555; " +
+                "-fx-background-color: #333333; " +
+                "-fx-effect: dropshadow(three-pass-box, rgba(0,0,0,0.8), 10, 0, 0, 0);");
+        spriteBox.setAlignment(Pos.CENTER);
+        String pathToSprite = listing.sprite().pathDirect();
+        spriteBox.setOnMouseClicked(e -> openSpriteInEditor(spriteId, pathToSprite));
+        tilePane.getChildren().add(spriteBox);
+    }
+
+    // Sprites kept in the tile store may never have had their PNG written. Decoded synchronously, since this runs
+    // on a decoder thread.
+    private static Image loadThumbnail(String pathDirect) {
+        if (ProjectFile.isProject(pathDirect)) {
+            try {
+                return ProjectFile.read(Path.of(pathDirect)).toImage();
+            } catch (IOException e) {
+                System.out.println("Error reading project " + pathDirect + ": " + e.getMessage());
+                return null;
+            }
+        }
+        if (TileStore.isEnabled()) {
+            try {
+                Raster stored = TileStore.getInstance().load(pathDirect);
+                if (stored != null) {
+                    return stored.toImage();
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading sprite from tile store: " + e.getMessage());
+            }
         }
+        return new Image(new File(pathDirect).toURI().toString());
     }
 
-    private void openSpriteInEditor(int spriteId) {
-        String pathToSprite = spritePaths.get(spriteId);
+    // The path comes with the listing, so opening never waits on the backend
+    private void openSpriteInEditor(int spriteId, String pathToSprite) {
         if (pathToSprite != null && !pathToSprite.isEmpty()) {
             Platform.runLater(() -> {
                 try {
-                    PixelArtEditor editor = PixelArtEditor.getInstance();
-                    Stage editorStage = new Stage();
-                    editor.openSprite(spriteId, pathToSprite, editorStage);
+                    EditorWindow.getInstance().openSprite(spriteId, pathToSprite);
                 } catch (Exception e) {
                     System.out.println("Error opening sprite editor: " + e.getMessage());
                     e.printStackTrace();
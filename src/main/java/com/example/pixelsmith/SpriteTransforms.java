@@ -0,0 +1,194 @@
+package com.example.pixelsmith;
+
+/**
+ * Pixel-art aware resizing, rotation and flips of whole sprites.
+ * <p>
+ * Every transform takes a {@link Raster} with transparent background (as exported) and returns
+ * a new one; nothing is smoothed, so no colours are invented. Output rows are computed in
+ * parallel with {@link ParallelRows}.
+ */
+final class SpriteTransforms {
+    // RotSprite upscales 8x before rotating; larger sprites use fewer Scale2x passes to bound memory
+    private static final long MAX_ROTATION_CELLS = 1L << 26;
+
+    private SpriteTransforms() {
+    }
+
+    static Raster scaleNearest(Raster src, int factor) {
+        int width = src.width() * factor;
+        int height = src.height() * factor;
+        int[] out = new int[width * height];
+        ParallelRows.forEach(height, width, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int srcBase = (y / factor) * src.width();
+                for (int x = 0; x < width; x++) {
+                    out[y * width + x] = src.argb()[srcBase + x / factor];
+                }
+            }
+        });
+        return new Raster(width, height, out);
+    }
+
+    // Scale2x (also known as EPX): each pixel becomes 2x2, rounding corners where neighbours agree
+    static Raster scale2x(Raster src) {
+        int w = src.width(), h = src.height();
+        int[] in = src.argb();
+        int[] out = new int[w * h * 4];
+        int outWidth = w * 2;
+        ParallelRows.forEach(h, w * 4, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                for (int x = 0; x < w; x++) {
+                    int p = in[y * w + x];
+                    int a = in[Math.max(y - 1, 0) * w + x];
+                    int b = in[y * w + Math.min(x + 1, w - 1)];
+                    int c = in[y * w + Math.max(x - 1, 0)];
+                    int d = in[Math.min(y + 1, h - 1) * w + x];
+                    int top = 2 * y * outWidth + 2 * x;
+                    int bottom = top + outWidth;
+                    out[top] = c == a && c != d && a != b ? a : p;
+                    out[top + 1] = a == b && a != c && b != d ? b : p;
+                    out[bottom] = d == c && d != b && c != a ? c : p;
+                    out[bottom + 1] = b == d && b != a && d != c ? d : p;
+                }
+            }
+        });
+        return new Raster(outWidth, h * 2, out);
+    }
+
+    // Scale3x (AdvMAME3x): each pixel becomes 3x3 using its eight neighbours
+    static Raster scale3x(Raster src) {
+        int w = src.width(), h = src.height();
+        int[] in = src.argb();
+        int outWidth = w * 3;
+        int[] out = new int[w * h * 9];
+        ParallelRows.forEach(h, w * 9, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int up = Math.max(y - 1, 0) * w, mid = y * w, down = Math.min(y + 1, h - 1) * w;
+                for (int x = 0; x < w; x++) {
+                    int left = Math.max(x - 1, 0), right = Math.min(x + 1, w - 1);
+                    int a = in[up + left], b = in[up + x], c = in[up + right];
+                    int d = in[mid + left], e = in[mid + x], f = in[mid + right];
+                    int g = in[down + left], hh = in[down + x], i = in[down + right];
+                    int o = 3 * y * outWidth + 3 * x;
+                    boolean db = d == b && b != f && d != hh;
+                    boolean bf = b == f && b != d && f != hh;
+                    boolean dh = d == hh && d != b && hh != f;
+                    boolean hf = hh == f && d != hh && b != f;
+                    out[o] = db ? d : e;
+                    out[o + 1] = (db && e != c) || (bf && e != a) ? b : e;
+                    out[o + 2] = bf ? f : e;
+                    out[o + outWidth] = (db && e != g) || (dh && e != a) ? d : e;
+                    out[o + outWidth + 1] = e;
+                    out[o + outWidth + 2] = (bf && e != i) || (hf && e != c) ? f : e;
+                    out[o + 2 * outWidth] = dh ? d : e;
+                    out[o + 2 * outWidth + 1] = (dh && e != i) || (hf && e != g) ? hh : e;
+                    out[o + 2 * outWidth + 2] = hf ? f : e;
+                }
+            }
+        });
+        return new Raster(outWidth, h * 3, out);
+    }
+
+    // Rotate clockwise by any angle, RotSprite style: upscale 8x with Scale2x so edges are already smoothed
+    // into stair steps, rotate with nearest-neighbour sampling at that scale, and sample back down.
+    // Quarter turns are exact. The result grows to fit the rotated corners.
+    static Raster rotate(Raster src, double degrees) {
+        double normalized = ((degrees % 360) + 360) % 360;
+        if (normalized % 90 == 0) {
+            Raster out = src;
+            for (int i = 0; i < (int) (normalized / 90); i++) {
+                out = rotate90(out);
+            }
+            return out;
+        }
+
+        int passes = 3;
+        while (passes > 0 && ((long) src.width() * src.height() << (2 * passes)) > MAX_ROTATION_CELLS) {
+            passes--;
+        }
+        Raster big = src;
+        for (int i = 0; i < passes; i++) {
+            big = scale2x(big);
+        }
+        int factor = 1 << passes;
+
+        double radians = Math.toRadians(normalized);
+        double cos = Math.cos(radians), sin = Math.sin(radians);
+        int width = (int) Math.ceil(Math.abs(src.width() * cos) + Math.abs(src.height() * sin) - 1e-6);
+        int height = (int) Math.ceil(Math.abs(src.width() * sin) + Math.abs(src.height() * cos) - 1e-6);
+        double srcCenterX = src.width() / 2.0, srcCenterY = src.height() / 2.0;
+        double outCenterX = width / 2.0, outCenterY = height / 2.0;
+        int[] out = new int[width * height];
+        Raster upscaled = big;
+
+        ParallelRows.forEach(height, width, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                double dy = y + 0.5 - outCenterY;
+                for (int x = 0; x < width; x++) {
+                    // Rotate the output cell's centre back into the source
+                    double dx = x + 0.5 - outCenterX;
+                    int sx = (int) Math.floor((dx * cos + dy * sin + srcCenterX) * factor);
+                    int sy = (int) Math.floor((-dx * sin + dy * cos + srcCenterY) * factor);
+                    if (sx >= 0 && sy >= 0 && sx < upscaled.width() && sy < upscaled.height()) {
+                        out[y * width + x] = upscaled.argb()[sy * upscaled.width() + sx];
+                    }
+                }
+            }
+        });
+        return new Raster(width, height, out);
+    }
+
+    // A quarter turn clockwise
+    static Raster rotate90(Raster src) {
+        int w = src.width(), h = src.height();
+        int[] out = new int[w * h];
+        ParallelRows.forEach(w, h, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                for (int x = 0; x < h; x++) {
+                    out[y * h + x] = src.argb()[(h - 1 - x) * w + y];
+                }
+            }
+        });
+        return new Raster(h, w, out);
+    }
+
+    static Raster flipHorizontal(Raster src) {
+        int w = src.width();
+        int[] out = new int[src.argb().length];
+        ParallelRows.forEach(src.height(), w, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                for (int x = 0; x < w; x++) {
+                    out[y * w + x] = src.argb()[y * w + w - 1 - x];
+                }
+            }
+        });
+        return new Raster(w, src.height(), out);
+    }
+
+    static Raster flipVertical(Raster src) {
+        int w = src.width(), h = src.height();
+        int[] out = new int[src.argb().length];
+        ParallelRows.forEach(h, w, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                System.arraycopy(src.argb(), (h - 1 - y) * w, out, y * w, w);
+            }
+        });
+        return new Raster(w, h, out);
+    }
+
+    // New canvas size with the old image placed at (offsetX, offsetY); negative offsets crop
+    static Raster resize(Raster src, int width, int height, int offsetX, int offsetY) {
+        int[] out = new int[width * height];
+        int from = Math.max(0, offsetX);
+        int to = Math.min(width, offsetX + src.width());
+        ParallelRows.forEach(height, width, (rowStart, rowEnd) -> {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int srcY = y - offsetY;
+                if (srcY >= 0 && srcY < src.height() && from < to) {
+                    System.arraycopy(src.argb(), srcY * src.width() + from - offsetX, out, y * width + from, to - from);
+                }
+            }
+        });
+        return new Raster(width, height, out);
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.pixelsmith;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * A document kept as a tileset of distinct TILE_SIZE x TILE_SIZE tiles and a map saying which
+ * tile each map cell shows, flipped and rotated by three flag bits.
+ * <p>
+ * Every cell of the document reads through its map cell to one pixel of one tile, so writing a
+ * cell edits the tile and every instance of it changes at once; memory is the tileset plus one
+ * int per map cell. Tiles keep transparent pixels as 0 and the document's background (the
+ * checkerboard) is put back as they are read. Map cells on the right and bottom edge may reach
+ * past the document; their tiles are padded with transparent pixels. Like the rest of the
+ * canvas, a map must only be used from one thread.
+ */
+final class TileMap implements PixelStore {
+    static final int TILE_SIZE = ColorIndex.TILE_SIZE;
+    static final int FLIP_X = 1;    // mirrored left to right
+    static final int FLIP_Y = 2;    // mirrored top to bottom
+    static final int TRANSPOSE = 4; // swapped across the main diagonal, applied before the flips
+    private static final int CELLS = TILE_SIZE * TILE_SIZE;
+
+    // Told of every edit to the tiles or the map once the map is built, as the autosave journal wants them
+    interface Listener {
+        void tilePixel(int tile, int pixel, int value);
+
+        void placed(int cell, int entry);
+    }
+
+    // For each orientation, the tile pixel shown at each pixel of an instance
+    private static final int[][] ORIENT = new int[8][CELLS];
+    // The orientation an instance ends up in after being mirrored, flipped or turned 90 degrees clockwise on screen
+    private static final int[] MIRRORED = new int[8];
+    private static final int[] FLIPPED = new int[8];
+    private static final int[] ROTATED = new int[8];
+
+    static {
+        for (int flags = 0; flags < 8; flags++) {
+            for (int row = 0; row < TILE_SIZE; row++) {
+                for (int col = 0; col < TILE_SIZE; col++) {
+                    int r = (flags & FLIP_Y) != 0 ? TILE_SIZE - 1 - row : row;
+                    int c = (flags & FLIP_X) != 0 ? TILE_SIZE - 1 - col : col;
+                    ORIENT[flags][row * TILE_SIZE + col] = (flags & TRANSPOSE) != 0 ? c * TILE_SIZE + r : r * TILE_SIZE + c;
+                }
+            }
+        }
+        for (int flags = 0; flags < 8; flags++) {
+            MIRRORED[flags] = matching(flags, (row, col) -> row * TILE_SIZE + TILE_SIZE - 1 - col);
+            FLIPPED[flags] = matching(flags, (row, col) -> (TILE_SIZE - 1 - row) * TILE_SIZE + col);
+            ROTATED[flags] = matching(flags, (row, col) -> (TILE_SIZE - 1 - col) * TILE_SIZE + row);
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int across;
+    private final IntBinaryOperator background; // the colour a transparent cell shows at (row, col)
+    private final int[] map; // tile << 3 | flags for each map cell, row by row
+    private final List<int[]> tiles = new ArrayList<>();
+    private int[] instanceCounts = new int[16];
+    private int version; // bumped whenever the map changes
+    private int[][] instances; // cells showing each tile, rebuilt when the map has changed since
+    private int instancesVersion = -1;
+    private Listener listener;
+
+    private TileMap(int width, int height, IntBinaryOperator background) {
+        this.width = width;
+        this.height = height;
+        this.across = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.background = background;
+        this.map = new int[across * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+    }
+
+    // Split an image into tiles, sharing one tile between all blocks that are the same up to a flip or
+    // rotation; transparent pixels are 0
+    static TileMap fromRaster(Raster raster, IntBinaryOperator background) {
+        TileMap tileMap = new TileMap(raster.width(), raster.height(), background);
+        Map<IntBuffer, Integer> seen = new HashMap<>(); // every orientation of every tile so far, to its map entry
+        int[] block = new int[CELLS];
+        for (int cell = 0; cell < tileMap.map.length; cell++) {
+            int top = tileMap.cellTop(cell), left = tileMap.cellLeft(cell);
+            int length = Math.min(TILE_SIZE, raster.width() - left);
+            Arrays.fill(block, 0);
+            for (int row = 0; row < Math.min(TILE_SIZE, raster.height() - top); row++) {
+                System.arraycopy(raster.argb(), (top + row) * raster.width() + left, block, row * TILE_SIZE, length);
+            }
+            Integer entry = seen.get(IntBuffer.wrap(block));
+            if (entry == null) {
+                int tile = tileMap.tiles.size();
+                tileMap.tiles.add(block.clone());
+                for (int flags = 7; flags >= 0; flags--) {
+                    // Unflipped last, so a symmetric tile is placed the plain way
+                    seen.put(IntBuffer.wrap(oriented(block, flags)), tile << 3 | flags);
+                }
+                entry = tile << 3;
+            }
+            tileMap.map[cell] = entry;
+            tileMap.counted(entry >>> 3, 1);
+        }
+        return tileMap;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int cellsAcross() {
+        return across;
+    }
+
+    int cellCount() {
+        return map.length;
+    }
+
+    int cellAt(int row, int col) {
+        return row / TILE_SIZE * across + col / TILE_SIZE;
+    }
+
+    int cellTop(int cell) {
+        return cell / across * TILE_SIZE;
+    }
+
+    int cellLeft(int cell) {
+        return cell % across * TILE_SIZE;
+    }
+
+    // The tile and orientation shown in a map cell, as tile << 3 | flags
+    int entry(int cell) {
+        return map[cell];
+    }
+
+    int tileAt(int row, int col) {
+        return map[cellAt(row, col)] >>> 3;
+    }
+
+    // Tiles allocated so far, including any no longer placed anywhere
+    int tileCount() {
+        return tiles.size();
+    }
+
+    // Tiles placed at least once
+    int usedTileCount() {
+        int used = 0;
+        for (int tile = 0; tile < tiles.size(); tile++) {
+            if (instanceCounts[tile] > 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    int instanceCount(int tile) {
+        return instanceCounts[tile];
+    }
+
+    // The map cells showing a tile, first to last
+    int[] instances(int tile) {
+        if (instancesVersion != version || instances.length != tiles.size()) {
+            instances = new int[tiles.size()][];
+            for (int t = 0; t < instances.length; t++) {
+                instances[t] = new int[instanceCounts[t]];
+            }
+            int[] filled = new int[instances.length];
+            for (int cell = 0; cell < map.length; cell++) {
+                int t = map[cell] >>> 3;
+                instances[t][filled[t]++] = cell;
+            }
+            instancesVersion = version;
+        }
+        return instances[tile];
+    }
+
+    int version() {
+        return version;
+    }
+
+    int[] copyMap() {
+        return map.clone();
+    }
+
+    int[] copyTile(int tile) {
+        return tiles.get(tile).clone();
+    }
+
+    void readTile(int tile, int[] dst, int dstOffset) {
+        System.arraycopy(tiles.get(tile), 0, dst, dstOffset, CELLS);
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // A tile pixel as the index counts it: what an unflipped instance at an even cell would show
+    int canonicalPixel(int tile, int pixel) {
+        int argb = tiles.get(tile)[pixel];
+        return argb != 0 ? argb : background.applyAsInt(pixel / TILE_SIZE, pixel % TILE_SIZE);
+    }
+
+    // The canonical value of the tile pixel a document cell shows
+    int canonicalAt(int row, int col) {
+        int entry = map[cellAt(row, col)];
+        return canonicalPixel(entry >>> 3, ORIENT[entry & 7][(row % TILE_SIZE) * TILE_SIZE + col % TILE_SIZE]);
+    }
+
+    // The two colours the background shows, on even and odd cells
+    int[] backgroundColors() {
+        return new int[]{background.applyAsInt(0, 0), background.applyAsInt(0, 1)};
+    }
+
+    // Show a tile in a map cell; returns the entry it replaced
+    int place(int cell, int tile, int flags) {
+        int previous = map[cell];
+        counted(previous >>> 3, -1);
+        counted(tile, 1);
+        map[cell] = tile << 3 | flags;
+        version++;
+        if (listener != null) {
+            listener.placed(cell, map[cell]);
+        }
+        return previous;
+    }
+
+    // A tile id placed nowhere, its pixels a copy of another tile's; an unused tile is reused before the set grows
+    int duplicate(int tile) {
+        int copy = 0;
+        while (copy < tiles.size() && instanceCounts[copy] > 0) {
+            copy++;
+        }
+        if (copy == tiles.size()) {
+            tiles.add(new int[CELLS]);
+            counted(copy, 0);
+        }
+        System.arraycopy(tiles.get(tile), 0, tiles.get(copy), 0, CELLS);
+        if (listener != null) {
+            int[] pixels = tiles.get(copy);
+            for (int pixel = 0; pixel < CELLS; pixel++) {
+                listener.tilePixel(copy, pixel, pixels[pixel]);
+            }
+        }
+        return copy;
+    }
+
+    static int mirrored(int entry) {
+        return entry & ~7 | MIRRORED[entry & 7];
+    }
+
+    static int flipped(int entry) {
+        return entry & ~7 | FLIPPED[entry & 7];
+    }
+
+    static int rotated(int entry) {
+        return entry & ~7 | ROTATED[entry & 7];
+    }
+
+    // The tile pixel shown at pixel (row * TILE_SIZE + col) of an instance with these flags
+    static int sourcePixel(int flags, int pixel) {
+        return ORIENT[flags][pixel];
+    }
+
+    @Override
+    public int get(int row, int col) {
+        int entry = map[cellAt(row, col)];
+        int argb = tiles.get(entry >>> 3)[ORIENT[entry & 7][(row % TILE_SIZE) * TILE_SIZE + col % TILE_SIZE]];
+        return argb != 0 ? argb : background.applyAsInt(row, col);
+    }
+
+    @Override
+    public void set(int row, int col, int argb) {
+        int entry = map[cellAt(row, col)];
+        int pixel = ORIENT[entry & 7][(row % TILE_SIZE) * TILE_SIZE + col % TILE_SIZE];
+        int value = argb == background.applyAsInt(row, col) ? 0 : argb;
+        tiles.get(entry >>> 3)[pixel] = value;
+        if (listener != null) {
+            listener.tilePixel(entry >>> 3, pixel, value);
+        }
+    }
+
+    @Override
+    public void fill(int row, int colStart, int colEnd, int argb) {
+        for (int col = colStart; col <= colEnd; col++) {
+            set(row, col, argb);
+        }
+    }
+
+    @Override
+    public void read(int row, int col, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = get(row, col + i);
+        }
+    }
+
+    @Override
+    public void write(int row, int col, int[] src, int srcOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            set(row, col + i, src[srcOffset + i]);
+        }
+    }
+
+    private void counted(int tile, int change) {
+        if (tile >= instanceCounts.length) {
+            instanceCounts = Arrays.copyOf(instanceCounts, Math.max(tile + 1, instanceCounts.length * 2));
+        }
+        instanceCounts[tile] += change;
+    }
+
+    // How a tile's pixels appear in an instance with these flags
+    private static int[] oriented(int[] tile, int flags) {
+        int[] shown = new int[CELLS];
+        for (int pixel = 0; pixel < CELLS; pixel++) {
+            shown[pixel] = tile[ORIENT[flags][pixel]];
+        }
+        return shown;
+    }
+
+    // The orientation that shows, at each instance pixel, what flags shows at source(row, col)
+    private static int matching(int flags, IntBinaryOperator source) {
+        int[] wanted = new int[CELLS];
+        for (int row = 0; row < TILE_SIZE; row++) {
+            for (int col = 0; col < TILE_SIZE; col++) {
+                wanted[row * TILE_SIZE + col] = ORIENT[flags][source.applyAsInt(row, col)];
+            }
+        }
+        for (int candidate = 0; candidate < 8; candidate++) {
+            if (Arrays.equals(ORIENT[candidate], wanted)) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("No orientation matches");
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.pixelsmith;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws a {@link TileMap} document by stamping cached tile images.
+ * <p>
+ * The document thread publishes {@link Frame}s holding the pixels of the tiles that changed and,
+ * when it changed, a copy of the map. The view keeps one image per tile and orientation in
+ * use; a changed tile has its images rebuilt once and drawn at every instance, so repainting
+ * costs the unique tiles touched rather than the cells they cover. Used from the JavaFX thread
+ * only.
+ */
+final class TileMapView {
+    private static final int T = TileMap.TILE_SIZE;
+
+    // A tile snapshot from the document thread. map is null when it has not changed since the last frame;
+    // pixels holds the tiles' pixels in tiles order, transparent as 0.
+    record Frame(int rows, int cols, int[] map, int[] tiles, int[][] pixels) {
+    }
+
+    interface Background {
+        // The screen colour of a translucent document cell at (row, col)
+        int composite(int argb, int row, int col);
+    }
+
+    private final GraphicsContext gc;
+    private final int cellSize;
+    private final Background background;
+    private int[] map; // null until a frame brings one
+    private int across;
+    private int[][] tilePixels = new int[0][];
+    private final Map<Integer, WritableImage> images = new HashMap<>(); // by map entry, tile << 3 | flags
+    private int[][] instances; // map cells showing each tile, null until needed after the map changed
+
+    TileMapView(GraphicsContext gc, int cellSize, Background background) {
+        this.gc = gc;
+        this.cellSize = cellSize;
+        this.background = background;
+    }
+
+    // Forget everything drawn, as when the canvas was cleared; the next frame with a map redraws it all
+    void clear() {
+        map = null;
+        tilePixels = new int[0][];
+        images.clear();
+        instances = null;
+    }
+
+    void present(Frame frame) {
+        if (frame.map() == null && map == null) {
+            return; // drawn once the frame with the map arrives
+        }
+        for (int i = 0; i < frame.tiles().length; i++) {
+            int tile = frame.tiles()[i];
+            if (tile >= tilePixels.length) {
+                tilePixels = Arrays.copyOf(tilePixels, Math.max(tile + 1, tilePixels.length * 2));
+            }
+            tilePixels[tile] = frame.pixels()[i];
+            for (int flags = 0; flags < 8; flags++) {
+                images.remove(tile << 3 | flags);
+            }
+        }
+        gc.setImageSmoothing(false);
+        if (frame.map() != null) {
+            int[] previous = map;
+            boolean sameShape = previous != null && previous.length == frame.map().length
+                    && across == (frame.cols() + T - 1) / T;
+            map = frame.map();
+            across = (frame.cols() + T - 1) / T;
+            instances = null;
+            // Cells that now show something else; the changed tiles are drawn everywhere below
+            for (int cell = 0; cell < map.length; cell++) {
+                if (!sameShape || map[cell] != previous[cell]) {
+                    drawCell(cell);
+                }
+            }
+        }
+        if (instances == null) {
+            indexInstances();
+        }
+        for (int tile : frame.tiles()) {
+            if (tile < instances.length) {
+                for (int cell : instances[tile]) {
+                    drawCell(cell);
+                }
+            }
+        }
+    }
+
+    private void drawCell(int cell) {
+        int entry = map[cell];
+        if (entry >>> 3 >= tilePixels.length || tilePixels[entry >>> 3] == null) {
+            return; // its pixels are on the way
+        }
+        WritableImage image = images.computeIfAbsent(entry, this::tileImage);
+        gc.drawImage(image, cell % across * T * cellSize, cell / across * T * cellSize, T * cellSize, T * cellSize);
+    }
+
+    // A tile as it looks in an instance with the given orientation; instances always start on an even cell,
+    // so the background under it is the same wherever it is placed
+    private WritableImage tileImage(int entry) {
+        int[] pixels = tilePixels[entry >>> 3];
+        int[] argb = new int[T * T];
+        for (int pixel = 0; pixel < argb.length; pixel++) {
+            int value = pixels[TileMap.sourcePixel(entry & 7, pixel)];
+            argb[pixel] = (value >>> 24) == 0xFF ? value : background.composite(value, pixel / T, pixel % T);
+        }
+        WritableImage image = new WritableImage(T, T);
+        image.getPixelWriter().setPixels(0, 0, T, T, PixelFormat.getIntArgbInstance(), argb, 0, T);
+        return image;
+    }
+
+    private void indexInstances() {
+        int tiles = 0;
+        for (int entry : map) {
+            tiles = Math.max(tiles, (entry >>> 3) + 1);
+        }
+        int[] counts = new int[tiles];
+        for (int entry : map) {
+            counts[entry >>> 3]++;
+        }
+        instances = new int[tiles][];
+        for (int tile = 0; tile < tiles; tile++) {
+            instances[tile] = new int[counts[tile]];
+        }
+        Arrays.fill(counts, 0);
+        for (int cell = 0; cell < map.length; cell++) {
+            int tile = map[cell] >>> 3;
+            instances[tile][counts[tile]++] = cell;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.pixelsmith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content-addressed storage for sprites, enabled with {@code -Dpixelsmith.storage=tiles}.
+ * <p>
+ * A sprite is cut into TILE_SIZE tiles, each tile is stored once under the SHA-256 of its
+ * pixels, and a version of the sprite is a manifest listing its tile hashes. The manifest is
+ * itself an object, and a ref file named after the sprite's pathDirect points at the latest
+ * one. Saving only writes tiles the store has never seen, so unchanged regions and tiles
+ * shared between sprites cost nothing. The PNG at pathDirect is only written on export.
+ */
+public class TileStore {
+    static final int TILE_SIZE = 32;
+    private static final int MANIFEST_MAGIC = 0x50584D31; // "PXM1"
+    private static final int HASH_BYTES = 32;
+
+    private static TileStore instance;
+
+    private final Path objects;
+    private final Path refs;
+    private final Set<String> knownObjects = ConcurrentHashMap.newKeySet();
+
+    private TileStore(Path root) throws IOException {
+        this.objects = Files.createDirectories(root.resolve("objects"));
+        this.refs = Files.createDirectories(root.resolve("refs"));
+    }
+
+    static boolean isEnabled() {
+        return "tiles".equalsIgnoreCase(System.getProperty("pixelsmith.storage"));
+    }
+
+    static synchronized TileStore getInstance() throws IOException {
+        if (instance == null) {
+            instance = new TileStore(AppDirectories.resolve("tiles"));
+        }
+        return instance;
+    }
+
+    // Store a new version of the sprite at pathDirect; returns the manifest hash
+    String save(String pathDirect, Raster raster) throws IOException {
+        return save(pathDirect, raster, null);
+    }
+
+    // Store a new version, hashing only the tiles touched by changes (null for all of them). Untouched
+    // tiles keep their hashes from the current version when it has the same size.
+    String save(String pathDirect, Raster raster, DirtyTiles changes) throws IOException {
+        int tilesAcross = (raster.width() + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (raster.height() + TILE_SIZE - 1) / TILE_SIZE;
+        ByteBuffer manifest = ByteBuffer.allocate(16 + tilesAcross * tilesDown * HASH_BYTES);
+        manifest.putInt(MANIFEST_MAGIC).putInt(raster.width()).putInt(raster.height()).putInt(TILE_SIZE);
+        ByteBuffer previous = changes != null ? currentManifest(pathDirect, raster.width(), raster.height()) : null;
+
+        for (int ty = 0; ty < tilesDown; ty++) {
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                if (previous != null && !changes.touches(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE)) {
+                    manifest.put(previous.slice(manifest.position(), HASH_BYTES));
+                    continue;
+                }
+                byte[] tile = extractTile(raster, tx, ty);
+                byte[] hash = sha256(tile);
+                writeObject(HexFormat.of().formatHex(hash), tile);
+                manifest.put(hash);
+            }
+        }
+
+        byte[] manifestBytes = manifest.array();
+        String manifestHash = HexFormat.of().formatHex(sha256(manifestBytes));
+        writeObject(manifestHash, manifestBytes);
+
+        Path ref = refFile(pathDirect);
+        Path temp = ref.resolveSibling(ref.getFileName() + ".tmp");
+        Files.writeString(temp, manifestHash, StandardCharsets.UTF_8);
+        Files.move(temp, ref, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return manifestHash;
+    }
+
+    // The latest manifest of the sprite at pathDirect if it has this size and tile size, else null
+    private ByteBuffer currentManifest(String pathDirect, int width, int height) throws IOException {
+        Path ref = refFile(pathDirect);
+        if (!Files.exists(ref)) {
+            return null;
+        }
+        ByteBuffer manifest = ByteBuffer.wrap(readObject(Files.readString(ref, StandardCharsets.UTF_8).trim()));
+        boolean matches = manifest.getInt() == MANIFEST_MAGIC && manifest.getInt() == width
+                && manifest.getInt() == height && manifest.getInt() == TILE_SIZE;
+        return matches ? manifest.rewind() : null;
+    }
+
+    boolean contains(String pathDirect) {
+        return Files.exists(refFile(pathDirect));
+    }
+
+    // Time the sprite's latest version was stored, or 0 if it was never stored here
+    long lastModified(String pathDirect) throws IOException {
+        Path ref = refFile(pathDirect);
+        return Files.exists(ref) ? Files.getLastModifiedTime(ref).toMillis() : 0;
+    }
+
+    // Latest stored version of the sprite at pathDirect, or null if it was never stored here
+    Raster load(String pathDirect) throws IOException {
+        Path ref = refFile(pathDirect);
+        if (!Files.exists(ref)) {
+            return null;
+        }
+        return loadManifest(Files.readString(ref, StandardCharsets.UTF_8).trim());
+    }
+
+    Raster loadManifest(String manifestHash) throws IOException {
+        ByteBuffer manifest = ByteBuffer.wrap(readObject(manifestHash));
+        if (manifest.getInt() != MANIFEST_MAGIC) {
+            throw new IOException("Not a sprite manifest: " + manifestHash);
+        }
+        int width = manifest.getInt();
+        int height = manifest.getInt();
+        int tileSize = manifest.getInt();
+        int tilesAcross = (width + tileSize - 1) / tileSize;
+        int tilesDown = (height + tileSize - 1) / tileSize;
+        int[] argb = new int[width * height];
+        byte[] hash = new byte[HASH_BYTES];
+
+        for (int ty = 0; ty < tilesDown; ty++) {
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                manifest.get(hash);
+                ByteBuffer tile = ByteBuffer.wrap(readObject(HexFormat.of().formatHex(hash)));
+                int x0 = tx * tileSize;
+                int y0 = ty * tileSize;
+                int w = Math.min(tileSize, width - x0);
+                int h = Math.min(tileSize, height - y0);
+                for (int y = 0; y < h; y++) {
+                    tile.asIntBuffer().position(y * w).get(argb, (y0 + y) * width + x0, w);
+                }
+            }
+        }
+        return new Raster(width, height, argb);
+    }
+
+    private static byte[] extractTile(Raster raster, int tx, int ty) {
+        int x0 = tx * TILE_SIZE;
+        int y0 = ty * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, raster.width() - x0);
+        int h = Math.min(TILE_SIZE, raster.height() - y0);
+        ByteBuffer tile = ByteBuffer.allocate(w * h * 4);
+        for (int y = 0; y < h; y++) {
+            tile.asIntBuffer().position(y * w).put(raster.argb(), (y0 + y) * raster.width() + x0, w);
+        }
+        return tile.array();
+    }
+
+    private void writeObject(String hash, byte[] content) throws IOException {
+        if (knownObjects.contains(hash)) {
+            return;
+        }
+        Path target = objectFile(hash);
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED))) {
+                out.write(content);
+            }
+            Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+            Files.write(temp, compressed.toByteArray());
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Another save stored the same tile first
+                Files.deleteIfExists(temp);
+            }
+        }
+        knownObjects.add(hash);
+    }
+
+    private byte[] readObject(String hash) throws IOException {
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(objectFile(hash)))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private Path objectFile(String hash) {
+        return objects.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private Path refFile(String pathDirect) {
+        String key = new File(pathDirect).getAbsolutePath();
+        return refs.resolve(HexFormat.of().formatHex(sha256(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
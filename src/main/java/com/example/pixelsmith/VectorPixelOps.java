@@ -0,0 +1,187 @@
+package com.example.pixelsmith;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the {@link PixelOps} operations: one vector of pixels per step, with the
+ * leftover tail handed to the scalar loop. Only loaded when the jdk.incubator.vector module is
+ * present, so nothing but PixelOps may refer to this class.
+ */
+final class VectorPixelOps {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private VectorPixelOps() {
+    }
+
+    static void clearBackground(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> erased = pixels.compare(VectorOperators.EQ, IntVector.fromArray(INTS, background, backgroundOffset + i));
+            pixels.blend(0, erased).intoArray(argb, offset + i);
+        }
+        PixelOps.clearBackgroundScalar(argb, offset + i, background, backgroundOffset + i, length - i);
+    }
+
+    static void restoreBackground(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> transparent = pixels.lanewise(VectorOperators.LSHR, 24).compare(VectorOperators.EQ, 0);
+            pixels.blend(IntVector.fromArray(INTS, background, backgroundOffset + i), transparent).intoArray(argb, offset + i);
+        }
+        PixelOps.restoreBackgroundScalar(argb, offset + i, background, backgroundOffset + i, length - i);
+    }
+
+    static void replaceColor(int[] argb, int offset, int[] background, int backgroundOffset, int length, int from, int to) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> hit = pixels.compare(VectorOperators.EQ, from)
+                    .andNot(pixels.compare(VectorOperators.EQ, IntVector.fromArray(INTS, background, backgroundOffset + i)));
+            pixels.blend(to, hit).intoArray(argb, offset + i);
+        }
+        PixelOps.replaceColorScalar(argb, offset + i, background, backgroundOffset + i, length - i, from, to);
+    }
+
+    static void invert(int[] argb, int offset, int[] background, int backgroundOffset, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> paint = pixels.compare(VectorOperators.NE, IntVector.fromArray(INTS, background, backgroundOffset + i));
+            pixels.blend(pixels.lanewise(VectorOperators.XOR, 0x00FFFFFF), paint).intoArray(argb, offset + i);
+        }
+        PixelOps.invertScalar(argb, offset + i, background, backgroundOffset + i, length - i);
+    }
+
+    static void alphaThreshold(int[] argb, int offset, int[] background, int backgroundOffset, int length, int threshold) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> erased = pixels.lanewise(VectorOperators.LSHR, 24).compare(VectorOperators.LT, threshold);
+            pixels.or(0xFF000000)
+                    .blend(IntVector.fromArray(INTS, background, backgroundOffset + i), erased)
+                    .intoArray(argb, offset + i);
+        }
+        PixelOps.alphaThresholdScalar(argb, offset + i, background, backgroundOffset + i, length - i, threshold);
+    }
+
+    static void shiftHsb(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                         float hueDegrees, float saturation, float brightness) {
+        float hueShift = hueDegrees / 60f;
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> paint = pixels.compare(VectorOperators.NE, IntVector.fromArray(INTS, background, backgroundOffset + i));
+            if (!paint.anyTrue()) {
+                continue;
+            }
+            FloatVector r = channel(pixels, 16);
+            FloatVector g = channel(pixels, 8);
+            FloatVector b = channel(pixels, 0);
+            FloatVector max = r.max(g.max(b));
+            FloatVector delta = max.sub(r.min(g.min(b)));
+
+            // All three hue formulas for every lane, then keep the one for each lane's largest channel
+            FloatVector hueRed = g.sub(b).div(delta);
+            hueRed = hueRed.add(6f, hueRed.compare(VectorOperators.LT, 0f));
+            FloatVector hueGreen = b.sub(r).div(delta).add(2f);
+            FloatVector hueBlue = r.sub(g).div(delta).add(4f);
+            FloatVector h = hueBlue
+                    .blend(hueGreen, max.compare(VectorOperators.EQ, g))
+                    .blend(hueRed, max.compare(VectorOperators.EQ, r))
+                    .blend(0f, delta.compare(VectorOperators.EQ, 0f));
+            FloatVector s = delta.div(max).blend(0f, max.compare(VectorOperators.EQ, 0f));
+
+            h = h.add(hueShift);
+            h = h.add(6f, h.compare(VectorOperators.LT, 0f));
+            h = h.sub(6f, h.compare(VectorOperators.GE, 6f));
+            s = s.add(saturation).max(0f).min(1f);
+            FloatVector v = max.add(brightness).max(0f).min(1f);
+
+            IntVector shifted = pixels.and(0xFF000000)
+                    .or(hsbChannel(5, h, s, v).lanewise(VectorOperators.LSHL, 16))
+                    .or(hsbChannel(3, h, s, v).lanewise(VectorOperators.LSHL, 8))
+                    .or(hsbChannel(1, h, s, v));
+            pixels.blend(shifted, paint).intoArray(argb, offset + i);
+        }
+        PixelOps.shiftHsbScalar(argb, offset + i, background, backgroundOffset + i, length - i, hueDegrees, saturation, brightness);
+    }
+
+    private static IntVector hsbChannel(int n, FloatVector h, FloatVector s, FloatVector v) {
+        FloatVector k = h.add(n);
+        k = k.sub(6f, k.compare(VectorOperators.GE, 6f));
+        FloatVector ramp = k.min(FloatVector.broadcast(FLOATS, 4f).sub(k)).min(1f).max(0f);
+        return toChannel(v.sub(v.mul(s).mul(ramp)));
+    }
+
+    static void remapToPalette(int[] argb, int offset, int[] background, int backgroundOffset, int length, int[] palette) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> paint = pixels.compare(VectorOperators.NE, IntVector.fromArray(INTS, background, backgroundOffset + i));
+            if (!paint.anyTrue()) {
+                continue;
+            }
+            IntVector r = pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = pixels.and(0xFF);
+            IntVector best = IntVector.broadcast(INTS, palette[0]);
+            IntVector bestDistance = IntVector.broadcast(INTS, Integer.MAX_VALUE);
+            for (int color : palette) {
+                IntVector dr = r.sub((color >> 16) & 0xFF);
+                IntVector dg = g.sub((color >> 8) & 0xFF);
+                IntVector db = b.sub(color & 0xFF);
+                IntVector distance = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+                VectorMask<Integer> closer = distance.compare(VectorOperators.LT, bestDistance);
+                bestDistance = bestDistance.blend(distance, closer);
+                best = best.blend(color, closer);
+            }
+            pixels.blend(pixels.and(0xFF000000).or(best.and(0x00FFFFFF)), paint).intoArray(argb, offset + i);
+        }
+        PixelOps.remapToPaletteScalar(argb, offset + i, background, backgroundOffset + i, length - i, palette);
+    }
+
+    static void blend(int[] argb, int offset, int[] background, int backgroundOffset, int length,
+                      int color, float opacity, Selection mask, int row, int col) {
+        float sa = ((color >>> 24) / 255f) * opacity;
+        float redPart = ((color >> 16) & 0xFF) / 255f * sa;
+        float greenPart = ((color >> 8) & 0xFF) / 255f * sa;
+        float bluePart = (color & 0xFF) / 255f * sa;
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            VectorMask<Integer> lanes = mask == null ? INTS.maskAll(true) : VectorMask.fromLong(INTS, mask.bitsFrom(row, col + i));
+            if (!lanes.anyTrue()) {
+                continue;
+            }
+            IntVector pixels = IntVector.fromArray(INTS, argb, offset + i);
+            VectorMask<Integer> erased = pixels.compare(VectorOperators.EQ, IntVector.fromArray(INTS, background, backgroundOffset + i));
+            FloatVector da = ((FloatVector) pixels.lanewise(VectorOperators.LSHR, 24).convert(VectorOperators.I2F, 0))
+                    .div(255f)
+                    .blend(0f, erased.cast(FLOATS));
+            FloatVector keep = da.mul(1 - sa);
+            FloatVector a = keep.add(sa);
+
+            IntVector blended = toChannel(a).lanewise(VectorOperators.LSHL, 24)
+                    .or(toChannel(channel(pixels, 16).mul(keep).add(redPart).div(a)).lanewise(VectorOperators.LSHL, 16))
+                    .or(toChannel(channel(pixels, 8).mul(keep).add(greenPart).div(a)).lanewise(VectorOperators.LSHL, 8))
+                    .or(toChannel(channel(pixels, 0).mul(keep).add(bluePart).div(a)));
+            pixels.blend(blended, lanes).intoArray(argb, offset + i);
+        }
+        PixelOps.blendScalar(argb, offset + i, background, backgroundOffset + i, length - i, color, opacity, mask, row, col + i);
+    }
+
+    // One 8-bit channel of every pixel as 0..1
+    private static FloatVector channel(IntVector pixels, int shift) {
+        return ((FloatVector) pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF).convert(VectorOperators.I2F, 0)).div(255f);
+    }
+
+    private static IntVector toChannel(FloatVector value) {
+        return (IntVector) value.mul(255f).add(0.5f).convert(VectorOperators.F2I, 0);
+    }
+}
@@ -6,7 +6,9 @@ module com.example.pixelsmith {
     requires java.desktop;
     requires javafx.swing;
     requires java.net.http;
+    requires jdk.management;
     requires org.json;
+    requires static jdk.incubator.vector;
 
 
     opens com.example.pixelsmith to javafx.fxml;
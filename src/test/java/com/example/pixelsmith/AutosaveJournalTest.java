@@ -0,0 +1,211 @@
+package com.example.pixelsmith;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Crash recovery round trips. The test thread stands in for the document thread and runs the
+ * tasks the journal submits. A crash mid-checkpoint is a band copy failing after a set number of
+ * bands, so the checkpoint never finishes, and the session being recovered as found with the
+ * journal still open.
+ */
+class AutosaveJournalTest {
+    // Two bands per checkpoint
+    private static final int ROWS = 1000;
+    private static final int COLS = 1100;
+
+    @TempDir
+    Path autosaveDir;
+
+    private final int[] document = new int[ROWS * COLS];
+    private final LinkedBlockingQueue<Runnable> documentThread = new LinkedBlockingQueue<>();
+    private final Random random = new Random(7);
+    private int bandsBeforeCrash = Integer.MAX_VALUE;
+
+    // The document thread dying while it copies a band
+    private static final class Crash extends RuntimeException {
+    }
+
+    private final AutosaveJournal.Source source = new AutosaveJournal.Source() {
+        @Override
+        public int rows() {
+            return ROWS;
+        }
+
+        @Override
+        public int cols() {
+            return COLS;
+        }
+
+        @Override
+        public Integer spriteId() {
+            return 42;
+        }
+
+        @Override
+        public String spritePath() {
+            return "/sprites/42.png";
+        }
+
+        @Override
+        public void readRows(int row, int count, int[] dst) {
+            if (bandsBeforeCrash-- <= 0) {
+                throw new Crash();
+            }
+            System.arraycopy(document, row * COLS, dst, 0, count * COLS);
+        }
+
+        @Override
+        public int[] tileMap() {
+            return null;
+        }
+
+        @Override
+        public int tileCount() {
+            return 0;
+        }
+
+        @Override
+        public void readTiles(int tile, int count, int[] dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void submit(Runnable task) {
+            documentThread.add(task);
+        }
+    };
+
+    @Test
+    void crashDuringCheckpointOfWholeDocumentChangeRecoversTheDocumentBeforeIt() throws Exception {
+        fillRandom();
+        AutosaveJournal journal = AutosaveJournal.open(source, autosaveDir);
+        Path session = session();
+        runUntil(() -> Files.exists(session.resolve("checkpoint-1.bin")));
+        paint(journal, 5000);
+        runPending();
+        int[] beforeChange = document.clone();
+
+        // A whole-document change the journal has no records of, then a crash after the first band was copied
+        for (int i = 0; i < document.length; i++) {
+            document[i] = ~document[i] | 0xFF000000;
+        }
+        bandsBeforeCrash = 1;
+        journal.checkpoint();
+        paint(journal, 5000);
+        runPending();
+
+        assertFalse(Files.exists(session.resolve("checkpoint-2.bin")));
+        PixelBuffer restored = PixelBuffer.create(COLS, ROWS);
+        assertNotNull(AutosaveJournal.recover(session));
+        assertFalse(AutosaveJournal.restore(session, restored));
+        assertArrayEquals(beforeChange, restored.toRaster().argb());
+    }
+
+    @Test
+    void crashDuringCompactionCheckpointRecoversEveryEdit() throws Exception {
+        fillRandom();
+        AutosaveJournal journal = AutosaveJournal.open(source, autosaveDir);
+        Path session = session();
+        runUntil(() -> Files.exists(session.resolve("checkpoint-1.bin")));
+
+        // Enough records to rotate the journal; its checkpoint never gets past the first band
+        bandsBeforeCrash = 1;
+        paint(journal, (1 << 18) + 100);
+        runPending();
+        paint(journal, 5000);
+        runPending();
+
+        assertTrue(Files.exists(session.resolve("journal-2.bin")));
+        assertFalse(Files.exists(session.resolve("checkpoint-2.bin")));
+        AutosaveJournal.Snapshot snapshot = AutosaveJournal.recover(session);
+        assertNotNull(snapshot);
+        assertEquals(42, snapshot.spriteId());
+        assertEquals("/sprites/42.png", snapshot.spritePath());
+        PixelBuffer restored = PixelBuffer.create(COLS, ROWS);
+        assertTrue(AutosaveJournal.restore(session, restored));
+        assertArrayEquals(document, restored.toRaster().argb());
+    }
+
+    @Test
+    void closedSessionLeavesNothingToRecover() throws Exception {
+        fillRandom();
+        AutosaveJournal journal = AutosaveJournal.open(source, autosaveDir);
+        Path session = session();
+        runUntil(() -> Files.exists(session.resolve("checkpoint-1.bin")));
+        journal.close(true);
+        assertFalse(Files.exists(session));
+    }
+
+    private void fillRandom() {
+        for (int i = 0; i < document.length; i++) {
+            document[i] = 0xFF000000 | random.nextInt();
+        }
+    }
+
+    // Pixel and span writes journaled the way the editor journals them, erases as transparent
+    private void paint(AutosaveJournal journal, int edits) {
+        for (int n = 0; n < edits; n++) {
+            int row = random.nextInt(ROWS);
+            int col = random.nextInt(COLS - 20);
+            int argb = random.nextInt(4) == 0 ? 0 : 0xFF000000 | random.nextInt();
+            if (n % 3 == 0) {
+                int end = col + random.nextInt(20);
+                for (int c = col; c <= end; c++) {
+                    document[row * COLS + c] = argb;
+                }
+                journal.appendSpan(row, col, end, argb);
+            } else {
+                document[row * COLS + col] = argb;
+                journal.append(row, col, argb);
+            }
+        }
+    }
+
+    private Path session() throws IOException {
+        try (Stream<Path> sessions = Files.list(autosaveDir)) {
+            return sessions.findFirst().orElseThrow();
+        }
+    }
+
+    // Run document thread tasks, waiting for the checkpoint writer to hand more, until done
+    private void runUntil(BooleanSupplier done) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!done.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting on the autosave journal");
+            }
+            Runnable task = documentThread.poll(20, TimeUnit.MILLISECONDS);
+            if (task != null) {
+                task.run();
+            }
+        }
+    }
+
+    // Run the tasks queued so far, as the document thread does between commands
+    private void runPending() {
+        for (Runnable task; (task = documentThread.poll()) != null; ) {
+            try {
+                task.run();
+            } catch (Crash e) {
+                // That band is never copied
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.pixelsmith;
+
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Simulates many concurrent users running the client's request flows through the client's own
+ * classes and reports throughput and p50/p99 latency per flow.
+ * <p>
+ * Each simulated user logs in with the request {@code Login} sends, then until the run ends
+ * repeatedly lists its sprites ({@link SpriteSelector#fetchSprites}, the gallery's request without
+ * decoding thumbnails, which needs the JavaFX toolkit), looks up a sprite that
+ * may be anyone's ({@link SpriteMetadataCache}, so cache hits, batching and coalescing all
+ * count), saves one of its own ({@link SpriteOutbox} update) and now and then creates a new one.
+ * Saves are timed from being queued until the outbox has delivered them, retries and backoff
+ * included. The client classes are pointed at the backend through {@code pixelsmith.api}, and
+ * the outbox keeps its queue under a fresh temporary home directory. Without {@code --url} the
+ * driver starts an in-process {@link StubBackend}, taking the same fault options
+ * ({@code --latency --jitter --errors --pad}). Example:
+ * {@code java ... LoadDriver --users=200 --duration=30 --latency=40 --jitter=40 --errors=0.02}
+ */
+public class LoadDriver {
+    // Latencies of one request type, in nanoseconds
+    private static final class OpStats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        synchronized void record(long nanos, boolean ok) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        synchronized String summary(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return String.format("%8d %7d %9.1f %9.1f %9.1f %9.1f", count, errors, count / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), count == 0 ? 0 : sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    private final String baseUrl;
+    private final int knownSprites; // ids 1.. the backend was seeded with; lookups also try a few past them
+    private final Map<String, OpStats> stats = new TreeMap<>();
+    // Saves queued in the outbox and not delivered yet, by the id they are sent under
+    private final Map<Integer, CompletableFuture<Boolean>> sending = new ConcurrentHashMap<>();
+
+    LoadDriver(String baseUrl, int knownSprites) {
+        this.baseUrl = baseUrl;
+        this.knownSprites = knownSprites;
+        for (String op : List.of("login", "list", "lookup", "update", "create")) {
+            stats.put(op, new OpStats());
+        }
+        SpriteOutbox.getInstance().addSentListener((spriteId, accepted) -> {
+            CompletableFuture<Boolean> save = sending.remove(spriteId);
+            if (save != null) {
+                save.complete(accepted);
+            }
+        });
+    }
+
+    // One user's session: log in, then browse and save until the deadline
+    private void runUser(int user, long deadline, long thinkMillis) {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String email = "user" + user + "@example.com";
+        HttpResponse<String> login = login(client, email);
+        if (login == null || login.statusCode() != 200) {
+            return;
+        }
+        int userId = new JSONObject(login.body()).getInt("userId");
+        SpriteMetadataCache cache = SpriteMetadataCache.getInstance();
+        SpriteOutbox outbox = SpriteOutbox.getInstance();
+
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            List<SpriteMetadataCache.SpriteMetadata> owned = SpriteSelector.fetchSprites(userId).join();
+            // fetchSprites reports failures as an empty list
+            stats.get("list").record(System.nanoTime() - start, !owned.isEmpty());
+
+            int lookupId = 1 + random.nextInt(knownSprites + knownSprites / 20 + 1);
+            start = System.nanoTime();
+            SpriteMetadataCache.SpriteMetadata found = cache.get(lookupId).join();
+            stats.get("lookup").record(System.nanoTime() - start, found != null || lookupId > knownSprites);
+
+            if (!owned.isEmpty()) {
+                SpriteMetadataCache.SpriteMetadata sprite = owned.get(random.nextInt(owned.size()));
+                CompletableFuture<Boolean> save = new CompletableFuture<>();
+                sending.put(sprite.spriteId(), save);
+                start = System.nanoTime();
+                outbox.enqueueUpdate(sprite.spriteId(), sprite.name(), sprite.pathDirect());
+                awaitDelivery("update", start, save, deadline);
+            }
+            if (random.nextInt(10) == 0) {
+                CompletableFuture<Boolean> save = new CompletableFuture<>();
+                start = System.nanoTime();
+                int localId;
+                // Registered before the create can be sent, so a fast backend cannot beat the listener
+                synchronized (outbox) {
+                    localId = outbox.enqueueCreate("load sprite", userId, "/tmp/sprites/load.png");
+                    sending.put(localId, save);
+                }
+                awaitDelivery("create", start, save, deadline);
+            }
+            if (thinkMillis > 0) {
+                try {
+                    Thread.sleep(random.nextLong(thinkMillis + 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // The request Login sends; the login window itself needs the JavaFX toolkit
+    private HttpResponse<String> login(HttpClient client, String email) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/login"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(15))
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("email", email).put("passwordhash", "password").toString()))
+                .build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            stats.get("login").record(System.nanoTime() - start, response.statusCode() < 400);
+            return response;
+        } catch (Exception e) {
+            stats.get("login").record(System.nanoTime() - start, false);
+            return null;
+        }
+    }
+
+    // Time a queued save until the outbox has delivered it; one still queued when the run ends counts as failed
+    private void awaitDelivery(String op, long start, CompletableFuture<Boolean> save, long deadline) {
+        boolean ok;
+        try {
+            ok = save.get(Math.max(0, deadline - System.nanoTime()) + TimeUnit.SECONDS.toNanos(5), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            ok = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        }
+        stats.get(op).record(System.nanoTime() - start, ok);
+    }
+
+    void run(int users, long seconds, long thinkMillis) throws InterruptedException {
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.SECONDS.toNanos(seconds);
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int user = 1; user <= users; user++) {
+                int id = user;
+                pool.execute(() -> runUser(id, deadline, thinkMillis));
+            }
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        long total = 0;
+        System.out.printf("%-8s %8s %7s %9s %9s %9s %9s%n", "flow", "count", "errors", "ops/s", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, OpStats> entry : stats.entrySet()) {
+            System.out.printf("%-8s %s%n", entry.getKey(), entry.getValue().summary(elapsed));
+            total += entry.getValue().count;
+        }
+        System.out.printf("%d users, %.1f s, %d operations, %.1f ops/s%n", users, elapsed, total, total / elapsed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = StubBackend.parseArgs(args);
+        int users = Integer.parseInt(options.getOrDefault("users", "50"));
+        int spritesPerUser = Integer.parseInt(options.getOrDefault("sprites", "20"));
+        StubBackend stub = null;
+        String url = options.get("url");
+        if (url == null) {
+            stub = new StubBackend(0, StubBackend.Faults.parse(options));
+            stub.seed(users, spritesPerUser);
+            stub.start();
+            url = stub.url();
+        }
+        // Read once by the client classes, so set before any of them is loaded
+        System.setProperty("pixelsmith.api", url);
+        System.setProperty("user.home", Files.createTempDirectory("pixelsmith-load").toString());
+        try {
+            new LoadDriver(url, users * spritesPerUser).run(users, Long.parseLong(options.getOrDefault("duration", "20")),
+                    Long.parseLong(options.getOrDefault("think", "0")));
+        } finally {
+            if (stub != null) {
+                System.out.println("Stub served " + stub.requestCount() + " requests, " + stub.injectedErrorCount() + " injected failures");
+                stub.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.pixelsmith;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Project file round trips. The sprites are 130 x 70, so the right column and bottom row of
+ * tiles are partial.
+ */
+class ProjectFileTest {
+    private static final int WIDTH = 130;
+    private static final int HEIGHT = 70;
+    private static final int NEW_COLOR = 0xFF123456;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(11);
+
+    @Test
+    void partialTilesRoundTrip() throws Exception {
+        Raster raster = withColors(20);
+        Path path = dir.resolve("sprite.pxs");
+        ProjectFile.write(path, raster, "Knight", 7, null);
+
+        try (ProjectFile project = ProjectFile.open(path)) {
+            assertEquals(WIDTH, project.width());
+            assertEquals(HEIGHT, project.height());
+            assertEquals("Knight", project.name());
+            assertEquals(7, project.spriteId());
+            assertEquals(20, project.palette().length);
+            assertArrayEquals(raster.argb(), project.toRaster().argb());
+
+            // Only the bottom right tile, 2 x 6 cells
+            PixelBuffer target = PixelBuffer.create(WIDTH, HEIGHT);
+            BitSet decoded = new BitSet();
+            project.readTiles(target, 64, 128, HEIGHT - 1, WIDTH - 1, decoded);
+            assertEquals(1, decoded.cardinality());
+            assertTrue(decoded.get(5));
+            int[] read = target.toRaster().argb();
+            for (int row = 64; row < HEIGHT; row++) {
+                for (int col = 128; col < WIDTH; col++) {
+                    assertEquals(raster.argb()[row * WIDTH + col], read[row * WIDTH + col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void moreThan256ColorsAreStoredAsArgb() throws Exception {
+        Raster raster = withColors(WIDTH * HEIGHT);
+        Path path = dir.resolve("sprite.pxs");
+        ProjectFile.write(path, raster, null, null, null);
+
+        try (ProjectFile project = ProjectFile.open(path)) {
+            assertEquals(0, project.palette().length);
+            assertNull(project.name());
+            assertNull(project.spriteId());
+            assertArrayEquals(raster.argb(), project.toRaster().argb());
+        }
+    }
+
+    @Test
+    void incrementalSaveCopiesUnchangedTiles() throws Exception {
+        PixelBuffer buffer = savedBuffer(withColors(4));
+        Path path = dir.resolve("sprite.pxs");
+        ProjectFile.write(path, buffer.toRaster(), null, null, null);
+        int[] first = buffer.toRaster().argb();
+
+        buffer.set(5, 5, NEW_COLOR);
+        Raster second = buffer.toRaster();
+        // A cell of the bottom right tile the changes do not cover, so its tile must be copied from the old file
+        second.argb()[66 * WIDTH + 129] = ~first[66 * WIDTH + 129];
+        ProjectFile.write(path, second, null, null, buffer.changesSinceSave());
+
+        try (ProjectFile project = ProjectFile.open(path)) {
+            int[] palette = project.palette();
+            assertEquals(5, palette.length);
+            assertEquals(NEW_COLOR, palette[4]);
+            int[] read = project.toRaster().argb();
+            assertEquals(NEW_COLOR, read[5 * WIDTH + 5]);
+            assertEquals(first[66 * WIDTH + 129], read[66 * WIDTH + 129]);
+            read[5 * WIDTH + 5] = first[5 * WIDTH + 5];
+            assertArrayEquals(first, read);
+        }
+    }
+
+    @Test
+    void paletteOverflowOnIncrementalSaveStoresEveryTileAsArgb() throws Exception {
+        PixelBuffer buffer = savedBuffer(withColors(4));
+        Path path = dir.resolve("sprite.pxs");
+        ProjectFile.write(path, buffer.toRaster(), null, null, null);
+
+        // 300 new colours in the top left tile alone
+        for (int i = 0; i < 300; i++) {
+            buffer.set(i / 64, i % 64, 0xFF000000 | 0x10000 + i);
+        }
+        Raster second = buffer.toRaster();
+        ProjectFile.write(path, second, null, null, buffer.changesSinceSave());
+
+        try (ProjectFile project = ProjectFile.open(path)) {
+            assertEquals(0, project.palette().length);
+            assertArrayEquals(second.argb(), project.toRaster().argb());
+        }
+    }
+
+    // A sprite using the given number of colours, each at least once
+    private Raster withColors(int colors) {
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | (i < colors ? i : random.nextInt(colors));
+        }
+        return new Raster(WIDTH, HEIGHT, argb);
+    }
+
+    // A buffer holding the raster, marked as saved
+    private static PixelBuffer savedBuffer(Raster raster) {
+        PixelBuffer buffer = PixelBuffer.create(WIDTH, HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            buffer.writeRow(row, 0, raster.argb(), row * WIDTH, WIDTH);
+        }
+        buffer.markSaved(buffer.changesSinceSave());
+        assertTrue(buffer.changesSinceSave().isEmpty());
+        return buffer;
+    }
+}
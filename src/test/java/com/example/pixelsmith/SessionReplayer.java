@@ -0,0 +1,227 @@
+package com.example.pixelsmith;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Replays a {@link SessionRecorder} recording headless, as fast as it will go, and reports the
+ * total time, the latency distribution of each kind of input and the bytes allocated.
+ * <p>
+ * Each run loads the recording's starting document into a fresh headless editor and feeds it
+ * the recorded input on this thread, which stands in for the document thread. The finished
+ * document must match the checksum the recording ended with, so a replay doubles as a check
+ * that the tools still behave the same. Warm-up runs are replayed and verified but not
+ * reported. Example:
+ * {@code java ... SessionReplayer ~/.pixelsmith/recordings/session-1700000000000.pxr --repeat=5 --warmup=2}
+ */
+public class SessionReplayer {
+    private static final String[] EVENT_NAMES = {
+            null, "press", "drag", "release", "hover", "tool", "color", "size", "brush", "clear", null,
+            "delete", "drop", "deselect", "paste"
+    };
+
+    private record Event(byte type, int[] values, Raster image) { // image only for a paste
+        Event(byte type, int[] values) {
+            this(type, values, null);
+        }
+    }
+
+    // Latencies of one kind of input, in nanoseconds
+    private static final class OpStats {
+        private long[] latencies = new long[1024];
+        private int count;
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        String summary() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long nanos : sorted) {
+                total += nanos;
+            }
+            return String.format("%8d %10.1f %9.3f %9.3f %9.3f %9.3f", count, total / 1e6,
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                    count == 0 ? 0 : sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    private final Raster start;
+    private final List<Event> events;
+    private final long recordedMillis;
+    private final Integer checksum; // null if the recording was cut off before it finished
+
+    private SessionReplayer(Raster start, List<Event> events, long recordedMillis, Integer checksum) {
+        this.start = start;
+        this.events = events;
+        this.recordedMillis = recordedMillis;
+        this.checksum = checksum;
+    }
+
+    // Read a whole recording up front so that decoding it is not part of the timings
+    static SessionReplayer load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(path)), 1 << 16))) {
+            if (in.readInt() != SessionRecorder.MAGIC) {
+                throw new IOException(path + " is not a session recording");
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int[] argb = new int[width * height];
+            for (int i = 0; i < argb.length; i++) {
+                argb[i] = in.readInt();
+            }
+            List<Event> events = new ArrayList<>();
+            long recordedMillis = 0;
+            Integer checksum = null;
+            while (checksum == null) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    recordedMillis += readVarint(in);
+                    switch (type) {
+                        case SessionRecorder.PRESS -> events.add(new Event((byte) type, readValues(in, 3)));
+                        case SessionRecorder.DRAG, SessionRecorder.RELEASE, SessionRecorder.HOVER, SessionRecorder.TOOL ->
+                                events.add(new Event((byte) type, readValues(in, 2)));
+                        case SessionRecorder.SIZE, SessionRecorder.BRUSH -> events.add(new Event((byte) type, readValues(in, 1)));
+                        case SessionRecorder.COLOR -> events.add(new Event((byte) type, new int[]{in.readInt()}));
+                        case SessionRecorder.CLEAR, SessionRecorder.DELETE, SessionRecorder.DROP, SessionRecorder.DESELECT ->
+                                events.add(new Event((byte) type, new int[0]));
+                        case SessionRecorder.PASTE -> {
+                            int[] size = readValues(in, 2);
+                            int[] pasted = new int[size[0] * size[1]];
+                            for (int i = 0; i < pasted.length; i++) {
+                                pasted[i] = in.readInt();
+                            }
+                            events.add(new Event((byte) type, size, new Raster(size[0], size[1], pasted)));
+                        }
+                        case SessionRecorder.END -> checksum = in.readInt();
+                        default -> throw new IOException("Unknown event type " + type + " in " + path);
+                    }
+                } catch (EOFException e) {
+                    break; // the editor was killed mid-recording; replay what made it to disk
+                }
+            }
+            return new SessionReplayer(new Raster(width, height, argb), events, recordedMillis, checksum);
+        }
+    }
+
+    // Replay once, recording into stats when given; returns whether the result matched the recording
+    boolean replay(OpStats[] stats) {
+        PixelArtEditor editor = PixelArtEditor.headless(start);
+        for (Event event : events) {
+            int[] v = event.values();
+            long began = System.nanoTime();
+            switch (event.type()) {
+                case SessionRecorder.PRESS -> editor.pressAt(v[0], v[1], v[2]);
+                case SessionRecorder.DRAG -> editor.dragAt(v[0], v[1]);
+                case SessionRecorder.RELEASE -> editor.releaseAt(v[0], v[1]);
+                case SessionRecorder.HOVER -> editor.hoverAt(v[0], v[1]);
+                case SessionRecorder.TOOL -> editor.selectRecordedTool(SessionRecorder.ToolKind.values()[v[0]], v[1]);
+                case SessionRecorder.COLOR -> editor.setPaintColor(v[0]);
+                case SessionRecorder.SIZE -> editor.setToolSize(v[0]);
+                case SessionRecorder.BRUSH -> editor.setBrushShape(BrushStamp.Shape.values()[v[0]]);
+                case SessionRecorder.CLEAR -> editor.clearCanvas();
+                case SessionRecorder.DELETE -> editor.deleteSelectionCommand();
+                case SessionRecorder.DROP -> editor.dropSelectionCommand();
+                case SessionRecorder.DESELECT -> editor.deselectCommand();
+                case SessionRecorder.PASTE -> editor.paste(event.image());
+                default -> {
+                }
+            }
+            if (stats != null) {
+                stats[event.type()].record(System.nanoTime() - began);
+            }
+            editor.discardPublished(); // nothing will ever draw the frames
+        }
+        return checksum == null || editor.documentChecksum() == checksum;
+    }
+
+    void run(int repeat, int warmup) {
+        System.out.printf("%dx%d document, %d events over %.1f s of recorded editing%s%n", start.width(), start.height(),
+                events.size(), recordedMillis / 1000.0, checksum == null ? " (unfinished, result not verified)" : "");
+        for (int i = 0; i < warmup; i++) {
+            if (!replay(null)) {
+                System.out.println("Warm-up replay " + (i + 1) + " did not reproduce the recorded document");
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        for (int i = 1; i <= repeat; i++) {
+            OpStats[] stats = new OpStats[EVENT_NAMES.length];
+            for (int type = 1; type < stats.length; type++) {
+                stats[type] = new OpStats();
+            }
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long began = System.nanoTime();
+            boolean matched = replay(stats);
+            double elapsed = (System.nanoTime() - began) / 1e6;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            System.out.printf("%nRun %d: %.1f ms, %.1f MB allocated, %s%n", i, elapsed, allocated / (1024.0 * 1024.0),
+                    matched ? "document matches" : "DOCUMENT DIFFERS FROM THE RECORDING");
+            System.out.printf("%-8s %8s %10s %9s %9s %9s %9s%n", "input", "count", "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+            for (int type = 1; type < stats.length; type++) {
+                if (stats[type].count > 0) {
+                    System.out.printf("%-8s %s%n", EVENT_NAMES[type], stats[type].summary());
+                }
+            }
+            if (!matched) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static int[] readValues(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            int zigzag = readVarint(in);
+            values[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        return values;
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args[0].startsWith("--")) {
+            System.out.println("Usage: SessionReplayer <recording.pxr> [--repeat=N] [--warmup=N]");
+            return;
+        }
+        Map<String, String> options = StubBackend.parseArgs(Arrays.copyOfRange(args, 1, args.length));
+        load(Path.of(args[0])).run(Integer.parseInt(options.getOrDefault("repeat", "3")),
+                Integer.parseInt(options.getOrDefault("warmup", "1")));
+    }
+}
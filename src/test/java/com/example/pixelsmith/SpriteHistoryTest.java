@@ -0,0 +1,116 @@
+package com.example.pixelsmith;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Version history round trips. The sprites are 100 x 70, so the right column and bottom row of
+ * tiles are partial, and each version paints one small block so it is stored as a delta.
+ */
+class SpriteHistoryTest {
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int SPRITE = 3;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(5);
+    private int blocks;
+
+    @Test
+    void checkoutWalksDeltasBackwardAndForward() throws Exception {
+        SpriteHistory history = new SpriteHistory(dir);
+        List<Raster> saved = recordVersions(history, 6);
+
+        List<SpriteHistory.Version> versions = history.versions(SPRITE);
+        assertEquals(6, versions.size());
+        assertTrue(versions.get(0).keyframe());
+        for (int n = 2; n <= 6; n++) {
+            assertFalse(versions.get(n - 1).keyframe());
+        }
+        // Versions near the latest are reached by undoing the deltas after them
+        for (int n = 6; n >= 1; n--) {
+            assertArrayEquals(saved.get(n - 1).argb(), history.checkout(SPRITE, n).argb());
+        }
+        // Nothing changed, so no new version
+        assertEquals(6, history.record(SPRITE, copy(saved.get(5))));
+
+        // Without the latest version decoded, each checkout applies the deltas forward from the keyframe
+        SpriteHistory reopened = new SpriteHistory(dir);
+        for (int n = 6; n >= 1; n--) {
+            assertArrayEquals(saved.get(n - 1).argb(), reopened.checkout(SPRITE, n).argb());
+        }
+    }
+
+    @Test
+    void tornTrailingRecordIsDropped() throws Exception {
+        List<Raster> saved = recordVersions(new SpriteHistory(dir), 3);
+        Path file = dir.resolve("sprite-" + SPRITE + ".pxh");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        SpriteHistory reopened = new SpriteHistory(dir);
+        assertEquals(2, reopened.versions(SPRITE).size());
+        assertArrayEquals(saved.get(1).argb(), reopened.checkout(SPRITE, 2).argb());
+
+        // The next version overwrites the torn record
+        Raster next = paintBlock(saved.get(1));
+        assertEquals(3, reopened.record(SPRITE, copy(next)));
+        long length = Files.size(file);
+        SpriteHistory again = new SpriteHistory(dir);
+        assertEquals(3, again.versions(SPRITE).size());
+        assertEquals(length, again.versions(SPRITE).get(2).offset() + again.versions(SPRITE).get(2).length());
+        assertArrayEquals(next.argb(), again.checkout(SPRITE, 3).argb());
+        assertArrayEquals(saved.get(0).argb(), again.checkout(SPRITE, 1).argb());
+    }
+
+    // Record a random sprite, then versions each painting one block more; returns what was recorded
+    private List<Raster> recordVersions(SpriteHistory history, int count) throws Exception {
+        List<Raster> saved = new ArrayList<>();
+        int[] argb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | random.nextInt();
+        }
+        Raster raster = new Raster(WIDTH, HEIGHT, argb);
+        for (int n = 1; n <= count; n++) {
+            saved.add(raster);
+            assertEquals(n, history.record(SPRITE, copy(raster)));
+            raster = paintBlock(raster);
+        }
+        return saved;
+    }
+
+    // A copy with a 6 x 6 block painted, every other one in the partial bottom right tile
+    private Raster paintBlock(Raster raster) {
+        Raster painted = copy(raster);
+        boolean corner = blocks++ % 2 == 0;
+        int top = corner ? HEIGHT - 6 : random.nextInt(HEIGHT - 6);
+        int left = corner ? WIDTH - 6 : random.nextInt(WIDTH - 6);
+        int argb = 0xFF000000 | random.nextInt();
+        for (int row = top; row < top + 6; row++) {
+            for (int col = left; col < left + 6; col++) {
+                painted.argb()[row * WIDTH + col] = argb;
+            }
+        }
+        return painted;
+    }
+
+    private static Raster copy(Raster raster) {
+        return new Raster(raster.width(), raster.height(), raster.argb().clone());
+    }
+}
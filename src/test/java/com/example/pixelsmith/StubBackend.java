@@ -0,0 +1,256 @@
+package com.example.pixelsmith;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the /api backend, for exercising the client without a real server.
+ * <p>
+ * Implements the endpoints the client calls (users login/signup; sprites create, get, update,
+ * name, batch and per-user list) and can be made to misbehave: every response can be delayed
+ * by a fixed latency plus random jitter, a fraction of requests can fail with 500, and sprite
+ * names can be padded to make list payloads large. Run it on its own with
+ * {@code java ... StubBackend --port=8080 --latency=50 --jitter=20 --errors=0.05}, then start the
+ * client with {@code -Dpixelsmith.api=http://localhost:8080/api}, or use it from {@link LoadDriver}.
+ */
+public class StubBackend {
+    // How the stub misbehaves; all zero means a fast, reliable backend
+    record Faults(long latencyMillis, long jitterMillis, double errorRate, int namePadding) {
+        static Faults parse(Map<String, String> args) {
+            return new Faults(Long.parseLong(args.getOrDefault("latency", "0")),
+                    Long.parseLong(args.getOrDefault("jitter", "0")),
+                    Double.parseDouble(args.getOrDefault("errors", "0")),
+                    Integer.parseInt(args.getOrDefault("pad", "0")));
+        }
+    }
+
+    private record User(int userId, String username, String email, String passwordhash) {
+    }
+
+    private static final class Sprite {
+        final int spriteId;
+        final int userId;
+        volatile String name;
+        volatile String pathDirect;
+        volatile long version;
+
+        Sprite(int spriteId, int userId, String name, String pathDirect) {
+            this.spriteId = spriteId;
+            this.userId = userId;
+            this.name = name;
+            this.pathDirect = pathDirect;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Faults faults;
+    private final String padding;
+    private final Map<String, User> usersByEmail = new ConcurrentHashMap<>();
+    private final Map<Integer, Sprite> sprites = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId = new AtomicInteger(1);
+    private final AtomicInteger nextSpriteId = new AtomicInteger(1);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    StubBackend(int port, Faults faults) throws IOException {
+        this.faults = faults;
+        this.padding = "~".repeat(faults.namePadding());
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/api/users/", this::handleUsers);
+        server.createContext("/api/sprites/", this::handleSprites);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/api";
+    }
+
+    long requestCount() {
+        return requests.get();
+    }
+
+    long injectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    // Create users user1@example.com .. with password "password", each owning spritesPerUser sprites
+    void seed(int users, int spritesPerUser) {
+        for (int i = 0; i < users; i++) {
+            User user = signup("user" + (i + 1), "user" + (i + 1) + "@example.com", "password");
+            for (int s = 0; s < spritesPerUser; s++) {
+                int spriteId = nextSpriteId.getAndIncrement();
+                sprites.put(spriteId, new Sprite(spriteId, user.userId(), "sprite " + spriteId, "/tmp/sprites/" + spriteId + ".png"));
+            }
+        }
+    }
+
+    private User signup(String username, String email, String passwordhash) {
+        return usersByEmail.computeIfAbsent(email, key -> new User(nextUserId.getAndIncrement(), username, email, passwordhash));
+    }
+
+    private void handleUsers(HttpExchange exchange) throws IOException {
+        if (misbehave(exchange)) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        JSONObject body = readJson(exchange);
+        if (path.endsWith("/signup")) {
+            String email = body.getString("email");
+            if (usersByEmail.containsKey(email)) {
+                respond(exchange, 409, "Email already registered");
+                return;
+            }
+            User user = signup(body.getString("username"), email, body.getString("passwordhash"));
+            respond(exchange, 200, new JSONObject().put("userId", user.userId()).toString());
+        } else if (path.endsWith("/login")) {
+            User user = usersByEmail.get(body.optString("email"));
+            if (user == null || !user.passwordhash().equals(body.optString("passwordhash"))) {
+                respond(exchange, 401, "Invalid credentials");
+                return;
+            }
+            respond(exchange, 200, new JSONObject().put("userId", user.userId()).toString());
+        } else {
+            respond(exchange, 404, "Not found");
+        }
+    }
+
+    private void handleSprites(HttpExchange exchange) throws IOException {
+        if (misbehave(exchange)) {
+            return;
+        }
+        String method = exchange.getRequestMethod();
+        String[] parts = exchange.getRequestURI().getPath().substring("/api/sprites/".length()).split("/");
+        try {
+            if (parts[0].equals("create") && method.equals("POST")) {
+                JSONObject body = readJson(exchange);
+                int spriteId = nextSpriteId.getAndIncrement();
+                Sprite sprite = new Sprite(spriteId, body.getJSONObject("user").getInt("userId"), body.getString("name"),
+                        body.getJSONObject("spriteData").getString("pathDirect"));
+                sprites.put(spriteId, sprite);
+                respond(exchange, 200, toJson(sprite).toString());
+            } else if (parts[0].equals("batch") && method.equals("POST")) {
+                JSONArray ids = readJson(exchange).getJSONArray("ids");
+                JSONArray found = new JSONArray();
+                for (int i = 0; i < ids.length(); i++) {
+                    Sprite sprite = sprites.get(ids.getInt(i));
+                    if (sprite != null) {
+                        found.put(toJson(sprite));
+                    }
+                }
+                respond(exchange, 200, found.toString());
+            } else if (parts[0].equals("user") && parts.length == 2) {
+                int userId = Integer.parseInt(parts[1]);
+                JSONArray owned = new JSONArray();
+                for (Sprite sprite : sprites.values()) {
+                    if (sprite.userId == userId) {
+                        owned.put(toJson(sprite));
+                    }
+                }
+                respond(exchange, 200, owned.toString());
+            } else {
+                Sprite sprite = sprites.get(Integer.parseInt(parts[0]));
+                if (sprite == null) {
+                    respond(exchange, 404, "No such sprite");
+                } else if (parts.length == 2 && parts[1].equals("name")) {
+                    respond(exchange, 200, sprite.name + padding);
+                } else if (method.equals("PUT")) {
+                    JSONObject body = readJson(exchange);
+                    sprite.name = body.getString("name");
+                    sprite.pathDirect = body.getString("pathDirect");
+                    sprite.version++;
+                    respond(exchange, 200, toJson(sprite).toString());
+                } else {
+                    respond(exchange, 200, toJson(sprite).toString());
+                }
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 400, "Bad request: " + e.getMessage());
+        }
+    }
+
+    // Apply the configured latency, then fail the request if it was picked for an injected error
+    private boolean misbehave(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = faults.latencyMillis() + (faults.jitterMillis() > 0 ? random.nextLong(faults.jitterMillis() + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (faults.errorRate() > 0 && random.nextDouble() < faults.errorRate()) {
+            injectedErrors.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 500, "Injected failure");
+            return true;
+        }
+        return false;
+    }
+
+    private JSONObject toJson(Sprite sprite) {
+        return new JSONObject()
+                .put("spriteId", sprite.spriteId)
+                .put("name", sprite.name + padding)
+                .put("version", sprite.version)
+                .put("user", new JSONObject().put("userId", sprite.userId))
+                .put("spriteData", new JSONObject().put("pathDirect", sprite.pathDirect));
+    }
+
+    private static JSONObject readJson(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        return body.isBlank() ? new JSONObject() : new JSONObject(body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // --name=value arguments
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> parsed = new ConcurrentHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                parsed.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        return parsed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseArgs(args);
+        StubBackend backend = new StubBackend(Integer.parseInt(options.getOrDefault("port", "8080")), Faults.parse(options));
+        backend.seed(Integer.parseInt(options.getOrDefault("users", "10")), Integer.parseInt(options.getOrDefault("sprites", "20")));
+        backend.start();
+        System.out.println("Stub backend listening at " + backend.url() + " (" + backend.faults + ")");
+    }
+}